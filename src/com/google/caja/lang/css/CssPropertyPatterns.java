@@ -57,9 +57,12 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Operates on CSS property signatures to come up with a simple regular
@@ -136,6 +139,18 @@ import java.util.Set;
  * namespace to an object whose keys are CSS property names, and whose
  * values are regular expressions.
  *
+ * <h3>Table Driven Matchers</h3>
+ * <p>
+ * Alternatively, {@link #generatePatterns(CssSchema, boolean, Appendable)}
+ * can map property names to matchers that split a value into tokens and
+ * run them through an automaton described by a table of keyword sets and
+ * builtin token classes like {@code <length>}.  The generated code includes a
+ * small interpreter for these tables, and matchers have a {@code test} method
+ * like regular expressions so that clients can use either.  Unlike a
+ * backtracking regular expression engine, the interpreter tracks all the
+ * states that the tokens so far could lead to, so it takes time linear in
+ * the number of tokens.
+ *
  * <h3>Caveats</h3>
  * <p>
  * Some of the regular expressions do match URLs.  If valid css text contains
@@ -290,7 +305,11 @@ public class CssPropertyPatterns {
     if (pattern == null && name.getCanonicalForm().contains(":")) {
       System.err.println("Failing detail check on " + name);
     }
-    return pattern != null ? new Snippet(pattern + "\\s+") : null;
+    if (pattern == null) { return null; }
+    // Group alternations like "0|..." so that the "\\s+" applies to all
+    // alternatives and so they can be concatenated.
+    if (pattern.contains("|")) { pattern = "(?:" + pattern + ")"; }
+    return new Snippet(pattern + "\\s+");
   }
 
   private static interface Pattern {
@@ -398,6 +417,9 @@ public class CssPropertyPatterns {
           if ("".equals(tail)) { break; }
           tail = commonSuffix(tail, child.tail());
         }
+        // Only factor out whole trailing "\\s+" since a longer suffix might
+        // split a group or an escape sequence, as in "(?:0|...)\\s+".
+        tail = tail.endsWith("\\s+") ? "\\s+" : "";
         if (!"".equals(tail)) {
           for (int i = 0; i < n; ++i) {
             newChildren.set(i, newChildren.get(i).subtractTail(tail.length()));
@@ -482,6 +504,410 @@ public class CssPropertyPatterns {
     }
   }
 
+  /**
+   * Generates a table driven matcher for the given signature if a simple
+   * regular expression exists for it.
+   * <p>
+   * The table describes an automaton over the whitespace separated tokens of
+   * a value.  Each element is a state: a flag that is 1 if the state is
+   * accepting, followed by pairs of a token class and the index of the state
+   * that a token in that class leads to.  A token class is either an object
+   * whose keys are lower-cased keywords, or the name of a builtin symbol like
+   * {@code "length:0,"}.  The start state is at index 0.
+   * <p>
+   * The automaton may be nondeterministic, but since the matcher in the
+   * generated code tracks the set of live states token by token instead of
+   * backtracking, matching takes time linear in the length of the value.
+   *
+   * @return null if no simple regular expression exists for sig, or an
+   *     array constructor that accepts the same values as the regular
+   *     expression returned by {@link #cssPropertyToPattern}.
+   */
+  public ArrayConstructor cssPropertyToMatcherTable(CssPropertySignature sig) {
+    TokenAutomaton a = new TokenAutomaton();
+    int[] startEnd = sigToAutomaton(sig, a);
+    if (startEnd == null) { return null; }
+    return a.toTable(startEnd[0], startEnd[1]);
+  }
+
+  // Each of the below returns the start and end state of a sub-automaton that
+  // matches sig, or null.  States are only linked to the start and end of a
+  // sub-automaton once it has been built, so the states of a sub-automaton
+  // that fails are unreachable, and are not included in the table.
+  private int[] sigToAutomaton(CssPropertySignature sig, TokenAutomaton a) {
+    if (sig instanceof CssPropertySignature.LiteralSignature) {
+      String kw = ((CssPropertySignature.LiteralSignature) sig).getValue();
+      int start = a.newState(), end = a.newState();
+      a.addEdge(start, Strings.toLowerCase(kw), null, end);
+      return new int[] { start, end };
+    } else if (sig instanceof CssPropertySignature.RepeatedSignature) {
+      return repToAutomaton((CssPropertySignature.RepeatedSignature) sig, a);
+    } else if (sig instanceof CssPropertySignature.PropertyRefSignature) {
+      CssSchema.CssPropertyInfo p = schema.getCssProperty(
+          ((CssPropertySignature.PropertyRefSignature) sig).getPropertyName());
+      return p != null ? sigToAutomaton(p.sig, a) : null;
+    } else if (sig instanceof CssPropertySignature.SeriesSignature) {
+      int start = a.newState();
+      int end = start;
+      for (CssPropertySignature child : sig.children()) {
+        int[] childStartEnd = sigToAutomaton(child, a);
+        if (childStartEnd == null) { return null; }
+        a.addEdge(end, null, null, childStartEnd[0]);
+        end = childStartEnd[1];
+      }
+      return new int[] { start, end };
+    } else if (sig instanceof CssPropertySignature.SymbolSignature) {
+      Name symbolName = ((CssPropertySignature.SymbolSignature) sig).getValue();
+      if (BUILTINS.containsKey(symbolName.getCanonicalForm())) {
+        int start = a.newState(), end = a.newState();
+        a.addEdge(start, null, symbolName.getCanonicalForm(), end);
+        return new int[] { start, end };
+      }
+      CssSchema.SymbolInfo s = schema.getSymbol(symbolName);
+      return s != null ? sigToAutomaton(s.sig, a) : null;
+    } else if (sig instanceof CssPropertySignature.SetSignature
+               || sig instanceof CssPropertySignature.ExclusiveSetSignature) {
+      // Like setToPattern, matches exactly one of the children that can be
+      // matched.
+      int start = a.newState(), end = a.newState();
+      boolean any = false;
+      for (CssPropertySignature child : sig.children()) {
+        int[] childStartEnd = sigToAutomaton(child, a);
+        if (childStartEnd == null) { continue; }
+        a.addEdge(start, null, null, childStartEnd[0]);
+        a.addEdge(childStartEnd[1], null, null, end);
+        any = true;
+      }
+      return any ? new int[] { start, end } : null;
+    }
+    return null;
+  }
+
+  private int[] repToAutomaton(
+      CssPropertySignature.RepeatedSignature sig, TokenAutomaton a) {
+    CssPropertySignature rep = sig.getRepeatedSignature();
+    // See repToPattern.
+    if (rep instanceof CssPropertySignature.ExclusiveSetSignature) {
+      return null;
+    }
+    int start = a.newState();
+    int end = start;
+    for (int i = 0; i < sig.minCount; ++i) {
+      int[] repStartEnd = sigToAutomaton(rep, a);
+      if (repStartEnd == null) { return null; }
+      a.addEdge(end, null, null, repStartEnd[0]);
+      end = repStartEnd[1];
+    }
+    if (sig.maxCount == Integer.MAX_VALUE) {
+      int[] repStartEnd = sigToAutomaton(rep, a);
+      if (repStartEnd == null) { return null; }
+      a.addEdge(end, null, null, repStartEnd[0]);
+      a.addEdge(repStartEnd[1], null, null, end);
+      return new int[] { start, end };
+    }
+    int optEnd = a.newState();
+    a.addEdge(end, null, null, optEnd);
+    for (int i = sig.minCount; i < sig.maxCount; ++i) {
+      int[] repStartEnd = sigToAutomaton(rep, a);
+      if (repStartEnd == null) { return null; }
+      a.addEdge(end, null, null, repStartEnd[0]);
+      end = repStartEnd[1];
+      a.addEdge(end, null, null, optEnd);
+    }
+    return new int[] { start, optEnd };
+  }
+
+  /**
+   * A nondeterministic automaton whose edges consume a keyword, a token
+   * matching a builtin symbol, or nothing.
+   */
+  private static final class TokenAutomaton {
+    /** Outgoing edges by state. */
+    private final List<List<Edge>> states = new ArrayList<List<Edge>>();
+
+    private static final class Edge {
+      /** Null if not a keyword edge. */
+      final String keyword;
+      /** Null if not a builtin edge.  An epsilon edge if both are null. */
+      final String builtin;
+      final int target;
+
+      Edge(String keyword, String builtin, int target) {
+        this.keyword = keyword;
+        this.builtin = builtin;
+        this.target = target;
+      }
+    }
+
+    int newState() {
+      states.add(new ArrayList<Edge>());
+      return states.size() - 1;
+    }
+
+    void addEdge(int source, String keyword, String builtin, int target) {
+      states.get(source).add(new Edge(keyword, builtin, target));
+    }
+
+    /** The states reachable from state via zero or more epsilon edges. */
+    private Set<Integer> closure(int state) {
+      Set<Integer> closure = new LinkedHashSet<Integer>();
+      List<Integer> work = new ArrayList<Integer>();
+      work.add(state);
+      while (!work.isEmpty()) {
+        int s = work.remove(work.size() - 1);
+        if (!closure.add(s)) { continue; }
+        for (Edge e : states.get(s)) {
+          if (e.keyword == null && e.builtin == null) { work.add(e.target); }
+        }
+      }
+      return closure;
+    }
+
+    /**
+     * Removes epsilon edges, merges states that accept the same tokens and
+     * lead to the same states, renumbers the remaining states in breadth first
+     * order from start, and merges keyword edges that have the same source
+     * and target into one keyword set.
+     */
+    ArrayConstructor toTable(int start, int accept) {
+      // Find the states reachable from start without epsilon edges.
+      Map<Integer, Integer> indices = new LinkedHashMap<Integer, Integer>();
+      List<Integer> order = new ArrayList<Integer>();
+      List<Boolean> accepting = new ArrayList<Boolean>();
+      List<List<Edge>> edges = new ArrayList<List<Edge>>();
+      indices.put(start, 0);
+      order.add(start);
+      for (int i = 0; i < order.size(); ++i) {
+        boolean isAccepting = false;
+        List<Edge> out = new ArrayList<Edge>();
+        for (int s : closure(order.get(i))) {
+          if (s == accept) { isAccepting = true; }
+          for (Edge e : states.get(s)) {
+            if (e.keyword == null && e.builtin == null) { continue; }
+            Integer target = indices.get(e.target);
+            if (target == null) {
+              target = order.size();
+              indices.put(e.target, target);
+              order.add(e.target);
+            }
+            out.add(new Edge(e.keyword, e.builtin, target));
+          }
+        }
+        accepting.add(isAccepting);
+        edges.add(out);
+      }
+
+      // Partition the states into blocks of equivalent states by repeatedly
+      // splitting blocks whose members have edges into different blocks.
+      int n = order.size();
+      int[] blocks = new int[n];
+      int nBlocks = 0;
+      while (true) {
+        Map<Set<String>, Integer> signatures
+            = new HashMap<Set<String>, Integer>();
+        int[] newBlocks = new int[n];
+        for (int i = 0; i < n; ++i) {
+          Set<String> signature = new HashSet<String>();
+          signature.add(blocks[i] + (accepting.get(i) ? "+" : "-"));
+          for (Edge e : edges.get(i)) {
+            signature.add((e.keyword != null ? "k" + e.keyword : "b" + e.builtin)
+                          + " " + blocks[e.target]);
+          }
+          Integer block = signatures.get(signature);
+          if (block == null) {
+            signatures.put(signature, block = signatures.size());
+          }
+          newBlocks[i] = block;
+        }
+        blocks = newBlocks;
+        if (signatures.size() == nBlocks) { break; }
+        nBlocks = signatures.size();
+      }
+
+      // Number the blocks breadth first.
+      FilePosition unk = FilePosition.UNKNOWN;
+      int[] blockIndices = new int[nBlocks];
+      Arrays.fill(blockIndices, -1);
+      List<Integer> blockOrder = new ArrayList<Integer>();
+      blockIndices[blocks[0]] = 0;
+      blockOrder.add(0);
+      List<Expression> table = new ArrayList<Expression>();
+      for (int i = 0; i < blockOrder.size(); ++i) {
+        // Any member of a block can stand for the others.
+        int rep = blockOrder.get(i);
+        Map<Integer, Set<String>> keywords
+            = new LinkedHashMap<Integer, Set<String>>();
+        Set<Pair<String, Integer>> builtins
+            = new LinkedHashSet<Pair<String, Integer>>();
+        for (Edge e : edges.get(rep)) {
+          int targetBlock = blocks[e.target];
+          if (blockIndices[targetBlock] < 0) {
+            blockIndices[targetBlock] = blockOrder.size();
+            blockOrder.add(e.target);
+          }
+          int target = blockIndices[targetBlock];
+          if (e.keyword != null) {
+            Set<String> kws = keywords.get(target);
+            if (kws == null) {
+              keywords.put(target, kws = new TreeSet<String>());
+            }
+            kws.add(e.keyword);
+          } else {
+            builtins.add(Pair.pair(e.builtin, target));
+          }
+        }
+        List<Expression> row = new ArrayList<Expression>();
+        row.add(new IntegerLiteral(unk, accepting.get(rep) ? 1 : 0));
+        for (Map.Entry<Integer, Set<String>> e : keywords.entrySet()) {
+          List<Pair<Literal, Expression>> kws
+              = new ArrayList<Pair<Literal, Expression>>();
+          for (String kw : e.getValue()) {
+            kws.add(Pair.pair(
+                (Literal) StringLiteral.valueOf(unk, kw),
+                (Expression) new IntegerLiteral(unk, 1)));
+          }
+          row.add(new ObjectConstructor(unk, kws));
+          row.add(new IntegerLiteral(unk, e.getKey()));
+        }
+        for (Pair<String, Integer> e : builtins) {
+          row.add(StringLiteral.valueOf(unk, e.a));
+          row.add(new IntegerLiteral(unk, e.b));
+        }
+        table.add(new ArrayConstructor(unk, row));
+      }
+      return new ArrayConstructor(unk, table);
+    }
+  }
+
+  /**
+   * Javascript that evaluates to a function which makes a matcher from a table
+   * produced by {@link #cssPropertyToMatcherTable}.  Matchers have a
+   * {@code test} method so that they can be used in place of the regular
+   * expressions produced by {@link #cssPropertyToPattern}.
+   * <p>
+   * There must be an entry in {@code builtins} for each key in
+   * {@link #BUILTINS}.
+   */
+  static final String MATCHER_MAKER = (
+      ""
+      + "(function () {"
+      // A token is a run of non-space characters and quoted strings, so that
+      // family names like "Times New Roman" and url("...") are one token.
+      + "  var TOKEN = /(?:[^\\s\"]+|\"[^\"]*\"?)+/g;"
+      // The below may not be true on browsers in the Turkish locale.
+      + "  var lcase;"
+      + "  if ('script' === 'SCRIPT'.toLowerCase()) {"
+      + "    lcase = function (s) { return s.toLowerCase(); };"
+      + "  } else {"
+      + "    lcase = function (s) {"
+      + "      return s.replace("
+      + "          /[A-Z]/g,"
+      + "          function (ch) {"
+      + "            return String.fromCharCode(ch.charCodeAt(0) | 32);"
+      + "          });"
+      + "    };"
+      + "  }"
+      + "  function skipDigits(token, i) {"
+      + "    var ch;"
+      + "    while ((ch = token.charCodeAt(i)) >= 48 && ch <= 57) { ++i; }"
+      + "    return i;"
+      + "  }"
+      // A state machine that matches a number with an optional sign and
+      // fraction, followed by one of the given units, if any.
+      + "  function numeric(signs, fraction, units) {"
+      + "    return function (token) {"
+      + "      if (units && token === '0') { return true; }"
+      + "      var i = 0;"
+      + "      if (token && signs.indexOf(token.charAt(0)) >= 0) { ++i; }"
+      + "      var end = skipDigits(token, i);"
+      + "      if (end === i) { return false; }"
+      + "      if (fraction && token.charAt(end) === '.') {"
+      + "        i = end + 1;"
+      + "        end = skipDigits(token, i);"
+      + "        if (end === i) { return false; }"
+      + "      }"
+      + "      var unit = lcase(token.substring(end));"
+      + "      return units ? units.hasOwnProperty(unit) : !unit;"
+      + "    };"
+      + "  }"
+      + "  function regex(re) {"
+      + "    return function (token) { return re.test(token); };"
+      + "  }"
+      // Double quoted words separated by spaces.
+      + "  function quotedWords(token) {"
+      + "    var n = token.length;"
+      + "    if (n < 2 || token.charAt(0) !== '\"'"
+      + "        || token.charAt(n - 1) !== '\"') {"
+      + "      return false;"
+      + "    }"
+      + "    var words = token.substring(1, n - 1).split(/\\s+/);"
+      + "    for (var i = words.length; --i >= 0;) {"
+      + "      if (!/^\\w[\\w-]*\\w$/.test(words[i])) { return false; }"
+      + "    }"
+      + "    return true;"
+      + "  }"
+      + "  var angles = { deg: 1, rad: 1, grad: 1 };"
+      + "  var frequencies = { hz: 1, khz: 1 };"
+      + "  var lengths = {"
+      + "    em: 1, ex: 1, px: 1, 'in': 1, cm: 1, mm: 1, pt: 1, pc: 1"
+      + "  };"
+      + "  var percent = { '%': 1 };"
+      + "  var times = { s: 1, ms: 1 };"
+      + "  var builtins = {"
+      + "    'number:0,': numeric('', true, null),"
+      + "    'number:0,1': regex("
+      + "        /^(?:0(?:\\.[0-9]+)?|\\.[0-9]+|1(?:\\.0+)?)$/),"
+      + "    'number': numeric('+-', true, null),"
+      + "    'percentage': numeric('', true, percent),"
+      + "    'percentage:0,': numeric('+-', true, percent),"
+      + "    'angle:0,': numeric('', true, angles),"
+      + "    'angle': numeric('+-', true, angles),"
+      + "    'frequency': numeric('', true, frequencies),"
+      + "    'length:0,': numeric('', true, lengths),"
+      + "    'length': numeric('+-', true, lengths),"
+      + "    'time:0,': numeric('', true, times),"
+      + "    'time': numeric('+-', true, times),"
+      + "    'integer': numeric('-', false, null),"
+      + "    'integer:0,': numeric('', false, null),"
+      + "    'hex-color': regex(/^#(?:[0-9a-f]{3}){1,2}$/i),"
+      + "    'specific-voice': quotedWords,"
+      + "    'family-name': quotedWords,"
+      + "    'uri': regex(/^url\\(\"[^\\(\\)\\\\\\\"\\r\\n]+\"\\)$/i)"
+      + "  };"
+      + "  return function (table) {"
+      + "    return {"
+      + "      test: function (value) {"
+      + "        var tokens = String(value).match(TOKEN) || [];"
+      // The indices of the states that the tokens so far could lead to.
+      + "        var live = [0];"
+      + "        for (var i = 0, n = tokens.length; i < n; ++i) {"
+      + "          var token = tokens[i], lcToken = lcase(token);"
+      + "          var next = [], seen = {};"
+      + "          for (var j = 0; j < live.length; ++j) {"
+      + "            var state = table[live[j]];"
+      + "            for (var k = 1; k < state.length; k += 2) {"
+      + "              var cls = state[k], target = state[k + 1];"
+      + "              if (seen[target] !== true"
+      + "                  && (typeof cls === 'string'"
+      + "                      ? builtins[cls](token)"
+      + "                      : cls.hasOwnProperty(lcToken))) {"
+      + "                seen[target] = true;"
+      + "                next.push(target);"
+      + "              }"
+      + "            }"
+      + "          }"
+      + "          if (!next.length) { return false; }"
+      + "          live = next;"
+      + "        }"
+      + "        for (var m = live.length; --m >= 0;) {"
+      + "          if (table[live[m]][0]) { return true; }"
+      + "        }"
+      + "        return false;"
+      + "      }"
+      + "    };"
+      + "  };"
+      + "})()");
+
   public static String commonSuffix(String a, String b) {
     int m = a.length(), n = b.length();
     int k = Math.min(m, n);
@@ -492,6 +918,17 @@ public class CssPropertyPatterns {
 
   public static void generatePatterns(CssSchema schema, Appendable out)
       throws IOException {
+    generatePatterns(schema, false, out);
+  }
+
+  /**
+   * @param useMatchers true to map property names to the table driven
+   *     matchers described at {@link #cssPropertyToMatcherTable} instead of
+   *     to regular expressions.
+   */
+  public static void generatePatterns(
+      CssSchema schema, boolean useMatchers, Appendable out)
+      throws IOException {
     FilePosition unk = FilePosition.UNKNOWN;
     CssPropertyPatterns pp = new CssPropertyPatterns(schema);
     List<CssSchema.CssPropertyInfo> props
@@ -506,13 +943,26 @@ public class CssPropertyPatterns {
     Map<String, int[]> constantPoolMap = new HashMap<String, int[]>();
     List<Pair<CssSchema.CssPropertyInfo, String>> patterns
         = new ArrayList<Pair<CssSchema.CssPropertyInfo, String>>();
-    List<RegexpLiteral> constantPool = new ArrayList<RegexpLiteral>();
+    // Maps patterns to the regular expression or matcher that implements them.
+    Map<String, Expression> matchers = new HashMap<String, Expression>();
+    List<Expression> constantPool = new ArrayList<Expression>();
 
     for (CssSchema.CssPropertyInfo prop : props) {
       String pattern = pp.cssPropertyToPattern(prop.sig);
       if (!schema.isPropertyAllowed(prop.name)) { continue; }
       if (pattern != null && !"(?:inherit\\s+)".equals(pattern)) {
         patterns.add(Pair.pair(prop, pattern));
+        if (!matchers.containsKey(pattern)) {
+          // Properties with the same pattern can share a matcher since they
+          // accept the same values.
+          ArrayConstructor table = useMatchers
+              ? pp.cssPropertyToMatcherTable(prop.sig) : null;
+          matchers.put(
+              pattern,
+              table != null
+              ? (Expression) QuasiBuilder.substV("m(@table)", "table", table)
+              : new RegexpLiteral(unk, pattern));
+        }
         // Keep track of which patterns appear more than once so we can use
         // a constant pool.
         int[] pool = constantPoolMap.get(pattern);
@@ -520,11 +970,16 @@ public class CssPropertyPatterns {
           constantPoolMap.put(pattern, new int[] { -1 });
         } else if (pool[0] == -1) {
           pool[0] = constantPool.size();
-          constantPool.add(new RegexpLiteral(unk, pattern));
+          constantPool.add(matchers.get(pattern));
         }
       }
     }
 
+    Declaration matcherMakerDecl = null;
+    if (useMatchers) {
+      matcherMakerDecl = (Declaration) QuasiBuilder.substV(
+          "var m = " + MATCHER_MAKER + ";");
+    }
     Declaration constantPoolDecl = null;
     if (!constantPool.isEmpty()) {
       constantPoolDecl = (Declaration) QuasiBuilder.substV(
@@ -538,7 +993,7 @@ public class CssPropertyPatterns {
     for (Pair<CssSchema.CssPropertyInfo, String> p : patterns) {
       int poolIndex = constantPoolMap.get(p.b)[0];
       Expression re = poolIndex < 0
-          ? new RegexpLiteral(unk, p.b)
+          ? matchers.get(p.b)
           : (Expression) QuasiBuilder.substV(
               "c[@i]", "i", new IntegerLiteral(unk, poolIndex));
       Literal name = StringLiteral.valueOf(unk, p.a.name.getCanonicalForm());
@@ -563,9 +1018,11 @@ public class CssPropertyPatterns {
 
     ParseTreeNode js = QuasiBuilder.substV(
         "var css = { properties: (function () {"
+        + "  @matcherMakerDecl?;"
         + "  @constantPoolDecl?;"
         + "  return @cssPropConstructor;"
         + "})(), alternates: @alternates };",
+        "matcherMakerDecl", matcherMakerDecl,
         "constantPoolDecl", constantPoolDecl,
         "cssPropConstructor", cssPropConstructor,
         "alternates", alternateNames);
@@ -579,6 +1036,37 @@ public class CssPropertyPatterns {
   public static class Builder implements BuildCommand {
     public void build(List<File> inputs, List<File> deps, File output)
         throws IOException {
+      CssSchema schema = loadSchema(inputs, deps);
+
+      Writer out = new OutputStreamWriter(
+          new FileOutputStream(output), "UTF-8");
+      String currentDate = "" + new Date();
+      if (currentDate.indexOf("*/") >= 0) { throw new RuntimeException(); }
+      out.write("/* Copyright Google Inc.\n");
+      out.write(" * Licensed under the Apache Licence Version 2.0\n");
+      out.write(" * Autogenerated at " + currentDate + "\n");
+      out.write(" */\n");
+      try {
+        generatePatterns(schema, useMatchers(), out);
+      } finally {
+        out.close();
+      }
+    }
+
+    /**
+     * True to emit the table driven matchers described at
+     * {@link CssPropertyPatterns#cssPropertyToMatcherTable} instead of
+     * regular expressions.
+     */
+    protected boolean useMatchers() { return false; }
+
+    /**
+     * Loads the schema described by a JSON whitelist of symbols and
+     * properties, and one of functions, in that order, from inputs.
+     * @param deps files that the inputs may import.
+     */
+    static CssSchema loadSchema(List<File> inputs, List<File> deps)
+        throws IOException {
       File symbolsAndPropertiesFile = null;
       File functionsFile = null;
       for (File input : inputs) {
@@ -628,23 +1116,20 @@ public class CssPropertyPatterns {
         throw (IOException) new IOException("Failed to parse schema")
             .initCause(ex);
       }
-
-      Writer out = new OutputStreamWriter(
-          new FileOutputStream(output), "UTF-8");
-      String currentDate = "" + new Date();
-      if (currentDate.indexOf("*/") >= 0) { throw new RuntimeException(); }
-      out.write("/* Copyright Google Inc.\n");
-      out.write(" * Licensed under the Apache Licence Version 2.0\n");
-      out.write(" * Autogenerated at " + currentDate + "\n");
-      out.write(" */\n");
-      try {
-        generatePatterns(schema, out);
-      } finally {
-        out.close();
-      }
+      return schema;
     }
   }
 
+  /**
+   * Like {@link Builder} but maps properties to table driven matchers, which
+   * match in time linear in the length of the value, instead of to regular
+   * expressions.
+   */
+  public static class MatcherBuilder extends Builder {
+    @Override
+    protected boolean useMatchers() { return true; }
+  }
+
   /**
    * Converts a css property name to a javascript identifier, e.g.
    * {@code background-color} => {@code backgroundColor}.
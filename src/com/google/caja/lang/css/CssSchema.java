@@ -24,11 +24,22 @@ import com.google.caja.parser.css.CssPropertySignature;
 import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.tools.BuildCommand;
 import com.google.caja.util.Criterion;
 import com.google.caja.util.Name;
 import com.google.caja.util.Pair;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -57,7 +68,18 @@ public final class CssSchema {
   private final Set<Name> propertiesAllowed;
 
   private static Pair<CssSchema, List<Message>> defaultSchema;
+  /**
+   * The default CSS whitelist.  This is read from a {@link #writeSnapshot
+   * snapshot} generated at build time if one is on the classpath, and
+   * otherwise from the JSON files in this directory.
+   */
   public static CssSchema getDefaultCss21Schema(MessageQueue mq) {
+    if (defaultSchema == null) {
+      CssSchema snapshot = readSnapshotResource(DEFAULT_SNAPSHOT);
+      if (snapshot != null) {
+        defaultSchema = Pair.pair(snapshot, Collections.<Message>emptyList());
+      }
+    }
     if (defaultSchema == null) {
       SimpleMessageQueue cacheMq = new SimpleMessageQueue();
       URI fnSrc = URI.create(
@@ -199,13 +221,29 @@ public final class CssSchema {
       "screen", "tty", "tv");
 
   private static Criterion<String> in(String... elementGroups) {
-    final Set<String> elements = new HashSet<String>();
-    elements.addAll(Arrays.asList(elementGroups));
-    return new Criterion<String>() {
-      public boolean accept(String s) {
-        return elements.contains(s);
-      }
-    };
+    return new MemberCriterion(
+        new HashSet<String>(Arrays.asList(elementGroups)), null);
+  }
+
+  /**
+   * Accepts the members of a set, or if there is a permissive criterion,
+   * everything it accepts except the members.
+   * Unlike an anonymous criterion, it can be written to a snapshot.
+   */
+  private static final class MemberCriterion implements Criterion<String> {
+    final Set<String> members;
+    final Criterion<String> permissive;
+
+    MemberCriterion(Set<String> members, Criterion<String> permissive) {
+      this.members = members;
+      this.permissive = permissive;
+    }
+
+    public boolean accept(String s) {
+      return permissive == null
+          ? members.contains(s)
+          : permissive.accept(s) && !members.contains(s);
+    }
   }
 
   private static Criterion<String> criterionFromConfig(
@@ -229,13 +267,8 @@ public final class CssSchema {
         members.add((String) ((Map<?, ?>) member).get("key"));
       }
     }
-    Criterion<String> set = in(members.toArray(new String[0]));
-    if (invert) {
-      return Criterion.Factory.and(
-          permissiveCriterion, Criterion.Factory.not(set));
-    } else {
-      return set;
-    }
+    return new MemberCriterion(
+        new HashSet<String>(members), invert ? permissiveCriterion : null);
   }
 
   private void defineProperty(
@@ -354,6 +387,206 @@ public final class CssSchema {
     keywords.add(Name.css("initial"));
   }
 
+  /** The classpath resource from which the default schema is read. */
+  private static final String DEFAULT_SNAPSHOT = "default-schema.snapshot";
+  /** Changed whenever the snapshot format changes. */
+  private static final int SNAPSHOT_VERSION = 1;
+  private static final int SNAPSHOT_MAGIC = 0x43535353;  // "CSSS"
+
+  /**
+   * Writes the fully resolved schema, including parsed signatures, in a
+   * compact binary form that {@link #readSnapshot} can load much faster than
+   * the schema can be rebuilt from JSON.
+   * The output depends only on the schema's content, so rebuilding a
+   * snapshot from unchanged whitelists produces identical bytes.
+   */
+  public void writeSnapshot(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(
+        new BufferedOutputStream(out));
+    data.writeInt(SNAPSHOT_MAGIC);
+    data.writeInt(SNAPSHOT_VERSION);
+    data.writeInt(properties.size());
+    for (Name name : sorted(properties.keySet())) {
+      CssPropertyInfo pi = properties.get(name);
+      data.writeUTF(pi.name.getCanonicalForm());
+      pi.sig.write(data);
+      writeNullableString(pi.defaultValue, data);
+      writeCriterion(pi.appliesTo, data);
+      data.writeBoolean(pi.inherited);
+      writeCriterion(pi.mediaGroups, data);
+      writeStrings(pi.dom2properties, data);
+    }
+    data.writeInt(symbols.size());
+    for (Name name : sorted(symbols.keySet())) {
+      SymbolInfo si = symbols.get(name);
+      data.writeUTF(si.name.getCanonicalForm());
+      si.sig.write(data);
+    }
+    writeNames(sorted(keywords), data);
+    writeNames(functionsAllowed, data);
+    writeNames(propertiesAllowed, data);
+    data.flush();
+  }
+
+  /**
+   * Reads a schema written by {@link #writeSnapshot}.
+   * @throws IOException if in does not contain a snapshot in the current
+   *     format.
+   */
+  public static CssSchema readSnapshot(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != SNAPSHOT_MAGIC
+        || data.readInt() != SNAPSHOT_VERSION) {
+      throw new IOException("Not a CSS schema snapshot in the current format");
+    }
+    return new CssSchema(data);
+  }
+
+  private CssSchema(DataInput in) throws IOException {
+    for (int i = in.readInt(); --i >= 0;) {
+      Name name = Name.css(in.readUTF());
+      CssPropertySignature sig = CssPropertySignature.read(in);
+      String defaultValue = readNullableString(in);
+      Criterion<String> appliesTo = readCriterion(in);
+      boolean inherited = in.readBoolean();
+      Criterion<String> mediaGroups = readCriterion(in);
+      List<String> dom2properties = readStrings(in);
+      properties.put(name, new CssPropertyInfo(
+          name, sig, mediaGroups, inherited, appliesTo, defaultValue,
+          dom2properties));
+    }
+    for (int i = in.readInt(); --i >= 0;) {
+      Name name = Name.css(in.readUTF());
+      symbols.put(name, new SymbolInfo(name, CssPropertySignature.read(in)));
+    }
+    keywords.addAll(readNames(in));
+    functionsAllowed = readNames(in);
+    propertiesAllowed = readNames(in);
+  }
+
+  /**
+   * Reads a snapshot generated at build time.
+   * @param resourceName the name of a resource relative to this class.
+   * @return null if the resource is missing or is not a snapshot in the
+   *     current format, in which case the caller should fall back to JSON.
+   */
+  public static CssSchema readSnapshotResource(String resourceName) {
+    InputStream in = CssSchema.class.getResourceAsStream(resourceName);
+    if (in == null) { return null; }
+    try {
+      try {
+        return readSnapshot(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  // Criteria tags in snapshots
+  private static final byte ALL_ELEMENTS_TAG = 0, ALL_MEDIA_TAG = 1,
+      MEMBERS_TAG = 2, ALL_ELEMENTS_EXCEPT_TAG = 3, ALL_MEDIA_EXCEPT_TAG = 4;
+
+  private static void writeCriterion(Criterion<String> c, DataOutput out)
+      throws IOException {
+    if (c == ALL_ELEMENTS) {
+      out.writeByte(ALL_ELEMENTS_TAG);
+    } else if (c == ALL_MEDIA) {
+      out.writeByte(ALL_MEDIA_TAG);
+    } else {
+      MemberCriterion mc = (MemberCriterion) c;
+      if (mc.permissive == null) {
+        out.writeByte(MEMBERS_TAG);
+      } else if (mc.permissive == ALL_ELEMENTS) {
+        out.writeByte(ALL_ELEMENTS_EXCEPT_TAG);
+      } else if (mc.permissive == ALL_MEDIA) {
+        out.writeByte(ALL_MEDIA_EXCEPT_TAG);
+      } else {
+        throw new IllegalStateException();
+      }
+      writeStrings(sorted(mc.members), out);
+    }
+  }
+
+  private static Criterion<String> readCriterion(DataInput in)
+      throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case ALL_ELEMENTS_TAG: return ALL_ELEMENTS;
+      case ALL_MEDIA_TAG: return ALL_MEDIA;
+      case MEMBERS_TAG:
+        return new MemberCriterion(new HashSet<String>(readStrings(in)), null);
+      case ALL_ELEMENTS_EXCEPT_TAG:
+        return new MemberCriterion(
+            new HashSet<String>(readStrings(in)), ALL_ELEMENTS);
+      case ALL_MEDIA_EXCEPT_TAG:
+        return new MemberCriterion(
+            new HashSet<String>(readStrings(in)), ALL_MEDIA);
+      default:
+        throw new IOException("Bad criterion tag " + tag);
+    }
+  }
+
+  private static <T extends Comparable<T>> List<T> sorted(Collection<T> c) {
+    List<T> sorted = new ArrayList<T>(c);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  private static void writeNullableString(String s, DataOutput out)
+      throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) { out.writeUTF(s); }
+  }
+
+  private static String readNullableString(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeStrings(Collection<String> strs, DataOutput out)
+      throws IOException {
+    out.writeInt(strs.size());
+    for (String s : strs) { out.writeUTF(s); }
+  }
+
+  private static List<String> readStrings(DataInput in) throws IOException {
+    int n = in.readInt();
+    if (n < 0) { throw new IOException("Bad count " + n); }
+    List<String> strs = new ArrayList<String>(n);
+    for (int i = 0; i < n; ++i) { strs.add(in.readUTF()); }
+    return Collections.unmodifiableList(strs);
+  }
+
+  private static void writeNames(Collection<Name> names, DataOutput out)
+      throws IOException {
+    out.writeInt(names.size());
+    for (Name name : names) { out.writeUTF(name.getCanonicalForm()); }
+  }
+
+  private static Set<Name> readNames(DataInput in) throws IOException {
+    Set<Name> names = new LinkedHashSet<Name>();
+    for (String s : readStrings(in)) { names.add(Name.css(s)); }
+    return names;
+  }
+
+  /**
+   * Writes a snapshot of the schema described by a JSON whitelist of symbols
+   * and properties, and one of functions, in that order.
+   */
+  public static class SnapshotBuilder implements BuildCommand {
+    public void build(List<File> inputs, List<File> deps, File output)
+        throws IOException {
+      CssSchema schema = CssPropertyPatterns.Builder.loadSchema(inputs, deps);
+      OutputStream out = new FileOutputStream(output);
+      try {
+        schema.writeSnapshot(out);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
   private static class RegexpCriterion implements Criterion<String> {
     private final Pattern p;
     RegexpCriterion(Pattern p) {
@@ -233,6 +233,37 @@ public final class HtmlDefinitions {
   public static class Builder implements BuildCommand {
     public void build(List<File> inputs, List<File> deps, File output)
         throws IOException {
+      HtmlSchema schema = loadSchema(inputs, deps);
+
+      Writer out = new OutputStreamWriter(
+          new FileOutputStream(output), "UTF-8");
+      String currentDate = "" + new Date();
+      if (currentDate.indexOf("*/") >= 0) { throw new RuntimeException(); }
+      out.write("/* Copyright Google Inc.\n");
+      out.write(" * Licensed under the Apache Licence Version 2.0\n");
+      out.write(" * Autogenerated at " + currentDate + "\n");
+      out.write(" */\n");
+      try {
+        Block node = generateJavascriptDefinitions(schema);
+        RenderContext rc = new RenderContext(
+            new MessageContext(), node.makeRenderer(out, null));
+        for (Statement s : node.children()) {
+          s.render(rc);
+          if (!s.isTerminal()) { rc.getOut().consume(";"); }
+        }
+        rc.getOut().noMoreTokens();
+      } finally {
+        out.close();
+      }
+    }
+
+    /**
+     * Loads the schema described by a JSON whitelist of elements, and one of
+     * attributes, in that order, from inputs.
+     * @param deps files that the inputs may import.
+     */
+    static HtmlSchema loadSchema(List<File> inputs, List<File> deps)
+        throws IOException {
       File elementsFile = null;
       File attrsFile = null;
       for (File input : inputs) {
@@ -282,27 +313,7 @@ public final class HtmlDefinitions {
         throw (IOException) new IOException("Failed to parse schema")
             .initCause(ex);
       }
-
-      Writer out = new OutputStreamWriter(
-          new FileOutputStream(output), "UTF-8");
-      String currentDate = "" + new Date();
-      if (currentDate.indexOf("*/") >= 0) { throw new RuntimeException(); }
-      out.write("/* Copyright Google Inc.\n");
-      out.write(" * Licensed under the Apache Licence Version 2.0\n");
-      out.write(" * Autogenerated at " + currentDate + "\n");
-      out.write(" */\n");
-      try {
-        Block node = generateJavascriptDefinitions(schema);
-        RenderContext rc = new RenderContext(
-            new MessageContext(), node.makeRenderer(out, null));
-        for (Statement s : node.children()) {
-          s.render(rc);
-          if (!s.isTerminal()) { rc.getOut().consume(";"); }
-        }
-        rc.getOut().noMoreTokens();
-      } finally {
-        out.close();
-      }
+      return schema;
     }
   }
 
@@ -20,14 +20,28 @@ import com.google.caja.lexer.ParseException;
 import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.tools.BuildCommand;
 import com.google.caja.util.Criterion;
 import com.google.caja.util.Name;
 import com.google.caja.util.Pair;
 import com.google.caja.util.Strings;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -44,20 +58,35 @@ import java.util.regex.Pattern;
  * @author mikesamuel@gmail.com
  */
 public final class HtmlSchema {
-  private static final Name WILDCARD = Name.html("*");
+  private static final Name WILDCARD = Name.internHtml("*");
 
   private final Set<Name> allowedElements;
   private final Map<Name, HTML.Element> elementDetails;
   private final Set<Pair<Name, Name>> allowedAttributes;
   private final Map<Pair<Name, Name>, HTML.Attribute> attributeDetails;
   private final Map<Pair<Name, Name>, Criterion<String>> attributeCriteria;
+  /**
+   * For each element that has attributes specific to it, everything known
+   * about each attribute that can appear on it, with wildcard definitions
+   * merged in.
+   */
+  private final Map<Name, Map<Name, AttributeInfo>> attributeTables;
+  /** Attributes that can appear on elements not in attributeTables. */
+  private final Map<Name, AttributeInfo> wildcardAttributes;
 
   private static Pair<HtmlSchema, List<Message>> defaultSchema;
   /**
    * The default HTML4 whitelist.  See the JSON files in this directory for
-   * the actual definitions.
+   * the actual definitions.  This is read from a {@link #writeSnapshot
+   * snapshot} generated at build time if one is on the classpath.
    */
   public static HtmlSchema getDefault(MessageQueue mq) {
+    if (defaultSchema == null) {
+      HtmlSchema snapshot = readSnapshotResource(DEFAULT_SNAPSHOT);
+      if (snapshot != null) {
+        defaultSchema = Pair.pair(snapshot, Collections.<Message>emptyList());
+      }
+    }
     if (defaultSchema == null) {
       SimpleMessageQueue cacheMq = new SimpleMessageQueue();
       URI elSrc = URI.create(
@@ -100,11 +129,11 @@ public final class HtmlSchema {
   public HtmlSchema(WhiteList tagList, WhiteList attribList) {
     this.allowedElements = new HashSet<Name>();
     for (String name : tagList.allowedItems()) {
-      allowedElements.add(Name.html(name));
+      allowedElements.add(Name.internHtml(name));
     }
     this.elementDetails = new HashMap<Name, HTML.Element>();
     for (WhiteList.TypeDefinition def : tagList.typeDefinitions().values()) {
-      Name name = Name.html((String) def.get("key", null));
+      Name name = Name.internHtml((String) def.get("key", null));
       elementDetails.put(
           name,
           new HTML.Element(
@@ -115,16 +144,17 @@ public final class HtmlSchema {
     this.allowedAttributes = new HashSet<Pair<Name, Name>>();
     for (String name : attribList.allowedItems()) {
       int colon = name.indexOf(':');
-      allowedAttributes.add(Pair.pair(Name.html(name.substring(0, colon)),
-                                      Name.html(name.substring(colon + 1))));
+      allowedAttributes.add(
+          Pair.pair(Name.internHtml(name.substring(0, colon)),
+                    Name.internHtml(name.substring(colon + 1))));
     }
     this.attributeDetails = new HashMap<Pair<Name, Name>, HTML.Attribute>();
     this.attributeCriteria = new HashMap<Pair<Name, Name>, Criterion<String>>();
     for (WhiteList.TypeDefinition def : attribList.typeDefinitions().values()) {
       String key = Strings.toLowerCase((String) def.get("key", null));
       int colon = key.indexOf(':');
-      Name element = Name.html(key.substring(0, colon)),
-          attrib = Name.html(key.substring(colon + 1));
+      Name element = Name.internHtml(key.substring(0, colon)),
+          attrib = Name.internHtml(key.substring(colon + 1));
       Pair<Name, Name> elAndAttrib = Pair.pair(element, attrib);
       HTML.Attribute.Type type = HTML.Attribute.Type.NONE;
       String typeName = (String) def.get("type", null);
@@ -135,41 +165,246 @@ public final class HtmlSchema {
       String mimeTypes = (String) def.get("mimeTypes", null);
       attributeDetails.put(
           elAndAttrib, new HTML.Attribute(element, attrib, type, mimeTypes));
-      final String values = (String) def.get("values", null);
+      String values = (String) def.get("values", null);
       Criterion<String> criterion = null;
       if (values != null) {
-        criterion = new Criterion<String>() {
-          final Set<String> valueSet = new HashSet<String>(
-             Arrays.asList(Strings.toLowerCase(values).split(",")));
-          public boolean accept(String s) {
-            return valueSet.contains(Strings.toLowerCase(s));
-          }
-
-          @Override
-          public String toString() {
-            return "[Value in " + values + "]";
-          }
-        };
+        criterion = new ValueSetCriterion(values);
       } else {
         String pattern = (String) def.get("pattern", null);
         if (pattern != null) {
-          final Pattern p = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-          criterion = new Criterion<String>() {
-            public boolean accept(String s) {
-              return p.matcher(s).matches();
-            }
-
-            @Override
-            public String toString() {
-              return "[Value =~ /" + p.pattern() + "/]";
-            }
-          };
+          criterion = new PatternCriterion(pattern);
         }
       }
       if (criterion != null) {
         attributeCriteria.put(elAndAttrib, criterion);
       }
     }
+    this.wildcardAttributes = buildWildcardAttributeTable();
+    this.attributeTables = buildAttributeTables();
+  }
+
+  /** Criteria are named classes so that they can be written to snapshots. */
+  private static final class ValueSetCriterion implements Criterion<String> {
+    final String values;
+    final Set<String> valueSet;
+
+    ValueSetCriterion(String values) {
+      this.values = values;
+      this.valueSet = new HashSet<String>(
+          Arrays.asList(Strings.toLowerCase(values).split(",")));
+    }
+
+    public boolean accept(String s) {
+      return valueSet.contains(Strings.toLowerCase(s));
+    }
+
+    @Override
+    public String toString() {
+      return "[Value in " + values + "]";
+    }
+  }
+
+  private static final class PatternCriterion implements Criterion<String> {
+    final Pattern p;
+
+    PatternCriterion(String pattern) {
+      this.p = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
+    }
+
+    public boolean accept(String s) {
+      return p.matcher(s).matches();
+    }
+
+    @Override
+    public String toString() {
+      return "[Value =~ /" + p.pattern() + "/]";
+    }
+  }
+
+  /** The classpath resource from which the default schema is read. */
+  private static final String DEFAULT_SNAPSHOT = "default-schema.snapshot";
+  /** Changed whenever the snapshot format changes. */
+  private static final int SNAPSHOT_VERSION = 1;
+  private static final int SNAPSHOT_MAGIC = 0x48544d53;  // "HTMS"
+  // Criteria tags in snapshots
+  private static final byte VALUE_SET_TAG = 0, PATTERN_TAG = 1;
+
+  /**
+   * Writes the fully resolved schema in a compact binary form that
+   * {@link #readSnapshot} can load much faster than the schema can be rebuilt
+   * from JSON.
+   * The output depends only on the schema's content, so rebuilding a
+   * snapshot from unchanged whitelists produces identical bytes.
+   */
+  public void writeSnapshot(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(
+        new BufferedOutputStream(out));
+    data.writeInt(SNAPSHOT_MAGIC);
+    data.writeInt(SNAPSHOT_VERSION);
+    data.writeInt(allowedElements.size());
+    for (Name el : sorted(allowedElements)) {
+      data.writeUTF(el.getCanonicalForm());
+    }
+    data.writeInt(elementDetails.size());
+    for (Name name : sorted(elementDetails.keySet())) {
+      HTML.Element el = elementDetails.get(name);
+      data.writeUTF(el.getName().getCanonicalForm());
+      data.writeBoolean(el.isEmpty());
+      data.writeBoolean(el.isEndTagOptional());
+    }
+    data.writeInt(allowedAttributes.size());
+    for (Pair<Name, Name> attr : sortedPairs(allowedAttributes)) {
+      data.writeUTF(attr.a.getCanonicalForm());
+      data.writeUTF(attr.b.getCanonicalForm());
+    }
+    data.writeInt(attributeDetails.size());
+    for (Pair<Name, Name> key : sortedPairs(attributeDetails.keySet())) {
+      HTML.Attribute attr = attributeDetails.get(key);
+      data.writeUTF(key.a.getCanonicalForm());
+      data.writeUTF(key.b.getCanonicalForm());
+      data.writeUTF(attr.getType().name());
+      String mimeTypes = attr.getMimeTypes();
+      data.writeBoolean(mimeTypes != null);
+      if (mimeTypes != null) { data.writeUTF(mimeTypes); }
+      Criterion<String> criterion = attributeCriteria.get(key);
+      if (criterion == null) {
+        data.writeBoolean(false);
+      } else {
+        data.writeBoolean(true);
+        if (criterion instanceof ValueSetCriterion) {
+          data.writeByte(VALUE_SET_TAG);
+          data.writeUTF(((ValueSetCriterion) criterion).values);
+        } else {
+          data.writeByte(PATTERN_TAG);
+          data.writeUTF(((PatternCriterion) criterion).p.pattern());
+        }
+      }
+    }
+    data.flush();
+  }
+
+  private static List<Name> sorted(Collection<Name> names) {
+    List<Name> sorted = new ArrayList<Name>(names);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  private static List<Pair<Name, Name>> sortedPairs(
+      Collection<Pair<Name, Name>> pairs) {
+    List<Pair<Name, Name>> sorted = new ArrayList<Pair<Name, Name>>(pairs);
+    Collections.sort(sorted, new Comparator<Pair<Name, Name>>() {
+      public int compare(Pair<Name, Name> x, Pair<Name, Name> y) {
+        int delta = x.a.compareTo(y.a);
+        return delta != 0 ? delta : x.b.compareTo(y.b);
+      }
+    });
+    return sorted;
+  }
+
+  /**
+   * Reads a schema written by {@link #writeSnapshot}.
+   * @throws IOException if in does not contain a snapshot in the current
+   *     format.
+   */
+  public static HtmlSchema readSnapshot(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != SNAPSHOT_MAGIC
+        || data.readInt() != SNAPSHOT_VERSION) {
+      throw new IOException(
+          "Not an HTML schema snapshot in the current format");
+    }
+    return new HtmlSchema(data);
+  }
+
+  private HtmlSchema(DataInput in) throws IOException {
+    this.allowedElements = new HashSet<Name>();
+    for (int i = in.readInt(); --i >= 0;) {
+      allowedElements.add(Name.internHtml(in.readUTF()));
+    }
+    this.elementDetails = new HashMap<Name, HTML.Element>();
+    for (int i = in.readInt(); --i >= 0;) {
+      Name name = Name.internHtml(in.readUTF());
+      boolean empty = in.readBoolean();
+      boolean optionalEnd = in.readBoolean();
+      elementDetails.put(name, new HTML.Element(name, empty, optionalEnd));
+    }
+    this.allowedAttributes = new HashSet<Pair<Name, Name>>();
+    for (int i = in.readInt(); --i >= 0;) {
+      Name element = Name.internHtml(in.readUTF());
+      Name attrib = Name.internHtml(in.readUTF());
+      allowedAttributes.add(Pair.pair(element, attrib));
+    }
+    this.attributeDetails = new HashMap<Pair<Name, Name>, HTML.Attribute>();
+    this.attributeCriteria = new HashMap<Pair<Name, Name>, Criterion<String>>();
+    for (int i = in.readInt(); --i >= 0;) {
+      Name element = Name.internHtml(in.readUTF());
+      Name attrib = Name.internHtml(in.readUTF());
+      Pair<Name, Name> elAndAttrib = Pair.pair(element, attrib);
+      HTML.Attribute.Type type;
+      try {
+        type = HTML.Attribute.Type.valueOf(in.readUTF());
+      } catch (IllegalArgumentException ex) {
+        throw (IOException) new IOException("Bad attribute type")
+            .initCause(ex);
+      }
+      String mimeTypes = in.readBoolean() ? in.readUTF() : null;
+      attributeDetails.put(
+          elAndAttrib, new HTML.Attribute(element, attrib, type, mimeTypes));
+      if (in.readBoolean()) {
+        byte tag = in.readByte();
+        switch (tag) {
+          case VALUE_SET_TAG:
+            attributeCriteria.put(
+                elAndAttrib, new ValueSetCriterion(in.readUTF()));
+            break;
+          case PATTERN_TAG:
+            attributeCriteria.put(
+                elAndAttrib, new PatternCriterion(in.readUTF()));
+            break;
+          default:
+            throw new IOException("Bad criterion tag " + tag);
+        }
+      }
+    }
+    this.wildcardAttributes = buildWildcardAttributeTable();
+    this.attributeTables = buildAttributeTables();
+  }
+
+  /**
+   * Reads a snapshot generated at build time.
+   * @param resourceName the name of a resource relative to this class.
+   * @return null if the resource is missing or is not a snapshot in the
+   *     current format, in which case the caller should fall back to JSON.
+   */
+  public static HtmlSchema readSnapshotResource(String resourceName) {
+    InputStream in = HtmlSchema.class.getResourceAsStream(resourceName);
+    if (in == null) { return null; }
+    try {
+      try {
+        return readSnapshot(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes a snapshot of the schema described by a JSON whitelist of
+   * elements, and one of attributes, in that order.
+   */
+  public static class SnapshotBuilder implements BuildCommand {
+    public void build(List<File> inputs, List<File> deps, File output)
+        throws IOException {
+      HtmlSchema schema = HtmlDefinitions.Builder.loadSchema(inputs, deps);
+      OutputStream out = new FileOutputStream(output);
+      try {
+        schema.writeSnapshot(out);
+      } finally {
+        out.close();
+      }
+    }
   }
 
   public Set<Pair<Name, Name>> getAttributeNames() {
@@ -189,32 +424,115 @@ public final class HtmlSchema {
   }
 
   public boolean isAttributeAllowed(Name elementName, Name attribName) {
-    return allowedAttributes.contains(Pair.pair(elementName, attribName))
-        || allowedAttributes.contains(Pair.pair(WILDCARD, attribName));
+    return lookupAttributeInfo(elementName, attribName).isAllowed();
   }
 
   public HTML.Attribute lookupAttribute(Name elementName, Name attribName) {
-    HTML.Attribute attr = attributeDetails.get(
-        Pair.pair(elementName, attribName));
-    if (attr == null) {
-      attr = attributeDetails.get(Pair.pair(WILDCARD, attribName));
-    }
-    return attr;
+    return lookupAttributeInfo(elementName, attribName).getAttribute();
   }
 
   /** Criteria that attribute values must satisfy. */
   public Criterion<? super String> getAttributeCriteria(
       Name tagName, Name attribName) {
-    Criterion<String> specific = attributeCriteria.get(
-        Pair.pair(tagName, attribName));
-    Criterion<String> general = attributeCriteria.get(
-        Pair.pair(WILDCARD, attribName));
+    return lookupAttributeInfo(tagName, attribName).getCriteria();
+  }
+
+  /**
+   * Everything known about an attribute on an element, taking into account
+   * definitions that apply to the attribute on all elements.
+   * @param elementName may be {@code *} to look up only those definitions.
+   * @return not null.  If nothing is known about the attribute, the result's
+   *     {@link AttributeInfo#getAttribute} is null.
+   */
+  public AttributeInfo lookupAttributeInfo(Name elementName, Name attribName) {
+    Map<Name, AttributeInfo> table = attributeTables.get(elementName);
+    if (table == null) { table = wildcardAttributes; }
+    AttributeInfo info = table.get(attribName);
+    return info != null ? info : AttributeInfo.UNKNOWN;
+  }
+
+  /**
+   * The result of {@link #lookupAttributeInfo}, which answers
+   * {@link #lookupAttribute}, {@link #isAttributeAllowed}, and
+   * {@link #getAttributeCriteria} together.
+   */
+  public static final class AttributeInfo {
+    static final AttributeInfo UNKNOWN = new AttributeInfo(
+        null, false, Criterion.Factory.<String>optimist());
+
+    private final HTML.Attribute attribute;
+    private final boolean allowed;
+    private final Criterion<? super String> criteria;
+
+    AttributeInfo(HTML.Attribute attribute, boolean allowed,
+                  Criterion<? super String> criteria) {
+      this.attribute = attribute;
+      this.allowed = allowed;
+      this.criteria = criteria;
+    }
+
+    /** @see HtmlSchema#lookupAttribute */
+    public HTML.Attribute getAttribute() { return attribute; }
+    /** @see HtmlSchema#isAttributeAllowed */
+    public boolean isAllowed() { return allowed; }
+    /** @see HtmlSchema#getAttributeCriteria */
+    public Criterion<? super String> getCriteria() { return criteria; }
+  }
+
+  /** The attributes that can appear on any element. */
+  private Map<Name, AttributeInfo> buildWildcardAttributeTable() {
+    Map<Name, AttributeInfo> table = new HashMap<Name, AttributeInfo>();
+    for (Pair<Name, Name> key : attributeKeys()) {
+      if (WILDCARD.equals(key.a)) {
+        table.put(key.b, computeAttributeInfo(WILDCARD, key.b));
+      }
+    }
+    return table;
+  }
+
+  /** Requires that wildcardAttributes has been built. */
+  private Map<Name, Map<Name, AttributeInfo>> buildAttributeTables() {
+    Map<Name, Map<Name, AttributeInfo>> tables
+        = new HashMap<Name, Map<Name, AttributeInfo>>();
+    for (Pair<Name, Name> key : attributeKeys()) {
+      if (WILDCARD.equals(key.a)) { continue; }
+      Map<Name, AttributeInfo> table = tables.get(key.a);
+      if (table == null) {
+        table = new HashMap<Name, AttributeInfo>(wildcardAttributes);
+        tables.put(key.a, table);
+      }
+      table.put(key.b, computeAttributeInfo(key.a, key.b));
+    }
+    return tables;
+  }
+
+  /** Every (element, attribute) pair that has any definition. */
+  private Set<Pair<Name, Name>> attributeKeys() {
+    Set<Pair<Name, Name>> keys = new HashSet<Pair<Name, Name>>();
+    keys.addAll(allowedAttributes);
+    keys.addAll(attributeDetails.keySet());
+    keys.addAll(attributeCriteria.keySet());
+    return keys;
+  }
+
+  private AttributeInfo computeAttributeInfo(Name element, Name attrib) {
+    Pair<Name, Name> specificKey = Pair.pair(element, attrib);
+    Pair<Name, Name> generalKey = Pair.pair(WILDCARD, attrib);
+    boolean allowed = allowedAttributes.contains(specificKey)
+        || allowedAttributes.contains(generalKey);
+    HTML.Attribute attr = attributeDetails.get(specificKey);
+    if (attr == null) { attr = attributeDetails.get(generalKey); }
+    Criterion<String> specific = attributeCriteria.get(specificKey);
+    Criterion<String> general = attributeCriteria.get(generalKey);
+    Criterion<? super String> criteria;
     if (specific != null) {
-      return (general != null)
+      criteria = (general != null)
           ? Criterion.Factory.and(specific, general)
           : specific;
     } else {
-      return general != null ? general : Criterion.Factory.<String>optimist();
+      criteria = general != null
+          ? general : Criterion.Factory.<String>optimist();
     }
+    return new AttributeInfo(attr, allowed, criteria);
   }
 }
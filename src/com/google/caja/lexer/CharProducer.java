@@ -14,6 +14,7 @@
 
 package com.google.caja.lexer;
 
+import com.google.caja.util.CompileBudget;
 import com.google.caja.util.Strings;
 
 import java.io.Closeable;
@@ -135,6 +136,11 @@ public interface CharProducer extends Closeable {
       private final char[] buf = new char[1024];
       private int offset = 1;
       private int read = 0;
+      /**
+       * Checked as each buffer is filled so that oversized inputs are
+       * rejected before they are lexed and parsed.
+       */
+      private final CompileBudget budget = CompileBudget.current();
 
       CharProducerImpl(Reader r, FilePosition pos) {
         this.r = r;
@@ -149,6 +155,10 @@ public interface CharProducer extends Closeable {
           read = r.read(buf);
           if (read <= 0) { return -1; }
           offset = 0;
+          int inputChars = posBuf.charInFile - 1 + read;
+          if (inputChars > budget.getMaxInputChars()) {
+            budget.checkInput(posBuf.toFilePosition(), inputChars);
+          }
         }
         char ch = buf[offset++];
         ++posBuf.charInFile;
@@ -0,0 +1,118 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lexer;
+
+/**
+ * The offsets at which the lines of a source file start, so that lines can
+ * be found by number, and offsets converted to line numbers, without
+ * rescanning the file.
+ * <p>
+ * Lines are broken the same way {@link CharProducer} counts them: at
+ * {@code \n}, {@code \r\n}, and {@code \r}, but not at codepoints
+ * 0x2028 or 0x2029.  A line includes the line break that ends it.
+ *
+ * @author mikesamuel@gmail.com
+ */
+public final class LineIndex {
+  private final CharSequence text;
+  /** lineStarts[i] is the offset of the first char of line i + 1. */
+  private final int[] lineStarts;
+
+  public LineIndex(CharSequence text) {
+    this.text = text;
+    int len = text.length();
+    int[] starts = new int[16];
+    int n = 0;
+    starts[n++] = 0;
+    for (int pos = 0; pos < len; ++pos) {
+      char ch = text.charAt(pos);
+      if (ch == '\r' && pos + 1 < len && text.charAt(pos + 1) == '\n') {
+        ++pos;
+      } else if (ch != '\n' && ch != '\r') {
+        continue;
+      }
+      if (n == starts.length) {
+        int[] grown = new int[n * 2];
+        System.arraycopy(starts, 0, grown, 0, n);
+        starts = grown;
+      }
+      starts[n++] = pos + 1;
+    }
+    lineStarts = new int[n];
+    System.arraycopy(starts, 0, lineStarts, 0, n);
+  }
+
+  public CharSequence getText() { return text; }
+
+  /**
+   * The number of lines, counting an empty line after a trailing line break.
+   */
+  public int getLineCount() { return lineStarts.length; }
+
+  /**
+   * The offset of the first character of the given line.
+   * @param lineNo 1-indexed.
+   */
+  public int getLineStart(int lineNo) {
+    return lineStarts[lineNo - 1];
+  }
+
+  /**
+   * The offset past the line break that ends the given line, or the length
+   * of the text for the last line.
+   * @param lineNo 1-indexed.
+   */
+  public int getLineEnd(int lineNo) {
+    return lineNo < lineStarts.length ? lineStarts[lineNo] : text.length();
+  }
+
+  /**
+   * The text of the given line including its line break, or null if there is
+   * no such line or it is empty.
+   * @param lineNo 1-indexed.
+   */
+  public CharSequence getLine(int lineNo) {
+    if (lineNo < 1 || lineNo > lineStarts.length) { return null; }
+    int start = getLineStart(lineNo);
+    int end = getLineEnd(lineNo);
+    return start < end ? text.subSequence(start, end) : null;
+  }
+
+  /**
+   * The 1-indexed number of the line containing the character at offset.
+   * A line break belongs to the line it ends.
+   */
+  public int getLineNo(int offset) {
+    if (offset < 0 || offset > text.length()) {
+      throw new IndexOutOfBoundsException(String.valueOf(offset));
+    }
+    // Find the last line start <= offset.
+    int lo = 0, hi = lineStarts.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (lineStarts[mid] <= offset) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo + 1;
+  }
+
+  /** The 1-indexed position of the character at offset within its line. */
+  public int getCharInLine(int offset) {
+    return offset - getLineStart(getLineNo(offset)) + 1;
+  }
+}
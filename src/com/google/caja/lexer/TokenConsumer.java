@@ -30,6 +30,16 @@ public interface TokenConsumer {
   /** Receives tokens from rendered parse trees. */
   void consume(String text);
 
+  /**
+   * Receives a token whose type is known to the parse tree that rendered it.
+   * Renderers may use the type instead of inspecting the token's text, so
+   * the type must be the one that the {@link JsLexer} would assign to text.
+   * Tokens of languages other than javascript, and tokens such as line-breaks
+   * that do not correspond to a {@link JsTokenType}, should be passed to
+   * {@link #consume(String)} instead.
+   */
+  void consume(CharSequence text, JsTokenType type);
+
   /** Called when no more tokens are available. */
   void noMoreTokens();
 }
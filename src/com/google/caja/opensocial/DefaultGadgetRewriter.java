@@ -23,6 +23,7 @@ import com.google.caja.lexer.InputSource;
 import com.google.caja.lexer.ParseException;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.css.CssTree;
 import com.google.caja.parser.html.DomParser;
 import com.google.caja.parser.html.DomTree;
 import com.google.caja.parser.js.Block;
@@ -55,6 +56,7 @@ public class DefaultGadgetRewriter implements GadgetRewriter, GadgetContentRewri
   private HtmlSchema htmlSchema;
   private boolean debugMode;
   private boolean valijaMode;
+  private String idClass;
 
   public DefaultGadgetRewriter(BuildInfo buildInfo, MessageQueue mq) {
     this.buildInfo = buildInfo;
@@ -81,6 +83,14 @@ public class DefaultGadgetRewriter implements GadgetRewriter, GadgetContentRewri
    */
   public void setValijaMode(boolean valijaMode) { this.valijaMode = valijaMode; }
 
+  /**
+   * @param idClass the gadget's id class if known at rewrite time, so that
+   *     static style-sheets can be output in a {@code <style>} element
+   *     instead of as javascript.  Null if not known.
+   * @see PluginMeta#setIdClass
+   */
+  public void setIdClass(String idClass) { this.idClass = idClass; }
+
   public void rewrite(ExternalReference gadgetRef, UriCallback uriCallback,
                       String view, Appendable output)
       throws UriCallbackException, GadgetRewriteException, IOException,
@@ -149,6 +159,14 @@ public class DefaultGadgetRewriter implements GadgetRewriter, GadgetContentRewri
       }
     };
 
+    StringBuilder css = new StringBuilder();
+    CssTree.StyleSheet staticCss = compiler.getStaticCss();
+    if (staticCss != null) {
+      TokenConsumer tc = staticCss.makeRenderer(css, errorHandler);
+      staticCss.render(createRenderContext(tc, mc));
+      tc.noMoreTokens();
+    }
+
     Block js = compiler.getJavascript();
     if (js != null) {
       TokenConsumer tc = new JsPrettyPrinter(script, errorHandler);
@@ -160,7 +178,7 @@ public class DefaultGadgetRewriter implements GadgetRewriter, GadgetContentRewri
       throw new GadgetRewriteException();
     }
 
-    return rewriteContent(script.toString());
+    return rewriteContent(css.toString(), script.toString());
   }
 
   private DomTree.Fragment parseHtml(CharProducer htmlContent, InputSource src)
@@ -208,6 +226,7 @@ public class DefaultGadgetRewriter implements GadgetRewriter, GadgetContentRewri
         });
     meta.setDebugMode(debugMode);
     meta.setValijaMode(valijaMode);
+    meta.setIdClass(idClass);
 
     PluginCompiler compiler = createPluginCompiler(meta, mq);
 
@@ -220,8 +239,13 @@ public class DefaultGadgetRewriter implements GadgetRewriter, GadgetContentRewri
     return compiler;
   }
 
-  private String rewriteContent(String script) {
-    return "<script type=\"text/javascript\">" + script + "</script>";
+  private String rewriteContent(String css, String script) {
+    String scriptElement
+        = "<script type=\"text/javascript\">" + script + "</script>";
+    if ("".equals(css)) { return scriptElement; }
+    // The CSS renderer escapes strings so that they can be embedded in a
+    // style element.
+    return "<style type=\"text/css\">" + css + "</style>" + scriptElement;
   }
 
   private CharProducer readReadable(Readable input, InputSource src) {
@@ -72,6 +72,7 @@ public class GadgetRewriterMain {
     rewriter.setHtmlSchema(config.getHtmlSchema(mq));
     rewriter.setDebugMode(config.debugMode());
     rewriter.setValijaMode(config.cajaMode());
+    rewriter.setIdClass(config.getIdClass());
 
     Writer w = new BufferedWriter(new FileWriter(config.getOutputBase()));
     try {
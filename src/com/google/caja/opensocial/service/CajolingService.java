@@ -14,7 +14,11 @@
 
 package com.google.caja.opensocial.service;
 
+import com.google.caja.util.CancellationToken;
+import com.google.caja.util.CompileBudget;
+import com.google.caja.util.Json;
 import com.google.caja.util.Pair;
+import com.google.caja.util.Strings;
 import com.google.caja.reporting.BuildInfo;
 
 import javax.servlet.ServletException;
@@ -24,19 +28,41 @@ import javax.servlet.http.HttpServletResponse;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 
 /**
  * A cajoling service which proxies connections:<ul>
  *   <li> cajole any javascript
  *   <li> cajoles any gadgets
  *   <li> checks requested and retrieved mime-types
+ *   <li> cajoles batches of modules in one request, under {@code /batch}
+ *   <li> compresses textual responses with {@code gzip} or {@code deflate}
+ *     when the client's {@code Accept-Encoding} allows
  * </ul>
  *
  * @author jasvir@gmail.com (Jasvir Nagra)
@@ -44,11 +70,117 @@ import java.util.Vector;
 public class CajolingService extends HttpServlet {
   private List<ContentHandler> handlers = new Vector<ContentHandler>();
   private ContentTypeCheck typeCheck = new LooseContentTypeCheck();
+  private final FetchCache fetchCache;
+  /** Null to process requests on the container's request thread. */
+  private WorkerPool workerPool;
+  /** Cajoles the modules of batch requests concurrently.  Lazily created. */
+  private ExecutorService batchExecutor;
+  /** Limits applied to each request.  Copied fresh per request. */
+  private CompileBudget compileBudget = DEFAULT_COMPILE_BUDGET;
+  /**
+   * Cajoled output by the URI of its input.  Access ordered so that the least
+   * recently used entry is evicted first.
+   */
+  private final Map<URI, CachedResponse> responseCache
+      = new LinkedHashMap<URI, CachedResponse>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<URI, CachedResponse> eldest) {
+          return size() > MAX_CACHED_RESPONSES;
+        }
+      };
+
+  /**
+   * Used when the servlet container instantiates the service.  Init
+   * parameters {@code workers}, {@code queue}, {@code deadline-ms} and
+   * {@code virtual-threads} configure a {@link WorkerPool}, and
+   * {@code max-input-chars}, {@code max-depth}, {@code max-nodes} and
+   * {@code max-output-chars} configure the {@link CompileBudget}.
+   */
+  public CajolingService() {
+    this(BuildInfo.getInstance());
+  }
 
   public CajolingService(BuildInfo buildInfo) {
+    this(buildInfo, new FetchCache(
+        MAX_CACHED_RESPONSES, 0, MAX_RESPONSE_SIZE_BYTES));
+  }
+
+  /**
+   * @param fetchCache used to fetch the content to cajole.
+   */
+  public CajolingService(BuildInfo buildInfo, FetchCache fetchCache) {
+    this.fetchCache = fetchCache;
     registerHandlers(buildInfo);
   }
 
+  /**
+   * @param workerPool runs requests with admission control and a deadline.
+   *     Null to process requests on the container's request thread.
+   */
+  public void setWorkerPool(WorkerPool workerPool) {
+    this.workerPool = workerPool;
+  }
+
+  public WorkerPool getWorkerPool() { return workerPool; }
+
+  /**
+   * @param compileBudget the limits on the work done for each request.
+   */
+  public void setCompileBudget(CompileBudget compileBudget) {
+    if (compileBudget == null) { throw new NullPointerException(); }
+    this.compileBudget = compileBudget;
+    // Output cached under the old budget might not fit in the new one.
+    synchronized (responseCache) { responseCache.clear(); }
+  }
+
+  public CompileBudget getCompileBudget() { return compileBudget; }
+
+  @Override
+  public void init() throws ServletException {
+    try {
+      setCompileBudget(new CompileBudget(
+          intInitParameter(
+              "max-input-chars", compileBudget.getMaxInputChars()),
+          intInitParameter("max-depth", compileBudget.getMaxDepth()),
+          intInitParameter("max-nodes", compileBudget.getMaxNodes()),
+          intInitParameter(
+              "max-output-chars", compileBudget.getMaxOutputChars())));
+    } catch (IllegalArgumentException ex) {  // Includes NumberFormatException
+      throw (ServletException) new ServletException(
+          "Bad compile budget configuration").initCause(ex);
+    }
+
+    String workers = getInitParameter("workers");
+    if (workers == null) { return; }
+    String queue = getInitParameter("queue");
+    String deadline = getInitParameter("deadline-ms");
+    try {
+      setWorkerPool(new WorkerPool(
+          Integer.parseInt(workers),
+          queue != null ? Integer.parseInt(queue) : 0,
+          deadline != null ? Long.parseLong(deadline) : DEFAULT_DEADLINE_MS,
+          "true".equals(getInitParameter("virtual-threads"))));
+    } catch (IllegalArgumentException ex) {  // Includes NumberFormatException
+      throw (ServletException) new ServletException(
+          "Bad worker pool configuration").initCause(ex);
+    }
+  }
+
+  private int intInitParameter(String name, int defaultValue) {
+    String value = getInitParameter(name);
+    return value != null ? Integer.parseInt(value) : defaultValue;
+  }
+
+  @Override
+  public void destroy() {
+    if (workerPool != null) { workerPool.shutdown(); }
+    synchronized (this) {
+      if (batchExecutor != null) { batchExecutor.shutdown(); }
+    }
+    super.destroy();
+  }
+
   /**
    * Read the remainder of the input request, send a BAD_REQUEST http status
    * to browser and close the connection
@@ -63,10 +195,107 @@ public class CajolingService extends HttpServlet {
     }
   }
 
+  /**
+   * Send a SERVICE_UNAVAILABLE http status to the browser so that it can
+   * retry later.
+   */
+  private static void closeUnavailable(HttpServletResponse resp)
+      throws ServletException {
+    try {
+      resp.setHeader("Retry-After", "1");
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      resp.getWriter().close();
+    } catch (IOException ex) {
+      throw (ServletException) new ServletException().initCause(ex);
+    }
+  }
+
   @Override
-  public void doGet(HttpServletRequest req, HttpServletResponse resp)
+  public void doGet(
+      final HttpServletRequest req, final HttpServletResponse resp)
       throws ServletException {
+    if (workerPool == null) {
+      dispatch(req, resp);
+      return;
+    }
+    if (req.getParameter("url") == null
+        && req.getRequestURI().endsWith("/stats")) {
+      writeStats(resp);
+      return;
+    }
+    try {
+      workerPool.run(new Callable<Void>() {
+        public Void call() throws ServletException {
+          dispatch(req, resp);
+          return null;
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      closeUnavailable(resp);
+    } catch (TimeoutException ex) {
+      try {
+        closeUnavailable(resp);
+      } catch (IllegalStateException ex2) {
+        // An abandoned request had already started its response, which will
+        // be cut short.
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      closeUnavailable(resp);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof ServletException) {
+        throw (ServletException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw (ServletException) new ServletException().initCause(cause);
+    }
+  }
 
+  /**
+   * Batch requests may carry inline modules that are too large for a query
+   * string, so are also accepted as form posts.
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException {
+    if (!isBatch(req)) {
+      throw new ServletException(
+          "POST is only supported for batches: " + req.getRequestURI());
+    }
+    doGet(req, resp);
+  }
+
+  private static boolean isBatch(HttpServletRequest req) {
+    return req.getRequestURI().endsWith("/batch");
+  }
+
+  private void dispatch(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException {
+    if (isBatch(req)) {
+      cajoleBatch(req, resp);
+    } else {
+      cajole(req, resp);
+    }
+  }
+
+  private void writeStats(HttpServletResponse resp) throws ServletException {
+    try {
+      resp.setStatus(HttpServletResponse.SC_OK);
+      resp.setContentType("text/plain;charset=UTF-8");
+      Writer out = new OutputStreamWriter(resp.getOutputStream(), "UTF-8");
+      out.write(workerPool.getStats());
+      out.close();
+    } catch (IOException ex) {
+      throw (ServletException) new ServletException().initCause(ex);
+    }
+  }
+
+  private void cajole(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException {
     String gadgetUrlString = req.getParameter("url");
     if (gadgetUrlString == null) {
       throw new ServletException(
@@ -86,77 +315,465 @@ public class CajolingService extends HttpServlet {
           + req.getRequestURI());
     }
 
-    String contentType, contentCharSet;
-    byte[] content;
-
+    FetchedData fetched;
     try {
-      FetchedData fetched = fetch(gadgetUrl);
-      contentType = fetched.contentType;
-      content = fetched.content;
-      contentCharSet = fetched.charSet;
+      fetched = fetch(gadgetUrl);
     } catch (IOException ex) {
       closeBadRequest(resp);
       return;
     }
 
-    if (!typeCheck.check(expectedMimeType, contentType)) {
+    ContentHandler handler;
+    try {
+      handler = checkContent(gadgetUrl, expectedMimeType, fetched.contentType);
+    } catch (UnsupportedContentTypeException e) {
       closeBadRequest(resp);
       return;
     }
 
-    ByteArrayOutputStream intermediateResponse = new ByteArrayOutputStream();
-    Pair<String,String> contentInfo;
+    String contentCharSet = charSetOf(fetched);
+    Pair<String, String> contentInfo = handler.getOutputContentType(
+        fetched.contentType, contentCharSet);
+    String responseContentType = contentInfo.a;
+    // Only textual output is worth compressing.
+    boolean compressible = contentInfo.b != null && !"".equals(contentInfo.b);
+    if (contentInfo.b != null) {
+      responseContentType += ";charset=" + contentInfo.b;
+    }
+    String encoding = compressible
+        ? negotiateEncoding(req.getHeader("Accept-Encoding")) : null;
+
+    CachedResponse cached = getCachedResponse(gadgetUrl, fetched);
+    if (cached != null) {
+      try {
+        writeBody(
+            resp, cached.contentType, cached.getBody(encoding), encoding,
+            compressible);
+      } catch (IOException ex) {
+        throw (ServletException) new ServletException().initCause(ex);
+      }
+      return;
+    }
+
+    // Without an output limit, the handler streams its output straight to
+    // the client.  Since the length is not known up front, no Content-Length
+    // is set and the container is free to use a chunked transfer encoding.
+    // With one, the output is held until the handler finishes, since the
+    // limit could be exceeded after part of the output was sent.  The held
+    // output is bounded by the limit.
+    ResponseStream out = new ResponseStream(
+        resp, responseContentType, encoding, compressible,
+        compileBudget.getMaxOutputChars() != Integer.MAX_VALUE);
     try {
-      contentInfo = applyHandler(
-          URI.create(gadgetUrl.toString()), contentType, contentCharSet,
-          content, intermediateResponse);
+      applyHandler(handler, gadgetUrl, fetched, contentCharSet, out);
     } catch (UnsupportedContentTypeException e) {
+      if (out.isCommitted()) {
+        throw (ServletException) new ServletException().initCause(e);
+      }
       closeBadRequest(resp);
       return;
     }
 
-    byte[] response = intermediateResponse.toByteArray();
-    int responseLength = response.length;
+    try {
+      out.close();
+    } catch (IOException ex) {
+      throw (ServletException) new ServletException().initCause(ex);
+    }
+    byte[] output = out.getCapturedOutput();
+    if (output != null) {
+      synchronized (responseCache) {
+        responseCache.put(
+            gadgetUrl,
+            new CachedResponse(fetched, responseContentType, output));
+      }
+    }
+  }
+
+  /**
+   * The cached output for uri, or null if there is none or it was cajoled
+   * from other content than fetched.
+   */
+  private CachedResponse getCachedResponse(URI uri, FetchedData fetched) {
+    synchronized (responseCache) {
+      CachedResponse cached = responseCache.get(uri);
+      // The fetch cache returns the same object until the content changes.
+      return cached != null && cached.source == fetched ? cached : null;
+    }
+  }
+
+  /**
+   * The content coding to apply to a response given a request's
+   * {@code Accept-Encoding} header.
+   * @return {@code "gzip"}, {@code "deflate"}, or null for the identity
+   *     coding.  {@code gzip} is preferred when both are equally acceptable.
+   */
+  static String negotiateEncoding(String acceptEncoding) {
+    if (acceptEncoding == null) { return null; }
+    float gzip = -1, deflate = -1, any = -1;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = Strings.toLowerCase(parts[0].trim());
+      float q = 1;
+      for (int i = 1; i < parts.length; ++i) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Float.parseFloat(param.substring(2).trim());
+          } catch (NumberFormatException ex) {
+            q = 0;
+          }
+        }
+      }
+      if ("gzip".equals(name) || "x-gzip".equals(name)) {
+        gzip = q;
+      } else if ("deflate".equals(name)) {
+        deflate = q;
+      } else if ("*".equals(name)) {
+        any = q;
+      }
+    }
+    if (gzip < 0) { gzip = any; }
+    if (deflate < 0) { deflate = any; }
+    if (gzip > 0 && gzip >= deflate) { return "gzip"; }
+    if (deflate > 0) { return "deflate"; }
+    return null;
+  }
+
+  /**
+   * Wraps out in a stream that applies the given content coding.
+   * @param level a {@link Deflater} compression level.
+   */
+  private static OutputStream encoder(
+      String encoding, OutputStream out, final int level) throws IOException {
+    if ("gzip".equals(encoding)) {
+      return new GZIPOutputStream(out) {
+        { def.setLevel(level); }
+      };
+    }
+    return new DeflaterOutputStream(out, new Deflater(level)) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        // The stream only ends a Deflater that it created itself.
+        def.end();
+      }
+    };
+  }
+
+  private static byte[] encode(byte[] content, String encoding, int level) {
+    if (encoding == null) { return content; }
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+        content.length / 4 + 64);
+    try {
+      OutputStream out = encoder(encoding, buffer, level);
+      out.write(content);
+      out.close();
+    } catch (IOException ex) {
+      throw new RuntimeException("Writing to a byte array failed", ex);
+    }
+    return buffer.toByteArray();
+  }
 
+  /**
+   * Writes a response whose body is known up front, so that it can have a
+   * Content-Length.
+   * @param body the content, already in the given content coding.
+   * @param negotiated true if the response depends on the request's
+   *     {@code Accept-Encoding}.
+   */
+  private static void writeBody(
+      HttpServletResponse resp, String contentType, byte[] body,
+      String encoding, boolean negotiated)
+      throws IOException {
     resp.setStatus(HttpServletResponse.SC_OK);
-    String responseContentType = contentInfo.a;
-    if (contentInfo.b != null) {
-      responseContentType += ";charset=" + contentInfo.b;
+    resp.setContentType(contentType);
+    setEncodingHeaders(resp, encoding, negotiated);
+    resp.setContentLength(body.length);
+    OutputStream out = resp.getOutputStream();
+    out.write(body);
+    out.close();
+  }
+
+  private static void setEncodingHeaders(
+      HttpServletResponse resp, String encoding, boolean negotiated) {
+    if (negotiated) {
+      // Tell caches not to serve one client's coding to another.
+      resp.setHeader("Vary", "Accept-Encoding");
     }
-    resp.setHeader("Content-Type", responseContentType);
-    resp.setContentLength(responseLength);
+    if (encoding != null) { resp.setHeader("Content-Encoding", encoding); }
+  }
+
+  /**
+   * Checks the type of fetched content against the type the client expects.
+   * @return the handler for the content.
+   */
+  private ContentHandler checkContent(
+      URI uri, String expectedMimeType, String contentType)
+      throws UnsupportedContentTypeException {
+    if (!typeCheck.check(expectedMimeType, contentType)) {
+      throw new UnsupportedContentTypeException(
+          "Expected " + expectedMimeType + " not " + contentType);
+    }
+    return findHandler(URI.create(uri.toString()), contentType);
+  }
 
+  private static String charSetOf(FetchedData fetched) {
+    return fetched.charSet != null ? fetched.charSet : "UTF-8";
+  }
+
+  /**
+   * Applies handler within a fresh copy of the {@link CompileBudget}.
+   */
+  private void applyHandler(
+      ContentHandler handler, URI uri, FetchedData fetched, String charSet,
+      OutputStream out)
+      throws UnsupportedContentTypeException {
+    CompileBudget oldBudget = CompileBudget.install(compileBudget.fresh());
     try {
-      resp.getOutputStream().write(response);
-      resp.getOutputStream().close();
+      handler.apply(
+          URI.create(uri.toString()), fetched.contentType, charSet,
+          fetched.content, out);
+    } catch (CompileBudget.Exceeded ex) {
+      throw (UnsupportedContentTypeException)
+          new UnsupportedContentTypeException(ex.getMessage()).initCause(ex);
+    } finally {
+      CompileBudget.install(oldBudget);
+    }
+  }
+
+  /**
+   * Cajoles several modules, given by repeated {@code url} parameters or
+   * inline by repeated {@code module} parameters, in one request.
+   * <p>
+   * Modules are fetched and cajoled concurrently, and go through the same
+   * type checks and handlers as single requests.  By default the response is
+   * a JSON object, <code>{"modules":[...]}</code> with one entry per module in
+   * request order.  Each entry has the module's {@code url} and either its
+   * {@code contentType} and cajoled {@code output}, or the {@code messages}
+   * explaining why it failed, so one bad module does not spoil the batch.
+   * <p>
+   * With {@code format=bundle} the response is instead the concatenation of
+   * the cajoled modules, which fails as a whole if any module failed or is
+   * not javascript.
+   */
+  private void cajoleBatch(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException {
+    String expectedMimeType = req.getParameter("mime-type");
+    List<URI> uris = new ArrayList<URI>();
+    List<FetchedData> inline = new ArrayList<FetchedData>();
+    String[] urls = req.getParameterValues("url");
+    if (urls != null) {
+      if (expectedMimeType == null) {
+        throw new ServletException(
+            "Missing parameter \"mime-type\" is required: "
+            + req.getRequestURI());
+      }
+      for (String url : urls) {
+        try {
+          uris.add(new URI(url));
+        } catch (URISyntaxException ex) {
+          throw (ServletException) new ServletException().initCause(ex);
+        }
+        inline.add(null);
+      }
+    }
+    String[] modules = req.getParameterValues("module");
+    if (modules != null) {
+      for (String module : modules) {
+        uris.add(URI.create("inline:///module" + uris.size() + ".js"));
+        try {
+          inline.add(new FetchedData(
+              module.getBytes("UTF-8"), "text/javascript", "UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+          throw new RuntimeException("UTF-8 should be supported.", ex);
+        }
+      }
+    }
+    if (uris.isEmpty() || uris.size() > MAX_BATCH_SIZE) {
+      closeBadRequest(resp);
+      return;
+    }
+
+    List<ModuleResult> results = cajoleModules(
+        uris, inline, expectedMimeType != null ? expectedMimeType : "*/*");
+
+    StringBuilder sb = new StringBuilder();
+    String responseContentType;
+    if ("bundle".equals(req.getParameter("format"))) {
+      for (ModuleResult result : results) {
+        if (result.output == null
+            || !typeCheck.check("text/javascript", result.contentType)) {
+          closeBadRequest(resp);
+          return;
+        }
+        sb.append(result.output).append('\n');
+      }
+      responseContentType = "text/javascript;charset=UTF-8";
+    } else {
+      JSONArray moduleArray = new JSONArray();
+      for (ModuleResult result : results) {
+        JSONObject module = Json.formatAsJson("url", result.uri);
+        if (result.output != null) {
+          Json.putJson(
+              module, "contentType", result.contentType,
+              "output", result.output);
+        } else {
+          JSONArray messages = new JSONArray();
+          Json.pushJson(messages, result.error);
+          Json.putJson(module, "messages", messages);
+        }
+        Json.pushJson(moduleArray, module);
+      }
+      sb.append(Json.formatAsJson("modules", moduleArray));
+      responseContentType = "application/json;charset=UTF-8";
+    }
+
+    String encoding = negotiateEncoding(req.getHeader("Accept-Encoding"));
+    try {
+      writeBody(
+          resp, responseContentType,
+          encode(sb.toString().getBytes("UTF-8"), encoding,
+                 Deflater.DEFAULT_COMPRESSION),
+          encoding, true);
     } catch (IOException ex) {
       throw (ServletException) new ServletException().initCause(ex);
     }
   }
 
-  private static int MAX_RESPONSE_SIZE_BYTES = 1 << 18;  // 256kB
-  protected FetchedData fetch(URI uri) throws IOException {
-    URLConnection urlConnect = uri.toURL().openConnection();
-    urlConnect.connect();
-    String contentType = urlConnect.getContentType();
-    String contentCharSet = urlConnect.getContentEncoding();
-
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-    InputStream stream = urlConnect.getInputStream();
-    try {
-      byte[] barr = new byte[4096];
-      int totalLen = 0;
-      for (int n; (n = stream.read(barr)) > 0;) {
-        if ((totalLen += n) > MAX_RESPONSE_SIZE_BYTES) {
-          throw new IOException("Response too large");
-        }
-        buffer.write(barr, 0, n);
+  /**
+   * Fetches and cajoles each module on the batch executor, waiting for all of
+   * them.  The caller's {@link CancellationToken} is installed on each task so
+   * that a deadline applies to the batch as a whole.
+   *
+   * @param inline the content of each module, or null to fetch it.
+   */
+  private List<ModuleResult> cajoleModules(
+      List<URI> uris, List<FetchedData> inline, final String expectedMimeType)
+      throws ServletException {
+    final CancellationToken token = CancellationToken.current();
+    ExecutorService executor = getBatchExecutor();
+    List<Future<ModuleResult>> futures = new ArrayList<Future<ModuleResult>>();
+    try {
+      for (int i = 0, n = uris.size(); i < n; ++i) {
+        final URI uri = uris.get(i);
+        final FetchedData content = inline.get(i);
+        futures.add(executor.submit(new Callable<ModuleResult>() {
+          public ModuleResult call() {
+            CancellationToken old = CancellationToken.install(token);
+            try {
+              return cajoleModule(uri, content, expectedMimeType);
+            } finally {
+              CancellationToken.install(old);
+            }
+          }
+        }));
+      }
+      List<ModuleResult> results = new ArrayList<ModuleResult>();
+      for (Future<ModuleResult> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw (ServletException) new ServletException().initCause(ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        // Includes cancellation at the deadline.
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
       }
+      throw (ServletException) new ServletException().initCause(cause);
     } finally {
-      stream.close();
+      for (Future<ModuleResult> future : futures) { future.cancel(true); }
     }
-    byte[] content = buffer.toByteArray();
-    return new FetchedData(content, contentType, contentCharSet);
+  }
+
+  private ModuleResult cajoleModule(
+      URI uri, FetchedData content, String expectedMimeType) {
+    try {
+      FetchedData fetched = content;
+      if (fetched == null) {
+        try {
+          fetched = fetch(uri);
+        } catch (IOException ex) {
+          throw new UnsupportedContentTypeException(
+              "Failed to fetch " + uri + ": " + ex.getMessage());
+        }
+      }
+      ContentHandler handler = checkContent(
+          uri, expectedMimeType, fetched.contentType);
+      String charSet = charSetOf(fetched);
+      Pair<String, String> contentInfo = handler.getOutputContentType(
+          fetched.contentType, charSet);
+      if (contentInfo.b == null || "".equals(contentInfo.b)) {
+        throw new UnsupportedContentTypeException(
+            "Cannot batch binary content " + contentInfo.a);
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      applyHandler(handler, uri, fetched, charSet, out);
+      try {
+        return new ModuleResult(
+            uri, contentInfo.a, out.toString(contentInfo.b), null);
+      } catch (UnsupportedEncodingException ex) {
+        throw new UnsupportedContentTypeException(
+            "Unsupported encoding " + contentInfo.b);
+      }
+    } catch (UnsupportedContentTypeException ex) {
+      return new ModuleResult(uri, null, null, ex.getMessage());
+    }
+  }
+
+  private synchronized ExecutorService getBatchExecutor() {
+    if (batchExecutor == null) {
+      batchExecutor = Executors.newFixedThreadPool(
+          BATCH_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(
+                  r, "batch cajoler " + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    }
+    return batchExecutor;
+  }
+
+  /** The outcome of cajoling one module in a batch. */
+  private static final class ModuleResult {
+    final URI uri;
+    final String contentType;
+    /** Null if the module failed. */
+    final String output;
+    /** Null if the module succeeded. */
+    final String error;
+
+    ModuleResult(URI uri, String contentType, String output, String error) {
+      this.uri = uri;
+      this.contentType = contentType;
+      this.output = output;
+      this.error = error;
+    }
+  }
+
+  private static int MAX_RESPONSE_SIZE_BYTES = 1 << 18;  // 256kB
+  /** Larger cajoled output is streamed but not cached. */
+  private static int MAX_CACHED_OUTPUT_BYTES = 1 << 20;  // 1MB
+  private static int MAX_CACHED_RESPONSES = 256;
+  private static long DEFAULT_DEADLINE_MS = 10000;
+  private static int MAX_BATCH_SIZE = 32;
+  private static int BATCH_THREADS = 8;
+  /**
+   * The output is already bounded by the input and node limits, so there is
+   * no output limit by default.  One would make every response be held
+   * until complete instead of streamed.
+   */
+  private static final CompileBudget DEFAULT_COMPILE_BUDGET = new CompileBudget(
+      MAX_RESPONSE_SIZE_BYTES, 1000, 1 << 20, Integer.MAX_VALUE);
+  protected FetchedData fetch(URI uri) throws IOException {
+    return fetchCache.fetch(uri);
   }
 
   public void registerHandlers(BuildInfo buildInfo) {
@@ -165,18 +782,164 @@ public class CajolingService extends HttpServlet {
     handlers.add(new GadgetHandler(buildInfo));
   }
 
-  private Pair<String, String> applyHandler(URI uri,
-      String contentType, String charSet,
-      byte[] content, OutputStream response)
+  private ContentHandler findHandler(URI uri, String contentType)
       throws UnsupportedContentTypeException {
     for (ContentHandler handler : handlers) {
       if (handler.canHandle(uri, contentType, typeCheck)) {
-        return handler.apply(uri, contentType, charSet, content, response);
+        return handler;
       }
     }
     throw new UnsupportedContentTypeException();
   }
 
+  /**
+   * Cajoled output and the compressed variants of it that have been served.
+   * Each variant is compressed once, at the highest level since it may be
+   * served many times.
+   */
+  private static final class CachedResponse {
+    /** The content that was cajoled. */
+    final FetchedData source;
+    final String contentType;
+    private final byte[] identity;
+    private byte[] gzip, deflate;
+
+    CachedResponse(FetchedData source, String contentType, byte[] identity) {
+      this.source = source;
+      this.contentType = contentType;
+      this.identity = identity;
+    }
+
+    /** @param encoding a content coding from {@link #negotiateEncoding}. */
+    synchronized byte[] getBody(String encoding) {
+      if ("gzip".equals(encoding)) {
+        if (gzip == null) {
+          gzip = encode(identity, encoding, Deflater.BEST_COMPRESSION);
+        }
+        return gzip;
+      } else if ("deflate".equals(encoding)) {
+        if (deflate == null) {
+          deflate = encode(identity, encoding, Deflater.BEST_COMPRESSION);
+        }
+        return deflate;
+      }
+      return identity;
+    }
+  }
+
+  /**
+   * Writes through to the servlet output stream, setting the response status
+   * and headers just before the first byte is written, so that a handler
+   * which fails before producing output can still send an error.
+   * <p>
+   * If asked to, holds all output until closed instead, so that a handler
+   * which fails after producing output can still send an error.  The output
+   * is then bounded by the {@link CompileBudget}'s output limit.
+   * <p>
+   * Also keeps a copy of the uncompressed output, unless it gets too large
+   * to cache.  Held output doubles as that copy.
+   */
+  private static final class ResponseStream extends OutputStream {
+    private final HttpServletResponse resp;
+    private final String contentType;
+    /** The content coding to apply, or null for identity. */
+    private final String encoding;
+    private final boolean negotiated;
+    private OutputStream out;
+    /** Output not yet written through, or null if output is not held. */
+    private ByteArrayOutputStream held;
+    /**
+     * Null once the output is too large to cache.  Unused while output is
+     * held.
+     */
+    private ByteArrayOutputStream captured;
+
+    /**
+     * @param holdUntilClosed true to write nothing through until
+     *     {@link #close}.
+     */
+    ResponseStream(
+        HttpServletResponse resp, String contentType, String encoding,
+        boolean negotiated, boolean holdUntilClosed) {
+      this.resp = resp;
+      this.contentType = contentType;
+      this.encoding = encoding;
+      this.negotiated = negotiated;
+      if (holdUntilClosed) {
+        held = new ByteArrayOutputStream();
+      } else {
+        captured = new ByteArrayOutputStream();
+      }
+    }
+
+    boolean isCommitted() { return out != null; }
+
+    /** The uncompressed output, or null if it was too large to keep. */
+    byte[] getCapturedOutput() {
+      return captured != null ? captured.toByteArray() : null;
+    }
+
+    private OutputStream commit() throws IOException {
+      if (out == null) {
+        // Once the pool reports a timeout, the request must not be answered.
+        CancellationToken.current().checkCancelled();
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(contentType);
+        setEncodingHeaders(resp, encoding, negotiated);
+        out = resp.getOutputStream();
+        if (encoding != null) {
+          out = encoder(encoding, out, Deflater.DEFAULT_COMPRESSION);
+        }
+      }
+      return out;
+    }
+
+    private void capture(byte[] b, int off, int len) {
+      if (captured == null) { return; }
+      if (captured.size() + len > MAX_CACHED_OUTPUT_BYTES) {
+        captured = null;
+      } else {
+        captured.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len != 0) {
+        if (held != null) {
+          held.write(b, off, len);
+        } else {
+          commit().write(b, off, len);
+          capture(b, off, len);
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (out != null) { out.flush(); }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (held != null) {
+        // The whole body is known, so its length can be given.
+        if (encoding == null) { resp.setContentLength(held.size()); }
+        commit();
+        held.writeTo(out);
+        if (held.size() <= MAX_CACHED_OUTPUT_BYTES) { captured = held; }
+        held = null;
+      }
+      // Commit even if the output is empty so the headers go out.
+      commit().close();
+    }
+  }
+
   public static final class FetchedData {
     public final byte[] content;
     public final String contentType;
@@ -14,10 +14,12 @@
 
 package com.google.caja.opensocial.service;
 
+import com.sun.web.core.Container;
 import com.sun.web.core.Context;
 import com.sun.web.server.HttpServer;
 import java.net.InetAddress;
 import java.net.URL;
+import java.util.Hashtable;
 
 /**
  * A executable that starts a cajoling service which proxies connections:<ul>
@@ -26,14 +28,41 @@ import java.net.URL;
  *   <li>checks requested and retrieved mime-types
  * </ul>
  *
+ * <p>Usage: {@code CajolingServiceMain [--workers=N [--queue=N]
+ * [--deadline-ms=N] [--virtual-threads]]}.  With {@code --workers}, requests
+ * are processed by a bounded worker pool which rejects requests with a
+ * {@code 503} when its queue is full, and cancels requests that run past
+ * their deadline.  Counts of rejected and timed out requests are served from
+ * {@code /stats}.
+ *
  * @author jasvir@gmail.com (Jasvir Nagra)
  */
 public class CajolingServiceMain {
   public static void main(String[] args) throws Exception {
+    Hashtable<String, String> initParams = new Hashtable<String, String>();
+    for (String arg : args) {
+      if ("--virtual-threads".equals(arg)) {
+        initParams.put("virtual-threads", "true");
+      } else if (arg.startsWith("--workers=")) {
+        initParams.put("workers", arg.substring("--workers=".length()));
+      } else if (arg.startsWith("--queue=")) {
+        initParams.put("queue", arg.substring("--queue=".length()));
+      } else if (arg.startsWith("--deadline-ms=")) {
+        initParams.put("deadline-ms", arg.substring("--deadline-ms=".length()));
+      } else {
+        System.err.println("Unrecognized argument " + arg);
+        System.exit(-1);
+      }
+    }
+
     HttpServer server = new HttpServer(8887, InetAddress.getLocalHost(), null);
     Context context = server.getContext("default");
     context.setDocumentBase(new URL("http://localhost/"));
-    context.getContainer().addServlet("/", CajolingService.class);
     server.start();
+    // Requests that match no other path go to the servlet named default.
+    // Starting the server installs a default servlet, so replace it after.
+    Container container = context.getContainer();
+    container.addServlet("default", CajolingService.class);
+    container.setServletInitParams("default", initParams);
   }
 }
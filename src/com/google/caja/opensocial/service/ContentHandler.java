@@ -37,10 +37,26 @@ public interface ContentHandler {
    */
   public boolean canHandle(URI uri, String contentType, ContentTypeCheck checker);
 
+  /**
+   * Returns the content-type and content-encoding of the output that
+   * {@link #apply} will produce for content of the given type, so that a
+   * caller can commit response headers before any output is streamed.
+   *
+   * @param contentType Content-type of the fetched content
+   * @param charSet Character set of the fetched content, or null
+   * @return the content-type and content-encoding of the resulting output
+   */
+  public Pair<String, String> getOutputContentType(
+      String contentType, String charSet);
+
   /**
    * Reads content from {@code stream} and writes it to {@code response}.
    * Checks to ensure that content has type compatible with {@code contentType}
-   * if fetched from {@code uri}
+   * if fetched from {@code uri}.
+   * <p>
+   * Implementations must detect any error before writing the first byte to
+   * {@code response} since the caller may have already committed a successful
+   * response by the time the first byte reaches the client.
    *
    * @param uri URI of content
    * @param contentType Expected content-type
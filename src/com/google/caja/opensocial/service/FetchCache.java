@@ -0,0 +1,426 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.opensocial.service;
+
+import com.google.caja.util.CancellationToken;
+import com.google.caja.util.Strings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches content for the {@link CajolingService}, caching responses as
+ * allowed by their {@code Cache-Control} and {@code Expires} headers.
+ * <p>
+ * Stale entries with an {@code ETag} or {@code Last-Modified} validator are
+ * revalidated with a conditional GET.  Concurrent requests for the same URI
+ * share a single in-flight fetch, and an entry that is stale but within its
+ * stale-while-revalidate window is served immediately while it is revalidated
+ * in the background, on one of at most {@link #REVALIDATION_THREADS}
+ * threads.
+ * <p>
+ * Connecting and reading time out after {@link #DEFAULT_TIMEOUT_MILLIS}, or
+ * sooner if the fetching thread's {@link CancellationToken} has a nearer
+ * deadline, and a fetch stops between reads once that token is cancelled.
+ *
+ * @author jasvir@gmail.com (Jasvir Nagra)
+ */
+public class FetchCache {
+  /** The connect and read timeout for fetches with no nearer deadline. */
+  public static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+  /** The most background revalidations that run at once. */
+  public static final int REVALIDATION_THREADS = 2;
+
+  private final int maxEntries;
+  private final long staleWhileRevalidateMillis;
+  private final int maxResponseSizeBytes;
+  /** Access ordered so that the least recently used entry is evicted first. */
+  private final Map<URI, Entry> entries;
+  /** Fetches in progress, so that concurrent requests can share them. */
+  private final ConcurrentMap<URI, FutureTask<Entry>> inFlight
+      = new ConcurrentHashMap<URI, FutureTask<Entry>>();
+  /**
+   * Runs background revalidations.  Its queue is bounded by the number of
+   * cached entries since each URI has at most one revalidation in flight.
+   */
+  private final ThreadPoolExecutor revalidator;
+
+  /**
+   * @param maxEntries the maximum number of responses to cache.
+   * @param staleWhileRevalidateMillis how long past expiry a response may
+   *     be served while it is revalidated in the background, unless the
+   *     response specifies its own {@code stale-while-revalidate} window.
+   *     Zero to always block on revalidation.
+   * @param maxResponseSizeBytes fetches of larger responses fail.
+   */
+  public FetchCache(
+      final int maxEntries, long staleWhileRevalidateMillis,
+      int maxResponseSizeBytes) {
+    this.maxEntries = maxEntries;
+    this.staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+    this.maxResponseSizeBytes = maxResponseSizeBytes;
+    this.entries = new LinkedHashMap<URI, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<URI, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    this.revalidator = new ThreadPoolExecutor(
+        REVALIDATION_THREADS, REVALIDATION_THREADS, 1, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(
+                r, "fetch revalidator " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    // Idle caches hold no threads.
+    this.revalidator.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the content at uri, from the cache if it is fresh enough.
+   * @throws IOException if the content could not be fetched.
+   */
+  public CajolingService.FetchedData fetch(URI uri) throws IOException {
+    Entry cached = getEntry(uri);
+    if (cached != null) {
+      long now = currentTimeMillis();
+      if (now < cached.expires) { return cached.data; }
+      if (now < cached.expires + cached.staleWindow) {
+        revalidateInBackground(uri, cached);
+        return cached.data;
+      }
+    }
+    return fetchShared(uri, cached).data;
+  }
+
+  /** The number of cached responses. */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /** Overridable for testing. */
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Opens a connection to uri, with timeouts bounded by the current
+   * cancellation token's deadline.  Overridable for testing.
+   */
+  protected URLConnection openConnection(URI uri) throws IOException {
+    URLConnection conn = uri.toURL().openConnection();
+    int timeout = timeoutMillis();
+    conn.setConnectTimeout(timeout);
+    conn.setReadTimeout(timeout);
+    return conn;
+  }
+
+  /**
+   * The timeout for the next blocking operation of a fetch on this thread.
+   * @throws InterruptedIOException if the deadline has passed.
+   */
+  private static int timeoutMillis() throws InterruptedIOException {
+    long remaining = CancellationToken.current().remainingMillis();
+    if (remaining <= 0) {
+      throw new InterruptedIOException("Deadline passed");
+    }
+    return (int) Math.min(remaining, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  private Entry getEntry(URI uri) {
+    synchronized (entries) {
+      return entries.get(uri);
+    }
+  }
+
+  private void putEntry(URI uri, Entry e) {
+    synchronized (entries) {
+      if (e != null) {
+        entries.put(uri, e);
+      } else {
+        entries.remove(uri);
+      }
+    }
+  }
+
+  /**
+   * Fetches uri, or waits on a fetch of uri that another thread already
+   * started.
+   */
+  private Entry fetchShared(URI uri, Entry cached) throws IOException {
+    FutureTask<Entry> task = newLoad(uri, cached);
+    FutureTask<Entry> shared = inFlight.putIfAbsent(uri, task);
+    if (shared == null) {
+      shared = task;
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(uri, task);
+      }
+    }
+    try {
+      return shared.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw (IOException) new InterruptedIOException().initCause(ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) { throw (IOException) cause; }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) { throw (Error) cause; }
+      throw (IOException) new IOException().initCause(cause);
+    }
+  }
+
+  private FutureTask<Entry> newLoad(final URI uri, final Entry cached) {
+    return new FutureTask<Entry>(new Callable<Entry>() {
+      public Entry call() throws IOException {
+        return load(uri, cached);
+      }
+    });
+  }
+
+  private void revalidateInBackground(final URI uri, Entry cached) {
+    final FutureTask<Entry> task = newLoad(uri, cached);
+    // Claimed before it is queued so that concurrent stale hits queue one
+    // revalidation between them, and so that requests can share it.
+    if (inFlight.putIfAbsent(uri, task) != null) { return; }
+    revalidator.execute(new Runnable() {
+      public void run() {
+        // Bounded like a request, since no request waits on it.
+        CancellationToken old = CancellationToken.install(
+            new CancellationToken(
+                System.currentTimeMillis() + DEFAULT_TIMEOUT_MILLIS));
+        try {
+          // Failures are kept by the task for any requests sharing it.
+          // Otherwise the stale entry is served until its window closes.
+          task.run();
+        } finally {
+          CancellationToken.install(old);
+          inFlight.remove(uri, task);
+        }
+      }
+    });
+  }
+
+  /** Does a possibly conditional GET and updates the cache. */
+  private Entry load(URI uri, Entry cached) throws IOException {
+    URLConnection conn = openConnection(uri);
+    if (cached != null) {
+      if (cached.etag != null) {
+        conn.setRequestProperty("If-None-Match", cached.etag);
+      }
+      if (cached.lastModified != 0) {
+        conn.setIfModifiedSince(cached.lastModified);
+      }
+    }
+    conn.connect();
+    long now = currentTimeMillis();
+
+    if (cached != null && conn instanceof HttpURLConnection
+        && (((HttpURLConnection) conn).getResponseCode()
+            == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+      Entry e = cached.revalidated(conn, now, staleWhileRevalidateMillis);
+      putEntry(uri, e);
+      return e != null ? e : cached;
+    }
+
+    String contentType = conn.getContentType();
+    String contentCharSet = charSetOf(contentType);
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    InputStream stream = conn.getInputStream();
+    try {
+      byte[] barr = new byte[4096];
+      int totalLen = 0;
+      for (int n; (n = stream.read(barr)) > 0;) {
+        if (CancellationToken.current().isCancelled()) {
+          throw new InterruptedIOException("Fetch cancelled");
+        }
+        if ((totalLen += n) > maxResponseSizeBytes) {
+          throw new IOException("Response too large");
+        }
+        buffer.write(barr, 0, n);
+      }
+    } finally {
+      stream.close();
+    }
+    CajolingService.FetchedData data = new CajolingService.FetchedData(
+        buffer.toByteArray(), contentType, contentCharSet);
+    Entry e = Entry.create(data, conn, now, staleWhileRevalidateMillis);
+    putEntry(uri, maxEntries > 0 ? e : null);
+    return e != null ? e : new Entry(data, null, 0, now, 0);
+  }
+
+  private static final Pattern CHARSET = Pattern.compile(
+      ";\\s*charset\\s*=\\s*\"?([^\\s;\"]+)", Pattern.CASE_INSENSITIVE);
+  /** The charset parameter of a Content-Type header, or null. */
+  private static String charSetOf(String contentType) {
+    if (contentType == null) { return null; }
+    Matcher m = CHARSET.matcher(contentType);
+    return m.find() ? m.group(1) : null;
+  }
+
+  /** A cached response and the headers needed to revalidate it. */
+  private static final class Entry {
+    final CajolingService.FetchedData data;
+    final String etag;
+    final long lastModified;
+    /** Time in millis at which the entry goes stale. */
+    final long expires;
+    /** Millis past expires during which the entry may be served stale. */
+    final long staleWindow;
+
+    Entry(CajolingService.FetchedData data, String etag, long lastModified,
+          long expires, long staleWindow) {
+      this.data = data;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.expires = expires;
+      this.staleWindow = staleWindow;
+    }
+
+    /**
+     * The entry to cache for a fresh response, or null if it should not be
+     * cached.
+     */
+    static Entry create(
+        CajolingService.FetchedData data, URLConnection conn, long now,
+        long defaultStaleWindow) {
+      Freshness f = Freshness.of(conn, now, defaultStaleWindow);
+      if (f == null) { return null; }
+      String etag = conn.getHeaderField("ETag");
+      long lastModified = conn.getLastModified();
+      if (now >= f.expires + f.staleWindow
+          && etag == null && lastModified == 0) {
+        // Never usable without a full refetch.
+        return null;
+      }
+      return new Entry(data, etag, lastModified, f.expires, f.staleWindow);
+    }
+
+    /**
+     * The entry to cache after a {@code 304 Not Modified}, or null if it
+     * should no longer be cached.
+     */
+    Entry revalidated(URLConnection conn, long now, long defaultStaleWindow) {
+      Freshness f = Freshness.of(conn, now, defaultStaleWindow);
+      if (f == null) { return null; }
+      String newEtag = conn.getHeaderField("ETag");
+      return new Entry(
+          data, newEtag != null ? newEtag : etag, lastModified, f.expires,
+          f.staleWindow);
+    }
+  }
+
+  /** Freshness information from a response's caching headers. */
+  private static final class Freshness {
+    final long expires;
+    final long staleWindow;
+
+    private Freshness(long expires, long staleWindow) {
+      this.expires = expires;
+      this.staleWindow = staleWindow;
+    }
+
+    /** Null if the response must not be stored. */
+    static Freshness of(URLConnection conn, long now, long defaultStaleWindow) {
+      long maxAge = -1, sharedMaxAge = -1;
+      long staleWindow = defaultStaleWindow;
+      boolean mustRevalidate = false, noCache = false;
+      String cacheControl = conn.getHeaderField("Cache-Control");
+      if (cacheControl != null) {
+        for (String directive : cacheControl.split(",")) {
+          directive = Strings.toLowerCase(directive.trim());
+          String value = null;
+          int eq = directive.indexOf('=');
+          if (eq >= 0) {
+            value = directive.substring(eq + 1).trim();
+            directive = directive.substring(0, eq).trim();
+          }
+          if ("no-store".equals(directive) || "private".equals(directive)) {
+            return null;
+          } else if ("no-cache".equals(directive)) {
+            noCache = true;
+          } else if ("must-revalidate".equals(directive)
+                     || "proxy-revalidate".equals(directive)) {
+            mustRevalidate = true;
+          } else if ("max-age".equals(directive)) {
+            maxAge = parseSeconds(value);
+          } else if ("s-maxage".equals(directive)) {
+            sharedMaxAge = parseSeconds(value);
+          } else if ("stale-while-revalidate".equals(directive)) {
+            long seconds = parseSeconds(value);
+            if (seconds >= 0) { staleWindow = seconds * 1000; }
+          }
+        }
+      }
+      long expires;
+      if (noCache) {
+        expires = now;
+      } else if (sharedMaxAge >= 0) {
+        expires = now + sharedMaxAge * 1000;
+      } else if (maxAge >= 0) {
+        expires = now + maxAge * 1000;
+      } else {
+        long expiration = conn.getExpiration();
+        if (expiration != 0) {
+          // Interpret Expires relative to the origin's clock.
+          long date = conn.getDate();
+          expires = date != 0 ? now + (expiration - date) : expiration;
+        } else {
+          expires = now;
+        }
+      }
+      return new Freshness(
+          expires, mustRevalidate || noCache ? 0 : staleWindow);
+    }
+
+    private static long parseSeconds(String value) {
+      if (value == null) { return -1; }
+      try {
+        return Math.max(0, Long.parseLong(value.replace("\"", "")));
+      } catch (NumberFormatException ex) {
+        return -1;
+      }
+    }
+  }
+}
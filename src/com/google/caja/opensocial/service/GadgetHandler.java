@@ -46,6 +46,11 @@ public class GadgetHandler implements ContentHandler {
     return checker.check("application/xml", contentType);
   }
 
+  public Pair<String, String> getOutputContentType(
+      String contentType, String charSet) {
+    return new Pair<String, String>("text/javascript", "UTF-8");
+  }
+
   public Pair<String, String> apply(URI uri, String contentType, String charSet,
                                     byte[] content, OutputStream response)
       throws UnsupportedContentTypeException {
@@ -53,7 +58,7 @@ public class GadgetHandler implements ContentHandler {
       OutputStreamWriter writer = new OutputStreamWriter(response, "UTF-8");
       cajoleGadget(uri, new String(content, charSet), writer);
       writer.flush();
-      return new Pair<String, String>("text/javascript", "UTF-8");
+      return getOutputContentType(contentType, charSet);
     } catch (ParseException e) {
       e.printStackTrace();
       throw new UnsupportedContentTypeException();
@@ -31,13 +31,18 @@ public class ImageHandler implements ContentHandler {
     return checker.check("image/*", contentType);
   }
 
+  public Pair<String, String> getOutputContentType(
+      String contentType, String charSet) {
+    return new Pair<String, String>(contentType, "");
+  }
+
   public Pair<String, String> apply(URI uri,
       String contentType, String charSet,
       byte[] content, OutputStream response)
     throws UnsupportedContentTypeException {
     try {
       response.write(content);
-      return new Pair<String,String>(contentType, "");
+      return getOutputContentType(contentType, charSet);
     } catch (IOException e) {
       throw new UnsupportedContentTypeException();
     }
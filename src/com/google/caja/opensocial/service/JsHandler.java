@@ -14,17 +14,25 @@
 package com.google.caja.opensocial.service;
 
 import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.InputSource;
 import com.google.caja.lexer.JsLexer;
 import com.google.caja.lexer.JsTokenQueue;
 import com.google.caja.lexer.ParseException;
+import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.js.Parser;
 import com.google.caja.parser.quasiliteral.CajitaRewriter;
-import com.google.caja.parser.quasiliteral.Rewriter;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.RenderContext;
 import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.reporting.BuildInfo;
+import com.google.caja.render.JsMinimalPrinter;
+import com.google.caja.util.Callback;
+import com.google.caja.util.CompileBudget;
 import com.google.caja.util.Pair;
 
 import java.io.IOException;
@@ -32,6 +40,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.net.URI;
 
 /**
@@ -51,22 +60,44 @@ public class JsHandler implements ContentHandler {
     return checker.check("text/javascript",contentType);
   }
 
+  public Pair<String, String> getOutputContentType(
+      String contentType, String charSet) {
+    return new Pair<String, String>("text/javascript", "UTF-8");
+  }
+
   public Pair<String,String> apply(
       URI uri, String contentType, String charset, byte[] content,
       OutputStream response)
       throws UnsupportedContentTypeException {
+    ParseTreeNode cajoled;
     try {
-      OutputStreamWriter writer = new OutputStreamWriter(response, "UTF-8");
-      cajoleJs(uri, new StringReader(new String(content, charset)), writer);
+      String js = new String(content, charset);
+      // Reject oversized input before spending any time lexing it.
+      CompileBudget.current().checkInput(
+          FilePosition.startOfFile(new InputSource(uri)), js.length());
+      cajoled = cajoleJs(uri, new StringReader(js));
+    } catch (IOException e) {
+      throw new UnsupportedContentTypeException();
+    }
+    // Nothing has been written yet, so any failure above could still be
+    // reported to the client.  From here on, output is streamed straight
+    // through to response.
+    try {
+      Writer writer = new OutputStreamWriter(response, "UTF-8");
+      renderJs(cajoled, writer);
       writer.flush();
     } catch (IOException e) {
       throw new UnsupportedContentTypeException();
     }
-    return new Pair<String, String>("text/javascript", "UTF-8");
+    return getOutputContentType(contentType, charset);
   }
 
-  private void cajoleJs(URI inputUri, Reader cajaInput, Appendable output)
-      throws UnsupportedContentTypeException {
+  /**
+   * Parses and cajoles the input, failing if any errors were reported so that
+   * no partial output is ever rendered.
+   */
+  private ParseTreeNode cajoleJs(URI inputUri, Reader cajaInput)
+      throws IOException, UnsupportedContentTypeException {
     InputSource is = new InputSource (inputUri);
     CharProducer cp = CharProducer.Factory.create(cajaInput,is);
     MessageQueue mq = new SimpleMessageQueue();
@@ -81,13 +112,46 @@ public class JsHandler implements ContentHandler {
       CajitaRewriter dcr = new CajitaRewriter(
           buildInfo,
           false /* logging */);
-      output.append(Rewriter.format(dcr.expand(input, mq)));
+      ParseTreeNode cajoled = dcr.expand(input, mq);
+      if (mq.hasMessageAtLevel(MessageLevel.ERROR)) {
+        throw new UnsupportedContentTypeException(errorsIn(mq));
+      }
+      return cajoled;
     } catch (ParseException e) {
-      throw new UnsupportedContentTypeException();
+      throw new UnsupportedContentTypeException(e.getMessage());
     } catch (IllegalArgumentException e) {
       throw new UnsupportedContentTypeException();
-    } catch (IOException e) {
-      throw new UnsupportedContentTypeException();
     }
   }
+
+  /** The errors in mq, one per line, so that clients can see what failed. */
+  private static String errorsIn(MessageQueue mq) {
+    MessageContext mc = new MessageContext();
+    StringBuilder sb = new StringBuilder();
+    for (Message msg : mq.getMessages()) {
+      if (msg.getMessageLevel().compareTo(MessageLevel.ERROR) >= 0) {
+        if (sb.length() != 0) { sb.append('\n'); }
+        sb.append(msg.getMessageLevel().name()).append(": ")
+            .append(msg.format(mc));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Renders compactly to output without buffering a pretty printed copy.
+   */
+  private static void renderJs(ParseTreeNode cajoled, Writer output)
+      throws IOException {
+    final IOException[] failure = new IOException[1];
+    TokenConsumer tc = new JsMinimalPrinter(
+        output, new Callback<IOException>() {
+          public void handle(IOException ex) {
+            if (failure[0] == null) { failure[0] = ex; }
+          }
+        });
+    cajoled.render(new RenderContext(new MessageContext(), tc));
+    tc.noMoreTokens();
+    if (failure[0] != null) { throw failure[0]; }
+  }
 }
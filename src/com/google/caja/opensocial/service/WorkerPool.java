@@ -0,0 +1,239 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.opensocial.service;
+
+import com.google.caja.util.CancellationToken;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs cajoling requests on a bounded set of workers.
+ * <p>
+ * At most {@code workers} requests run at once, and at most {@code queueSize}
+ * more wait for a worker.  Requests beyond that are rejected immediately so
+ * that the service can answer {@code 503} instead of letting them pile up
+ * behind a slow request.  Each admitted request runs under a
+ * {@link CancellationToken} which is cancelled when its deadline passes, so
+ * the parser, rewriter, and CSS validator abandon it at the next node
+ * boundary, and fetches time out.  A request that does not stop within a short
+ * grace period of its deadline is abandoned anyway, so that a worker stuck
+ * outside of a cancellation check cannot hold the caller's thread.
+ *
+ * @author jasvir@gmail.com (Jasvir Nagra)
+ */
+public final class WorkerPool {
+  private final ExecutorService executor;
+  /** Bounds the number of running plus queued requests. */
+  private final Semaphore admission;
+  /**
+   * Bounds the number of running requests when the executor does not,
+   * as when each request gets its own virtual thread.  Null otherwise.
+   */
+  private final Semaphore running;
+  private final long deadlineMillis;
+  private final boolean virtualThreads;
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+
+  /**
+   * How long to wait, after cancelling a request at its deadline, for it to
+   * notice before abandoning it.
+   */
+  private static final long CANCEL_GRACE_MILLIS = 250;
+
+  /**
+   * @param workers the maximum number of requests to process at once.
+   * @param queueSize the maximum number of requests to hold while waiting for
+   *     a worker.
+   * @param deadlineMillis the time from admission after which a request is
+   *     cancelled.
+   * @param useVirtualThreads true to run each request on its own virtual
+   *     thread if the runtime supports them.  Platform worker threads are used
+   *     otherwise.
+   */
+  public WorkerPool(int workers, int queueSize, long deadlineMillis,
+                    boolean useVirtualThreads) {
+    if (workers <= 0 || queueSize < 0 || deadlineMillis <= 0) {
+      throw new IllegalArgumentException();
+    }
+    this.admission = new Semaphore(workers + queueSize);
+    this.deadlineMillis = deadlineMillis;
+    ExecutorService virtualExecutor = useVirtualThreads
+        ? newVirtualThreadPerTaskExecutor() : null;
+    if (virtualExecutor != null) {
+      this.executor = virtualExecutor;
+      this.running = new Semaphore(workers, true);
+      this.virtualThreads = true;
+    } else {
+      // The admission semaphore bounds the queue.
+      this.executor = new ThreadPoolExecutor(
+          workers, workers, 0, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(
+                  r, "cajoling worker " + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      this.running = null;
+      this.virtualThreads = false;
+    }
+  }
+
+  /**
+   * Runs task on a worker and waits for it to finish.
+   *
+   * @throws RejectedExecutionException if there is no room in the queue.
+   * @throws TimeoutException if the deadline passed before the task
+   *     finished.  The task has been cancelled, and has usually stopped by the
+   *     time this is thrown, but is abandoned if it does not stop within a
+   *     short grace period.
+   * @throws ExecutionException if the task failed.
+   * @throws InterruptedException if interrupted while waiting for the task.
+   *     The task is cancelled.
+   */
+  public <T> T run(final Callable<T> task)
+      throws ExecutionException, InterruptedException, TimeoutException {
+    if (!admission.tryAcquire()) {
+      rejected.incrementAndGet();
+      throw new RejectedExecutionException();
+    }
+    final CancellationToken token = new CancellationToken(
+        System.currentTimeMillis() + deadlineMillis);
+    FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+      public T call() throws Exception {
+        try {
+          if (running != null) { running.acquire(); }
+          try {
+            CancellationToken old = CancellationToken.install(token);
+            try {
+              // The deadline may have passed while queued.
+              token.checkCancelled();
+              return task.call();
+            } finally {
+              CancellationToken.install(old);
+            }
+          } finally {
+            if (running != null) { running.release(); }
+          }
+        } finally {
+          admission.release();
+        }
+      }
+    });
+    try {
+      executor.execute(future);
+    } catch (RejectedExecutionException ex) {
+      admission.release();
+      rejected.incrementAndGet();
+      throw ex;
+    }
+    accepted.incrementAndGet();
+
+    try {
+      T result = future.get(deadlineMillis, TimeUnit.MILLISECONDS);
+      completed.incrementAndGet();
+      return result;
+    } catch (TimeoutException ex) {
+      token.cancel();
+      // Wait briefly for the task to notice, so that it does not touch the
+      // response after we report the timeout.
+      try {
+        T result = future.get(CANCEL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        // It finished after all, e.g. while streaming output.
+        completed.incrementAndGet();
+        return result;
+      } catch (ExecutionException ex2) {
+        if (!(ex2.getCause() instanceof CancellationException)) { throw ex2; }
+      } catch (TimeoutException ex2) {
+        // Stuck outside a cancellation check.  Interrupt it and give up on it.
+        future.cancel(true);
+      }
+      timedOut.incrementAndGet();
+      throw ex;
+    } catch (InterruptedException ex) {
+      token.cancel();
+      throw ex;
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof CancellationException) {
+        timedOut.incrementAndGet();
+        throw new TimeoutException();
+      }
+      throw ex;
+    }
+  }
+
+  /** Stops accepting work, letting running and queued requests finish. */
+  public void shutdown() { executor.shutdown(); }
+
+  public boolean isUsingVirtualThreads() { return virtualThreads; }
+
+  /** The number of requests admitted. */
+  public long getAcceptedCount() { return accepted.get(); }
+  /** The number of requests turned away because the queue was full. */
+  public long getRejectedCount() { return rejected.get(); }
+  /** The number of admitted requests cancelled at their deadline. */
+  public long getTimedOutCount() { return timedOut.get(); }
+  /** The number of admitted requests that ran to completion. */
+  public long getCompletedCount() { return completed.get(); }
+
+  /** A summary of the request counts suitable for a status page. */
+  public String getStats() {
+    return "accepted: " + getAcceptedCount()
+        + "\nrejected: " + getRejectedCount()
+        + "\ntimedOut: " + getTimedOutCount()
+        + "\ncompleted: " + getCompletedCount()
+        + "\nvirtualThreads: " + virtualThreads
+        + "\n";
+  }
+
+  /**
+   * Uses reflection since virtual threads are not available on all runtimes
+   * we support.
+   * @return null if virtual threads are not supported.
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException ex) {
+      return null;
+    } catch (IllegalAccessException ex) {
+      return null;
+    } catch (InvocationTargetException ex) {
+      // Preview feature not enabled.
+      return null;
+    }
+  }
+}
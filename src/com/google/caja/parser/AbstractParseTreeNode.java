@@ -18,6 +18,7 @@ import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.Token;
 import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.MessagePart;
+import com.google.caja.util.CompileBudget;
 import com.google.caja.util.SyntheticAttributeKey;
 import com.google.caja.util.SyntheticAttributes;
 
@@ -56,6 +57,7 @@ public abstract class AbstractParseTreeNode
   protected AbstractParseTreeNode(
       FilePosition pos, Class<? extends ParseTreeNode> childClass) {
     assert pos != null && childClass != null;
+    CompileBudget.chargeNodeToCurrent();
     // populated via mutators
     this.children = new ChildNodes<ParseTreeNode>(childClass);
     this.pos = pos;
@@ -15,6 +15,7 @@
 package com.google.caja.parser;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.util.CompileBudget;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -56,6 +57,9 @@ public class ParseTreeNodes {
     } catch (IllegalAccessException e) {
       throw new RuntimeException(getCtorErrorMessage(ctor, value, children), e);
     } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof CompileBudget.Exceeded) {
+        throw (CompileBudget.Exceeded) e.getCause();
+      }
       throw new RuntimeException(getCtorErrorMessage(ctor, value, children), e);
     } catch (IllegalArgumentException e) {
       throw new RuntimeException(getCtorErrorMessage(ctor, value, children), e);
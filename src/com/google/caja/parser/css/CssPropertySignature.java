@@ -31,6 +31,8 @@ import com.google.caja.util.Pair;
 import com.google.caja.util.SyntheticAttributeKey;
 import com.google.caja.util.SyntheticAttributes;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 import java.util.ArrayList;
@@ -354,6 +356,79 @@ public abstract class CssPropertySignature implements ParseTreeNode {
     }
   }
 
+  // Tags for the binary form written by write.
+  private static final byte REPEATED = 0, SET = 1, EXCLUSIVE_SET = 2,
+      SERIES = 3, LITERAL = 4, PROPERTY_REF = 5, SYMBOL = 6, CALL = 7;
+
+  /**
+   * Writes this signature in a compact binary form that {@link #read} can
+   * reconstitute without reparsing.
+   */
+  public final void write(DataOutput out) throws IOException {
+    if (this instanceof RepeatedSignature) {
+      RepeatedSignature rs = (RepeatedSignature) this;
+      out.writeByte(REPEATED);
+      out.writeInt(rs.minCount);
+      out.writeInt(rs.maxCount);
+      rs.getRepeatedSignature().write(out);
+      return;
+    } else if (this instanceof LiteralSignature) {
+      out.writeByte(LITERAL);
+      out.writeUTF(((LiteralSignature) this).value);
+      return;
+    } else if (this instanceof PropertyRefSignature) {
+      out.writeByte(PROPERTY_REF);
+      out.writeUTF(((PropertyRefSignature) this).name.getCanonicalForm());
+      return;
+    } else if (this instanceof SymbolSignature) {
+      out.writeByte(SYMBOL);
+      out.writeUTF(((SymbolSignature) this).symbolName.getCanonicalForm());
+      return;
+    } else if (this instanceof ExclusiveSetSignature) {
+      out.writeByte(EXCLUSIVE_SET);
+    } else if (this instanceof SetSignature) {
+      out.writeByte(SET);
+    } else if (this instanceof SeriesSignature) {
+      out.writeByte(SERIES);
+    } else if (this instanceof CallSignature) {
+      out.writeByte(CALL);
+    } else {
+      throw new IllegalStateException(getClass().getName());
+    }
+    out.writeInt(children.size());
+    for (CssPropertySignature child : children) { child.write(out); }
+  }
+
+  /** Reads a signature written by {@link #write}. */
+  public static CssPropertySignature read(DataInput in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case REPEATED:
+        int minCount = in.readInt(), maxCount = in.readInt();
+        return new RepeatedSignature(read(in), minCount, maxCount);
+      case LITERAL:
+        return new LiteralSignature(in.readUTF());
+      case PROPERTY_REF:
+        return new PropertyRefSignature(Name.css(in.readUTF()));
+      case SYMBOL:
+        return new SymbolSignature(Name.css(in.readUTF()));
+      case SET: case EXCLUSIVE_SET: case SERIES: case CALL:
+        int n = in.readInt();
+        if (n < 0) { throw new IOException("Bad child count " + n); }
+        List<CssPropertySignature> children
+            = new ArrayList<CssPropertySignature>(n);
+        for (int i = 0; i < n; ++i) { children.add(read(in)); }
+        switch (tag) {
+          case SET: return new SetSignature(children);
+          case EXCLUSIVE_SET: return new ExclusiveSetSignature(children);
+          case SERIES: return new SeriesSignature(children);
+          default: return new CallSignature(children);
+        }
+      default:
+        throw new IOException("Bad signature tag " + tag);
+    }
+  }
+
   public static final class Parser {
     private static Pattern[] TOKENS = {
       // whitespace
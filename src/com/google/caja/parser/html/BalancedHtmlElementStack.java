@@ -0,0 +1,367 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.html;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.HtmlTokenType;
+import com.google.caja.lexer.Token;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.util.Name;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a {@link DomTree} directly for HTML fragments that are already well
+ * formed, and defers to an {@link Html5ElementStack} for anything else.
+ *
+ * <p>
+ * Most markup that we parse, e.g. from templates, consists of balanced tags
+ * drawn from a small set of elements.  For such markup, the HTML5 tree
+ * building algorithm just appends each node to the current element, so this
+ * class does that without going through html5lib's TreeBuilder.
+ * As soon as it sees anything that the HTML5 algorithm would treat
+ * specially, e.g. a misnested or unclosed tag, a tag whose end is implied,
+ * a table, or text before the first element, it replays everything seen so
+ * far into an {@code Html5ElementStack} and delegates to that from then on.
+ *
+ * <p>
+ * The trees built are identical, including file positions, to those built by
+ * {@code Html5ElementStack}.
+ *
+ * @author mikesamuel@gmail.com
+ */
+final class BalancedHtmlElementStack implements OpenElementStack {
+  private final MessageQueue mq;
+  private boolean isFragment;
+  /** Non-null once we've had to fall back to the full HTML5 algorithm. */
+  private OpenElementStack delegate;
+  /** The events seen so far, so that they can be replayed to delegate. */
+  private final List<Event> events = new ArrayList<Event>();
+  private final DomTree.Fragment root = new DomTree.Fragment();
+  /** The elements that have been opened but not closed. */
+  private final List<DomTree.Tag> openElements = new ArrayList<DomTree.Tag>();
+  /** The number of open elements by name. */
+  private final Map<String, int[]> openCounts = new HashMap<String, int[]>();
+  /** Position of the first token seen. */
+  private FilePosition fragmentBounds;
+  private boolean sawElement;
+
+  /** @param mq will receive error messages if we fall back to html5lib. */
+  BalancedHtmlElementStack(MessageQueue mq) {
+    this.mq = mq;
+  }
+
+  /** True if the tree was built without html5lib. */
+  boolean isFastPath() { return delegate == null; }
+
+  /** @inheritDoc */
+  public void open(boolean isFragment) {
+    this.isFragment = isFragment;
+    // Documents are all about the implied html, head, and body elements.
+    if (!isFragment) { fallBack(); }
+  }
+
+  /** @inheritDoc */
+  public void finish(FilePosition endOfFile)
+      throws IllegalDocumentStateException {
+    if (delegate == null && (!openElements.isEmpty() || !sawElement)) {
+      fallBack();
+    }
+    if (delegate != null) {
+      delegate.finish(endOfFile);
+    } else {
+      root.setFilePosition(FilePosition.span(fragmentBounds, endOfFile));
+    }
+  }
+
+  /** @inheritDoc */
+  public DomTree.Fragment getRootElement() {
+    return delegate != null ? delegate.getRootElement() : root;
+  }
+
+  /** @inheritDoc */
+  public Name canonicalizeElementName(String elementName) {
+    return Name.html(elementName);
+  }
+
+  /** @inheritDoc */
+  public Name canonicalizeAttributeName(String attributeName) {
+    return Name.html(attributeName);
+  }
+
+  /** @inheritDoc */
+  public void processTag(Token<HtmlTokenType> start, Token<HtmlTokenType> end,
+                         List<DomTree.Attrib> attrs)
+      throws IllegalDocumentStateException {
+    if (delegate == null) {
+      events.add(new Event(start, end, attrs));
+      if (!appendTag(start, end, attrs)) { fallBack(); }
+    } else {
+      delegate.processTag(start, end, attrs);
+    }
+  }
+
+  /** @inheritDoc */
+  public void processText(Token<HtmlTokenType> text) {
+    if (delegate == null) {
+      events.add(new Event(text, null, null));
+      if (!appendText(text)) { fallBack(); }
+    } else {
+      delegate.processText(text);
+    }
+  }
+
+  /**
+   * Replays the events seen so far into an {@link Html5ElementStack} which
+   * handles all subsequent events.
+   */
+  private void fallBack() {
+    delegate = new Html5ElementStack(mq);
+    delegate.open(isFragment);
+    for (Event e : events) {
+      if (e.attrs != null) {
+        try {
+          delegate.processTag(e.start, e.end, e.attrs);
+        } catch (IllegalDocumentStateException ex) {
+          // Html5ElementStack is tolerant, and never throws.
+          throw new RuntimeException(ex);
+        }
+      } else {
+        delegate.processText(e.start);
+      }
+    }
+    events.clear();
+  }
+
+  /** @return false if html5lib would do anything but append or pop. */
+  private boolean appendTag(Token<HtmlTokenType> start,
+                            Token<HtmlTokenType> end,
+                            List<DomTree.Attrib> attrs) {
+    if (fragmentBounds == null) { fragmentBounds = start.pos; }
+    String tagName = CajaTreeBuilder.tagName(start.text);
+    int n = openElements.size();
+    if (CajaTreeBuilder.isEndTag(start.text)) {
+      if (n == 0) { return false; }
+      DomTree.Tag top = openElements.get(n - 1);
+      if (!tagName.equals(top.getTagName().getCanonicalForm())) {
+        return false;
+      }
+      openElements.remove(n - 1);
+      --openCounts.get(tagName)[0];
+      // As done by CajaTreeBuilder.elementPopped.
+      FilePosition startPos = top.getFilePosition();
+      if (end.pos.endCharInFile() >= startPos.endCharInFile()) {
+        top.setFilePosition(FilePosition.span(startPos, end.pos));
+      }
+      return true;
+    }
+
+    ElementKind kind = ELEMENT_KINDS.get(tagName);
+    if (kind == null) { return false; }
+    switch (kind) {
+      case INLINE: case VOID:
+        break;
+      case FORMATTING:
+        // The list of active formatting elements only holds three of a kind.
+        if (openCount(tagName) >= 3) { return false; }
+        break;
+      case ANCHOR:
+        // An <a> implicitly closes any open <a>.
+        if (openCount(tagName) != 0) { return false; }
+        break;
+      case HEADING:
+        if (n != 0 && isHeading(openElements.get(n - 1))) { return false; }
+        if (openCount("p") != 0) { return false; }
+        break;
+      case LIST_ITEM:
+        if (closesListItem(tagName)) { return false; }
+        if (openCount("p") != 0) { return false; }
+        break;
+      case BLOCK: case VOID_BLOCK:
+        // Blocks implicitly close any open paragraph.
+        if (openCount("p") != 0) { return false; }
+        break;
+    }
+
+    DomTree.Tag el = new DomTree.Tag(
+        Name.html(tagName), attrs, start,
+        FilePosition.span(start.pos, end.pos));
+    currentNode().appendChild(el);
+    sawElement = true;
+    if (kind != ElementKind.VOID && kind != ElementKind.VOID_BLOCK) {
+      openElements.add(el);
+      int[] count = openCounts.get(tagName);
+      if (count == null) { openCounts.put(tagName, count = new int[1]); }
+      ++count[0];
+    }
+    return true;
+  }
+
+  /** @return false if html5lib would do anything but append the text. */
+  private boolean appendText(Token<HtmlTokenType> textToken) {
+    if (fragmentBounds == null) { fragmentBounds = textToken.pos; }
+    if (textToken.type != HtmlTokenType.TEXT) { return false; }
+    // As done by Html5ElementStack.processText.
+    String text = textToken.text.replaceAll("\r\n?", "\n");
+    if (text.indexOf('\0') >= 0) { return false; }
+    if (!sawElement) {
+      // Whitespace before the first element is dropped, but other text
+      // implies a body element, and leading whitespace is handled
+      // differently depending on where it splits.
+      return isWhitespace(text);
+    }
+
+    // As done by CajaTreeBuilder.insertCharactersBefore.
+    DomTree parent = currentNode();
+    List<? extends DomTree> siblings = parent.children();
+    if (!siblings.isEmpty()) {
+      DomTree priorSibling = siblings.get(siblings.size() - 1);
+      if (priorSibling instanceof DomTree.Text
+          && priorSibling.getToken().type == HtmlTokenType.TEXT) {
+        Token<HtmlTokenType> previous = priorSibling.getToken();
+        Token<HtmlTokenType> combined = Token.instance(
+            previous.text + text, previous.type,
+            FilePosition.span(previous.pos, textToken.pos));
+        parent.replaceChild(new DomTree.Text(combined), priorSibling);
+        return true;
+      }
+    }
+    Token<HtmlTokenType> tok = textToken;
+    if (!text.equals(textToken.text)) {
+      tok = Token.instance(text, HtmlTokenType.TEXT, textToken.pos);
+    }
+    parent.appendChild(new DomTree.Text(tok));
+    return true;
+  }
+
+  private DomTree currentNode() {
+    int n = openElements.size();
+    return n != 0 ? openElements.get(n - 1) : root;
+  }
+
+  private int openCount(String tagName) {
+    int[] count = openCounts.get(tagName);
+    return count != null ? count[0] : 0;
+  }
+
+  /**
+   * True if the HTML5 algorithm would close an open list item on seeing a
+   * start tag with the given name.
+   */
+  private boolean closesListItem(String tagName) {
+    boolean isLi = "li".equals(tagName);
+    for (int i = openElements.size(); --i >= 0;) {
+      String name = openElements.get(i).getTagName().getCanonicalForm();
+      if (isLi ? "li".equals(name) : "dd".equals(name) || "dt".equals(name)) {
+        return true;
+      }
+      // Only special elements other than address, div, and p stop the search.
+      ElementKind kind = ELEMENT_KINDS.get(name);
+      if (kind != ElementKind.INLINE && kind != ElementKind.FORMATTING
+          && kind != ElementKind.ANCHOR
+          && !"div".equals(name) && !"p".equals(name)) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isHeading(DomTree.Tag el) {
+    return CajaTreeBuilder.isHeading(el.getTagName().getCanonicalForm());
+  }
+
+  private static boolean isWhitespace(String s) {
+    for (int i = s.length(); --i >= 0;) {
+      switch (s.charAt(i)) {
+        case ' ': case '\t': case '\n': break;
+        default: return false;
+      }
+    }
+    return true;
+  }
+
+  /** How the HTML5 "in body" insertion mode treats a start tag. */
+  private enum ElementKind {
+    /** Appended and pushed. */
+    INLINE,
+    /** Takes part in the adoption agency algorithm. */
+    FORMATTING,
+    /** A formatting element that also closes any open one. */
+    ANCHOR,
+    /** Closes any open paragraph. */
+    BLOCK,
+    /** A block that also closes a heading that is the current node. */
+    HEADING,
+    /** A block that also closes some open list items. */
+    LIST_ITEM,
+    /** Appended but not pushed. */
+    VOID,
+    /** A void element that closes any open paragraph. */
+    VOID_BLOCK,
+    ;
+  }
+
+  /**
+   * The elements which we can handle without html5lib.
+   * Elements not listed here, such as tables, forms, and elements with
+   * content that is not parsed as markup, are handled by html5lib.
+   */
+  private static final Map<String, ElementKind> ELEMENT_KINDS
+      = new HashMap<String, ElementKind>();
+  static {
+    for (String name : new String[] {
+           "abbr", "acronym", "bdo", "cite", "del", "dfn", "ins", "kbd",
+           "label", "q", "samp", "span", "sub", "sup", "var" }) {
+      ELEMENT_KINDS.put(name, ElementKind.INLINE);
+    }
+    for (String name : new String[] {
+           "b", "big", "code", "em", "font", "i", "s", "small", "strike",
+           "strong", "tt", "u" }) {
+      ELEMENT_KINDS.put(name, ElementKind.FORMATTING);
+    }
+    ELEMENT_KINDS.put("a", ElementKind.ANCHOR);
+    for (String name : new String[] {
+           "blockquote", "div", "dl", "ol", "p", "ul" }) {
+      ELEMENT_KINDS.put(name, ElementKind.BLOCK);
+    }
+    for (String name : new String[] { "h1", "h2", "h3", "h4", "h5", "h6" }) {
+      ELEMENT_KINDS.put(name, ElementKind.HEADING);
+    }
+    for (String name : new String[] { "dd", "dt", "li" }) {
+      ELEMENT_KINDS.put(name, ElementKind.LIST_ITEM);
+    }
+    ELEMENT_KINDS.put("br", ElementKind.VOID);
+    ELEMENT_KINDS.put("img", ElementKind.VOID);
+    ELEMENT_KINDS.put("hr", ElementKind.VOID_BLOCK);
+  }
+
+  /** A processTag or processText call. */
+  private static final class Event {
+    final Token<HtmlTokenType> start;
+    final Token<HtmlTokenType> end;
+    /** Null for text. */
+    final List<DomTree.Attrib> attrs;
+
+    Event(Token<HtmlTokenType> start, Token<HtmlTokenType> end,
+          List<DomTree.Attrib> attrs) {
+      this.start = start;
+      this.end = end;
+      this.attrs = attrs;
+    }
+  }
+}
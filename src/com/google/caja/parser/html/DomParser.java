@@ -135,8 +135,15 @@ public final class DomParser {
 
   /** Parses a snippet of markup. */
   public DomTree.Fragment parseFragment() throws ParseException {
-    OpenElementStack elementStack = makeElementStack(mq);
+    // Well-formed HTML is common enough that it's worth avoiding the HTML5
+    // tree builder when possible.
+    return parseFragment(
+        asXml ? makeElementStack(mq) : new BalancedHtmlElementStack(mq));
+  }
 
+  /** Parses a snippet of markup using the given element stack. */
+  DomTree.Fragment parseFragment(OpenElementStack elementStack)
+      throws ParseException {
     // Make sure the elementStack is empty.
     elementStack.open(true);
 
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.AbstractParseTreeNode;
 import com.google.caja.parser.ParseTreeNode;
@@ -86,7 +87,7 @@ public abstract class AbstractStatement
     boolean terminal = (terminate) && isTerminal();
     if (terminate && !terminal) {
       rc.getOut().mark(FilePosition.endOfOrNull(getFilePosition()));
-      rc.getOut().consume(";");
+      rc.getOut().consume(";", JsTokenType.PUNCTUATION);
     }
   }
 
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.reporting.RenderContext;
 
@@ -50,23 +51,23 @@ public final class ArrayConstructor extends AbstractExpression {
     TokenConsumer out = rc.getOut();
     FilePosition pos = getFilePosition();
     out.mark(pos);
-    out.consume("[");
+    out.consume("[", JsTokenType.PUNCTUATION);
     Expression last = null;
     for (Expression e : children()) {
       if (last != null) {
-        out.consume(",");
+        out.consume(",", JsTokenType.PUNCTUATION);
       }
       last = e;
       if (!(e instanceof Operation
             && Operator.COMMA == ((Operation) e).getOperator())) {
         e.render(rc);
       } else {
-        out.consume("(");
+        out.consume("(", JsTokenType.PUNCTUATION);
         e.render(rc);
-        out.consume(")");
+        out.consume(")", JsTokenType.PUNCTUATION);
       }
     }
     out.mark(FilePosition.endOfOrNull(pos));
-    out.consume("]");
+    out.consume("]", JsTokenType.PUNCTUATION);
   }
 }
@@ -15,9 +15,11 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
+import com.google.caja.reporting.Renderable;
 
 import java.util.List;
 
@@ -68,17 +70,22 @@ public final class Block
   public void renderBlock(RenderContext rc, boolean terminate) {
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("{");
+    out.consume("{", JsTokenType.PUNCTUATION);
     for (Statement stmt : children()) {
       out.mark(stmt.getFilePosition());
-      stmt.render(rc);
+      Renderable prerendered = rc.getPrerendered(stmt);
+      if (prerendered != null) {
+        prerendered.render(rc);
+      } else {
+        stmt.render(rc);
+      }
       if (!stmt.isTerminal()) {
         out.mark(FilePosition.endOfOrNull(stmt.getFilePosition()));
-        out.consume(";");
+        out.consume(";", JsTokenType.PUNCTUATION);
       }
     }
     out.mark(FilePosition.endOfOrNull(getFilePosition()));
-    out.consume("}");
+    out.consume("}", JsTokenType.PUNCTUATION);
   }
 
   public void render(RenderContext rc) {
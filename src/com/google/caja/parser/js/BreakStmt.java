@@ -16,6 +16,7 @@ package com.google.caja.parser.js;
 
 import com.google.caja.reporting.RenderContext;
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 
@@ -56,9 +57,9 @@ public final class BreakStmt extends AbstractStatement {
   public void render(RenderContext rc) {
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("break");
+    out.consume("break", JsTokenType.KEYWORD);
     if (null != label && !"".equals(label)) {
-      out.consume(label);
+      out.consume(label, JsTokenType.WORD);
     }
   }
 }
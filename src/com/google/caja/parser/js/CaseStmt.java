@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -66,9 +67,9 @@ public final class CaseStmt extends SwitchCase {
   public void render(RenderContext rc) {
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("case");
+    out.consume("case", JsTokenType.KEYWORD);
     caseValue.render(rc);
-    out.consume(":");
+    out.consume(":", JsTokenType.PUNCTUATION);
     out.consume("\n");
     body.renderBlock(rc, false);
   }
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -61,11 +62,11 @@ public final class CatchStmt extends AbstractStatement {
   public void render(RenderContext rc) {
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("catch");
-    out.consume("(");
+    out.consume("catch", JsTokenType.KEYWORD);
+    out.consume("(", JsTokenType.PUNCTUATION);
     out.mark(exception.getFilePosition());
     exception.getIdentifier().render(rc);
-    out.consume(")");
+    out.consume(")", JsTokenType.PUNCTUATION);
     body.renderBlock(rc, false);
   }
 }
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -70,17 +71,17 @@ public final class Conditional extends AbstractStatement {
       Statement body = (Statement) children.get(i + 1);
 
       if (i != 0) {
-        out.consume("else");
+        out.consume("else", JsTokenType.KEYWORD);
       }
-      out.consume("if");
-      out.consume("(");
+      out.consume("if", JsTokenType.KEYWORD);
+      out.consume("(", JsTokenType.PUNCTUATION);
       condition.render(rc);
-      out.consume(")");
+      out.consume(")", JsTokenType.PUNCTUATION);
       body.renderBlock(rc, i + 2 < n);
     }
     if (i < n) {
       Statement body = (Statement) children.get(i);
-      out.consume("else");
+      out.consume("else", JsTokenType.KEYWORD);
       body.renderBlock(rc, false);
     }
   }
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.reporting.RenderContext;
 
@@ -55,9 +56,9 @@ public final class ContinueStmt extends AbstractStatement {
   public void render(RenderContext rc) {
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("continue");
+    out.consume("continue", JsTokenType.KEYWORD);
     if (null != label && !"".equals(label)) {
-      out.consume(label);
+      out.consume(label, JsTokenType.WORD);
     }
   }
 }
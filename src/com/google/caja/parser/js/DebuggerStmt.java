@@ -16,6 +16,7 @@ package com.google.caja.parser.js;
 
 import com.google.caja.reporting.RenderContext;
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 
@@ -46,6 +47,6 @@ public final class DebuggerStmt extends AbstractStatement {
   public void render(RenderContext rc) {
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("debugger");
+    out.consume("debugger", JsTokenType.KEYWORD);
   }
 }
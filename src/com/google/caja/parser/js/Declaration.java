@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -76,7 +77,7 @@ public class Declaration extends AbstractStatement {
   public void render(RenderContext rc) {
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("var");
+    out.consume("var", JsTokenType.KEYWORD);
     renderShort(rc);
   }
 
@@ -94,12 +95,12 @@ public class Declaration extends AbstractStatement {
     }
     identifier.render(rc);
     if (null != initializer) {
-      out.consume("=");
+      out.consume("=", JsTokenType.PUNCTUATION);
       boolean isComma = initializer instanceof Operation
           && Operator.COMMA == ((Operation) initializer).getOperator();
-      if (isComma) out.consume("(");
+      if (isComma) out.consume("(", JsTokenType.PUNCTUATION);
       initializer.render(rc);
-      if (isComma) out.consume(")");
+      if (isComma) out.consume(")", JsTokenType.PUNCTUATION);
     }
   }
 }
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.reporting.RenderContext;
 
@@ -50,8 +51,8 @@ public final class DefaultCaseStmt extends SwitchCase {
   public void render(RenderContext rc) {
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("default");
-    out.consume(":");
+    out.consume("default", JsTokenType.KEYWORD);
+    out.consume(":", JsTokenType.PUNCTUATION);
     out.consume("\n");
     body.renderBlock(rc, false);
   }
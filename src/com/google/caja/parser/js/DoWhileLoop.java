@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -57,14 +58,14 @@ public class DoWhileLoop extends Loop {
     out.mark(getFilePosition());
     String label = getRenderedLabel(rc);
     if (null != label) {
-      out.consume(label);
-      out.consume(":");
+      out.consume(label, JsTokenType.WORD);
+      out.consume(":", JsTokenType.PUNCTUATION);
     }
-    out.consume("do");
+    out.consume("do", JsTokenType.KEYWORD);
     body.renderBlock(rc, true);
-    out.consume("while");
-    out.consume("(");
+    out.consume("while", JsTokenType.KEYWORD);
+    out.consume("(", JsTokenType.PUNCTUATION);
     condition.render(rc);
-    out.consume(")");
+    out.consume(")", JsTokenType.PUNCTUATION);
   }
 }
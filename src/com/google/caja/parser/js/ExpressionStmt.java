@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.reporting.RenderContext;
 
@@ -71,9 +72,9 @@ public final class ExpressionStmt extends AbstractStatement {
       //   };
       // which is interpreted as two statements -- a declaration and a noop for
       // the semicolon.
-      out.consume("(");
+      out.consume("(", JsTokenType.PUNCTUATION);
       expr.render(rc);
-      out.consume(")");
+      out.consume(")", JsTokenType.PUNCTUATION);
     } else {
       expr.render(rc);
     }
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.reporting.RenderContext;
 
 import java.util.List;
@@ -48,7 +49,7 @@ public final class FinallyStmt extends AbstractStatement {
 
   public void render(RenderContext rc) {
     rc.getOut().mark(getFilePosition());
-    rc.getOut().consume("finally");
+    rc.getOut().consume("finally", JsTokenType.KEYWORD);
     body.renderBlock(rc, false);
   }
 }
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -83,15 +84,15 @@ public final class ForEachLoop extends LabeledStatement implements NestedScope {
     out.mark(getFilePosition());
     String label = getRenderedLabel(rc);
     if (null != label) {
-      out.consume(label);
-      out.consume(":");
+      out.consume(label, JsTokenType.WORD);
+      out.consume(":", JsTokenType.PUNCTUATION);
     }
-    out.consume("for");
-    out.consume("(");
+    out.consume("for", JsTokenType.KEYWORD);
+    out.consume("(", JsTokenType.PUNCTUATION);
     keyReceiver.render(rc);
-    out.consume("in");
+    out.consume("in", JsTokenType.KEYWORD);
     container.render(rc);
-    out.consume(")");
+    out.consume(")", JsTokenType.PUNCTUATION);
     body.renderBlock(rc, false);
   }
 }
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -80,17 +81,17 @@ public final class ForLoop extends Loop implements NestedScope {
     out.mark(getFilePosition());
     String label = getRenderedLabel(rc);
     if (null != label) {
-      out.consume(label);
-      out.consume(":");
+      out.consume(label, JsTokenType.WORD);
+      out.consume(":", JsTokenType.PUNCTUATION);
     }
-    out.consume("for");
-    out.consume("(");
+    out.consume("for", JsTokenType.KEYWORD);
+    out.consume("(", JsTokenType.PUNCTUATION);
     initializer.render(rc);
-    out.consume(";");
+    out.consume(";", JsTokenType.PUNCTUATION);
     condition.render(rc);
-    out.consume(";");
+    out.consume(";", JsTokenType.PUNCTUATION);
     increment.render(rc);
-    out.consume(")");
+    out.consume(")", JsTokenType.PUNCTUATION);
     getBody().renderBlock(rc, false);
   }
 }
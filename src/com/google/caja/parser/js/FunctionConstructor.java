@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -86,22 +87,22 @@ public final class FunctionConstructor
   public void render(RenderContext rc) {
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("function");
+    out.consume("function", JsTokenType.KEYWORD);
     String name = identifier.getName();
     if (null != name) {
-      out.consume(name);
+      out.consume(name, JsTokenType.WORD);
     }
-    out.consume("(");
+    out.consume("(", JsTokenType.PUNCTUATION);
     boolean seen = false;
     for (FormalParam e : params) {
       if (seen) {
-        out.consume(",");
+        out.consume(",", JsTokenType.PUNCTUATION);
       } else {
         seen = true;
       }
       e.render(rc);
     }
-    out.consume(")");
+    out.consume(")", JsTokenType.PUNCTUATION);
     body.renderBlock(rc, false);
   }
 }
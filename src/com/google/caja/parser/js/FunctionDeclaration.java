@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.reporting.RenderContext;
 
@@ -64,19 +65,19 @@ public final class FunctionDeclaration extends Declaration {
     FunctionConstructor fc = getInitializer();
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("function");
+    out.consume("function", JsTokenType.KEYWORD);
     getIdentifier().render(rc);
-    out.consume("(");
+    out.consume("(", JsTokenType.PUNCTUATION);
     boolean seen = false;
     for (FormalParam p : fc.getParams()) {
       if (seen) {
-        out.consume(",");
+        out.consume(",", JsTokenType.PUNCTUATION);
       } else {
         seen = true;
       }
       p.render(rc);
     }
-    out.consume(")");
+    out.consume(")", JsTokenType.PUNCTUATION);
     fc.getBody().renderBlock(rc, false);
   }
 }
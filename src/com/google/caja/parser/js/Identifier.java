@@ -16,6 +16,8 @@ package com.google.caja.parser.js;
 
 import com.google.caja.lexer.escaping.Escaping;
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
+import com.google.caja.lexer.Keyword;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.AbstractParseTreeNode;
 import com.google.caja.parser.ParseTreeNode;
@@ -67,7 +69,11 @@ public final class Identifier extends AbstractParseTreeNode {
       StringBuilder escapedName = new StringBuilder();
       Escaping.escapeJsIdentifier(name, r.isAsciiOnly(), escapedName);
       r.getOut().mark(getFilePosition());
-      r.getOut().consume(escapedName.toString());
+      // The only keyword that is also an identifier is this.
+      r.getOut().consume(
+          escapedName,
+          Keyword.THIS.toString().equals(name)
+          ? JsTokenType.KEYWORD : JsTokenType.WORD);
     }
   }
 
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
 
@@ -70,7 +71,12 @@ public final class IntegerLiteral extends NumberLiteral {
 
   @Override
   public void render(RenderContext rc) {
-    long n = getValue().longValue();
+    rc.getOut().consume(getRenderedToken(rc), JsTokenType.INTEGER);
+  }
+
+  @Override
+  protected String renderToken(boolean asciiOnly, boolean paranoid) {
+    long n = value;
     // Use hex if it would be shorter.
     // The hex form requires a "0x" at the front so will be shorter at the
     // inequality:
@@ -92,6 +98,6 @@ public final class IntegerLiteral extends NumberLiteral {
     } else {
       str = Long.toString(n, 10);
     }
-    rc.getOut().consume(str);
+    return str;
   }
 }
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -59,8 +60,8 @@ public final class LabeledStmtWrapper extends LabeledStatement {
     out.mark(getFilePosition());
     String label = getRenderedLabel(rc);
     if (null != label) {
-      out.consume(label);
-      out.consume(":");
+      out.consume(label, JsTokenType.WORD);
+      out.consume(":", JsTokenType.PUNCTUATION);
     }
     body.render(rc);
   }
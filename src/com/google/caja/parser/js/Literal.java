@@ -24,6 +24,14 @@ import com.google.caja.reporting.RenderContext;
  * @author mikesamuel@gmail.com
  */
 public abstract class Literal extends AbstractExpression {
+  /**
+   * The token this literal last rendered to.  Literals are immutable, so this
+   * only goes stale when rendered with different flags.  Since the cached
+   * token is immutable, it can be shared by threads without locking; at
+   * worst, two threads render the same token.
+   */
+  private RenderedToken rendered;
+
   protected Literal(FilePosition pos) { super(pos, NoChildren.class); }
 
   @Override
@@ -39,6 +47,43 @@ public abstract class Literal extends AbstractExpression {
 
   public void render(RenderContext rc) {
     rc.getOut().mark(getFilePosition());
-    rc.getOut().consume(getValue().toString());
+    rc.getOut().consume(getRenderedToken(rc));
+  }
+
+  /**
+   * The single token this literal renders to given rc's flags, computed by
+   * {@link #renderToken} at most once per set of flags.
+   */
+  protected final String getRenderedToken(RenderContext rc) {
+    boolean asciiOnly = rc.isAsciiOnly(), paranoid = rc.isParanoid();
+    RenderedToken token = rendered;
+    if (token == null || token.asciiOnly != asciiOnly
+        || token.paranoid != paranoid) {
+      token = new RenderedToken(
+          asciiOnly, paranoid, renderToken(asciiOnly, paranoid));
+      rendered = token;
+    }
+    return token.text;
+  }
+
+  /**
+   * The text of the single token this literal renders to.
+   * @see RenderContext#isAsciiOnly
+   * @see RenderContext#isParanoid
+   */
+  protected String renderToken(boolean asciiOnly, boolean paranoid) {
+    return getValue().toString();
+  }
+
+  private static final class RenderedToken {
+    final boolean asciiOnly;
+    final boolean paranoid;
+    final String text;
+
+    RenderedToken(boolean asciiOnly, boolean paranoid, String text) {
+      this.asciiOnly = asciiOnly;
+      this.paranoid = paranoid;
+      this.text = text;
+    }
   }
 }
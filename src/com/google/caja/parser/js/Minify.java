@@ -18,6 +18,7 @@ import com.google.caja.lexer.CharProducer;
 import com.google.caja.lexer.InputSource;
 import com.google.caja.lexer.JsLexer;
 import com.google.caja.lexer.JsTokenQueue;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.ParseException;
 import com.google.caja.render.JsMinimalPrinter;
 import com.google.caja.reporting.EchoingMessageQueue;
@@ -111,7 +112,9 @@ public class Minify {
           Block b = p.parse();
           for (Statement topLevelStmt : b.children()) {
             topLevelStmt.render(rc);
-            if (!topLevelStmt.isTerminal()) { rc.getOut().consume(";"); }
+            if (!topLevelStmt.isTerminal()) {
+              rc.getOut().consume(";", JsTokenType.PUNCTUATION);
+            }
           }
         }
       } catch (ParseException ex) {
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -66,11 +67,11 @@ public final class MultiDeclaration extends AbstractStatement {
     if (children().isEmpty()) {
       throw new RuntimeException("Empty MultiDeclaration");
     }
-    out.consume("var");
+    out.consume("var", JsTokenType.KEYWORD);
     boolean seen = false;
     for (Declaration decl : children()) {
       if (seen) {
-        out.consume(",");
+        out.consume(",", JsTokenType.PUNCTUATION);
       } else {
         seen = true;
       }
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.reporting.RenderContext;
 import com.google.caja.util.Pair;
@@ -88,31 +89,31 @@ public final class ObjectConstructor extends AbstractExpression {
   public void render(RenderContext rc) {
     TokenConsumer out = rc.getOut();
     out.mark(getFilePosition());
-    out.consume("{");
+    out.consume("{", JsTokenType.PUNCTUATION);
     boolean seen = false;
     Iterator<? extends Expression> els = children().iterator();
     while (els.hasNext()) {
       Expression key = els.next(),
                value = els.next();
       if (seen) {
-        out.consume(",");
+        out.consume(",", JsTokenType.PUNCTUATION);
         out.consume("\n");
       } else {
         seen = true;
       }
       key.render(rc);
-      out.consume(":");
+      out.consume(":", JsTokenType.PUNCTUATION);
       if (!(value instanceof Operation
             && Operator.COMMA == ((Operation) value).getOperator())) {
         value.render(rc);
       } else {
         out.mark(value.getFilePosition());
-        out.consume("(");
+        out.consume("(", JsTokenType.PUNCTUATION);
         value.render(rc);
-        out.consume(")");
+        out.consume(")", JsTokenType.PUNCTUATION);
       }
     }
     out.mark(FilePosition.endOfOrNull(getFilePosition()));
-    out.consume("}");
+    out.consume("}", JsTokenType.PUNCTUATION);
   }
 }
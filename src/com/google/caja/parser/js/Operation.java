@@ -16,6 +16,7 @@ package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.TokenConsumer;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.Keyword;
 import com.google.caja.reporting.RenderContext;
 import com.google.caja.parser.ParseTreeNode;
@@ -106,13 +107,13 @@ public abstract class Operation extends AbstractExpression {
     out.mark(getFilePosition());
     switch (op.getType()) {
       case PREFIX:
-        out.consume(op.getSymbol());
+        out.consume(op.getSymbol(), op.getSymbolType());
         renderParam(0, rc);
         break;
       case POSTFIX:
         renderParam(0, rc);
         out.mark(FilePosition.endOfOrNull(getFilePosition()));
-        out.consume(op.getSymbol());
+        out.consume(op.getSymbol(), op.getSymbolType());
         break;
       case INFIX:
         renderParam(0, rc);
@@ -123,7 +124,7 @@ public abstract class Operation extends AbstractExpression {
             // the strings ]]> or </script> which would prevent it from being
             // safely embedded in HTML or XML.
             out.consume(" ");
-            out.consume(op.getSymbol());
+            out.consume(op.getSymbol(), op.getSymbolType());
             out.consume(" ");
             renderParam(1, rc);
             break;
@@ -131,7 +132,7 @@ public abstract class Operation extends AbstractExpression {
             renderMemberAccess(rc);
             break;
           case COMMA:
-            out.consume(op.getSymbol());
+            out.consume(op.getSymbol(), op.getSymbolType());
             renderParam(1, rc);
             break;
         }
@@ -140,11 +141,11 @@ public abstract class Operation extends AbstractExpression {
         // Note that FUNCTION_CALL is a BRACKET operator; this is why we can
         // have any number of child expressions, not just two.
         renderParam(0, rc);
-        out.consume(op.getOpeningSymbol());
+        out.consume(op.getOpeningSymbol(), JsTokenType.PUNCTUATION);
         boolean seen = false;
         for (ParseTreeNode e : children().subList(1, children().size())) {
           if (seen) {
-            out.consume(",");
+            out.consume(",", JsTokenType.PUNCTUATION);
           } else {
             seen = true;
           }
@@ -152,21 +153,21 @@ public abstract class Operation extends AbstractExpression {
           if (!parenthesize(Operator.COMMA, false, (Expression) e)) {
             e.render(rc);
           } else {
-            out.consume("(");
+            out.consume("(", JsTokenType.PUNCTUATION);
             e.render(rc);
             out.mark(FilePosition.endOfOrNull(e.getFilePosition()));
-            out.consume(")");
+            out.consume(")", JsTokenType.PUNCTUATION);
           }
         }
         out.mark(FilePosition.endOfOrNull(getFilePosition()));
-        out.consume(op.getClosingSymbol());
+        out.consume(op.getClosingSymbol(), JsTokenType.PUNCTUATION);
         break;
       case TERNARY:
         renderParam(0, rc);
-        out.consume(op.getOpeningSymbol());
+        out.consume(op.getOpeningSymbol(), JsTokenType.PUNCTUATION);
         out.consume(" ");
         renderParam(1, rc);
-        out.consume(op.getClosingSymbol());
+        out.consume(op.getClosingSymbol(), JsTokenType.PUNCTUATION);
         out.consume(" ");
         renderParam(2, rc);
         break;
@@ -180,21 +181,21 @@ public abstract class Operation extends AbstractExpression {
     if (!parenthesize(op, 0 == i, (Expression) e)) {
       e.render(rc);
     } else {
-      out.consume("(");
+      out.consume("(", JsTokenType.PUNCTUATION);
       e.render(rc);
       out.mark(FilePosition.endOfOrNull(getFilePosition()));
-      out.consume(")");
+      out.consume(")", JsTokenType.PUNCTUATION);
     }
   }
 
   private void renderMemberAccess(RenderContext rc) {
     TokenConsumer out = rc.getOut();
     if (isKeywordAccess()) {
-      out.consume(Operator.SQUARE_BRACKET.getOpeningSymbol());
+      out.consume(Operator.SQUARE_BRACKET.getOpeningSymbol(), JsTokenType.PUNCTUATION);
       StringLiteral.renderUnquotedValue(getMemberName(), rc);
-      out.consume(Operator.SQUARE_BRACKET.getClosingSymbol());
+      out.consume(Operator.SQUARE_BRACKET.getClosingSymbol(), JsTokenType.PUNCTUATION);
     } else {
-      out.consume(op.getSymbol());
+      out.consume(op.getSymbol(), op.getSymbolType());
       renderParam(1, rc);
     }
   }
@@ -14,6 +14,8 @@
 
 package com.google.caja.parser.js;
 
+import com.google.caja.lexer.JsTokenType;
+
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
@@ -139,6 +141,11 @@ public enum Operator {
   private int precedence;
   private Associativity associativity;
   private String symbol;
+  /** The token type of symbol when rendered. */
+  private JsTokenType symbolType;
+  /** Computed once so that rendering does not allocate substrings. */
+  private String openingSymbol;
+  private String closingSymbol;
   /**
    * null or the non assignment operator that performs the non assignment
    * portion of this operators function.
@@ -163,6 +170,17 @@ public enum Operator {
     this.associativity = assoc;
     this.symbol = symbol;
     this.assignmentDelegate = assignmentDelegate;
+    this.symbolType = Character.isLetter(symbol.charAt(0))
+        ? JsTokenType.KEYWORD : JsTokenType.PUNCTUATION;
+    switch (type) {
+      case BRACKET: case TERNARY:
+        this.openingSymbol = symbol.substring(0, symbol.length() / 2);
+        this.closingSymbol = symbol.substring(symbol.length() / 2);
+        break;
+      default:
+        this.openingSymbol = symbol;
+        break;
+    }
   }
 
   public OperatorType getType() { return type; }
@@ -170,22 +188,15 @@ public enum Operator {
   public int getPrecedence() { return precedence; }
   public Associativity getAssociativity() { return associativity; }
   public String getSymbol() { return symbol; }
-  public String getClosingSymbol() {
-    switch (type) {
-      default:
-        return null;
-      case BRACKET:  case TERNARY:
-        return symbol.substring(symbol.length() / 2);  // "()" -> ")"
-    }
-  }
-  public String getOpeningSymbol() {
-    switch (type) {
-      default:
-        return symbol;
-      case BRACKET:  case TERNARY:
-        return symbol.substring(0, symbol.length() / 2);  // "()" -> "("
-    }
-  }
+  /**
+   * {@link JsTokenType#KEYWORD} for operators like {@code typeof} and
+   * {@link JsTokenType#PUNCTUATION} for the rest.
+   */
+  public JsTokenType getSymbolType() { return symbolType; }
+  /** For bracket and ternary operators, e.g. {@code ")"} for {@code "()"}. */
+  public String getClosingSymbol() { return closingSymbol; }
+  /** For bracket and ternary operators, e.g. {@code "("} for {@code "()"}. */
+  public String getOpeningSymbol() { return openingSymbol; }
   public Operator getAssignmentDelegate() { return assignmentDelegate; }
 
   // Group operations by OperationType so that we can query for infix
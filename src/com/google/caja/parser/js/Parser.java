@@ -32,6 +32,8 @@ import com.google.caja.reporting.MessagePart;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.MessageType;
 import com.google.caja.reporting.RenderContext;
+import com.google.caja.util.CancellationToken;
+import com.google.caja.util.CompileBudget;
 import com.google.caja.util.Pair;
 
 import java.math.BigDecimal;
@@ -238,6 +240,14 @@ import java.util.Set;
  */
 public final class Parser extends ParserBase {
   private boolean recoverFromFailure;
+  /** Checked once per node parsed. */
+  private final CancellationToken cancellationToken
+      = CancellationToken.current();
+  /**
+   * Charged on entry to each statement and operator so that deeply nested
+   * input fails before it exhausts the stack.
+   */
+  private final CompileBudget budget = CompileBudget.current();
 
   public Parser(JsTokenQueue tq, MessageQueue mq) {
     this(tq, mq, false);
@@ -510,6 +520,16 @@ public final class Parser extends ParserBase {
   }
 
   private AbstractStatement parseStatementWithoutLabel() throws ParseException {
+    budget.enterNested(tq.currentPosition());
+    try {
+      return parseNestedStatementWithoutLabel();
+    } finally {
+      budget.exitNested();
+    }
+  }
+
+  private AbstractStatement parseNestedStatementWithoutLabel()
+      throws ParseException {
     Mark m = tq.mark();
 
     Token<JsTokenType> t = tq.peek();
@@ -733,6 +753,17 @@ public final class Parser extends ParserBase {
   private AbstractExpression parseOp(
       int precedence, boolean insertionProtected)
       throws ParseException {
+    budget.enterNested(tq.currentPosition());
+    try {
+      return parseNestedOp(precedence, insertionProtected);
+    } finally {
+      budget.exitNested();
+    }
+  }
+
+  private AbstractExpression parseNestedOp(
+      int precedence, boolean insertionProtected)
+      throws ParseException {
     AbstractExpression left = null;
     // Handle prefix operations
     {
@@ -1375,6 +1406,7 @@ public final class Parser extends ParserBase {
    */
   private void finish(AbstractParseTreeNode n, Mark startMark)
       throws ParseException {
+    cancellationToken.checkCancelled();
     Mark endMark = tq.mark();
     tq.rewind(startMark);
     try {
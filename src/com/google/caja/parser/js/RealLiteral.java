@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -52,18 +53,18 @@ public final class RealLiteral extends NumberLiteral {
     // Render special values in a way that is independent of the current
     // environment.
     if (Double.isNaN(value)) {
-      out.consume("(");
-      out.consume("0");
-      out.consume("/");
-      out.consume("0");
-      out.consume(")");
+      out.consume("(", JsTokenType.PUNCTUATION);
+      out.consume("0", JsTokenType.INTEGER);
+      out.consume("/", JsTokenType.PUNCTUATION);
+      out.consume("0", JsTokenType.INTEGER);
+      out.consume(")", JsTokenType.PUNCTUATION);
     } else if (Double.isInfinite(value)) {
-      out.consume("(");
-      if (value >= 0) { out.consume("-"); }
-      out.consume("1");
-      out.consume("/");
-      out.consume("0");
-      out.consume(")");
+      out.consume("(", JsTokenType.PUNCTUATION);
+      if (value >= 0) { out.consume("-", JsTokenType.PUNCTUATION); }
+      out.consume("1", JsTokenType.INTEGER);
+      out.consume("/", JsTokenType.PUNCTUATION);
+      out.consume("0", JsTokenType.INTEGER);
+      out.consume(")", JsTokenType.PUNCTUATION);
     } else {
       super.render(rc);
     }
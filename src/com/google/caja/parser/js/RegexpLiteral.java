@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.lexer.escaping.Escaping;
 import com.google.caja.parser.ParseTreeNode;
@@ -59,29 +60,34 @@ public final class RegexpLiteral extends Literal {
     String mods = getModifiers();
     if ("".equals(body) || !areRegexpModifiersValid(mods)) {
       // (new (/./.constructor))('', 'g')
-      out.consume("(");
-      out.consume("new");
-      out.consume("(");
-      out.consume("/./");
-      out.consume(".");
-      out.consume("constructor");
-      out.consume(")");
-      out.consume("(");
+      out.consume("(", JsTokenType.PUNCTUATION);
+      out.consume("new", JsTokenType.KEYWORD);
+      out.consume("(", JsTokenType.PUNCTUATION);
+      out.consume("/./", JsTokenType.REGEXP);
+      out.consume(".", JsTokenType.PUNCTUATION);
+      out.consume("constructor", JsTokenType.WORD);
+      out.consume(")", JsTokenType.PUNCTUATION);
+      out.consume("(", JsTokenType.PUNCTUATION);
       StringLiteral.renderUnquotedValue(body, rc);
-      out.consume(",");
+      out.consume(",", JsTokenType.PUNCTUATION);
       StringLiteral.renderUnquotedValue(mods, rc);
-      out.consume(")");
-      out.consume(")");
+      out.consume(")", JsTokenType.PUNCTUATION);
+      out.consume(")", JsTokenType.PUNCTUATION);
     } else {
-      StringBuilder sb = new StringBuilder();
-      sb.append('/');
-      Escaping.normalizeRegex(body, rc.isAsciiOnly(), rc.isParanoid(), sb);
-      sb.append('/');
-      sb.append(mods);
-      out.consume(sb.toString());
+      out.consume(getRenderedToken(rc), JsTokenType.REGEXP);
     }
   }
 
+  @Override
+  protected String renderToken(boolean asciiOnly, boolean paranoid) {
+    StringBuilder sb = new StringBuilder();
+    sb.append('/');
+    Escaping.normalizeRegex(getMatchText(), asciiOnly, paranoid, sb);
+    sb.append('/');
+    sb.append(getModifiers());
+    return sb.toString();
+  }
+
   public static class RegexpWrapper {
     private final String regexpText;
 
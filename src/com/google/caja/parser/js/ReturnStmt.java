@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.reporting.RenderContext;
 
 import java.util.List;
@@ -62,7 +63,7 @@ public final class ReturnStmt extends AbstractStatement {
 
   public void render(RenderContext rc) {
     rc.getOut().mark(getFilePosition());
-    rc.getOut().consume("return");
+    rc.getOut().consume("return", JsTokenType.KEYWORD);
     if (null != returnValue) {
       returnValue.render(rc);
     }
@@ -16,6 +16,7 @@ package com.google.caja.parser.js;
 
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.escaping.Escaping;
 import com.google.caja.reporting.RenderContext;
 import java.util.List;
@@ -30,6 +31,8 @@ import java.util.regex.Pattern;
 public final class StringLiteral extends Literal {
   /** Undecoded value. */
   private final String value;
+  /** Decoded value, computed lazily. */
+  private String unquotedValue;
 
   /** @param children unused.  This ctor is provided for reflection. */
   public StringLiteral(
@@ -56,10 +59,22 @@ public final class StringLiteral extends Literal {
   @Override
   public void render(RenderContext rc) {
     rc.getOut().mark(getFilePosition());
-    renderUnquotedValue(getUnquotedValue(), rc);
+    rc.getOut().consume(getRenderedToken(rc), JsTokenType.STRING);
+  }
+
+  @Override
+  protected String renderToken(boolean asciiOnly, boolean paranoid) {
+    return toRenderedToken(getUnquotedValue(), asciiOnly, paranoid);
   }
 
   public static void renderUnquotedValue(String unquoted, RenderContext rc) {
+    rc.getOut().consume(
+        toRenderedToken(unquoted, rc.isAsciiOnly(), rc.isParanoid()),
+        JsTokenType.STRING);
+  }
+
+  private static String toRenderedToken(
+      String unquoted, boolean asciiOnly, boolean paranoid) {
     StringBuilder sb = new StringBuilder(unquoted.length() + 18);
     // in paranoid mode we need to produce output that can be safely embedded in
     // HTML or XML.  We make no guarantees for attribute values, and cajoled
@@ -74,9 +89,9 @@ public final class StringLiteral extends Literal {
     // would set delim to '"' below.
     char delim = '\'';
     sb.append(delim);
-    Escaping.escapeJsString(unquoted, rc.isAsciiOnly(), rc.isParanoid(), sb);
+    Escaping.escapeJsString(unquoted, asciiOnly, paranoid, sb);
     sb.append(delim);
-    rc.getOut().consume(sb.toString());
+    return sb.toString();
   }
 
   /**
@@ -84,7 +99,12 @@ public final class StringLiteral extends Literal {
    * it represents.  Otherwise returns value.
    */
   public String getUnquotedValue() {
-    return getUnquotedValueOf(this.value);
+    // Strings are immutable, so this is safe to compute racily.
+    String unquoted = unquotedValue;
+    if (unquoted == null) {
+      unquotedValue = unquoted = getUnquotedValueOf(this.value);
+    }
+    return unquoted;
   }
 
   /**
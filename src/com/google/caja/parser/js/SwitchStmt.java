@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -75,25 +76,25 @@ public final class SwitchStmt extends LabeledStatement {
     out.mark(getFilePosition());
     String label = getRenderedLabel(rc);
     if (null != label) {
-      out.consume(label);
-      out.consume(":");
+      out.consume(label, JsTokenType.WORD);
+      out.consume(":", JsTokenType.PUNCTUATION);
     }
     Iterator<? extends ParseTreeNode> it = children().iterator();
-    out.consume("switch");
-    out.consume("(");
+    out.consume("switch", JsTokenType.KEYWORD);
+    out.consume("(", JsTokenType.PUNCTUATION);
     it.next().render(rc);
-    out.consume(")");
-    out.consume("{");
+    out.consume(")", JsTokenType.PUNCTUATION);
+    out.consume("{", JsTokenType.PUNCTUATION);
     while (it.hasNext()) {
       SwitchCase caseStmt = (SwitchCase) it.next();
       caseStmt.render(rc);
       if (!caseStmt.isTerminal()) {
         out.mark(FilePosition.endOfOrNull(caseStmt.getFilePosition()));
-        out.consume(";");
+        out.consume(";", JsTokenType.PUNCTUATION);
       }
     }
     out.mark(FilePosition.endOfOrNull(getFilePosition()));
-    out.consume("}");
+    out.consume("}", JsTokenType.PUNCTUATION);
   }
 
   @Override
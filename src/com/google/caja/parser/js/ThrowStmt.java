@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.reporting.RenderContext;
 
 import java.util.List;
@@ -53,7 +54,7 @@ public final class ThrowStmt extends AbstractStatement {
 
   public void render(RenderContext rc) {
     rc.getOut().mark(getFilePosition());
-    rc.getOut().consume("throw");
+    rc.getOut().consume("throw", JsTokenType.KEYWORD);
     exception.render(rc);
   }
 }
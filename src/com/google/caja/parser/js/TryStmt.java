@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.reporting.RenderContext;
 
 import java.util.List;
@@ -82,7 +83,7 @@ public final class TryStmt extends AbstractStatement {
 
   public void render(RenderContext rc) {
     rc.getOut().mark(getFilePosition());
-    rc.getOut().consume("try");
+    rc.getOut().consume("try", JsTokenType.KEYWORD);
     body.renderBlock(rc, false);
     if (null != cat) {
       cat.renderBlock(rc, null != fin);
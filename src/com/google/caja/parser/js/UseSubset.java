@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.lexer.escaping.Escaping;
 import com.google.caja.parser.AbstractParseTreeNode;
@@ -62,7 +63,7 @@ public final class UseSubset extends AbstractParseTreeNode {
     escaped.append('\'');  // Not allowed in JSON so always use single quotes.
     Escaping.escapeJsString(subsetName, true, true, escaped);
     escaped.append('\'');
-    rc.getOut().consume(escaped.toString());
+    rc.getOut().consume(escaped, JsTokenType.STRING);
   }
 
   public final TokenConsumer makeRenderer(
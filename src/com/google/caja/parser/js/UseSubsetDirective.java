@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.escaping.Escaping;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -127,8 +128,8 @@ public final class UseSubsetDirective extends AbstractStatement {
     escaped.append('\'');
     Escaping.escapeJsString(sb, true, true, escaped);
     escaped.append('\'');
-    rc.getOut().consume(escaped.toString());
-    rc.getOut().consume(";");
+    rc.getOut().consume(escaped, JsTokenType.STRING);
+    rc.getOut().consume(";", JsTokenType.PUNCTUATION);
   }
 
   @Override
@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -57,13 +58,13 @@ public class WhileLoop extends Loop {
     out.mark(getFilePosition());
     String label = getRenderedLabel(rc);
     if (null != label) {
-      out.consume(label);
-      out.consume(":");
+      out.consume(label, JsTokenType.WORD);
+      out.consume(":", JsTokenType.PUNCTUATION);
     }
-    out.consume("while");
-    out.consume("(");
+    out.consume("while", JsTokenType.KEYWORD);
+    out.consume("(", JsTokenType.PUNCTUATION);
     condition.render(rc);
-    out.consume(")");
+    out.consume(")", JsTokenType.PUNCTUATION);
     body.renderBlock(rc, false);
   }
 }
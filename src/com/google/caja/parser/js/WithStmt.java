@@ -15,6 +15,7 @@
 package com.google.caja.parser.js;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.reporting.RenderContext;
@@ -63,10 +64,10 @@ public final class WithStmt extends AbstractStatement
 
   public void render(RenderContext rc) {
     TokenConsumer out = rc.getOut();
-    out.consume("with");
-    out.consume("(");
+    out.consume("with", JsTokenType.KEYWORD);
+    out.consume("(", JsTokenType.PUNCTUATION);
     getScopeObject().render(rc);
-    out.consume(")");
+    out.consume(")", JsTokenType.PUNCTUATION);
     getBody().renderBlock(rc, false);
   }
 }
@@ -37,6 +37,7 @@ import com.google.caja.parser.js.StringLiteral;
 import com.google.caja.parser.js.SyntheticNodes;
 import com.google.caja.parser.js.UseSubsetDirective;
 import com.google.caja.reporting.DevNullMessageQueue;
+import com.google.caja.util.CompileBudget;
 
 import java.io.StringReader;
 import java.util.ArrayList;
@@ -365,18 +366,25 @@ public class QuasiBuilder {
   private static ParseTreeNode parse(
       InputSource inputSource,
       String sourceText) throws ParseException {
-    Parser parser = new Parser(
-        new JsTokenQueue(
-            new JsLexer(
-                CharProducer.Factory.create(new StringReader(sourceText),
-                inputSource),
-                true),
-            inputSource),
-        DevNullMessageQueue.singleton(),
-        true);
-
-    Statement topLevelStatement = parser.parse();
-    parser.getTokenQueue().expectEmpty();
-    return topLevelStatement;
+    // Patterns are parsed once and cached, so must not be charged to the
+    // compilation that happens to use them first.
+    CompileBudget old = CompileBudget.install(CompileBudget.UNLIMITED);
+    try {
+      Parser parser = new Parser(
+          new JsTokenQueue(
+              new JsLexer(
+                  CharProducer.Factory.create(new StringReader(sourceText),
+                  inputSource),
+                  true),
+              inputSource),
+          DevNullMessageQueue.singleton(),
+          true);
+
+      Statement topLevelStatement = parser.parse();
+      parser.getTokenQueue().expectEmpty();
+      return topLevelStatement;
+    } finally {
+      CompileBudget.install(old);
+    }
   }
 }
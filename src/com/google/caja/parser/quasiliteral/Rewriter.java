@@ -23,6 +23,8 @@ import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.RenderContext;
+import com.google.caja.util.CancellationToken;
+import com.google.caja.util.CompileBudget;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -41,6 +43,12 @@ public abstract class Rewriter {
   private final RuleChain rules = new RuleChain();
   private final Set<String> ruleNames = new HashSet<String>();
   private final boolean logging;
+  /**
+   * The budget of the expansion in progress, looked up once per
+   * {@link #expand(ParseTreeNode, MessageQueue) top-level expansion} instead
+   * of once per node expanded.
+   */
+  private CompileBudget budget;
 
   /**
    * Creates a new Rewriter.
@@ -79,10 +87,16 @@ public abstract class Rewriter {
    * @return the expanded parse tree node.
    */
   public final ParseTreeNode expand(ParseTreeNode node, MessageQueue mq) {
-    flagTainted(node, mq);
-    ParseTreeNode result = expand(node, null, mq);
-    checkTainted(result, mq);
-    return result;
+    CompileBudget outer = budget;
+    budget = CompileBudget.current();
+    try {
+      flagTainted(node, mq);
+      ParseTreeNode result = expand(node, null, mq);
+      checkTainted(result, mq);
+      return result;
+    } finally {
+      budget = outer;
+    }
   }
 
   /**
@@ -95,6 +109,19 @@ public abstract class Rewriter {
    */
   protected final ParseTreeNode expand(
       ParseTreeNode node, Scope scope, MessageQueue mq) {
+    CancellationToken.current().checkCancelled();
+    CompileBudget budget = this.budget != null
+        ? this.budget : CompileBudget.current();
+    budget.enterNested(node.getFilePosition());
+    try {
+      return expandWithinBudget(node, scope, mq);
+    } finally {
+      budget.exitNested();
+    }
+  }
+
+  private ParseTreeNode expandWithinBudget(
+      ParseTreeNode node, Scope scope, MessageQueue mq) {
     boolean debug = false;
     Iterable<Rule> run = debug ? rules.getAllRules() : rules.applicableTo(node);
     for (Rule rule : run) {
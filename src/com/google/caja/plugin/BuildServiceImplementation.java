@@ -36,6 +36,7 @@ import com.google.caja.reporting.BuildInfo;
 import com.google.caja.render.Innocent;
 import com.google.caja.render.JsMinimalPrinter;
 import com.google.caja.render.JsPrettyPrinter;
+import com.google.caja.render.SourceMapBuilder;
 import com.google.caja.tools.BuildService;
 import com.google.caja.util.Pair;
 import java.io.File;
@@ -60,13 +61,13 @@ import java.util.Set;
 
 /**
  * Build integration to {@link PluginCompiler} and {@link Minify}.
+ * <p>
+ * An instance keeps no state between calls, so one instance can be shared by
+ * several builds, including concurrent ones.
  *
  * @author mikesamuel@gmail.com
  */
 public class BuildServiceImplementation implements BuildService {
-  private final Map<InputSource, String> originalSources
-      = new HashMap<InputSource, String>();
-
   /**
    * Cajoles inputs to output writing any messages to logger, returning true
    * iff the task passes.
@@ -83,6 +84,9 @@ public class BuildServiceImplementation implements BuildService {
       return false;
     }
     final MessageQueue mq = new SimpleMessageQueue();
+    // Sources are read fresh on each call since files change between builds.
+    final Map<InputSource, String> originalSources
+        = new HashMap<InputSource, String>();
 
     PluginEnvironment env = new PluginEnvironment() {
         public CharProducer loadExternalResource(
@@ -102,7 +106,7 @@ public class BuildServiceImplementation implements BuildService {
           }
 
           try {
-            String content = getSourceContent(is);
+            String content = getSourceContent(is, originalSources);
             if (content == null) { return null; }
             return CharProducer.Factory.create(new StringReader(content), is);
           } catch (IOException ex) {
@@ -133,6 +137,10 @@ public class BuildServiceImplementation implements BuildService {
     if (!"javascript".equals(language)) {
       PluginMeta meta = new PluginMeta(env);
       meta.setDebugMode(Boolean.TRUE.equals(options.get("debug")));
+      meta.setShortenLocalNames(
+          Boolean.TRUE.equals(options.get("shortenLocalNames")));
+      meta.setPoolRuntimeLookups(
+          Boolean.TRUE.equals(options.get("poolRuntimeLookups")));
       if ("valija".equals(language)) {
         meta.setValijaMode(true);
       } else if ("cajita".equals(language)) {
@@ -148,7 +156,8 @@ public class BuildServiceImplementation implements BuildService {
       for (File f : inputs) {
         try {
           AncestorChain<?> parsedInput = parseInput(
-              new InputSource(f.getCanonicalFile().toURI()), mq);
+              new InputSource(f.getCanonicalFile().toURI()), originalSources,
+              mq);
           if (parsedInput == null) {
             passed = false;
           } else {
@@ -170,7 +179,8 @@ public class BuildServiceImplementation implements BuildService {
       for (File f : inputs) {
         try {
           AncestorChain<?> parsedInput = parseInput(
-              new InputSource(f.getCanonicalFile().toURI()), mq);
+              new InputSource(f.getCanonicalFile().toURI()), originalSources,
+              mq);
           if (parsedInput != null) {
             block.appendChild(parsedInput.cast(Statement.class).node);
           }
@@ -204,17 +214,30 @@ public class BuildServiceImplementation implements BuildService {
     if (passed) {
       StringBuilder out = new StringBuilder();
       TokenConsumer renderer;
+      File sourceMapFile = (File) options.get("sourceMap");
+      SourceMapBuilder sourceMap = sourceMapFile != null
+          ? new SourceMapBuilder() : null;
       String rendererType = (String) options.get("renderer");
       if ("pretty".equals(rendererType)) {
-        renderer = new JsPrettyPrinter(out, null);
+        JsPrettyPrinter pp = new JsPrettyPrinter(out, null);
+        pp.setSourceMap(sourceMap);
+        renderer = pp;
       } else if ("minify".equals(rendererType)) {
-        renderer = new JsMinimalPrinter(out, null);
+        JsMinimalPrinter mp = new JsMinimalPrinter(out, null);
+        mp.setSourceMap(sourceMap);
+        renderer = mp;
       } else {
         throw new RuntimeException("Unrecognized renderer " + rendererType);
       }
       RenderContext rc = new RenderContext(mc, renderer);
       block.render(rc);
       rc.getOut().noMoreTokens();
+      if (sourceMap != null) {
+        out.append("\n//# sourceMappingURL=")
+            .append(PluginCompilerMain.sourceMapReference(
+                output, sourceMapFile))
+            .append('\n');
+      }
       try {
         Writer w = new OutputStreamWriter(new FileOutputStream(output));
         try {
@@ -226,11 +249,27 @@ public class BuildServiceImplementation implements BuildService {
         logger.println("Failed to write " + output);
         return false;
       }
+      if (sourceMap != null) {
+        try {
+          Writer w = new OutputStreamWriter(
+              new FileOutputStream(sourceMapFile), "UTF-8");
+          try {
+            sourceMap.writeJson(output.getName(), w);
+          } finally {
+            w.close();
+          }
+        } catch (IOException ex) {
+          logger.println("Failed to write " + sourceMapFile);
+          return false;
+        }
+      }
     }
     return passed;
   }
 
-  private String getSourceContent(InputSource is) throws IOException {
+  private static String getSourceContent(
+      InputSource is, Map<InputSource, String> originalSources)
+      throws IOException {
     String content = originalSources.get(is);
     if (content == null) {
       File f = new File(is.getUri());
@@ -252,10 +291,12 @@ public class BuildServiceImplementation implements BuildService {
     return content;
   }
 
-  private AncestorChain<?> parseInput(InputSource is, MessageQueue mq)
+  private static AncestorChain<?> parseInput(
+      InputSource is, Map<InputSource, String> originalSources,
+      MessageQueue mq)
       throws IOException {
     CharProducer cp = CharProducer.Factory.create(
-        new StringReader(getSourceContent(is)), is);
+        new StringReader(getSourceContent(is, originalSources)), is);
     try {
       return new AncestorChain<ParseTreeNode>(
           PluginCompilerMain.parseInput(is, cp, mq));
@@ -14,29 +14,20 @@
 
 package com.google.caja.plugin;
 
-import com.google.caja.config.ConfigUtil;
-import com.google.caja.config.WhiteList;
 import com.google.caja.lang.css.CssSchema;
 import com.google.caja.lang.html.HtmlSchema;
-import com.google.caja.lexer.InputSource;
-import com.google.caja.lexer.ParseException;
 import com.google.caja.reporting.BuildInfo;
-import com.google.caja.reporting.MessageType;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.util.Strings;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -52,6 +43,16 @@ import org.apache.commons.cli.Options;
  * @author mikesamuel@gmail.com
  */
 public final class Config {
+  /** The whitelists used unless others are given on the command line. */
+  static final String DEFAULT_CSS_PROPERTY_WHITELIST
+      = "resource:///com/google/caja/lang/css/css21.json";
+  static final String CSS_FUNCTION_WHITELIST
+      = "resource:///com/google/caja/lang/css/css21-fns.json";
+  static final String DEFAULT_HTML_ATTRIBUTE_WHITELIST
+      = "resource:///com/google/caja/lang/html/html4-attributes.json";
+  static final String DEFAULT_HTML_ELEMENT_WHITELIST
+      = "resource:///com/google/caja/lang/html/html4-elements.json";
+
   private final Options options = new Options();
 
   private final Option INPUT = defineOption(
@@ -62,6 +63,18 @@ public final class Config {
       "Output file path for translated JS (defaults to input with \".js\")",
       true);
 
+  private final Option OUTPUT_CSS = defineOption(
+      "c", "output_css",
+      "Output file path for static CSS when --id_class is given"
+      + " (defaults to input with \".css\")",
+      true);
+
+  private final Option OUTPUT_SOURCE_MAP = defineOption(
+      "output_source_map",
+      "Output file path for a source map of the translated JS."
+      + "  Not supported by the sidebyside renderer.",
+      true);
+
   private final Option OUTPUT_BASE = defineOption(
       "o", "out",
       "Path to which the appropriate extension is added to form output files.",
@@ -101,12 +114,31 @@ public final class Config {
   private final Option CAJA_MODE = defineBooleanOption(
       "a", "caja", "Enables Caja (as opposed to Cajita) mode.");
 
+  private final Option SHORTEN_LOCAL_NAMES = defineBooleanOption(
+      "shorten_local_names", "shorten_local_names",
+      "Renames local variables in the translated JS to short names.");
+
+  private final Option POOL_RUNTIME_LOOKUPS = defineBooleanOption(
+      "pool_runtime_lookups", "pool_runtime_lookups",
+      "Pools repeated strings and runtime functions in the translated JS.");
+
+  private final Option ID_CLASS = defineOption(
+      "id_class",
+      "The gadget's id class, if known at cajole time, so that style-sheets"
+      + " can be output as static CSS instead of JS.",
+      true);
+
   private final Option RENDERER = defineOption(
       "r",
       "renderer",
       "The output renderer ('minify', 'pretty', or 'sidebyside')",
       true);
 
+  private final Option RENDER_THREADS = defineOption(
+      "render_threads",
+      "The number of threads to render large outputs with (default 1).",
+      true);
+
   public enum SourceRenderMode {
     MINIFY,
     PRETTY,
@@ -120,6 +152,9 @@ public final class Config {
   private List<URI> inputUris;
   private File outputBase;
   private File outputJsFile;
+  private File outputCssFile;
+  private File outputSourceMapFile;
+  private String idClass;
   private URI cssPropertyWhitelistUri;
   private URI htmlAttributeWhitelistUri;
   private URI htmlElementWhitelistUri;
@@ -127,7 +162,10 @@ public final class Config {
   private String gadgetView;
   private boolean debugMode;
   private boolean cajaMode;
+  private boolean shortenLocalNames;
+  private boolean poolRuntimeLookups;
   private SourceRenderMode renderer;
+  private int renderThreads;
   private int servicePort;
 
   public Config(Class<?> mainClass, PrintStream stderr, String usageText) {
@@ -142,6 +180,9 @@ public final class Config {
 
   public Collection<URI> getInputUris() { return inputUris; }
   public File getOutputJsFile() { return outputJsFile; }
+  public File getOutputCssFile() { return outputCssFile; }
+  /** The file to write a source map to, or null if none was requested. */
+  public File getOutputSourceMapFile() { return outputSourceMapFile; }
   public File getOutputBase() { return outputBase; }
   public int getServicePort() { return servicePort; }
   public URI getCssPropertyWhitelistUri() {
@@ -156,16 +197,13 @@ public final class Config {
   public URI getBaseUri() { return baseUri; }
 
   public CssSchema getCssSchema(MessageQueue mq) {
-    return new CssSchema(
-        whitelist(cssPropertyWhitelistUri, mq),
-        whitelist(URI.create(
-            "resource:///com/google/caja/lang/css/css21-fns.json"), mq));
+    return SchemaCache.getCssSchema(
+        cssPropertyWhitelistUri, URI.create(CSS_FUNCTION_WHITELIST), mq);
   }
 
   public HtmlSchema getHtmlSchema(MessageQueue mq) {
-    return new HtmlSchema(
-        whitelist(htmlElementWhitelistUri, mq),
-        whitelist(htmlAttributeWhitelistUri, mq));
+    return SchemaCache.getHtmlSchema(
+        htmlElementWhitelistUri, htmlAttributeWhitelistUri, mq);
   }
 
   public String getGadgetView() { return gadgetView; }
@@ -174,8 +212,26 @@ public final class Config {
 
   public boolean cajaMode() { return cajaMode; }
 
+  /** @see PluginMeta#isShortenLocalNames */
+  public boolean shortenLocalNames() { return shortenLocalNames; }
+
+  /** @see PluginMeta#isPoolRuntimeLookups */
+  public boolean poolRuntimeLookups() { return poolRuntimeLookups; }
+
+  /**
+   * The gadget's id class, or null if it is not known at cajole time.
+   * @see PluginMeta#getIdClass
+   */
+  public String getIdClass() { return idClass; }
+
   public SourceRenderMode renderer() { return renderer; }
 
+  /**
+   * The number of threads to render javascript output with.
+   * @see com.google.caja.render.ParallelRendering
+   */
+  public int renderThreads() { return renderThreads; }
+
   public boolean processArguments(String[] argv) {
     try {
       CommandLine cl;
@@ -224,11 +280,16 @@ public final class Config {
         outputBase = new File(cl.getOptionValue(OUTPUT_BASE.getOpt()));
 
         outputJsFile = substituteExtension(outputBase, "js");
+        outputCssFile = substituteExtension(outputBase, "css");
 
         if (cl.getOptionValue(OUTPUT_JS.getOpt()) != null) {
           usage("Can't specify both --out and --output_js", stderr);
           return false;
         }
+        if (cl.getOptionValue(OUTPUT_CSS.getOpt()) != null) {
+          usage("Can't specify both --out and --output_css", stderr);
+          return false;
+        }
       } else {
         URI inputUri = inputUris.get(0);
 
@@ -240,18 +301,27 @@ public final class Config {
           usage("Please specify js output via " + OUTPUT_JS.getLongOpt(),
                 stderr);
         }
+
+        outputCssFile = cl.getOptionValue(OUTPUT_CSS.getOpt()) == null
+            ? toFileWithExtension(inputUri, "out.css")
+            : new File(cl.getOptionValue(OUTPUT_CSS.getOpt()));
+      }
+
+      if (cl.getOptionValue(OUTPUT_SOURCE_MAP.getOpt()) != null) {
+        outputSourceMapFile = new File(
+            cl.getOptionValue(OUTPUT_SOURCE_MAP.getOpt()));
+      } else {
+        outputSourceMapFile = null;
       }
 
       try {
         cssPropertyWhitelistUri = new URI(cl.getOptionValue(
-            CSS_PROPERTY_WHITELIST.getOpt(),
-            "resource:///com/google/caja/lang/css/css21.json"));
+            CSS_PROPERTY_WHITELIST.getOpt(), DEFAULT_CSS_PROPERTY_WHITELIST));
         htmlAttributeWhitelistUri = new URI(cl.getOptionValue(
             HTML_ATTRIBUTE_WHITELIST.getOpt(),
-            "resource:///com/google/caja/lang/html/html4-attributes.json"));
+            DEFAULT_HTML_ATTRIBUTE_WHITELIST));
         htmlElementWhitelistUri = new URI(cl.getOptionValue(
-            HTML_ELEMENT_WHITELIST.getOpt(),
-            "resource:///com/google/caja/lang/html/html4-elements.json"));
+            HTML_ELEMENT_WHITELIST.getOpt(), DEFAULT_HTML_ELEMENT_WHITELIST));
 
         if (cl.getOptionValue(BASE_URI.getOpt()) != null) {
           baseUri = new URI(cl.getOptionValue(BASE_URI.getOpt()));
@@ -267,6 +337,13 @@ public final class Config {
       gadgetView = cl.getOptionValue(VIEW.getOpt(), "canvas");
       debugMode = cl.hasOption(DEBUG_MODE.getOpt());
       cajaMode = cl.hasOption(CAJA_MODE.getOpt());
+      shortenLocalNames = cl.hasOption(SHORTEN_LOCAL_NAMES.getOpt());
+      poolRuntimeLookups = cl.hasOption(POOL_RUNTIME_LOOKUPS.getOpt());
+      idClass = cl.getOptionValue(ID_CLASS.getOpt());
+      if (idClass != null && !idClass.matches("[a-zA-Z_][a-zA-Z0-9_\\-]*")) {
+        usage("--id_class must be a CSS identifier", stderr);
+        return false;
+      }
 
       String servicePortString;
       try {
@@ -289,6 +366,22 @@ public final class Config {
       } else {
         renderer = SourceRenderMode.PRETTY;
       }
+      try {
+        renderThreads = Integer.parseInt(
+            cl.getOptionValue(RENDER_THREADS.getOpt(), "1"));
+      } catch (NumberFormatException e) {
+        renderThreads = 0;
+      }
+      if (renderThreads < 1) {
+        usage("--render_threads must be a positive integer", stderr);
+        return false;
+      }
+      if (outputSourceMapFile != null
+          && renderer == SourceRenderMode.SIDEBYSIDE) {
+        usage("Can't specify both --output_source_map and the sidebyside"
+              + " renderer", stderr);
+        return false;
+      }
 
       return true;
     } finally {
@@ -327,27 +420,6 @@ public final class Config {
                     fileName.substring(0, lastDot) + "." + extension);
   }
 
-  private static WhiteList whitelist(URI uri, MessageQueue mq) {
-    InputSource src = new InputSource(uri);
-    try {
-      return ConfigUtil.loadWhiteListFromJson(
-          uri, ConfigUtil.RESOURCE_RESOLVER, mq);
-    } catch (IOException ex) {
-      mq.addMessage(MessageType.IO_ERROR, src);
-    } catch (ParseException ex) {
-      ex.toMessageQueue(mq);
-    }
-    // Return a Null instance if unable to load.
-    return new WhiteList() {
-        public Set<String> allowedItems() {
-          return Collections.<String>emptySet();
-        }
-        public Map<String, TypeDefinition> typeDefinitions() {
-          return Collections.<String, TypeDefinition>emptyMap();
-        }
-      };
-  }
-
   private Option defineOption(
       String shortFlag, String longFlag, String help, boolean optional) {
     Option opt = new Option(shortFlag, longFlag, /* hasArg: */ true, help);
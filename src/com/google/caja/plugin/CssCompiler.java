@@ -15,6 +15,7 @@
 package com.google.caja.plugin;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.AncestorChain;
 import com.google.caja.parser.ParseTreeNode;
@@ -45,7 +46,7 @@ import java.util.List;
  */
 public final class CssCompiler {
   /**
-   * A string that will not pass {@link CssRewriter#removeForbiddenIdents}, but
+   * A string that {@link CssRewriter} will not allow in a selector, but
    * which can be used as a suffix for identifiers and class literals that need
    * to be dynamically generated at {@code ___.loadModule} time.
    */
@@ -58,13 +59,13 @@ public final class CssCompiler {
     //     '#foo {}'                                        ; The original rule
     // =>  '#foo-' + IMPORTS___.getIdClass___() + ' {}'     ; Cajoled rule
     // =>  '#foo-gadget123___ {}'                           ; In the browser
-    rewriteIds(ss);
+    rewriteIds(ss, GADGET_ID_PLACEHOLDER);
     // Make sure that each selector only applies to nodes under a node
     // controlled by the gadget.
     //     'p { }'                                          ; The original rule
     // =>  '.' + IMPORTS___.getIdClass___() + '___ p { }'   ; Cajoled rule
     // =>  '.gadget123___ p { }'                            ; In the browser
-    restrictRulesToSubtreeWithGadgetClass(ss);
+    restrictRulesToSubtreeWithGadgetClass(ss, GADGET_ID_PLACEHOLDER);
     // Convert the CSS to JavaScript which emits the same styles.
     //     'p { }'
     // =>  'IMPORTS___.emitCss___(
@@ -72,7 +73,50 @@ public final class CssCompiler {
     return cssToJs(ss);
   }
 
-  private void rewriteIds(CssTree.StyleSheet ss) {
+  /**
+   * Like {@link #compileCss}, but for when the gadget's id class is known at
+   * cajole time, so the rewritten style-sheet can be served as CSS instead of
+   * being emitted by JavaScript when the module is loaded.
+   *
+   * @param ss modified destructively if this method returns true.
+   * @param idClass the value that {@code IMPORTS___.getIdClass___()} will
+   *     return when the gadget is loaded.
+   * @return false, leaving ss unmodified, if ss has parts that are only
+   *     known at runtime.
+   */
+  public boolean compileCssStatically(CssTree.StyleSheet ss, String idClass) {
+    if (!isStatic(ss)) { return false; }
+    //     '#foo {}'              ; The original rule
+    // =>  '#foo-gadget123___ {}' ; Cajoled rule
+    rewriteIds(ss, idClass);
+    //     'p { }'                ; The original rule
+    // =>  '.gadget123___ p { }'  ; Cajoled rule
+    restrictRulesToSubtreeWithGadgetClass(ss, idClass);
+    return true;
+  }
+
+  /**
+   * True if ss contains no substitutions, and no imports which would have to
+   * stay at the top of a style-sheet were it combined with others.
+   */
+  private static boolean isStatic(CssTree.StyleSheet ss) {
+    final boolean[] isStatic = new boolean[] { true };
+    ss.acceptPreOrder(new Visitor() {
+          public boolean visit(AncestorChain<?> ancestors) {
+            if (ancestors.node instanceof CssTree.Substitution
+                || ancestors.node instanceof CssTree.Import) {
+              isStatic[0] = false;
+            }
+            return isStatic[0];
+          }
+        }, null);
+    return isStatic[0];
+  }
+
+  /**
+   * @param idSuffix appended, after a dash, to each id in a selector.
+   */
+  private void rewriteIds(CssTree.StyleSheet ss, final String idSuffix) {
     // Rewrite IDs with the gadget suffix.
     ss.acceptPreOrder(new Visitor() {
           public boolean visit(AncestorChain<?> ancestors) {
@@ -86,14 +130,18 @@ public final class CssCompiler {
                 CssTree.IdLiteral idLit = (CssTree.IdLiteral) child;
                 idLit.setValue(
                     "#" + idLit.getValue().substring(1)
-                    + "-" + GADGET_ID_PLACEHOLDER);
+                    + "-" + idSuffix);
               }
             }
             return true;
           }
         }, null);
   }
-  private void restrictRulesToSubtreeWithGadgetClass(CssTree.StyleSheet ss) {
+  /**
+   * @param gadgetClass a class that all nodes under the gadget's root have.
+   */
+  private void restrictRulesToSubtreeWithGadgetClass(
+      CssTree.StyleSheet ss, final String gadgetClass) {
     ss.acceptPreOrder(new Visitor() {
           public boolean visit(AncestorChain<?> ancestors) {
             ParseTreeNode node = ancestors.node;
@@ -121,7 +169,7 @@ public final class CssCompiler {
                 pos, CssTree.Combinator.DESCENDANT);
 
             CssTree.ClassLiteral restrictClass = new CssTree.ClassLiteral(
-                pos, "." + GADGET_ID_PLACEHOLDER);
+                pos, "." + gadgetClass);
             CssTree.SimpleSelector restrictSel = new CssTree.SimpleSelector(
                 pos, Collections.singletonList(restrictClass));
 
@@ -158,6 +206,9 @@ public final class CssCompiler {
             // on the gadget id.
             if (s.endsWith(GADGET_ID_PLACEHOLDER)) { flush(); }
           }
+          public void consume(CharSequence s, JsTokenType type) {
+            consume(s.toString());
+          }
           public void noMoreTokens() {
             pp.noMoreTokens();
             flush();
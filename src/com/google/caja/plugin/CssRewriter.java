@@ -19,8 +19,6 @@ import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.AncestorChain;
 import com.google.caja.parser.MutableParseTreeNode;
-import com.google.caja.parser.ParseTreeNode;
-import com.google.caja.parser.Visitor;
 import com.google.caja.parser.css.CssTree;
 import com.google.caja.render.CssPrettyPrinter;
 import com.google.caja.reporting.Message;
@@ -34,6 +32,7 @@ import com.google.caja.util.Strings;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -83,482 +82,443 @@ public final class CssRewriter {
    * @param t non null.  modified in place.
    */
   public void rewrite(AncestorChain<? extends CssTree> t) {
-    quoteLooseWords(t);
-    fixUnitlessLengths(t);
-    // Once at the beginning, and again at the end.
-    removeUnsafeConstructs(t);
-    removeEmptyDeclarationsAndSelectors(t);
-    // After we remove declarations, we may have some rulesets without any
-    // declarations which is technically illegal, so we remove rulesets without
-    // declarations.
-    removeEmptyRuleSets(t);
-    // Disallow classes and ids that end in double underscore.
-    removeForbiddenIdents(t);
-    // Do this again to make sure no earlier changes introduce unsafe constructs
-    removeUnsafeConstructs(t);
-
-    translateUrls(t);
+    Pass pass = new Pass();
+    if (pass.walk(t.node) && null != t.parent) {
+      ((MutableParseTreeNode) t.parent.node).removeChild(t.node);
+    }
+    pass.finish();
   }
 
   /**
-   * Turn a run of unquoted identifiers into a single string, where the property
-   * description says "Names containing space *should* be quoted", but does not
-   * require it.
+   * A single walk over a tree that fixes and checks each node on the way down,
+   * and on the way back up decides which of its children to remove.
+   * Removals are batched and applied by {@link #finish} so that the decisions
+   * made during the walk see the tree as it was.
    * <p>
-   * This is important for font {@code family-name}s where
-   * {@code font: Times New Roman} should be written as
-   * {@code font: "Times New Roman"} to avoid any possible ambiguity between
-   * the individual terms and special values such as {@code serif}.
-   *
-   * @see CssPropertyPartType#LOOSE_WORD
+   * Messages are queued per check, and issued in the order in which the checks
+   * would have been made had each been a separate pass over the tree.
    */
-  private void quoteLooseWords(AncestorChain<? extends CssTree> t) {
-    if (t.node instanceof CssTree.Expr) {
-      combineLooseWords(t.cast(CssTree.Expr.class).node);
-    }
-    for (CssTree child : t.node.children()) {
-      quoteLooseWords(new AncestorChain<CssTree>(t, child));
-    }
-  }
+  private final class Pass {
+    /** {@link PluginMessageType#QUOTED_CSS_VALUE}s. */
+    private final List<Message> quotedValues = new ArrayList<Message>();
+    /** {@link PluginMessageType#ASSUMING_PIXELS_FOR_LENGTH}s. */
+    private final List<Message> unitlessLengths = new ArrayList<Message>();
+    /** Classes, ids, property names, etc. that are not valid identifiers. */
+    private final List<Message> unsafeIdents = new ArrayList<Message>();
+    /** The content property, and pseudo selectors not on the whitelist. */
+    private final List<Message> unsafeProperties = new ArrayList<Message>();
+    /** Urls rejected by the plugin environment. */
+    private final List<Message> disallowedUris = new ArrayList<Message>();
+    /** Classes and ids in otherwise valid selectors that end with "__". */
+    private final List<Message> forbiddenIdents = new ArrayList<Message>();
+    private final List<MutableParseTreeNode.Mutation> removals
+        = new ArrayList<MutableParseTreeNode.Mutation>();
+
+    /** The innermost declaration containing the node being walked. */
+    private CssTree.Declaration decl;
+    /** The innermost selector containing the node being walked. */
+    private CssTree.Selector sel;
+    /** The innermost simple selector containing the node being walked. */
+    private CssTree.SimpleSelector simpleSel;
+
+    /**
+     * Rewrites node and its descendants.
+     * @return true if node should be removed from its parent.
+     */
+    boolean walk(CssTree node) {
+      CssTree.Declaration oldDecl = decl;
+      CssTree.Selector oldSel = sel;
+      CssTree.SimpleSelector oldSimpleSel = simpleSel;
+      int nForbidden = forbiddenIdents.size();
+
+      if (node instanceof CssTree.Declaration) {
+        decl = (CssTree.Declaration) node;
+      } else if (node instanceof CssTree.Selector) {
+        sel = (CssTree.Selector) node;
+      } else if (node instanceof CssTree.SimpleSelector) {
+        simpleSel = (CssTree.SimpleSelector) node;
+      }
 
-  private void combineLooseWords(CssTree.Expr e) {
-    for (int i = 0, n = e.getNTerms(); i < n; ++i) {
-      CssTree.Term t = e.getNthTerm(i);
-      if (!isLooseWord(t)) { continue; }
-
-      Name propertyPart = t.getAttributes().get(
-          CssValidator.CSS_PROPERTY_PART);
-      StringBuilder sb = new StringBuilder();
-      sb.append(t.getExprAtom().getValue());
-
-      // Compile a mutation that removes all the extraneous terms and that
-      // replaces t with a string literal.
-      MutableParseTreeNode.Mutation mut = e.createMutation();
-
-      // Compute end, the term index after the last of the run of loose terms
-      // for t's property part.
-      int start = i;
-      int end = i + 1;
-      while (end < n) {
-        CssTree.Operation op = e.getNthOperation(end - 1);
-        CssTree.Term t2 = e.getNthTerm(end);
-        if (!(CssTree.Operator.NONE == op.getOperator() && isLooseWord(t2)
-              && propertyPart.equals(
-                     t2.getAttributes().get(CssValidator.CSS_PROPERTY_PART)))) {
-          break;
+      check(node);
+
+      List<CssTree> removed = null;
+      for (CssTree child : node.children()) {
+        if (walk(child)) {
+          if (null == removed) { removed = new ArrayList<CssTree>(); }
+          removed.add(child);
         }
-        mut.removeChild(op);
-        mut.removeChild(t2);
-        sb.append(' ').append(e.getNthTerm(end).getExprAtom().getValue());
-        ++end;
       }
 
-      // Create a string literal to replace all the terms [start:end-1].
-      // Make sure it has the same synthetic attributes and file position.
-      String text = sb.toString();
-      FilePosition pos = FilePosition.span(
-          t.getFilePosition(), e.getNthTerm(end - 1).getFilePosition());
-      CssTree.StringLiteral quotedWords = new CssTree.StringLiteral(pos, text);
-      CssTree.Term quotedTerm = new CssTree.Term(pos, null, quotedWords);
-      quotedTerm.getAttributes().putAll(t.getAttributes());
-      quotedTerm.getAttributes().set(CssValidator.CSS_PROPERTY_PART_TYPE,
-                                     CssPropertyPartType.STRING);
-
-      mut.replaceChild(quotedTerm, t);
-      mut.execute();
-
-      // If we made a substantive change, combining multiple terms into one,
-      // then issue a line message.  We don't need to issue a warning on all
-      // changes, since we only reach this code if we passed validation.
-      if (end - start > 1) {
-        mq.addMessage(PluginMessageType.QUOTED_CSS_VALUE,
-                      pos, MessagePart.Factory.valueOf(text));
+      boolean remove;
+      if (node.getAttributes().is(CssValidator.INVALID)) {
+        remove = true;
+        // Nothing under an invalid node survives to be checked for forbidden
+        // identifiers.
+        forbiddenIdents.subList(nForbidden, forbiddenIdents.size()).clear();
+      } else if (node instanceof CssTree.Declaration) {
+        // Get rid of empty declarations as in <code>p { ; }</code>.
+        remove = null == ((CssTree.Declaration) node).getProperty();
+      } else if (node instanceof CssTree.Selector) {
+        // Get rid of selectors that are empty or that start with a combinator
+        // since an unsafe simple selector was removed.
+        remove = !(firstKept(node, removed) instanceof CssTree.SimpleSelector);
+      } else if (node instanceof CssTree.RuleSet) {
+        if (null == removed) { removed = new ArrayList<CssTree>(); }
+        remove = isEmptyRuleSet((CssTree.RuleSet) node, removed);
+      } else {
+        remove = false;
+      }
+
+      if (!remove && null != removed && !removed.isEmpty()) {
+        MutableParseTreeNode.Mutation mut = node.createMutation();
+        for (CssTree child : removed) { mut.removeChild(child); }
+        removals.add(mut);
       }
 
-      n = e.getNTerms();
+      decl = oldDecl;
+      sel = oldSel;
+      simpleSel = oldSimpleSel;
+      return remove;
     }
-  }
 
-  /** @see CssPropertyPartType#LOOSE_WORD */
-  private static boolean isLooseWord(CssTree.Term t) {
-    return t.getOperator() == null
-        && t.getExprAtom() instanceof CssTree.IdentLiteral
-        && (t.getAttributes().get(CssValidator.CSS_PROPERTY_PART_TYPE)
-            == CssPropertyPartType.LOOSE_WORD);
-  }
+    /** Applies removals and issues messages. */
+    void finish() {
+      for (MutableParseTreeNode.Mutation mut : removals) { mut.execute(); }
+      List<Message> messages = mq.getMessages();
+      messages.addAll(quotedValues);
+      messages.addAll(unitlessLengths);
+      messages.addAll(unsafeIdents);
+      messages.addAll(unsafeProperties);
+      messages.addAll(disallowedUris);
+      messages.addAll(forbiddenIdents);
+    }
 
-  /**
-   * <a href="http://www.w3.org/TR/CSS21/syndata.html#length-units">Lengths</a>
-   * require units unless the value is zero.  All browsers assume px if the
-   * suffix is missing.
-   */
-  private void fixUnitlessLengths(AncestorChain<? extends CssTree> t) {
-    t.node.acceptPreOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ancestors) {
-          if (!(ancestors.node instanceof CssTree.Term)) {
-            return true;
-          }
-          CssTree.Term term = (CssTree.Term) ancestors.node;
-          if (!(CssPropertyPartType.LENGTH == term.getAttributes().get(
-                    CssValidator.CSS_PROPERTY_PART_TYPE)
-                && term.getExprAtom() instanceof CssTree.QuantityLiteral)) {
-            return true;
-          }
-          CssTree.QuantityLiteral quantity = (CssTree.QuantityLiteral)
-              term.getExprAtom();
-          String value = quantity.getValue();
-          if (!isZeroOrHasUnits(value)) {
-            // Missing units.
-            CssTree.QuantityLiteral withUnits = new CssTree.QuantityLiteral(
-                quantity.getFilePosition(), value + "px");
-            withUnits.getAttributes().putAll(quantity.getAttributes());
-            term.replaceChild(withUnits, quantity);
-            mq.addMessage(PluginMessageType.ASSUMING_PIXELS_FOR_LENGTH,
-                          quantity.getFilePosition(),
-                          MessagePart.Factory.valueOf(value));
-          }
-          return false;
+    /** Fixes or marks as invalid a node before its children are walked. */
+    private void check(CssTree node) {
+      if (node instanceof CssTree.Expr) {
+        combineLooseWords((CssTree.Expr) node);
+      } else if (node instanceof CssTree.Term) {
+        CssTree.Term term = (CssTree.Term) node;
+        CssPropertyPartType type = term.getAttributes().get(
+            CssValidator.CSS_PROPERTY_PART_TYPE);
+        if (CssPropertyPartType.LENGTH == type) {
+          fixUnitlessLength(term);
+        } else if (CssPropertyPartType.URI == type) {
+          translateUrl(term);
+        }
+      } else if (node instanceof CssTree.SimpleSelector) {
+        checkSelectorParts((CssTree.SimpleSelector) node);
+      } else if (node instanceof CssTree.Property) {
+        checkProperty((CssTree.Property) node);
+      } else if (node instanceof CssTree.Pseudo) {
+        checkPseudo((CssTree.Pseudo) node);
+      } else if (node instanceof CssTree.Attrib) {
+        // Remove any attributes that didn't validate
+        if (node.getAttributes().is(CssValidator.INVALID)) {
+          simpleSel.getAttributes().set(CssValidator.INVALID, Boolean.TRUE);
         }
-      }, t.parent);
-  }
-  private static boolean isZeroOrHasUnits(String value) {
-    int len = value.length();
-    char ch = value.charAt(len - 1);
-    if (ch == '.' || ('0' <= ch && ch <= '9')) {  // Missing units
-      for (int i = len; --i >= 0;) {
-        ch = value.charAt(i);
-        if ('1' <= ch && ch <= '9') { return false; }
       }
     }
-    return true;
-  }
 
-  /** Get rid of rules like <code>p { }</code>. */
-  private void removeEmptyDeclarationsAndSelectors(
-      AncestorChain<? extends CssTree> t) {
-    t.node.acceptPreOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ancestors) {
-          ParseTreeNode node = ancestors.node;
-          if (node instanceof CssTree.Declaration) {
-            CssTree.Declaration decl = (CssTree.Declaration) node;
-            if (null == decl.getProperty()) {
-              ParseTreeNode parent = ancestors.getParentNode();
-              if (parent instanceof MutableParseTreeNode) {
-                ((MutableParseTreeNode) parent).removeChild(decl);
-              }
-            }
-            return false;
-          } else if (node instanceof CssTree.Selector) {
-            CssTree.Selector sel = (CssTree.Selector) node;
-            if (sel.children().isEmpty()
-                || !(sel.children().get(0) instanceof CssTree.SimpleSelector)) {
-              // Remove from parent
-              ParseTreeNode parent = ancestors.getParentNode();
-              if (parent instanceof MutableParseTreeNode) {
-                ((MutableParseTreeNode) parent).removeChild(sel);
-              }
-            }
-            return false;
+    /**
+     * Turn a run of unquoted identifiers into a single string, where the
+     * property description says "Names containing space *should* be quoted",
+     * but does not require it.
+     * <p>
+     * This is important for font {@code family-name}s where
+     * {@code font: Times New Roman} should be written as
+     * {@code font: "Times New Roman"} to avoid any possible ambiguity between
+     * the individual terms and special values such as {@code serif}.
+     *
+     * @see CssPropertyPartType#LOOSE_WORD
+     */
+    private void combineLooseWords(CssTree.Expr e) {
+      for (int i = 0, n = e.getNTerms(); i < n; ++i) {
+        CssTree.Term t = e.getNthTerm(i);
+        if (!isLooseWord(t)) { continue; }
+
+        Name propertyPart = t.getAttributes().get(
+            CssValidator.CSS_PROPERTY_PART);
+        StringBuilder sb = new StringBuilder();
+        sb.append(t.getExprAtom().getValue());
+
+        // Compile a mutation that removes all the extraneous terms and that
+        // replaces t with a string literal.
+        MutableParseTreeNode.Mutation mut = e.createMutation();
+
+        // Compute end, the term index after the last of the run of loose terms
+        // for t's property part.
+        int start = i;
+        int end = i + 1;
+        while (end < n) {
+          CssTree.Operation op = e.getNthOperation(end - 1);
+          CssTree.Term t2 = e.getNthTerm(end);
+          if (!(CssTree.Operator.NONE == op.getOperator() && isLooseWord(t2)
+                && propertyPart.equals(
+                    t2.getAttributes().get(CssValidator.CSS_PROPERTY_PART)))) {
+            break;
           }
-          return true;
+          mut.removeChild(op);
+          mut.removeChild(t2);
+          sb.append(' ').append(e.getNthTerm(end).getExprAtom().getValue());
+          ++end;
         }
-      }, t.parent);
-  }
-  private void removeEmptyRuleSets(AncestorChain<? extends CssTree> t) {
-    t.node.acceptPreOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ancestors) {
-          ParseTreeNode node = ancestors.node;
-          if (!(node instanceof CssTree.RuleSet)) { return true; }
-          CssTree.RuleSet rset = (CssTree.RuleSet) node;
-          List<? extends CssTree> children = rset.children();
-          if (children.isEmpty()
-              || (children.get(children.size() - 1)
-                  instanceof CssTree.Selector)) {
-            // No declarations, so get rid of it.
-            ParseTreeNode parent = ancestors.getParentNode();
-            if (parent instanceof MutableParseTreeNode) {
-              ((MutableParseTreeNode) parent).removeChild(rset);
-            }
-          }
-          return false;
-        }
-      }, t.parent);
-  }
-  private void removeForbiddenIdents(AncestorChain<? extends CssTree> t) {
-    t.node.acceptPreOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ac) {
-          if (!(ac.node instanceof CssTree.SimpleSelector)) { return true; }
-          CssTree.SimpleSelector ss = (CssTree.SimpleSelector) ac.node;
-          boolean ok = false;
-          for (CssTree child : ss.children()) {
-            if (child instanceof CssTree.ClassLiteral
-                || child instanceof CssTree.IdLiteral) {
-              String literal = (String) child.getValue();
-              if (literal.endsWith("__")) {
-                mq.addMessage(PluginMessageType.UNSAFE_CSS_IDENTIFIER,
-                    child.getFilePosition(),
-                    MessagePart.Factory.valueOf(literal));
-                ac.parent.node.getAttributes().set(CssValidator.INVALID, true);
-                ok = false;
-              }
-            }
-          }
-          return ok;
-        }
-      }, t.parent);
-  }
 
-  private static final Set<String> ALLOWED_PSEUDO_SELECTORS =
-      new HashSet<String>(Arrays.asList(
-          "link", "visited", "hover", "active", "first-child", "first-letter"
-          ));
-  void removeUnsafeConstructs(AncestorChain<? extends CssTree> t) {
-
-    // 1) Check that all classes, ids, property names, etc. are valid
-    //    css identifiers.
-    t.node.acceptPreOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ancestors) {
-          ParseTreeNode node = ancestors.node;
-          if (node instanceof CssTree.SimpleSelector) {
-            for (CssTree child : ((CssTree.SimpleSelector) node).children()) {
-              if (child instanceof CssTree.Pseudo) {
-                child = child.children().get(0);
-                // TODO(mikesamuel): check argument if child now a FunctionCall
-              }
-              Object value = child.getValue();
-              if (value != null && !isSafeSelectorPart(value.toString())) {
-                mq.addMessage(PluginMessageType.UNSAFE_CSS_IDENTIFIER,
-                              child.getFilePosition(),
-                              MessagePart.Factory.valueOf(value.toString()));
-                // Will be deleted by a later pass after all messages have been
-                // generated
-                node.getAttributes().set(CssValidator.INVALID, Boolean.TRUE);
-                return false;
-              }
-            }
-          } else if (node instanceof CssTree.Property) {
-            CssTree.Property p = (CssTree.Property) node;
-            if (!isSafeCssIdentifier(p.getPropertyName().getCanonicalForm())) {
-              mq.addMessage(PluginMessageType.UNSAFE_CSS_IDENTIFIER,
-                            p.getFilePosition(), p.getPropertyName());
-              declarationFor(ancestors).getAttributes().set(
-                  CssValidator.INVALID, Boolean.TRUE);
-              return false;
-            }
-          }
-          return true;
+        // Create a string literal to replace all the terms [start:end-1].
+        // Make sure it has the same synthetic attributes and file position.
+        String text = sb.toString();
+        FilePosition pos = FilePosition.span(
+            t.getFilePosition(), e.getNthTerm(end - 1).getFilePosition());
+        CssTree.StringLiteral quotedWords
+            = new CssTree.StringLiteral(pos, text);
+        CssTree.Term quotedTerm = new CssTree.Term(pos, null, quotedWords);
+        quotedTerm.getAttributes().putAll(t.getAttributes());
+        quotedTerm.getAttributes().set(CssValidator.CSS_PROPERTY_PART_TYPE,
+                                       CssPropertyPartType.STRING);
+
+        mut.replaceChild(quotedTerm, t);
+        mut.execute();
+
+        // If we made a substantive change, combining multiple terms into one,
+        // then issue a line message.  We don't need to issue a warning on all
+        // changes, since we only reach this code if we passed validation.
+        if (end - start > 1) {
+          quotedValues.add(new Message(
+              PluginMessageType.QUOTED_CSS_VALUE,
+              pos, MessagePart.Factory.valueOf(text)));
         }
-      }, t.parent);
-
-    // 2) Ban content properties, and attr pseudo selectors, and any other
-    //    pseudo selectors that don't match the whitelist
-    t.node.acceptPreOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ancestors) {
-          ParseTreeNode node = ancestors.node;
-          if (node instanceof CssTree.Property) {
-            if ("content".equals(
-                    ((CssTree.Property) node).getPropertyName()
-                    .getCanonicalForm())) {
-              mq.addMessage(PluginMessageType.UNSAFE_CSS_PROPERTY,
-                            invalidNodeMessageLevel, node.getFilePosition(),
-                            MessagePart.Factory.valueOf("content"));
-              declarationFor(ancestors).getAttributes().set(
-                  CssValidator.INVALID, Boolean.TRUE);
-            }
-          } else if (node instanceof CssTree.Pseudo) {
-            boolean remove = false;
-            CssTree child = ((CssTree.Pseudo) node).children().get(0);
-            if (child instanceof CssTree.IdentLiteral) {
-              if (!ALLOWED_PSEUDO_SELECTORS.contains(Strings.toLowerCase(
-                      ((CssTree.IdentLiteral) child).getValue()))) {
-                mq.addMessage(PluginMessageType.UNSAFE_CSS_PSEUDO_SELECTOR,
-                              invalidNodeMessageLevel, node.getFilePosition(),
-                              node);
-                remove = true;
-              }
-            } else {
-              StringBuilder rendered = new StringBuilder();
-              TokenConsumer tc = new CssPrettyPrinter(rendered, null);
-              node.render(new RenderContext(new MessageContext(), tc));
-              tc.noMoreTokens();
-              mq.addMessage(PluginMessageType.UNSAFE_CSS_PSEUDO_SELECTOR,
-                            invalidNodeMessageLevel, node.getFilePosition(),
-                            MessagePart.Factory.valueOf(rendered.toString()));
-              remove = true;
-            }
-            if (remove) {
-              // Delete the containing selector, since otherwise we'd broaden
-              // the rule.
-              selectorFor(ancestors).getAttributes().set(
-                  CssValidator.INVALID, Boolean.TRUE);
-            }
-          }
-          return true;
-        }
-      }, t.parent);
-    // 3) Remove any properties and attributes that didn't validate
-    t.node.acceptPreOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ancestors) {
-          ParseTreeNode node = ancestors.node;
-          if (node instanceof CssTree.Property) {
-            if (node.getAttributes().is(CssValidator.INVALID)) {
-              declarationFor(ancestors).getAttributes().set(
-                  CssValidator.INVALID, Boolean.TRUE);
-            }
-          } else if (node instanceof CssTree.Attrib) {
-            if (node.getAttributes().is(CssValidator.INVALID)) {
-              simpleSelectorFor(ancestors).getAttributes().set(
-                  CssValidator.INVALID, Boolean.TRUE);
-            }
-          } else if (node instanceof CssTree.Term
-                     && (CssPropertyPartType.URI ==
-                         node.getAttributes().get(
-                             CssValidator.CSS_PROPERTY_PART_TYPE))) {
 
-            boolean remove = false;
-            Message removeMsg = null;
+        n = e.getNTerms();
+      }
+    }
 
-            CssTree term = (CssTree.Term) node;
-            CssTree.CssLiteral content =
-                (CssTree.CssLiteral) term.children().get(0);
+    /**
+     * <a href="http://www.w3.org/TR/CSS21/syndata.html#length-units">Lengths</a>
+     * require units unless the value is zero.  All browsers assume px if the
+     * suffix is missing.
+     */
+    private void fixUnitlessLength(CssTree.Term term) {
+      if (!(term.getExprAtom() instanceof CssTree.QuantityLiteral)) { return; }
+      CssTree.QuantityLiteral quantity = (CssTree.QuantityLiteral)
+          term.getExprAtom();
+      String value = quantity.getValue();
+      if (!isZeroOrHasUnits(value)) {
+        // Missing units.
+        CssTree.QuantityLiteral withUnits = new CssTree.QuantityLiteral(
+            quantity.getFilePosition(), value + "px");
+        withUnits.getAttributes().putAll(quantity.getAttributes());
+        term.replaceChild(withUnits, quantity);
+        unitlessLengths.add(new Message(
+            PluginMessageType.ASSUMING_PIXELS_FOR_LENGTH,
+            quantity.getFilePosition(), MessagePart.Factory.valueOf(value)));
+      }
+    }
 
-            if (content instanceof CssTree.Substitution) {
-              return true;  // Handled by later pass.
-            }
+    /**
+     * Rewrites a url via the plugin environment, condemning the containing
+     * declaration if the environment does not allow it.
+     */
+    private void translateUrl(CssTree.Term term) {
+      CssTree.CssLiteral content = (CssTree.CssLiteral) term.children().get(0);
+      if (content instanceof CssTree.Substitution) {
+        return;  // Handled by later pass.
+      }
 
-            String uriStr = content.getValue();
-            try {
-              URI uri = new URI(uriStr);
-              ExternalReference ref
-                  = new ExternalReference(uri, content.getFilePosition());
-              // the same url check as GxpCompiler
-              if (meta.getPluginEnvironment().rewriteUri(ref, "image/*")
-                  == null) {
-                removeMsg = new Message(
-                    PluginMessageType.DISALLOWED_URI,
-                    node.getFilePosition(),
-                    MessagePart.Factory.valueOf(uriStr));
-                remove = true;
-              }
-            } catch (URISyntaxException ex) {
-              removeMsg = new Message(
-                  PluginMessageType.DISALLOWED_URI,
-                  node.getFilePosition(), MessagePart.Factory.valueOf(uriStr));
-              remove = true;
-            }
+      String uriStr = content.getValue();
+      String rewrittenUri = null;
+      try {
+        URI uri = new URI(uriStr);
+        // Rewrite the URI.
+        // TODO(mikesamuel): for content: and other uri types, use
+        // mime-type of text/*.
+        ExternalReference ref
+            = new ExternalReference(uri, content.getFilePosition());
+        // the same url check as GxpCompiler
+        rewrittenUri = meta.getPluginEnvironment().rewriteUri(ref, "image/*");
+      } catch (URISyntaxException ex) {
+        // Disallowed below.
+      }
 
-            if (remove) {
-              // condemn the containing declaration
-              CssTree.Declaration decl = declarationFor(ancestors);
-              if (null != decl) {
-                if (!decl.getAttributes().is(CssValidator.INVALID)) {
-                  if (null != removeMsg) { mq.getMessages().add(removeMsg); }
-                  decl.getAttributes().set(CssValidator.INVALID, Boolean.TRUE);
-                }
-              }
-            }
-          }
-          return true;
+      if (null != rewrittenUri) {
+        content.setValue(rewrittenUri);
+      } else if (null != decl) {
+        // condemn the containing declaration
+        if (!decl.getAttributes().is(CssValidator.INVALID)) {
+          disallowedUris.add(new Message(
+              PluginMessageType.DISALLOWED_URI,
+              term.getFilePosition(), MessagePart.Factory.valueOf(uriStr)));
+          decl.getAttributes().set(CssValidator.INVALID, Boolean.TRUE);
         }
-      }, t.parent);
-
-    // 4) Remove invalid nodes
-    t.node.acceptPreOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ancestors) {
-          ParseTreeNode node = ancestors.node;
-          if (node.getAttributes().is(CssValidator.INVALID)) {
-            ((MutableParseTreeNode) ancestors.parent.node).removeChild(node);
-            return false;
-          }
-          return true;
+      }
+    }
+
+    /**
+     * Check that all classes, ids, etc. are valid css identifiers.
+     */
+    private void checkSelectorParts(CssTree.SimpleSelector node) {
+      for (CssTree child : node.children()) {
+        if (child instanceof CssTree.Pseudo) {
+          child = child.children().get(0);
+          // TODO(mikesamuel): check argument if child now a FunctionCall
         }
-      }, t.parent);
-
-    // 5) Cleanup.  Remove any rulesets with empty selectors
-    // Since this is a post order traversal, we will first remove empty
-    // selectors, and then consider any rulesets that have become empty due to
-    // a lack of selectors.
-    t.node.acceptPostOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ancestors) {
-          ParseTreeNode node = ancestors.node;
-          if ((node instanceof CssTree.Selector && node.children().isEmpty())
-              || (node instanceof CssTree.RuleSet
-                  && (node.children().isEmpty()
-                      || node.children().get(0) instanceof CssTree.Declaration))
-              ) {
-            ((MutableParseTreeNode) ancestors.parent.node).removeChild(node);
-            return false;
-          }
-          return true;
+        Object value = child.getValue();
+        if (value != null && !isSafeSelectorPart(value.toString())) {
+          unsafeIdents.add(new Message(
+              PluginMessageType.UNSAFE_CSS_IDENTIFIER,
+              child.getFilePosition(),
+              MessagePart.Factory.valueOf(value.toString())));
+          node.getAttributes().set(CssValidator.INVALID, Boolean.TRUE);
+          return;
         }
-      }, t.parent);
-  }
+      }
+    }
+
+    /**
+     * Ban property names that are not valid identifiers, content properties,
+     * and properties that didn't validate.
+     */
+    private void checkProperty(CssTree.Property p) {
+      Name name = p.getPropertyName();
+      if (!isSafeCssIdentifier(name.getCanonicalForm())) {
+        unsafeIdents.add(new Message(
+            PluginMessageType.UNSAFE_CSS_IDENTIFIER,
+            p.getFilePosition(), name));
+        decl.getAttributes().set(CssValidator.INVALID, Boolean.TRUE);
+      }
+      if ("content".equals(name.getCanonicalForm())) {
+        unsafeProperties.add(new Message(
+            PluginMessageType.UNSAFE_CSS_PROPERTY,
+            invalidNodeMessageLevel, p.getFilePosition(),
+            MessagePart.Factory.valueOf("content")));
+        decl.getAttributes().set(CssValidator.INVALID, Boolean.TRUE);
+      }
+      if (p.getAttributes().is(CssValidator.INVALID)) {
+        decl.getAttributes().set(CssValidator.INVALID, Boolean.TRUE);
+      }
+    }
+
+    /**
+     * Ban attr pseudo selectors, and any other pseudo selectors that don't
+     * match the whitelist.
+     */
+    private void checkPseudo(CssTree.Pseudo node) {
+      boolean remove = false;
+      CssTree child = node.children().get(0);
+      if (child instanceof CssTree.IdentLiteral) {
+        if (!ALLOWED_PSEUDO_SELECTORS.contains(Strings.toLowerCase(
+                ((CssTree.IdentLiteral) child).getValue()))) {
+          unsafeProperties.add(new Message(
+              PluginMessageType.UNSAFE_CSS_PSEUDO_SELECTOR,
+              invalidNodeMessageLevel, node.getFilePosition(), node));
+          remove = true;
+        }
+      } else {
+        StringBuilder rendered = new StringBuilder();
+        TokenConsumer tc = new CssPrettyPrinter(rendered, null);
+        node.render(new RenderContext(new MessageContext(), tc));
+        tc.noMoreTokens();
+        unsafeProperties.add(new Message(
+            PluginMessageType.UNSAFE_CSS_PSEUDO_SELECTOR,
+            invalidNodeMessageLevel, node.getFilePosition(),
+            MessagePart.Factory.valueOf(rendered.toString())));
+        remove = true;
+      }
+      if (remove) {
+        // Delete the containing selector, since otherwise we'd broaden
+        // the rule.
+        sel.getAttributes().set(CssValidator.INVALID, Boolean.TRUE);
+      }
+    }
+
+    /**
+     * True if, after removing children, a rule set has no declarations, which
+     * is technically illegal, or no selectors.
+     * Selectors that contain forbidden identifiers are added to removed.
+     */
+    private boolean isEmptyRuleSet(
+        CssTree.RuleSet rs, List<CssTree> removed) {
+      List<CssTree.Selector> selectors = new ArrayList<CssTree.Selector>();
+      boolean hasDeclarations = false;
+      for (CssTree child : rs.children()) {
+        if (removed.contains(child)) { continue; }
+        if (child instanceof CssTree.Selector) {
+          selectors.add((CssTree.Selector) child);
+        } else if (child instanceof CssTree.Declaration) {
+          hasDeclarations = true;
+        }
+      }
+      if (!hasDeclarations) { return true; }
+      boolean hasSelectors = false;
+      for (CssTree.Selector s : selectors) {
+        if (hasForbiddenIdents(s)) {
+          s.getAttributes().set(CssValidator.INVALID, Boolean.TRUE);
+          removed.add(s);
+        } else {
+          hasSelectors = true;
+        }
+      }
+      return !hasSelectors;
+    }
 
-  private void translateUrls(AncestorChain<? extends CssTree> t) {
-      t.node.acceptPreOrder(new Visitor() {
-          public boolean visit(AncestorChain<?> ancestors) {
-            ParseTreeNode node = ancestors.node;
-            if (node instanceof CssTree.Term
-                && CssPropertyPartType.URI ==
-                node.getAttributes().get(
-                    CssValidator.CSS_PROPERTY_PART_TYPE)) {
-              CssTree term = (CssTree.Term) node;
-
-              CssTree.CssLiteral content =
-                  (CssTree.CssLiteral) term.children().get(0);
-              if (content instanceof CssTree.Substitution) {
-                return true;  // Handled by later pass.
-              }
-
-              String uriStr = content.getValue();
-              try {
-                URI uri = new URI(uriStr);
-                // Rewrite the URI.
-                // TODO(mikesamuel): for content: and other uri types, use
-                // mime-type of text/*.
-                ExternalReference ref
-                    = new ExternalReference(uri, content.getFilePosition());
-                String rewrittenUri = meta.getPluginEnvironment().rewriteUri(
-                    ref, "image/*");
-                content.setValue(rewrittenUri);
-              } catch (URISyntaxException ex) {
-                // Should've been checked in removeUnsafeConstructs.
-                throw new AssertionError();
-              }
+    /** Disallow classes and ids that end in double underscore. */
+    private boolean hasForbiddenIdents(CssTree.Selector s) {
+      boolean forbidden = false;
+      for (CssTree part : s.children()) {
+        if (!(part instanceof CssTree.SimpleSelector)
+            || part.getAttributes().is(CssValidator.INVALID)) {
+          continue;
+        }
+        for (CssTree child : part.children()) {
+          if (child instanceof CssTree.ClassLiteral
+              || child instanceof CssTree.IdLiteral) {
+            String literal = (String) child.getValue();
+            if (literal.endsWith("__")) {
+              forbiddenIdents.add(new Message(
+                  PluginMessageType.UNSAFE_CSS_IDENTIFIER,
+                  child.getFilePosition(),
+                  MessagePart.Factory.valueOf(literal)));
+              forbidden = true;
             }
-            return true;
           }
-        }, t.parent);
-  }
-
-  private static CssTree.Declaration declarationFor(AncestorChain<?> chain) {
-    for (AncestorChain<?> c = chain; null != c; c = c.parent) {
-      if (c.node instanceof CssTree.Declaration) {
-        return (CssTree.Declaration) c.node;
+        }
       }
+      return forbidden;
     }
-    return null;
   }
 
-  private static CssTree.SimpleSelector simpleSelectorFor(
-      AncestorChain<?> chain) {
-    for (AncestorChain<?> c = chain; null != c; c = c.parent) {
-      if (c.node instanceof CssTree.SimpleSelector) {
-        return (CssTree.SimpleSelector) c.node;
-      }
+  /** The first of node's children that is not in removed, or null. */
+  private static CssTree firstKept(CssTree node, List<CssTree> removed) {
+    for (CssTree child : node.children()) {
+      if (null == removed || !removed.contains(child)) { return child; }
     }
     return null;
   }
 
-  private static CssTree.Selector selectorFor(AncestorChain<?> chain) {
-    for (AncestorChain<?> c = chain; null != c; c = c.parent) {
-      if (c.node instanceof CssTree.Selector) {
-        return (CssTree.Selector) c.node;
+  /** @see CssPropertyPartType#LOOSE_WORD */
+  private static boolean isLooseWord(CssTree.Term t) {
+    return t.getOperator() == null
+        && t.getExprAtom() instanceof CssTree.IdentLiteral
+        && (t.getAttributes().get(CssValidator.CSS_PROPERTY_PART_TYPE)
+            == CssPropertyPartType.LOOSE_WORD);
+  }
+
+  private static boolean isZeroOrHasUnits(String value) {
+    int len = value.length();
+    char ch = value.charAt(len - 1);
+    if (ch == '.' || ('0' <= ch && ch <= '9')) {  // Missing units
+      for (int i = len; --i >= 0;) {
+        ch = value.charAt(i);
+        if ('1' <= ch && ch <= '9') { return false; }
       }
     }
-    return null;
+    return true;
   }
 
+  private static final Set<String> ALLOWED_PSEUDO_SELECTORS =
+      new HashSet<String>(Arrays.asList(
+          "link", "visited", "hover", "active", "first-child", "first-letter"
+          ));
+
   private static final Pattern SAFE_SELECTOR_PART
       = Pattern.compile("^[#!\\.]?[a-zA-Z][_a-zA-Z0-9\\-]*$");
   /**
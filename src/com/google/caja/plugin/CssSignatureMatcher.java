@@ -0,0 +1,733 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.parser.css.CssPropertySignature;
+import com.google.caja.parser.css.CssTree;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.util.Name;
+import com.google.caja.util.Strings;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link CssPropertySignature} compiled for a particular property so that
+ * {@link SignatureResolver} need not re-derive, for every term of every
+ * declaration, what each part of the signature is, which schema symbol or
+ * property it refers to, what constraints it puts on numbers, and what
+ * {@link CssValidator#CSS_PROPERTY_PART} names its matches get.
+ * <p>
+ * The matchers backtrack over candidates in exactly the order that the
+ * signature tree does, so they produce the same annotations, warnings, and
+ * error positions.  They are built lazily, since signatures may refer to one
+ * another recursively, and cached per schema, since validators are created
+ * per compilation.
+ *
+ * @author mikesamuel@gmail.com
+ */
+abstract class CssSignatureMatcher {
+  /**
+   * Matchers for each schema's properties, by property name.  The matchers do
+   * not refer to the schema, so do not keep it from being collected.
+   */
+  private static final Map<CssSchema, Map<Name, CssSignatureMatcher>> CACHE
+      = new WeakHashMap<CssSchema, Map<Name, CssSignatureMatcher>>();
+
+  /**
+   * True if this matcher passes a candidate that has already consumed the
+   * whole expression, as does a repetition with a minimum count of zero.
+   */
+  final boolean matchesAtEnd;
+
+  private CssSignatureMatcher(boolean matchesAtEnd) {
+    this.matchesAtEnd = matchesAtEnd;
+  }
+
+  /**
+   * Applies this matcher to one candidate which is positioned at a term or
+   * operator of the resolver's expression.
+   * @param passed receives any candidates that match, possibly including
+   *   candidate modified in place.
+   */
+  abstract void apply(
+      SignatureResolver r, Candidate candidate, List<Candidate> passed);
+
+  /** The matcher for a property's signature. */
+  static CssSignatureMatcher forProperty(
+      CssSchema cssSchema, CssSchema.CssPropertyInfo info) {
+    Map<Name, CssSignatureMatcher> byName;
+    synchronized (CACHE) {
+      byName = CACHE.get(cssSchema);
+      if (byName == null) {
+        byName = new HashMap<Name, CssSignatureMatcher>();
+        CACHE.put(cssSchema, byName);
+      }
+      CssSignatureMatcher m = byName.get(info.name);
+      if (m != null) { return m; }
+    }
+    // Compilation is lazy, so this does not recurse into other properties.
+    CssSignatureMatcher m = compile(cssSchema, info.name, info.sig);
+    synchronized (CACHE) {
+      CssSignatureMatcher other = byName.get(info.name);
+      if (other != null) { return other; }
+      byName.put(info.name, m);
+    }
+    return m;
+  }
+
+  /**
+   * @param propertyName the name that matches will be reported under.
+   */
+  static CssSignatureMatcher compile(
+      CssSchema cssSchema, Name propertyName, CssPropertySignature sig) {
+    if (sig instanceof CssPropertySignature.SetSignature) {
+      return new SetMatcher(compileAll(cssSchema, propertyName, sig));
+    } else if (sig instanceof CssPropertySignature.SeriesSignature) {
+      return new SeriesMatcher(compileAll(cssSchema, propertyName, sig));
+    } else if (sig instanceof CssPropertySignature.RepeatedSignature) {
+      CssPropertySignature.RepeatedSignature rsig
+          = (CssPropertySignature.RepeatedSignature) sig;
+      return new RepeatedMatcher(
+          compile(cssSchema, propertyName, rsig.getRepeatedSignature()),
+          rsig.getRepeatedSignature()
+              instanceof CssPropertySignature.ExclusiveSetSignature,
+          rsig.minCount, rsig.maxCount);
+    } else if (sig instanceof CssPropertySignature.LiteralSignature) {
+      return new LiteralMatcher(
+          ((CssPropertySignature.LiteralSignature) sig).value, propertyName);
+    } else if (sig instanceof CssPropertySignature.SymbolSignature) {
+      Name symbolName = ((CssPropertySignature.SymbolSignature) sig).symbolName;
+      CssSchema.SymbolInfo symbolInfo = cssSchema.getSymbol(symbolName);
+      if (null != symbolInfo) {
+        return new SymbolRefMatcher(
+            symbolInfo, Name.css(propertyName + "::" + symbolInfo.name));
+      }
+      return new BuiltinSymbolMatcher(symbolName, propertyName);
+    } else if (sig instanceof CssPropertySignature.PropertyRefSignature) {
+      return new PropertyRefMatcher(
+          ((CssPropertySignature.PropertyRefSignature) sig).getPropertyName(),
+          propertyName);
+    } else if (sig instanceof CssPropertySignature.CallSignature) {
+      return new CallMatcher(
+          sig.children().get(0).getValue(),
+          compile(cssSchema, propertyName, sig.children().get(1)));
+    } else {
+      throw new AssertionError(sig.getClass().getName());
+    }
+  }
+
+  private static CssSignatureMatcher[] compileAll(
+      CssSchema cssSchema, Name propertyName, CssPropertySignature sig) {
+    List<? extends CssPropertySignature> children = sig.children();
+    CssSignatureMatcher[] matchers = new CssSignatureMatcher[children.size()];
+    for (int i = 0; i < matchers.length; ++i) {
+      matchers[i] = compile(cssSchema, propertyName, children.get(i));
+    }
+    return matchers;
+  }
+
+  /** Matches the first alternative that matches. */
+  private static final class SetMatcher extends CssSignatureMatcher {
+    final CssSignatureMatcher[] alternatives;
+
+    SetMatcher(CssSignatureMatcher[] alternatives) {
+      super(false);
+      this.alternatives = alternatives;
+    }
+
+    @Override
+    void apply(SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      List<Candidate> toApply = Collections.singletonList(candidate);
+      for (CssSignatureMatcher alternative : alternatives) {
+        List<Candidate> elementsPassed = r.applySignature(toApply, alternative);
+        // lazy
+        if (!elementsPassed.isEmpty()) {
+          passed.addAll(elementsPassed);
+          break;
+        }
+      }
+    }
+
+    /**
+     * Like {@link #apply} but skips alternatives already used by a previous
+     * repetition of a {@code ||} group.
+     */
+    void applyExclusive(
+        SignatureResolver r, Candidate candidate, BitSet used,
+        List<Candidate> passed) {
+      List<Candidate> toApply = Collections.singletonList(candidate);
+      for (int k = 0; k < alternatives.length; ++k) {
+        if (used.get(k)) { continue; }
+        List<Candidate> elementsPassed = r.applySignature(
+            toApply, alternatives[k]);
+        // lazy
+        if (!elementsPassed.isEmpty()) {
+          passed.addAll(elementsPassed);
+          used.set(k);
+          break;
+        }
+      }
+    }
+  }
+
+  /** Matches each element in order. */
+  private static final class SeriesMatcher extends CssSignatureMatcher {
+    final CssSignatureMatcher[] elements;
+
+    SeriesMatcher(CssSignatureMatcher[] elements) {
+      super(false);
+      this.elements = elements;
+    }
+
+    @Override
+    void apply(SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      List<Candidate> toApply = Collections.singletonList(candidate);
+      for (CssSignatureMatcher element : elements) {
+        toApply = r.applySignature(toApply, element);
+        if (toApply.isEmpty()) { break; }
+      }
+      passed.addAll(toApply);
+    }
+  }
+
+  private static final class RepeatedMatcher extends CssSignatureMatcher {
+    /**
+     * The maximum branching factor for a repetition.  This is the
+     * greatest number of contiguous ambiguous elements we might encounter
+     * as in <code>{ font: inherit inherit inherit inherit }</code>.
+     * <p>
+     * TODO(mikesamuel): this is currently 5 instead of 4 because it also limits
+     * the number of font names that can appear in a comma separated list.
+     * Rework our backtracking so we can handle long font lists.
+     */
+    private static final int MAX_BRANCHING_FACTOR = 5;
+
+    final CssSignatureMatcher repeated;
+    /** True if repeated is a {@code ||} group. */
+    final boolean exclusive;
+    final int minCount, maxCount;
+
+    RepeatedMatcher(
+        CssSignatureMatcher repeated, boolean exclusive, int minCount,
+        int maxCount) {
+      super(minCount == 0);
+      this.repeated = repeated;
+      this.exclusive = exclusive;
+      this.minCount = minCount;
+      this.maxCount = maxCount;
+    }
+
+    @Override
+    void apply(SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      List<Candidate> toApply = Collections.singletonList(candidate);
+      int k = 0;
+      for (; k < minCount; ++k) {
+        toApply = r.applySignature(toApply, repeated);
+        if (toApply.isEmpty()) { break; }
+      }
+      if (!toApply.isEmpty()) {
+        BitSet used = null;
+        if (exclusive) {
+          used = new BitSet(((SetMatcher) repeated).alternatives.length);
+        }
+
+        toApply = new ArrayList<Candidate>(toApply);
+        for (; k < maxCount; ++k) {
+          if (k < MAX_BRANCHING_FACTOR) {
+            // Try not following the extra repetitions
+            passed.addAll(toApply);
+            for (int i = toApply.size(); --i >= 0;) {
+              toApply.set(i, toApply.get(i).clone());
+            }
+          } else {
+            // greedy
+          }
+          if (null == used) {
+            toApply = r.applySignature(toApply, repeated);
+          } else {
+            // Special handling for || groups
+            List<Candidate> passedSet  = new ArrayList<Candidate>();
+            for (Candidate setCandidate : toApply) {
+              if (setCandidate.exprIdx == r.end) {
+                passed.add(setCandidate);
+                continue;
+              }
+
+              r.skipBlank(setCandidate);
+
+              ((SetMatcher) repeated).applyExclusive(
+                  r, setCandidate, used, passedSet);
+            }
+            toApply = passedSet;
+          }
+          if (toApply.isEmpty()) { break; }
+        }
+        passed.addAll(toApply);
+      }
+    }
+  }
+
+  /** Matches a keyword or a punctuation mark. */
+  private static final class LiteralMatcher extends CssSignatureMatcher {
+    final String value;
+    final Name propertyName;
+
+    LiteralMatcher(String value, Name propertyName) {
+      super(false);
+      this.value = value;
+      this.propertyName = propertyName;
+    }
+
+    @Override
+    void apply(SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      if (0 == (candidate.exprIdx & 1)) {  // a term
+        CssTree.Term term = (CssTree.Term) r.terms[candidate.exprIdx];
+        CssTree.CssExprAtom atom = term.getExprAtom();
+        if (null == term.getOperator()) {
+          boolean match;
+          if (atom instanceof CssTree.IdentLiteral) {
+            match = Strings.equalsIgnoreCase(
+                value, ((CssTree.IdentLiteral) atom).getValue());
+          } else if (atom instanceof CssTree.QuantityLiteral) {
+            match = value.equals(atom.getValue());
+          } else {
+            match = false;
+          }
+          if (match) {
+            candidate.match(term, CssPropertyPartType.IDENT, propertyName);
+            ++candidate.exprIdx;
+            passed.add(candidate);
+          }
+        }
+      } else {  // A punctuation mark
+        CssTree.Operation op = (CssTree.Operation) r.terms[candidate.exprIdx];
+        if (op.getOperator().getSymbol().equals(value)) {
+          ++candidate.exprIdx;
+          passed.add(candidate);
+        }
+      }
+    }
+  }
+
+  /** Matches a symbol defined in the schema in terms of a signature. */
+  private static final class SymbolRefMatcher extends CssSignatureMatcher {
+    final CssSchema.SymbolInfo symbolInfo;
+    /** The name that terms matched by the symbol's signature are reported as. */
+    final Name partName;
+    /** Compiled on first use since symbols may be recursive. */
+    private volatile CssSignatureMatcher body;
+
+    SymbolRefMatcher(CssSchema.SymbolInfo symbolInfo, Name partName) {
+      super(false);
+      this.symbolInfo = symbolInfo;
+      this.partName = partName;
+    }
+
+    @Override
+    void apply(SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      CssSignatureMatcher body = this.body;
+      if (body == null) {
+        this.body = body = compile(r.cssSchema, partName, symbolInfo.sig);
+      }
+      passed.addAll(r.applySignature(
+          Collections.singletonList(candidate), body));
+    }
+  }
+
+  /** Matches the signature of another property. */
+  private static final class PropertyRefMatcher extends CssSignatureMatcher {
+    final Name referencedName;
+    final Name propertyName;
+    private volatile CssSignatureMatcher referenced;
+
+    PropertyRefMatcher(Name referencedName, Name propertyName) {
+      super(false);
+      this.referencedName = referencedName;
+      this.propertyName = propertyName;
+    }
+
+    @Override
+    void apply(SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      CssSignatureMatcher referenced = this.referenced;
+      if (referenced == null) {
+        CssSchema.CssPropertyInfo info = r.cssSchema.getCssProperty(
+            referencedName);
+        if (null == info) {
+          throw new AssertionError(
+              "Unknown property in css property signature: " + propertyName);
+        }
+        this.referenced = referenced = forProperty(r.cssSchema, info);
+      }
+      passed.addAll(r.applySignature(
+          Collections.singletonList(candidate), referenced));
+    }
+  }
+
+  /** Matches a function call whose actuals match the formals. */
+  private static final class CallMatcher extends CssSignatureMatcher {
+    final Object fnName;
+    final CssSignatureMatcher formals;
+
+    CallMatcher(Object fnName, CssSignatureMatcher formals) {
+      super(false);
+      this.fnName = fnName;
+      this.formals = formals;
+    }
+
+    @Override
+    void apply(SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      if (0 == (candidate.exprIdx & 1)) {  // a term
+        CssTree.Term term = (CssTree.Term) r.terms[candidate.exprIdx];
+        CssTree.CssExprAtom atom = term.getExprAtom();
+        if (null == term.getOperator()
+            && atom instanceof CssTree.FunctionCall) {
+          CssTree.FunctionCall fn = (CssTree.FunctionCall) atom;
+          if (fn.getName().getCanonicalForm().equals(fnName)) {
+            CssTree.Expr actuals = fn.getArguments();
+            Candidate inFnSpace = new Candidate(
+                0, candidate.match, candidate.warning);
+            for (Candidate resultInFnSpace :
+                 new SignatureResolver(actuals, r.cssSchema).applySignature(
+                     Collections.singletonList(inFnSpace), formals)) {
+              passed.add(new Candidate(
+                             candidate.exprIdx + 1, resultInFnSpace.match,
+                             resultInFnSpace.warning));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * http://www.w3.org/TR/CSS21/syndata.html#q15
+   * http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-number
+   * This syntax disallows a decimal point without any digits following, as
+   * per the spec.
+   */
+  private static final String REAL_NUMBER_RE = "(?:\\d+(?:\\.\\d+)?|\\.\\d+)";
+  /**
+   * According to http://www.w3.org/TR/CSS21/syndata.html#length-units.
+   * Units are frequently left off length values, in which case all existing
+   * browsers assume pixels, so the units below are treated as optional even
+   * though, strictly, units can only be omitted from the value 0.
+   */
+  private static final Pattern LENGTH_RE = Pattern.compile(
+      "^(?:" + REAL_NUMBER_RE + "(?:in|cm|mm|pt|pc|em|ex|px)?)$",
+      Pattern.CASE_INSENSITIVE);
+  /** http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-number */
+  private static final Pattern NUMBER_RE = Pattern.compile(
+      "^" + REAL_NUMBER_RE + "$");
+  /** http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-integer */
+  private static final Pattern INTEGER_RE = Pattern.compile("^\\d+$");
+  /** http://www.w3.org/TR/CSS21/syndata.html#percentage-units */
+  private static final Pattern PERCENTAGE_RE = Pattern.compile(
+      "^" + REAL_NUMBER_RE + "%$");
+  /** http://www.w3.org/TR/CSS21/aural.html#value-def-specific-voice */
+  private static final Pattern SPECIFIC_VOICE_RE = Pattern.compile(
+      "^\\s*(?:[\\w\\-]+(?:\\s+[\\w\\-]+)*)\\s*$", Pattern.CASE_INSENSITIVE);
+  /** http://www.w3.org/TR/CSS21/aural.html#value-def-angle */
+  private static final Pattern ANGLE_RE = Pattern.compile(
+      "^(?:" + REAL_NUMBER_RE + "(?:deg|grad|rad)|0+)$",
+      Pattern.CASE_INSENSITIVE);
+  /** http://www.w3.org/TR/CSS21/aural.html#value-def-time */
+  private static final Pattern TIME_RE = Pattern.compile(
+      "^(?:" + REAL_NUMBER_RE + "(?:ms|s)|0+)$", Pattern.CASE_INSENSITIVE);
+  /** http://www.w3.org/TR/CSS21/aural.html#value-def-frequency */
+  private static final Pattern FREQUENCY_RE = Pattern.compile(
+      "^(?:" + REAL_NUMBER_RE + "(?:hz|kHz)|0+)$",
+      Pattern.CASE_INSENSITIVE);
+
+  // Suffixes for substitutions.  A subsitution like ${x * 4}em can only be
+  // a length.  Substitutions without a suffix can only be of certain kinds
+  private static final Pattern LENGTH_SUFFIX_RE = Pattern.compile(
+      "\\}(?:in|cm|mm|pt|pc|em|ex|px)$", Pattern.CASE_INSENSITIVE);
+  private static final Pattern PERCENTAGE_SUFFIX_RE = Pattern.compile("\\}%$");
+  private static final Pattern NUMBER_SUFFIX_RE = Pattern.compile("\\}$");
+  private static final Pattern COLOR_SUFFIX_RE = NUMBER_SUFFIX_RE;
+  private static final Pattern ANGLE_SUFFIX_RE = Pattern.compile(
+      "\\}(?:deg|grad|rad)$", Pattern.CASE_INSENSITIVE);
+  private static final Pattern TIME_SUFFIX_RE = Pattern.compile(
+      "\\}(?:ms|s)$", Pattern.CASE_INSENSITIVE);
+  private static final Pattern FREQUENCY_SUFFIX_RE = Pattern.compile(
+      "\\}(?:hz|kHz)$", Pattern.CASE_INSENSITIVE);
+  private static final Pattern URI_SUFFIX_RE = Pattern.compile(
+      "\\}(?:uri)?$", Pattern.CASE_INSENSITIVE);
+
+  /** The symbols for which we don't have a signature. */
+  private enum BuiltinSymbol {
+    LENGTH, NUMBER, INTEGER, PERCENTAGE, UNRESERVED_WORD, HEX_COLOR, ANGLE,
+    TIME, FREQUENCY, SPECIFIC_VOICE, URI, STRING, IDENTIFIER,
+    /** Fails when applied, as the signature it appears in should never be. */
+    UNKNOWN,
+    ;
+
+    static BuiltinSymbol forName(String symbolName) {
+      if ("length".equals(symbolName)) { return LENGTH; }
+      if ("number".equals(symbolName)) { return NUMBER; }
+      if ("integer".equals(symbolName)) { return INTEGER; }
+      if ("percentage".equals(symbolName)) { return PERCENTAGE; }
+      if ("unreserved-word".equals(symbolName)) { return UNRESERVED_WORD; }
+      if ("hex-color".equals(symbolName)) { return HEX_COLOR; }
+      if ("angle".equals(symbolName)) { return ANGLE; }
+      if ("time".equals(symbolName)) { return TIME; }
+      if ("frequency".equals(symbolName)) { return FREQUENCY; }
+      if ("specific-voice".equals(symbolName)) { return SPECIFIC_VOICE; }
+      if ("uri".equals(symbolName)) { return URI; }
+      if ("string".equals(symbolName)) { return STRING; }
+      if ("identifier".equals(symbolName)) { return IDENTIFIER; }
+      return UNKNOWN;
+    }
+  }
+
+  /**
+   * Handles symbols for which we don't have a signature.  Anything not handled
+   * by {@link CssSchema#getSymbol}.
+   */
+  private static final class BuiltinSymbolMatcher extends CssSignatureMatcher {
+    final Name symbolName;
+    final BuiltinSymbol symbol;
+    final Name propertyName;
+    /** True if the symbol has a range constraint like {@code <number:0,>}. */
+    final boolean constrained;
+    final double min, max;
+
+    BuiltinSymbolMatcher(Name symbolName, Name propertyName) {
+      super(false);
+      this.symbolName = symbolName;
+      this.propertyName = propertyName;
+      String name = symbolName.getCanonicalForm();
+      // Check for any constraints
+      int colon = name.indexOf(":");
+      if (colon >= 0) {
+        String constraints = name.substring(colon + 1);
+        int comma = constraints.indexOf(",");
+        this.constrained = true;
+        this.min = Double.parseDouble(constraints.substring(0, comma));
+        this.max = comma + 1 == constraints.length()
+            ? Double.POSITIVE_INFINITY
+            : Double.parseDouble(constraints.substring(comma + 1));
+        name = name.substring(0, colon);
+      } else {
+        this.constrained = false;
+        this.min = this.max = 0;
+      }
+      this.symbol = BuiltinSymbol.forName(name);
+    }
+
+    @Override
+    void apply(SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      if (symbolMatch(r, candidate)) { passed.add(candidate); }
+    }
+
+    private boolean symbolMatch(SignatureResolver r, Candidate candidate) {
+      if (0 != (candidate.exprIdx & 1)) { return false; }  // not a term
+      CssTree.Term term = (CssTree.Term) r.terms[candidate.exprIdx];
+      CssTree.CssExprAtom atom = term.getExprAtom();
+
+      // If this is supposed to be a positive identifier, then disallow the
+      // negation unary operator.
+      // Positive is a bit of a misnomer since this really means non-negative.
+
+      Object atomValue = atom.getValue();
+      String atomSValue = atomValue instanceof String ? (String) atomValue : "";
+
+      // Operators such as negation cannot be applied to substitutions.
+      // The substitution itself should return a negative value.
+      if (atom instanceof CssTree.Substitution && term.getOperator() != null) {
+        return false;
+      }
+
+      // Try each symbol type we know how to handle
+      CssPropertyPartType type;
+      switch (symbol) {
+        case LENGTH:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                LENGTH_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                LENGTH_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.LENGTH;
+          break;
+        case NUMBER:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                NUMBER_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                NUMBER_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.NUMBER;
+          break;
+        case INTEGER:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                INTEGER_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                NUMBER_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.INTEGER;
+          break;
+        case PERCENTAGE:
+          if (!(atom instanceof CssTree.QuantityLiteral
+                && PERCENTAGE_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                PERCENTAGE_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.PERCENTAGE;
+          break;
+        case UNRESERVED_WORD:
+          if (null != term.getOperator()) { return false; }
+          if (atom instanceof CssTree.IdentLiteral) {
+            String name = ((CssTree.IdentLiteral) atom).getValue();
+            if (r.cssSchema.isKeyword(Name.css(name))) { return false; }
+          } else {
+            return false;
+          }
+          type = CssPropertyPartType.LOOSE_WORD;
+          break;
+        case HEX_COLOR:
+          if (atom instanceof CssTree.HashLiteral) {
+            // Require 3 or 6 hex digits
+            String hex = ((CssTree.HashLiteral) atom).getValue();
+            if (hex.length() != 4 && hex.length() != 7) { return false; }
+          } else if (atom instanceof CssTree.Substitution) {
+            if (!COLOR_SUFFIX_RE.matcher(atomSValue).find()) {
+              return false;
+            }
+          } else {
+            return false;
+          }
+          type = CssPropertyPartType.COLOR;
+          break;
+        case ANGLE:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                ANGLE_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                ANGLE_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.ANGLE;
+          break;
+        case TIME:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                null == term.getOperator() &&
+                TIME_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                TIME_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.TIME;
+          break;
+        case FREQUENCY:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                null == term.getOperator() &&
+                FREQUENCY_RE.matcher(
+                    ((CssTree.QuantityLiteral) atom).getValue()).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                FREQUENCY_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.FREQUENCY;
+          break;
+        case SPECIFIC_VOICE: {
+          if (null != term.getOperator()) { return false; }
+          String name;
+          if (atom instanceof CssTree.IdentLiteral) {
+            name = ((CssTree.IdentLiteral) atom).getValue();
+            if (r.cssSchema.isKeyword(Name.css(name))) { return false; }
+          } else if (atom instanceof CssTree.StringLiteral) {
+            name = ((CssTree.StringLiteral) atom).getValue();
+          } else {
+            return false;
+          }
+          if (!SPECIFIC_VOICE_RE.matcher(name).matches()) { return false; }
+          type = CssPropertyPartType.SPECIFIC_VOICE;
+          break;
+        }
+        case URI:
+          if (null != term.getOperator()) { return false; }
+          if (!(atom instanceof CssTree.UriLiteral
+                // This may not be per spec, but it is safest to interpret
+                // strings as URIs, since many user-agents seem to do this, and
+                // we want to apply constraints to URIs.
+                || atom instanceof CssTree.StringLiteral
+                // Uri substitutions can be fixed at runtime
+                || (atom instanceof CssTree.Substitution &&
+                    URI_SUFFIX_RE.matcher(atomSValue).find()))) {
+            return false;
+          }
+          type = CssPropertyPartType.URI;
+          break;
+        case STRING:
+          if (!(null == term.getOperator()
+                && atom instanceof CssTree.StringLiteral)) {
+            return false;
+          }
+          type = CssPropertyPartType.STRING;
+          break;
+        case IDENTIFIER:
+          if (!(null == term.getOperator()
+                && atom instanceof CssTree.IdentLiteral)) {
+            return false;
+          }
+          type = CssPropertyPartType.IDENT;
+          break;
+        default:
+          throw new AssertionError("unhandled symbol " + symbolName);
+      }
+      candidate.match(term, type, propertyName);
+      ++candidate.exprIdx;
+
+      if (constrained
+          // Violations of these constraints are not security problems though,
+          // so we do not try to enforce them on the client for dynamic
+          // content.
+          && !(atom instanceof CssTree.Substitution)) {
+        String valueStr = ((CssTree.QuantityLiteral) atom).getValue();
+        int numEnd = 0;
+        for (char ch; numEnd < valueStr.length()
+             && (((ch = valueStr.charAt(numEnd)) >= '0' && ch <= '9')
+                 || ch == '.');) {
+          ++numEnd;
+        }
+        double value = Double.parseDouble(valueStr.substring(0, numEnd));
+        if (CssTree.UnaryOperator.NEGATION == term.getOperator()) {
+          value *= -1;
+        }
+        if (value < min || value > max) {
+          candidate.warn(PluginMessageType.CSS_VALUE_OUT_OF_RANGE,
+                         term.getFilePosition(), propertyName,
+                         MessagePart.Factory.valueOf(value),
+                         MessagePart.Factory.valueOf(min),
+                         MessagePart.Factory.valueOf(max));
+          // If this were a validation failure, it might cause us to
+          // improperly match another rule later, so issue a warning instead.
+        }
+      }
+
+      return true;
+    }
+  }
+}
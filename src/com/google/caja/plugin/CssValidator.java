@@ -18,9 +18,6 @@ import com.google.caja.lang.css.CssSchema;
 import com.google.caja.lang.html.HtmlSchema;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.AncestorChain;
-import com.google.caja.parser.ParseTreeNode;
-import com.google.caja.parser.Visitor;
-import com.google.caja.parser.css.CssPropertySignature;
 import com.google.caja.parser.css.CssTree;
 import com.google.caja.render.CssPrettyPrinter;
 import com.google.caja.reporting.Message;
@@ -30,17 +27,15 @@ import com.google.caja.reporting.MessagePart;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.MessageTypeInt;
 import com.google.caja.reporting.RenderContext;
+import com.google.caja.util.CancellationToken;
 import com.google.caja.util.Name;
-import com.google.caja.util.Strings;
 import com.google.caja.util.SyntheticAttributeKey;
 import com.google.caja.util.SyntheticAttributes;
 
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Pattern;
 
 /**
  * A class that validates a CSS parse tree and annotates the terms with type
@@ -76,6 +71,9 @@ public final class CssValidator {
   private final HtmlSchema htmlSchema;
   private final MessageQueue mq;
   private MessageLevel invalidNodeMessageLevel = MessageLevel.ERROR;
+  /** Checked once per node validated. */
+  private final CancellationToken cancellationToken
+      = CancellationToken.current();
 
   public CssValidator(
       CssSchema cssSchema, HtmlSchema htmlSchema, MessageQueue mq) {
@@ -106,6 +104,7 @@ public final class CssValidator {
    * from the parse tree.
    */
   public boolean validateCss(AncestorChain<? extends CssTree> css) {
+    cancellationToken.checkCancelled();
     if (css.node instanceof CssTree.Declaration) {
       return validateDeclaration((CssTree.Declaration) css.node);
     } else if (css.node instanceof CssTree.Attrib) {
@@ -170,7 +169,8 @@ public final class CssValidator {
       return true;
     }
     // Apply the signature
-    if (!applySignature(pinfo.name, decl.getExpr(), pinfo.sig)) {
+    if (!applySignature(pinfo.name, decl.getExpr(),
+                        CssSignatureMatcher.forProperty(cssSchema, pinfo))) {
       // Apply takes care of adding the error message
       decl.getAttributes().set(INVALID, Boolean.TRUE);
       return false;
@@ -263,17 +263,16 @@ public final class CssValidator {
    *   signature.  Used to generate the {@link #CSS_PROPERTY_PART} attribute
    *   for the terms in expr.
    * @param expr the expression to apply to.  non null.
-   * @param sig the signature that expr should match.
+   * @param sig the compiled signature that expr should match.
    * @return true if sig applies to expr.  If true, then the terms in expr will
    *   have their {@link #CSS_PROPERTY_PART} and {@link #CSS_PROPERTY_PART_TYPE}
    *   attributes set.
    */
   private boolean applySignature(
-      Name propertyName, CssTree.Expr expr, CssPropertySignature sig) {
+      Name propertyName, CssTree.Expr expr, CssSignatureMatcher sig) {
     SignatureResolver resolver = new SignatureResolver(expr, cssSchema);
     List<Candidate> matches = resolver.applySignature(
-        Collections.singletonList(new Candidate(0, null, null)),
-        propertyName, sig);
+        Collections.singletonList(new Candidate(0, null, null)), sig);
 
     // Filter out matches that haven't consumed the entire expr
     int end = expr.children().size();
@@ -402,12 +401,16 @@ final class SignatureResolver {
    * message if the applifcation fails.
    */
   private Candidate best;
-  /** The css expression.  Non null. */
-  private final CssTree.Expr expr;
-  private final CssSchema cssSchema;
+  /** The children of the css expression. */
+  final CssTree[] terms;
+  /** The number of terms. */
+  final int end;
+  final CssSchema cssSchema;
 
   SignatureResolver(CssTree.Expr expr, CssSchema cssSchema) {
-    this.expr = expr;
+    List<? extends CssTree> children = expr.children();
+    this.terms = children.toArray(new CssTree[children.size()]);
+    this.end = terms.length;
     this.cssSchema = cssSchema;
   }
 
@@ -418,60 +421,28 @@ final class SignatureResolver {
    * candidates.  The candidates may multiple when a signature can be applied
    * in multiple ways.
    * @param candidates the candidates to apply to the signature.
-   * @param propertyName the name of the property that we're applying this
-   *   signature for.  This will appear in {@link Match#propertyName} and
-   *   eventually in {@link CssValidator#CSS_PROPERTY_PART}.
-   * @param sig the signature to apply expr to.  Non null.
+   * @param sig the compiled signature to apply expr to.  Non null.
    * @return the candidates that still match, some possibly modified in place.
    *   The output list may be larger or smaller than the input list.  An empty
    *   list indicates no possible matches.
    */
   List<Candidate> applySignature(
-      List<Candidate> candidates, Name propertyName,
-      CssPropertySignature sig) {
+      List<Candidate> candidates, CssSignatureMatcher sig) {
 
     List<Candidate> passed = new ArrayList<Candidate>();
 
     for (Candidate candidate : candidates) {
 
       // Have we reached the end of the input?
-      if (checkEnd(candidate, sig, passed)) {
+      if (candidate.exprIdx == end) {
+        // A repeating item that requires 0 still passes
+        if (sig.matchesAtEnd) { passed.add(candidate); }
         continue;
       }
 
       skipBlank(candidate);
 
-      // The exprIdx after sig has been processed.
-      if (sig instanceof CssPropertySignature.SetSignature) {
-        applySetSignature((CssPropertySignature.SetSignature) sig,
-                          candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.SeriesSignature) {
-        applySeriesSignature(
-            (CssPropertySignature.SeriesSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.RepeatedSignature) {
-        applyRepeatedSignature(
-            (CssPropertySignature.RepeatedSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.LiteralSignature) {
-        applyLiteralSignature(
-            (CssPropertySignature.LiteralSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.SymbolSignature) {
-        applySymbolSignature(
-            (CssPropertySignature.SymbolSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.PropertyRefSignature) {
-        applyPropertyRefSignature(
-            (CssPropertySignature.PropertyRefSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.CallSignature) {
-        applyCallSignature(
-            (CssPropertySignature.CallSignature) sig,
-            candidate, propertyName, passed);
-      } else {
-        throw new AssertionError(sig.getClass().getName());
-      }
+      sig.apply(this, candidate, passed);
     }
 
     for (Candidate candidate : passed) {
@@ -482,557 +453,13 @@ final class SignatureResolver {
     return passed;
   }
 
-  /**
-   * Makes sure that a candidate is on the passed list -- all succeeding rules
-   * will add the candidate except an optional rule that is satisfied because
-   * it successfully went through zero repetitions.
-   *
-   * @param passed modified in place.
-   * @return true if candidate is a complete solution to signature -- uses all
-   *    terms.
-   */
-  private boolean checkEnd(
-      Candidate candidate, CssPropertySignature sig, List<Candidate> passed) {
-    if (candidate.exprIdx == expr.children().size()) {
-      if (sig instanceof CssPropertySignature.RepeatedSignature
-          && 0 == ((CssPropertySignature.RepeatedSignature) sig).minCount) {
-        // A repeating item that requires 0 still passes
-        passed.add(candidate);
-      }
-      return true;
-    }
-    return false;
-  }
-
-  private void skipBlank(Candidate candidate) {
+  void skipBlank(Candidate candidate) {
     // Skip over any blank operators
-    CssTree child = expr.children().get(candidate.exprIdx);
+    CssTree child = terms[candidate.exprIdx];
     if (child instanceof CssTree.Operation
         && (CssTree.Operator.NONE
             == ((CssTree.Operation) child).getOperator())) {
       ++candidate.exprIdx;
     }
   }
-
-  private void applySetSignature(
-      CssPropertySignature.SetSignature ssig,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-    List<Candidate> toApply = Collections.singletonList(candidate);
-    for (CssPropertySignature setElement : ssig.children()) {
-      List<Candidate> elementsPassed = applySignature(
-          toApply, propertyName, setElement);
-      // lazy
-      if (!elementsPassed.isEmpty()) {
-        passed.addAll(elementsPassed);
-        break;
-      }
-    }
-  }
-
-  private void applyExclusiveSetSignature(
-      CssPropertySignature.ExclusiveSetSignature ssig,
-      Candidate candidate, Name propertyName,
-      BitSet used, List<Candidate> passed) {
-    List<Candidate> toApply = Collections.singletonList(candidate);
-    int k = -1;
-    for (CssPropertySignature setElement : ssig.children()) {
-      if (used.get(++k)) { continue; }
-      List<Candidate> elementsPassed = applySignature(
-          toApply, propertyName, setElement);
-      // lazy
-      if (!elementsPassed.isEmpty()) {
-        passed.addAll(elementsPassed);
-        used.set(k);
-        break;
-      }
-    }
-  }
-
-  private void applySeriesSignature(
-      CssPropertySignature.SeriesSignature ssig,
-      Candidate candidate, Name propertyName,
-      List<Candidate> passed) {
-    List<Candidate> toApply = Collections.singletonList(candidate);
-    for (CssPropertySignature seriesElement : ssig.children()) {
-      toApply = applySignature(toApply, propertyName, seriesElement);
-      if (toApply.isEmpty()) { break; }
-    }
-    passed.addAll(toApply);
-  }
-
-  private void applyRepeatedSignature(
-      CssPropertySignature.RepeatedSignature rsig,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    /**
-     * The maximum branching factor for a repetition.  This is the
-     * greatest number of contiguous ambiguous elements we might encounter
-     * as in <code>{ font: inherit inherit inherit inherit }</code>.
-     * <p>
-     * TODO(mikesamuel): this is currently 5 instead of 4 because it also limits
-     * the number of font names that can appear in a comma separated list.
-     * Rework our backtracking so we can handle long font lists.
-     */
-    final int MAX_BRANCHING_FACTOR = 5;
-
-    List<Candidate> toApply = Collections.singletonList(candidate);
-    int k = 0;
-    for (; k < rsig.minCount; ++k) {
-      toApply = applySignature(
-          toApply, propertyName, rsig.getRepeatedSignature());
-      if (toApply.isEmpty()) { break; }
-    }
-    if (!toApply.isEmpty()) {
-      CssPropertySignature repeated = rsig.getRepeatedSignature();
-      BitSet used = null;
-      if (repeated instanceof CssPropertySignature.ExclusiveSetSignature) {
-        used = new BitSet(repeated.children().size());
-      }
-
-      toApply = new ArrayList<Candidate>(toApply);
-      for (; k < rsig.maxCount; ++k) {
-        if (k < MAX_BRANCHING_FACTOR) {
-          // Try not following the extra repetitions
-          passed.addAll(toApply);
-          for (int i = toApply.size(); --i >= 0;) {
-            toApply.set(i, toApply.get(i).clone());
-          }
-        } else {
-          // greedy
-        }
-        if (null == used) {
-          toApply = applySignature(toApply, propertyName, repeated);
-        } else {
-          // Special handling for || groups
-          List<Candidate> passedSet  = new ArrayList<Candidate>();
-          for (Candidate setCandidate : toApply) {
-            if (setCandidate.exprIdx == expr.children().size()) {
-              passed.add(setCandidate);
-              continue;
-            }
-
-            skipBlank(setCandidate);
-
-            applyExclusiveSetSignature(
-                (CssPropertySignature.ExclusiveSetSignature) repeated,
-                setCandidate, propertyName, used, passedSet);
-          }
-          toApply = passedSet;
-        }
-        if (toApply.isEmpty()) { break; }
-      }
-      passed.addAll(toApply);
-    }
-  }
-
-  private void applyLiteralSignature(
-      CssPropertySignature.LiteralSignature literal,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    if (0 == (candidate.exprIdx & 1)) {  // a term
-      CssTree.Term term =
-        (CssTree.Term) expr.children().get(candidate.exprIdx);
-      CssTree.CssExprAtom atom = term.getExprAtom();
-      if (null == term.getOperator()) {
-        boolean match;
-        if (atom instanceof CssTree.IdentLiteral) {
-          match = Strings.equalsIgnoreCase(
-              literal.value, ((CssTree.IdentLiteral) atom).getValue());
-        } else if (atom instanceof CssTree.QuantityLiteral) {
-          match = literal.value.equals(atom.getValue());
-        } else {
-          match = false;
-        }
-        if (match) {
-          candidate.match(term, CssPropertyPartType.IDENT, propertyName);
-          ++candidate.exprIdx;
-          passed.add(candidate);
-        }
-      }
-    } else {  // A punctuation mark
-      CssTree.Operation op =
-          (CssTree.Operation) expr.children().get(candidate.exprIdx);
-      if (op.getOperator().getSymbol().equals(literal.getValue())) {
-        ++candidate.exprIdx;
-        passed.add(candidate);
-      }
-    }
-  }
-
-  private void applySymbolSignature(
-      CssPropertySignature.SymbolSignature ssig,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    CssSchema.SymbolInfo symbolInfo = cssSchema.getSymbol(ssig.symbolName);
-    if (null != symbolInfo) {
-      if (false) {
-        System.err.println(
-            "symbol " + symbolInfo.name + " from " + propertyName + "\n"
-            + dump(symbolInfo.sig));
-      }
-      passed.addAll(applySignature(
-                        Collections.singletonList(candidate),
-                        Name.css(propertyName + "::" + symbolInfo.name),
-                        symbolInfo.sig));
-    } else if (symbolMatch(candidate, propertyName, ssig)) {
-      passed.add(candidate);
-    }
-  }
-
-  private void applyPropertyRefSignature(
-      CssPropertySignature.PropertyRefSignature ssig,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    CssSchema.CssPropertyInfo info = cssSchema.getCssProperty(
-        ssig.getPropertyName());
-    if (null == info) {
-      throw new AssertionError(
-          "Unknown property in css property signature: " + propertyName);
-    }
-    check(info.sig);
-    passed.addAll(applySignature(Collections.singletonList(candidate),
-                                 info.name, info.sig));
-  }
-
-  private void applyCallSignature(
-      CssPropertySignature.CallSignature call,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    if (0 == (candidate.exprIdx & 1)) {  // a term
-      CssTree.Term term =
-          (CssTree.Term) expr.children().get(candidate.exprIdx);
-      CssTree.CssExprAtom atom = term.getExprAtom();
-      if (null == term.getOperator()
-          && atom instanceof CssTree.FunctionCall) {
-        CssTree.FunctionCall fn = (CssTree.FunctionCall) atom;
-        if (fn.getName().getCanonicalForm().equals(
-                call.children().get(0).getValue())) {
-          CssPropertySignature formals = call.children().get(1);
-          CssTree.Expr actuals = fn.getArguments();
-          if (false) {
-            System.err.println("formals=\n" + dump(formals) +
-                               "\nactuals=\n" + dump(actuals));
-          }
-          Candidate inFnSpace = new Candidate(
-              0, candidate.match, candidate.warning);
-          for (Candidate resultInFnSpace :
-               new SignatureResolver(actuals, cssSchema).applySignature(
-                   Collections.singletonList(inFnSpace), propertyName,
-                   formals)) {
-            passed.add(new Candidate(
-                           candidate.exprIdx + 1, resultInFnSpace.match,
-                           resultInFnSpace.warning));
-          }
-        }
-      }
-    }
-  }
-
-  /**
-   * http://www.w3.org/TR/CSS21/syndata.html#q15
-   * http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-number
-   * This syntax disallows a decimal point without any digits following, as
-   * per the spec.
-   */
-  private static final String REAL_NUMBER_RE = "(?:\\d+(?:\\.\\d+)?|\\.\\d+)";
-  /**
-   * According to http://www.w3.org/TR/CSS21/syndata.html#length-units.
-   * Units are frequently left off length values, in which case all existing
-   * browsers assume pixels, so the units below are treated as optional even
-   * though, strictly, units can only be omitted from the value 0.
-   */
-  private static final Pattern LENGTH_RE = Pattern.compile(
-      "^(?:" + REAL_NUMBER_RE + "(?:in|cm|mm|pt|pc|em|ex|px)?)$",
-      Pattern.CASE_INSENSITIVE);
-  /** http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-number */
-  private static final Pattern NUMBER_RE = Pattern.compile(
-      "^" + REAL_NUMBER_RE + "$");
-  /** http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-integer */
-  private static final Pattern INTEGER_RE = Pattern.compile("^\\d+$");
-  /** http://www.w3.org/TR/CSS21/syndata.html#percentage-units */
-  private static final Pattern PERCENTAGE_RE = Pattern.compile(
-      "^" + REAL_NUMBER_RE + "%$");
-  /** http://www.w3.org/TR/CSS21/aural.html#value-def-specific-voice */
-  private static final Pattern SPECIFIC_VOICE_RE = Pattern.compile(
-      "^\\s*(?:[\\w\\-]+(?:\\s+[\\w\\-]+)*)\\s*$", Pattern.CASE_INSENSITIVE);
-  /** http://www.w3.org/TR/CSS21/aural.html#value-def-angle */
-  private static final Pattern ANGLE_RE = Pattern.compile(
-      "^(?:" + REAL_NUMBER_RE + "(?:deg|grad|rad)|0+)$",
-      Pattern.CASE_INSENSITIVE);
-  /** http://www.w3.org/TR/CSS21/aural.html#value-def-time */
-  private static final Pattern TIME_RE = Pattern.compile(
-      "^(?:" + REAL_NUMBER_RE + "(?:ms|s)|0+)$", Pattern.CASE_INSENSITIVE);
-  /** http://www.w3.org/TR/CSS21/aural.html#value-def-frequency */
-  private static final Pattern FREQUENCY_RE = Pattern.compile(
-      "^(?:" + REAL_NUMBER_RE + "(?:hz|kHz)|0+)$",
-      Pattern.CASE_INSENSITIVE);
-
-  // Suffixes for substitutions.  A subsitution like ${x * 4}em can only be
-  // a length.  Substitutions without a suffix can only be of certain kinds
-  private static final Pattern LENGTH_SUFFIX_RE = Pattern.compile(
-      "\\}(?:in|cm|mm|pt|pc|em|ex|px)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern PERCENTAGE_SUFFIX_RE = Pattern.compile("\\}%$");
-  private static final Pattern NUMBER_SUFFIX_RE = Pattern.compile("\\}$");
-  private static final Pattern COLOR_SUFFIX_RE = NUMBER_SUFFIX_RE;
-  private static final Pattern ANGLE_SUFFIX_RE = Pattern.compile(
-      "\\}(?:deg|grad|rad)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern TIME_SUFFIX_RE = Pattern.compile(
-      "\\}(?:ms|s)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern FREQUENCY_SUFFIX_RE = Pattern.compile(
-      "\\}(?:hz|kHz)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern URI_SUFFIX_RE = Pattern.compile(
-      "\\}(?:uri)?$", Pattern.CASE_INSENSITIVE);
-
-  /**
-   * Handles symbols for which we don't have a signature.  Anything not handled
-   * by {@link CssSchema#getSymbol}.
-   */
-  private boolean symbolMatch(
-      Candidate candidate, Name propertyName,
-      CssPropertySignature.SymbolSignature sig) {
-    if (0 != (candidate.exprIdx & 1)) { return false; }  // not a term
-    CssTree.Term term = (CssTree.Term) expr.children().get(candidate.exprIdx);
-    CssTree.CssExprAtom atom = term.getExprAtom();
-
-    if (false) {
-      System.err.println(
-          "symbol " + sig.symbolName + " : matching " + propertyName + "\n"
-          + dump(sig) + "\nagainst exprIdx=" + candidate.exprIdx + "\n"
-          + dump(atom));
-    }
-
-    // If this is supposed to be a positive identifier, then disallow the
-    // negation unary operator.
-    // Positive is a bit of a misnomer since this really means non-negative.
-    String symbolName = sig.symbolName.getCanonicalForm();
-    String constraints = null;
-    // Check for any constraints
-    {
-      int colon = symbolName.indexOf(":");
-      if (colon >= 0) {
-        constraints = symbolName.substring(colon + 1);
-        symbolName = symbolName.substring(0, colon);
-      }
-    }
-
-    Object atomValue = atom.getValue();
-    String atomSValue = atomValue instanceof String ? (String) atomValue : "";
-
-    // Operators such as negation cannot be applied to substitutions.
-    // The substitution itself should return a negative value.
-    if (atom instanceof CssTree.Substitution && term.getOperator() != null) {
-      return false;
-    }
-
-    // Try each symbol type we know how to handle
-    if ("length".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            LENGTH_RE.matcher(atomSValue).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            LENGTH_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.LENGTH, propertyName);
-      ++candidate.exprIdx;
-    } else if ("number".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            NUMBER_RE.matcher(atomSValue).matches()) &&
-            !(atom instanceof CssTree.Substitution &&
-                NUMBER_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.NUMBER, propertyName);
-      ++candidate.exprIdx;
-    } else if ("integer".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            INTEGER_RE.matcher(atomSValue).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            NUMBER_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.INTEGER, propertyName);
-      ++candidate.exprIdx;
-    } else if ("percentage".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral
-            && PERCENTAGE_RE.matcher(atomSValue).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            PERCENTAGE_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.PERCENTAGE, propertyName);
-      ++candidate.exprIdx;
-    } else if ("unreserved-word".equals(symbolName)) {
-      if (null != term.getOperator()) { return false; }
-      String name;
-      if (atom instanceof CssTree.IdentLiteral) {
-        name = ((CssTree.IdentLiteral) atom).getValue();
-        if (cssSchema.isKeyword(Name.css(name))) { return false; }
-      } else {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.LOOSE_WORD, propertyName);
-      ++candidate.exprIdx;
-    } else if ("hex-color".equals(symbolName)) {
-      if (atom instanceof CssTree.HashLiteral) {
-        // Require 3 or 6 hex digits
-        String hex = ((CssTree.HashLiteral) atom).getValue();
-        if (hex.length() != 4 && hex.length() != 7) { return false; }
-        candidate.match(term, CssPropertyPartType.COLOR, propertyName);
-        ++candidate.exprIdx;
-      } else if (atom instanceof CssTree.Substitution) {
-        if (!COLOR_SUFFIX_RE.matcher(atomSValue).find()) {
-          return false;
-        }
-        candidate.match(term, CssPropertyPartType.COLOR, propertyName);
-        ++candidate.exprIdx;
-      } else {
-        return false;
-      }
-    } else if ("angle".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            ANGLE_RE.matcher(atomSValue).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            ANGLE_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.ANGLE, propertyName);
-      ++candidate.exprIdx;
-    } else if ("time".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            null == term.getOperator() &&
-            TIME_RE.matcher(atomSValue).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            TIME_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.TIME, propertyName);
-      ++candidate.exprIdx;
-    } else if ("frequency".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            null == term.getOperator() &&
-            FREQUENCY_RE.matcher(
-                ((CssTree.QuantityLiteral) atom).getValue()).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            FREQUENCY_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.FREQUENCY, propertyName);
-      ++candidate.exprIdx;
-    } else if ("specific-voice".equals(symbolName)) {
-      if (null != term.getOperator()) { return false; }
-      String name;
-      if (atom instanceof CssTree.IdentLiteral) {
-        name = ((CssTree.IdentLiteral) atom).getValue();
-        if (cssSchema.isKeyword(Name.css(name))) { return false; }
-      } else if (atom instanceof CssTree.StringLiteral) {
-        name = ((CssTree.StringLiteral) atom).getValue();
-      } else {
-        return false;
-      }
-      if (!SPECIFIC_VOICE_RE.matcher(name).matches()) { return false; }
-      candidate.match(term, CssPropertyPartType.SPECIFIC_VOICE, propertyName);
-      ++candidate.exprIdx;
-    } else if ("uri".equals(symbolName)) {
-      if (null != term.getOperator()) { return false; }
-      if (!(atom instanceof CssTree.UriLiteral
-            // This may not be per spec, but it is safest to interpret strings
-            // as URIs, since many user-agents seem to do this, and we want to
-            // apply constraints to URIs.
-            || atom instanceof CssTree.StringLiteral
-            // Uri substitutions can be fixed at runtime
-            || (atom instanceof CssTree.Substitution &&
-                URI_SUFFIX_RE.matcher(atomSValue).find()))) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.URI, propertyName);
-      ++candidate.exprIdx;
-    } else if ("string".equals(symbolName)) {
-      if (!(null == term.getOperator()
-            && atom instanceof CssTree.StringLiteral)) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.STRING, propertyName);
-      ++candidate.exprIdx;
-    } else if ("identifier".equals(symbolName)) {
-      if (!(null == term.getOperator()
-            && atom instanceof CssTree.IdentLiteral)) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.IDENT, propertyName);
-      ++candidate.exprIdx;
-    } else {
-      throw new AssertionError(
-          "unhandled symbol " + sig.symbolName + "\n" + dump(atom));
-    }
-
-    if (null != constraints
-        // Violations of these constraints are not security problems though,
-        // so we do not try to enforce them on the client for dynamic content.
-        && !(atom instanceof CssTree.Substitution)) {
-      int comma = constraints.indexOf(",");
-      double min = Double.parseDouble(constraints.substring(0, comma)),
-             max = comma + 1 == constraints.length()
-                 ? Double.POSITIVE_INFINITY
-                 : Double.parseDouble(constraints.substring(comma + 1));
-      String valueStr = ((CssTree.QuantityLiteral) atom).getValue();
-      int numEnd = 0;
-      for (char ch; numEnd < valueStr.length()
-           && (((ch = valueStr.charAt(numEnd)) >= '0' && ch <= '9')
-               || ch == '.');) {
-        ++numEnd;
-      }
-      double value = Double.parseDouble(valueStr.substring(0, numEnd));
-      if (CssTree.UnaryOperator.NEGATION == term.getOperator()) { value *= -1; }
-      if (false) {
-        System.err.println("min=" + min + ", max=" + max + ", value=" + value
-                           + ", valueStr=" + valueStr + ", op="
-                           + term.getOperator());
-      }
-      if (value < min || value > max) {
-        candidate.warn(PluginMessageType.CSS_VALUE_OUT_OF_RANGE,
-                       term.getFilePosition(), propertyName,
-                       MessagePart.Factory.valueOf(value),
-                       MessagePart.Factory.valueOf(min),
-                       MessagePart.Factory.valueOf(max));
-        // If this were a validation failure, it might cause us to improperly
-        // match another rule later, so issue a warning instead.
-      }
-    }
-
-    return true;
-  }
-
-  private static final SyntheticAttributeKey<Integer> NUM =  // HACK: debug
-      new SyntheticAttributeKey<Integer>(Integer.class, "serialno");
-
-  /** debugging */
-  private static int serialno = 0;
-  /** debugging */
-  private static void check(ParseTreeNode node) {
-    if (true) { return; }
-    if (!node.getAttributes().containsKey(NUM)) {
-      node.acceptPreOrder(new Visitor() {
-          public boolean visit(AncestorChain<?> ancestors) {
-            ParseTreeNode n = ancestors.node;
-            n.getAttributes().set(NUM, Integer.valueOf(serialno++));
-            return true;
-          }
-        }, null);
-    }
-  }
-
-  /** debugging */
-  private static String dump(ParseTreeNode node) {
-    check(node);
-    StringBuilder sb = new StringBuilder();
-    MessageContext mc = new MessageContext();
-    mc.relevantKeys
-        = Collections.<SyntheticAttributeKey<Integer>>singleton(NUM);
-    try {
-      node.formatTree(mc, 2, sb);
-    } catch (java.io.IOException ex) {
-      ex.printStackTrace();
-    }
-    return sb.toString();
-  }
 }
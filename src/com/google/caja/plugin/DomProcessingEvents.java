@@ -86,57 +86,129 @@ final class DomProcessingEvents {
    * => {@code (Begin 'p') (InnerHTML '<b>foo</b>') (End 'p')}.
    *
    * <p>
-   * We walk, maintaining a stack of open elements.  When we see a close tag
-   * we check whether all the elements between the begin and end
-   * (excluding the open tag's attributes) are statically known.  If that's
-   * the case, we replace them with an innerHTML node.
+   * We walk once, maintaining a stack of open elements.  Each open element
+   * records whether every event in its content seen so far is statically
+   * known, and the HTML of its content is appended to a buffer shared by all
+   * elements, so each element's content is a range of that buffer.
+   * When we see a close tag whose content is all statically known, we replace
+   * the content with an innerHTML node, and the parent's range already
+   * contains the HTML, so no event is serialized more than once.
+   * The text of innerHTML nodes is only extracted from the buffer once it is
+   * known that no ancestor will be collapsed.
    *
    * @throws IllegalStateException if tags are unbalanced.
    */
   private void optimize() {
-    List<Pair<Name, Integer>> openTags = new ArrayList<Pair<Name, Integer>>();
-    eventloop:
-    for (int i = 0; i < events.size(); ++i) {  // Concurrent change below.
-      DomProcessingEvent e = events.get(i);
-      if (e instanceof FinishAttrsEvent) {
-        if (!((FinishAttrsEvent) e).unary) {
-          int start = i;
-          while (!(events.get(--start) instanceof BeginElementEvent)) {}
-          BeginElementEvent bel = (BeginElementEvent) events.get(start);
-          openTags.add(Pair.pair(bel.name, i));
-        }
-      } else if (e instanceof EndElementEvent) {
+    List<DomProcessingEvent> out = new ArrayList<DomProcessingEvent>(
+        events.size());
+    List<OpenElement> openTags = new ArrayList<OpenElement>();
+    StringBuilder html = new StringBuilder();
+    Name lastBegun = null;
+    boolean inTag = false;
+    for (DomProcessingEvent e : events) {
+      if (e instanceof EndElementEvent) {
         EndElementEvent ee = (EndElementEvent) e;
         if (openTags.isEmpty()) { throw new IllegalStateException(); }
-        Pair<Name, Integer> top = openTags.remove(openTags.size() - 1);
-        if (!top.a.equals(ee.name)) { throw new IllegalStateException(); }
-        int start = top.b + 1;
-        List<DomProcessingEvent> content = events.subList(start, i);
-        if (content.isEmpty()) { continue; }
-        int depth = 0;
-        for (DomProcessingEvent ce : content) {
-          if (ce instanceof BeginElementEvent) {
-            ++depth;
-          } else if (ce instanceof EndElementEvent
-                     || (ce instanceof FinishAttrsEvent
-                         && ((FinishAttrsEvent) ce).unary)) {
-            --depth;
-          }
-          if (!ce.canOptimizeToInnerHtml(depth)) { continue eventloop; }
+        OpenElement top = openTags.remove(openTags.size() - 1);
+        if (!top.name.equals(ee.name)) { throw new IllegalStateException(); }
+        int contentEnd = out.size();
+        if (contentEnd != top.contentStart && top.isStatic && !top.quirky) {
+          FilePosition pos = FilePosition.span(
+              out.get(top.contentStart).getFilePosition(),
+              out.get(contentEnd - 1).getFilePosition());
+          out.subList(top.contentStart, contentEnd).clear();
+          out.add(new PendingInnerHtml(pos, top.htmlStart, html.length()));
         }
-        StringBuilder innerHtml = new StringBuilder();
-        for (DomProcessingEvent ce : content) {
-          ce.toInnerHtml(innerHtml);
+        if (!openTags.isEmpty()) {
+          openTags.get(openTags.size() - 1).isStatic &= top.isStatic;
+        }
+      }
+      if (!openTags.isEmpty()) {
+        OpenElement top = openTags.get(openTags.size() - 1);
+        // Attributes, and the elements they belong to, are children of top,
+        // and canOptimizeToInnerHtml is at least as permissive for more
+        // deeply nested events, so only top can be disqualified by quirks.
+        int depth = e instanceof BeginElementEvent || inTag ? 1 : 0;
+        if (!top.isStatic) {
+          // Its HTML is never needed.
+        } else if (!e.canOptimizeToInnerHtml(Integer.MAX_VALUE)) {
+          top.isStatic = false;
+        } else {
+          if (!e.canOptimizeToInnerHtml(depth)) { top.quirky = true; }
+          e.toInnerHtml(html);
         }
-        FilePosition pos = FilePosition.span(
-            content.get(0).getFilePosition(),
-            content.get(content.size() - 1).getFilePosition());
-        content.clear();
-        content.add(new InnerHtmlEvent(pos, innerHtml.toString()));
-        i = start + 1;
+      }
+      out.add(e);
+      inTag = e.checkContext(inTag);
+      if (e instanceof BeginElementEvent) {
+        lastBegun = ((BeginElementEvent) e).name;
+      } else if (e instanceof FinishAttrsEvent
+                 && !((FinishAttrsEvent) e).unary) {
+        openTags.add(new OpenElement(lastBegun, out.size(), html.length()));
       }
     }
     if (!openTags.isEmpty()) { throw new IllegalStateException("" + openTags); }
+    for (int i = 0, n = out.size(); i < n; ++i) {
+      DomProcessingEvent e = out.get(i);
+      if (e instanceof PendingInnerHtml) {
+        PendingInnerHtml p = (PendingInnerHtml) e;
+        out.set(i, new InnerHtmlEvent(
+            p.pos, html.substring(p.htmlStart, p.htmlEnd)));
+      }
+    }
+    events.clear();
+    events.addAll(out);
+  }
+
+  /** An element whose end tag {@link #optimize} has not yet seen. */
+  private static final class OpenElement {
+    final Name name;
+    /** Index of the first event in the element's content. */
+    final int contentStart;
+    /** Index into the HTML buffer of the start of the content's HTML. */
+    final int htmlStart;
+    /** True if all the events in the content seen so far are static. */
+    boolean isStatic = true;
+    /**
+     * True if a child cannot be created via this element's innerHTML due to
+     * browser quirks, though it can be via an ancestor's.
+     */
+    boolean quirky;
+
+    OpenElement(Name name, int contentStart, int htmlStart) {
+      this.name = name;
+      this.contentStart = contentStart;
+      this.htmlStart = htmlStart;
+    }
+
+    @Override
+    public String toString() { return "(" + name + " " + contentStart + ")"; }
+  }
+
+  /**
+   * Stands in for an {@link InnerHtmlEvent} whose text has not yet been
+   * extracted from the HTML buffer, since it is wasted work if an ancestor is
+   * also collapsed.
+   */
+  private static final class PendingInnerHtml extends DomProcessingEvent {
+    final FilePosition pos;
+    final int htmlStart, htmlEnd;
+    PendingInnerHtml(FilePosition pos, int htmlStart, int htmlEnd) {
+      this.pos = pos;
+      this.htmlStart = htmlStart;
+      this.htmlEnd = htmlEnd;
+    }
+    @Override void toJavascript(BlockAndEmitter out) {
+      throw new UnsupportedOperationException();
+    }
+    @Override boolean checkContext(boolean inTag) {
+      if (inTag) { throw new IllegalStateException(this.toString()); }
+      return false;
+    }
+    // The HTML is already in the buffer.
+    @Override boolean canOptimizeToInnerHtml(int depth) { return true; }
+    @Override void toInnerHtml(StringBuilder out) {}
+    @Override FilePosition getFilePosition() { return pos; }
   }
 
   static abstract class DomProcessingEvent {
@@ -99,6 +99,8 @@ public class HtmlCompiler {
   private final PluginMeta meta;
   private Map<String, Statement> eventHandlers =
       new LinkedHashMap<String, Statement>();
+  /** Pages often repeat the same style attribute on many elements. */
+  private final StyleAttribCache styleCache = new StyleAttribCache();
 
   public HtmlCompiler(CssSchema cssSchema, HtmlSchema htmlSchema,
                       MessageContext mc, MessageQueue mq, PluginMeta meta) {
@@ -327,13 +329,44 @@ public class HtmlCompiler {
   private void compileStyleAttrib(
       DomTree.Attrib attrib, DomProcessingEvents out)
       throws BadContentException {
+    DomTree.Value value = attrib.getAttribValueNode();
+    String rawValue = value.getToken().text;
+    FilePosition valuePos = value.getFilePosition();
+    PluginEnvironment env = meta.getPluginEnvironment();
+    StyleAttribCache.Hit hit = styleCache.lookup(
+        cssSchema, htmlSchema, env, rawValue, valuePos, mq);
+    if (hit == null) {
+      List<Message> msgs = mq.getMessages();
+      int nMessagesBefore = msgs.size();
+      Pair<Expression, Boolean> compiled = compileStyleValue(attrib);
+      if (compiled.b) {
+        styleCache.store(
+            cssSchema, htmlSchema, env, rawValue, valuePos, compiled.a,
+            msgs.subList(nMessagesBefore, msgs.size()));
+      }
+      if (compiled.a != null) { out.attr(Name.html("style"), compiled.a); }
+    } else if (hit.output != null) {
+      out.attr(Name.html("style"), hit.output);
+    }
+  }
+
+  /**
+   * Validates and rewrites a style attribute's value.
+   * @return the javascript for the value, or null if nothing survived
+   *     rewriting; and whether the result may be reused for other attributes
+   *     with the same value.
+   */
+  private Pair<Expression, Boolean> compileStyleValue(DomTree.Attrib attrib)
+      throws BadContentException {
     CssTree.DeclarationGroup decls;
     try {
       decls = parseStyleAttrib(attrib);
-      if (decls == null) { return; }
+      if (decls == null) { return Pair.pair((Expression) null, true); }
     } catch (ParseException ex) {
       throw new BadContentException(ex.getCajaMessage(), ex);
     }
+    // Substitutions are javascript, which is not ours to cache.
+    boolean cacheable = !containsSubstitution(decls);
 
     // The validator will check that property values are well-formed,
     // marking those that aren't, and identifies all urls.
@@ -350,7 +383,7 @@ public class HtmlCompiler {
     // Produces a call to cat(bits, of, css);
     declGroupToStyleValue(
         decls, Arrays.asList("cat"), cssBlock, JsWriter.Esc.NONE);
-    if (cssBlock.children().isEmpty()) { return; }
+    if (cssBlock.children().isEmpty()) { return Pair.pair((Expression) null, cacheable); }
     if (cssBlock.children().size() != 1) {
       throw new IllegalStateException(attrib.getAttribValue());
     }
@@ -362,7 +395,15 @@ public class HtmlCompiler {
     for (Expression e : operands.subList(2, operands.size())) {
       cssOp = Operation.createInfix(Operator.ADDITION, cssOp, e);
     }
-    out.attr(Name.html("style"), cssOp);
+    return Pair.pair(cssOp, cacheable);
+  }
+
+  private static boolean containsSubstitution(CssTree t) {
+    if (t instanceof CssTree.Substitution) { return true; }
+    for (CssTree child : t.children()) {
+      if (containsSubstitution(child)) { return true; }
+    }
+    return false;
   }
 
   /**
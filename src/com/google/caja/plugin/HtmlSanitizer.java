@@ -14,7 +14,6 @@
 
 package com.google.caja.plugin;
 
-import com.google.caja.lang.html.HTML;
 import com.google.caja.lang.html.HtmlSchema;
 import com.google.caja.lexer.HtmlTokenType;
 import com.google.caja.lexer.Token;
@@ -41,6 +40,8 @@ import java.util.Map;
  * @author mikesamuel@gmail.com
  */
 public final class HtmlSanitizer {
+  private static final Name WILDCARD = Name.html("*");
+
   private final MessageQueue mq;
   private final HtmlSchema schema;
 
@@ -111,7 +112,7 @@ public final class HtmlSanitizer {
       break;
     case ATTRNAME:
       DomTree.Tag tag = null;
-      Name tagName = Name.html("*");
+      Name tagName = WILDCARD;
       if (htmlRoot.parent != null
           && htmlRoot.parent.node instanceof DomTree.Tag) {
         tag = htmlRoot.parent.cast(DomTree.Tag.class).node;
@@ -119,22 +120,23 @@ public final class HtmlSanitizer {
       }
       DomTree.Attrib attrib = (DomTree.Attrib) t;
       Name attrName = attrib.getAttribName();
-      HTML.Attribute a = schema.lookupAttribute(tagName, attrName);
-      if (null == a ) {
+      // One lookup answers all the questions below.
+      HtmlSchema.AttributeInfo info
+          = schema.lookupAttributeInfo(tagName, attrName);
+      if (null == info.getAttribute()) {
         mq.getMessages().add(new Message(
             PluginMessageType.UNKNOWN_ATTRIBUTE, MessageLevel.WARNING,
             t.getFilePosition(), attrName, tagName));
         valid &= removeBadAttribute(tag, attrName);
         break;
       }
-      if (!schema.isAttributeAllowed(tagName, attrName)) {
+      if (!info.isAllowed()) {
         mq.addMessage(
             PluginMessageType.UNSAFE_ATTRIBUTE,
             t.getFilePosition(), attrName, tagName);
         valid &= removeBadAttribute(tag, attrName);
       }
-      Criterion<? super String> criteria = schema.getAttributeCriteria(
-          tagName, attrName);
+      Criterion<? super String> criteria = info.getCriteria();
       if (!criteria.accept(attrib.getAttribValue())) {
         mq.addMessage(
             PluginMessageType.DISALLOWED_ATTRIBUTE_VALUE,
@@ -16,8 +16,10 @@ package com.google.caja.plugin;
 
 import com.google.caja.lang.css.CssSchema;
 import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.lexer.FilePosition;
 import com.google.caja.parser.AncestorChain;
 import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.css.CssTree;
 import com.google.caja.parser.js.Block;
 import com.google.caja.plugin.stages.CheckForErrorsStage;
 import com.google.caja.plugin.stages.CompileCssStage;
@@ -26,8 +28,10 @@ import com.google.caja.plugin.stages.ConsolidateCodeStage;
 import com.google.caja.plugin.stages.DebuggingSymbolsStage;
 import com.google.caja.plugin.stages.InferFilePositionsStage;
 import com.google.caja.plugin.stages.OpenTemplateStage;
+import com.google.caja.plugin.stages.PoolRuntimeLookupsStage;
 import com.google.caja.plugin.stages.RewriteHtmlStage;
 import com.google.caja.plugin.stages.SanitizeHtmlStage;
+import com.google.caja.plugin.stages.ShortenLocalNamesStage;
 import com.google.caja.plugin.stages.ValidateCssStage;
 import com.google.caja.plugin.stages.ValidateJavascriptStage;
 import com.google.caja.reporting.MessageContext;
@@ -35,6 +39,7 @@ import com.google.caja.reporting.MessagePart;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.MessageType;
 import com.google.caja.reporting.BuildInfo;
+import com.google.caja.util.CompileBudget;
 import com.google.caja.util.Criterion;
 import com.google.caja.util.Pipeline;
 
@@ -101,6 +106,8 @@ public final class PluginCompiler {
    */
   public List<? extends ParseTreeNode> getOutputs() {
     List<ParseTreeNode> outputs = new ArrayList<ParseTreeNode>();
+    ParseTreeNode css = getStaticCss();
+    if (css != null) { outputs.add(css); }
     ParseTreeNode js = getJavascript();
     if (js != null) { outputs.add(js); }
     return outputs;
@@ -131,6 +138,8 @@ public final class PluginCompiler {
     stages.add(new ValidateJavascriptStage(buildInfo));
     stages.add(new InferFilePositionsStage());
     stages.add(new DebuggingSymbolsStage());
+    stages.add(new PoolRuntimeLookupsStage());
+    stages.add(new ShortenLocalNamesStage());
     stages.add(new CheckForErrorsStage());
   }
 
@@ -152,6 +161,25 @@ public final class PluginCompiler {
     return soleJsJob != null ? (Block) soleJsJob.getRoot().node : null;
   }
 
+  /**
+   * The style-sheets that were compiled to CSS instead of to JavaScript
+   * because the gadget's {@link PluginMeta#getIdClass id class} is known at
+   * cajole time, or null if there are none.
+   * The host page should load this CSS before loading the module.
+   * Valid after run has been called.
+   */
+  public CssTree.StyleSheet getStaticCss() {
+    List<CssTree.CssStatement> rules = new ArrayList<CssTree.CssStatement>();
+    for (Job job : jobs.getJobsByType(Job.JobType.CSS)) {
+      CssTree.StyleSheet ss = job.getRoot().cast(CssTree.StyleSheet.class).node;
+      for (CssTree rule : ss.children()) {
+        rules.add((CssTree.CssStatement) rule.clone());
+      }
+    }
+    if (rules.isEmpty()) { return null; }
+    return new CssTree.StyleSheet(FilePosition.UNKNOWN, rules);
+  }
+
   private Job getConsolidatedOutput(Criterion<Job> filter) {
     Job match = null;
     for (Job job : this.jobs.getJobs()) {
@@ -168,9 +196,21 @@ public final class PluginCompiler {
   /**
    * Run the compiler on all parse trees added via {@link #addInput}.
    * The output parse tree is available via {@link #getJavascript()}.
+   * The compilation fails if it exceeds the {@link PluginMeta#getCompileBudget
+   * compile budget}, which is charged afresh on each run.
    * @return true on success, false on failure.
    */
   public boolean run() {
-    return getCompilationPipeline().apply(jobs);
+    CompileBudget budget = jobs.getPluginMeta().getCompileBudget();
+    CompileBudget old = budget != CompileBudget.UNLIMITED
+        ? CompileBudget.install(budget.fresh()) : null;
+    try {
+      return getCompilationPipeline().apply(jobs);
+    } catch (CompileBudget.Exceeded ex) {
+      jobs.getMessageQueue().getMessages().add(ex.getCajaMessage());
+      return false;
+    } finally {
+      if (old != null) { CompileBudget.install(old); }
+    }
   }
 }
@@ -28,6 +28,7 @@ import com.google.caja.lexer.TokenQueue;
 import com.google.caja.parser.AncestorChain;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.css.CssParser;
+import com.google.caja.parser.css.CssTree;
 import com.google.caja.parser.html.DomParser;
 import com.google.caja.parser.js.Parser;
 import com.google.caja.reporting.Message;
@@ -45,6 +46,8 @@ import com.google.caja.util.CapturingReader;
 import com.google.caja.render.JsMinimalPrinter;
 import com.google.caja.render.SourceSnippetRenderer;
 import com.google.caja.render.JsPrettyPrinter;
+import com.google.caja.render.ParallelRendering;
+import com.google.caja.render.SourceMapBuilder;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -58,9 +61,12 @@ import java.io.FileNotFoundException;
 import java.io.FileInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * An executable that invokes the {@link PluginCompiler}.
@@ -98,10 +104,14 @@ public final class PluginCompilerMain {
     boolean success = false;
     MessageContext mc = null;
     ParseTreeNode compiledOutput = null;
+    ParseTreeNode compiledCss = null;
     try {
       PluginMeta meta = new PluginMeta(makeEnvironment(config));
       meta.setDebugMode(config.debugMode());
       meta.setValijaMode(config.cajaMode());
+      meta.setShortenLocalNames(config.shortenLocalNames());
+      meta.setPoolRuntimeLookups(config.poolRuntimeLookups());
+      meta.setIdClass(config.getIdClass());
       PluginCompiler compiler =
           new PluginCompiler(BuildInfo.getInstance(), meta, mq);
       mc = compiler.getMessageContext();
@@ -111,6 +121,7 @@ public final class PluginCompilerMain {
       success = parseInputs(config.getInputUris(), compiler) && compiler.run();
       if (success) {
         compiledOutput = compiler.getJavascript();
+        compiledCss = compiler.getStaticCss();
       }
     } finally {
       if (mc == null) { mc = new MessageContext(); }
@@ -119,12 +130,24 @@ public final class PluginCompilerMain {
     }
 
     if (success) {
-      writeFile(config.getOutputJsFile(), compiledOutput);
+      writeFile(config.getOutputJsFile(), compiledOutput,
+                config.getOutputSourceMapFile());
     } else {
       // Make sure there is no previous output file from a failed run.
       config.getOutputJsFile().delete();
       // If it wasn't there in the first place, or is not writable, that's OK,
       // so ignore the return value.
+      if (config.getOutputSourceMapFile() != null) {
+        config.getOutputSourceMapFile().delete();
+      }
+    }
+    if (config.getIdClass() != null) {
+      if (success && compiledCss != null) {
+        writeFile(config.getOutputCssFile(), compiledCss, null);
+      } else {
+        // Don't leave static CSS from a previous run beside the new JS.
+        config.getOutputCssFile().delete();
+      }
     }
 
     return success ? 0 : -1;
@@ -205,8 +228,12 @@ public final class PluginCompilerMain {
     return input;
   }
 
-  /** Write the given parse tree to the given file. */
-  private void writeFile(File f, ParseTreeNode output) {
+  /**
+   * Write the given parse tree to the given file.
+   * @param sourceMapFile if not null, receives a source map for the
+   *     javascript written to f.
+   */
+  private void writeFile(File f, ParseTreeNode output, File sourceMapFile) {
     if (output == null) { return; }
     Callback<IOException> ioHandler = new Callback<IOException>() {
       public void handle(IOException ex) {
@@ -217,12 +244,24 @@ public final class PluginCompilerMain {
     try {
       Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
       TokenConsumer tc;
-      switch (config.renderer()) {
+      SourceMapBuilder sourceMap = sourceMapFile != null
+          ? new SourceMapBuilder() : null;
+      // The renderer options only apply to javascript.
+      switch (output instanceof CssTree
+              ? Config.SourceRenderMode.PRETTY : config.renderer()) {
         case PRETTY:
-          tc = output.makeRenderer(out, ioHandler);
+          if (sourceMap == null) {
+            tc = output.makeRenderer(out, ioHandler);
+          } else {
+            JsPrettyPrinter pp = new JsPrettyPrinter(out, ioHandler);
+            pp.setSourceMap(sourceMap);
+            tc = pp;
+          }
           break;
         case MINIFY:
-          tc = new JsMinimalPrinter(out,  ioHandler);
+          JsMinimalPrinter mp = new JsMinimalPrinter(out,  ioHandler);
+          mp.setSourceMap(sourceMap);
+          tc = mp;
           break;
         case SIDEBYSIDE:
           tc = new SourceSnippetRenderer(
@@ -240,17 +279,59 @@ public final class PluginCompilerMain {
       }
       try {
         RenderContext rc = new RenderContext(mc, true, true, tc);
-        output.render(rc);
+        int nThreads = config.renderThreads();
+        if (nThreads > 1 && !(output instanceof CssTree)) {
+          ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+          try {
+            ParallelRendering.render(output, rc, executor, nThreads);
+          } finally {
+            executor.shutdown();
+          }
+        } else {
+          output.render(rc);
+        }
         tc.noMoreTokens();
         out.append('\n');
+        if (sourceMap != null) {
+          out.append("//# sourceMappingURL=")
+              .append(sourceMapReference(f, sourceMapFile)).append('\n');
+        }
       } finally {
         out.close();
       }
+      if (sourceMap != null) {
+        Writer mapOut = new OutputStreamWriter(
+            new FileOutputStream(sourceMapFile), "UTF-8");
+        try {
+          sourceMap.writeJson(f.getName(), mapOut);
+        } finally {
+          mapOut.close();
+        }
+      }
     } catch (IOException ex) {
       ioHandler.handle(ex);
     }
   }
 
+  /**
+   * A URL for sourceMapFile that is relative to f if they are in the same
+   * directory.
+   */
+  static String sourceMapReference(File f, File sourceMapFile) {
+    File dir = f.getAbsoluteFile().getParentFile();
+    File mapDir = sourceMapFile.getAbsoluteFile().getParentFile();
+    if (dir != null && dir.equals(mapDir)
+        && sourceMapFile.getName().indexOf(':') < 0) {
+      try {
+        // Escapes any characters not allowed in a URI path.
+        return new URI(null, null, sourceMapFile.getName(), null).toString();
+      } catch (URISyntaxException ex) {
+        // Fall through to the absolute URI below.
+      }
+    }
+    return sourceMapFile.getAbsoluteFile().toURI().toString();
+  }
+
   /**
    * Dumps messages to the given output stream, returning the highest message
    * level seen.
@@ -99,6 +99,13 @@ public enum PluginMessageType implements MessageTypeInt {
       "%s: assuming pixels for length %s", MessageLevel.WARNING),
   MALFORMED_ENVELOPE(
       "%s: malformed envelope around cajoled code", MessageLevel.ERROR),
+  SHORTENED_LOCAL_NAMES(
+      "%s: shortened %s local names, reducing minified size from %s to %s",
+      MessageLevel.SUMMARY),
+  POOLED_RUNTIME_LOOKUPS(
+      "%s: pooled %s runtime lookups and collapsed %s temporaries, reducing"
+      + " minified size from %s to %s",
+      MessageLevel.SUMMARY),
   ;
 
   private final String formatString;
@@ -14,6 +14,10 @@
 
 package com.google.caja.plugin;
 
+import com.google.caja.util.CompileBudget;
+
+import java.util.regex.Pattern;
+
 /**
  * For a plugin, determines how its external dependencies are translated.
  */
@@ -26,6 +30,14 @@ public final class PluginMeta {
   private boolean debugMode;
   /** True if the source should be treated as Valija */
   private boolean valijaMode;
+  /** True if local variables in the output should be renamed to short names. */
+  private boolean shortenLocalNames;
+  /** True if repeated runtime lookups in the output should be pooled. */
+  private boolean poolRuntimeLookups;
+  /** Bounds the cost of compiling the plugin. */
+  private CompileBudget compileBudget = CompileBudget.UNLIMITED;
+  /** The gadget's id class if known at cajole time, or null. */
+  private String idClass;
 
   public PluginMeta() {
     this(PluginEnvironment.CLOSED_PLUGIN_ENVIRONMENT);
@@ -57,4 +69,59 @@ public final class PluginMeta {
   public boolean isValijaMode() { return valijaMode; }
 
   public void setValijaMode(boolean valijaMode) { this.valijaMode = valijaMode; }
+
+  /**
+   * True if local variables in the output should be renamed to short names.
+   * @see com.google.caja.plugin.stages.ShortenLocalNamesStage
+   */
+  public boolean isShortenLocalNames() { return shortenLocalNames; }
+
+  public void setShortenLocalNames(boolean shortenLocalNames) {
+    this.shortenLocalNames = shortenLocalNames;
+  }
+
+  /**
+   * True if repeated string literals and runtime functions in the output
+   * should be pooled into module level variables.
+   * @see com.google.caja.plugin.stages.PoolRuntimeLookupsStage
+   */
+  public boolean isPoolRuntimeLookups() { return poolRuntimeLookups; }
+
+  public void setPoolRuntimeLookups(boolean poolRuntimeLookups) {
+    this.poolRuntimeLookups = poolRuntimeLookups;
+  }
+
+  /**
+   * Bounds the cost of compiling the plugin.  If
+   * {@link CompileBudget#UNLIMITED unlimited}, the budget installed on the
+   * compiling thread, if any, applies.
+   */
+  public CompileBudget getCompileBudget() { return compileBudget; }
+
+  public void setCompileBudget(CompileBudget compileBudget) {
+    if (compileBudget == null) { throw new NullPointerException(); }
+    this.compileBudget = compileBudget;
+  }
+
+  /**
+   * The class, e.g. {@code g123___}, that the gadget's style rules are
+   * restricted to if it is known at cajole time.  If null, it is only known
+   * when the module is loaded, so style-sheets are compiled to JavaScript.
+   * @see com.google.caja.plugin.stages.CompileCssStage
+   */
+  public String getIdClass() { return idClass; }
+
+  /**
+   * @param idClass null, or the value that {@code IMPORTS___.getIdClass___()}
+   *     will return when the gadget is loaded.  Must be a CSS identifier.
+   */
+  public void setIdClass(String idClass) {
+    if (idClass != null && !ID_CLASS.matcher(idClass).matches()) {
+      throw new IllegalArgumentException(idClass);
+    }
+    this.idClass = idClass;
+  }
+
+  private static final Pattern ID_CLASS = Pattern.compile(
+      "[a-zA-Z_][a-zA-Z0-9_\\-]*");
 }
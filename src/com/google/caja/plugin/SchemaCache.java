@@ -0,0 +1,283 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.config.ConfigUtil;
+import com.google.caja.config.ImportResolver;
+import com.google.caja.config.WhiteList;
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.ParseException;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.MessageType;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.Pair;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A process-wide cache of schemas built from custom whitelists, so that
+ * each {@link Config#getCssSchema} and {@link Config#getHtmlSchema} does not
+ * reparse the whitelists and rebuild the schema.
+ * <p>
+ * Entries are keyed by the whitelist URIs, and are only reused while the
+ * content of every whitelist read to build the schema, including imported
+ * ones, hashes to the same value as when the schema was built.  Schemas
+ * whose whitelists could not be loaded are not cached.
+ *
+ * @author mikesamuel@gmail.com
+ */
+final class SchemaCache {
+  private static final int MAX_ENTRIES = 16;
+
+  private static final Map<List<URI>, Entry<CssSchema>> CSS_SCHEMAS
+      = new Lru<CssSchema>();
+  private static final Map<List<URI>, Entry<HtmlSchema>> HTML_SCHEMAS
+      = new Lru<HtmlSchema>();
+
+  /**
+   * The whitelists that {@link Config} uses by default.  Schemas for these
+   * are read from snapshots generated at build time, so the command line
+   * compiler only parses JSON when given custom whitelists.
+   */
+  private static final List<URI> DEFAULT_CSS_WHITELISTS = Arrays.asList(
+      URI.create(Config.DEFAULT_CSS_PROPERTY_WHITELIST),
+      URI.create(Config.CSS_FUNCTION_WHITELIST));
+  private static final String DEFAULT_CSS_SNAPSHOT = "css21-schema.snapshot";
+  private static final List<URI> DEFAULT_HTML_WHITELISTS = Arrays.asList(
+      URI.create(Config.DEFAULT_HTML_ELEMENT_WHITELIST),
+      URI.create(Config.DEFAULT_HTML_ATTRIBUTE_WHITELIST));
+  private static final String DEFAULT_HTML_SNAPSHOT = "html4-schema.snapshot";
+
+  /** The number of whitelists parsed, so tests can tell that none were. */
+  private static final AtomicInteger whitelistsParsed = new AtomicInteger();
+
+  /**
+   * The CSS schema for the given whitelists.
+   * @param mq receives any messages reported while loading the whitelists,
+   *     whether or not they were loaded by this call.
+   */
+  static CssSchema getCssSchema(
+      URI propertiesUri, URI functionsUri, MessageQueue mq) {
+    List<URI> key = Arrays.asList(propertiesUri, functionsUri);
+    synchronized (CSS_SCHEMAS) {
+      Entry<CssSchema> e = CSS_SCHEMAS.get(key);
+      if (e != null && e.isFresh()) { return e.replay(mq); }
+    }
+    if (key.equals(DEFAULT_CSS_WHITELISTS)) {
+      CssSchema snapshot = CssSchema.readSnapshotResource(DEFAULT_CSS_SNAPSHOT);
+      if (snapshot != null) {
+        Entry<CssSchema> e = new Entry<CssSchema>(snapshot);
+        synchronized (CSS_SCHEMAS) { CSS_SCHEMAS.put(key, e); }
+        return e.replay(mq);
+      }
+    }
+    Loader loader = new Loader();
+    CssSchema schema = new CssSchema(
+        loader.whitelist(propertiesUri), loader.whitelist(functionsUri));
+    Entry<CssSchema> e = new Entry<CssSchema>(schema, loader);
+    if (!loader.failed) {
+      synchronized (CSS_SCHEMAS) { CSS_SCHEMAS.put(key, e); }
+    }
+    return e.replay(mq);
+  }
+
+  /**
+   * The HTML schema for the given whitelists.
+   * @param mq receives any messages reported while loading the whitelists,
+   *     whether or not they were loaded by this call.
+   */
+  static HtmlSchema getHtmlSchema(
+      URI elementsUri, URI attributesUri, MessageQueue mq) {
+    List<URI> key = Arrays.asList(elementsUri, attributesUri);
+    synchronized (HTML_SCHEMAS) {
+      Entry<HtmlSchema> e = HTML_SCHEMAS.get(key);
+      if (e != null && e.isFresh()) { return e.replay(mq); }
+    }
+    if (key.equals(DEFAULT_HTML_WHITELISTS)) {
+      HtmlSchema snapshot = HtmlSchema.readSnapshotResource(
+          DEFAULT_HTML_SNAPSHOT);
+      if (snapshot != null) {
+        Entry<HtmlSchema> e = new Entry<HtmlSchema>(snapshot);
+        synchronized (HTML_SCHEMAS) { HTML_SCHEMAS.put(key, e); }
+        return e.replay(mq);
+      }
+    }
+    Loader loader = new Loader();
+    HtmlSchema schema = new HtmlSchema(
+        loader.whitelist(elementsUri), loader.whitelist(attributesUri));
+    Entry<HtmlSchema> e = new Entry<HtmlSchema>(schema, loader);
+    if (!loader.failed) {
+      synchronized (HTML_SCHEMAS) { HTML_SCHEMAS.put(key, e); }
+    }
+    return e.replay(mq);
+  }
+
+  static int getWhitelistsParsed() { return whitelistsParsed.get(); }
+
+  /** Forgets all cached schemas. */
+  static void clear() {
+    synchronized (CSS_SCHEMAS) { CSS_SCHEMAS.clear(); }
+    synchronized (HTML_SCHEMAS) { HTML_SCHEMAS.clear(); }
+  }
+
+  private static final class Entry<T> {
+    final T schema;
+    /** Hashes of the content of each whitelist read to build schema. */
+    final Map<URI, String> contentHashes;
+    final List<Message> messages;
+
+    Entry(T schema, Loader loader) {
+      this.schema = schema;
+      this.contentHashes = loader.contentHashes;
+      this.messages = loader.mq.getMessages();
+    }
+
+    /**
+     * An entry for a snapshot, which is always fresh since it is built from
+     * resources that ship with it.
+     */
+    Entry(T snapshot) {
+      this.schema = snapshot;
+      this.contentHashes = Collections.<URI, String>emptyMap();
+      this.messages = Collections.<Message>emptyList();
+    }
+
+    /** True if none of the whitelists have changed since schema was built. */
+    boolean isFresh() {
+      for (Map.Entry<URI, String> e : contentHashes.entrySet()) {
+        try {
+          Pair<Reader, FilePosition> content
+              = ConfigUtil.RESOURCE_RESOLVER.resolve(e.getKey(), null, null);
+          if (!e.getValue().equals(hash(readFully(content.a)))) {
+            return false;
+          }
+        } catch (IOException ex) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    T replay(MessageQueue mq) {
+      mq.getMessages().addAll(messages);
+      return schema;
+    }
+  }
+
+  /**
+   * Loads whitelists, recording the content of each file read, including
+   * those imported.
+   */
+  private static final class Loader implements ImportResolver {
+    final Map<URI, String> contentHashes = new LinkedHashMap<URI, String>();
+    final SimpleMessageQueue mq = new SimpleMessageQueue();
+    boolean failed;
+
+    public Pair<Reader, FilePosition> resolve(
+        URI ref, URI base, FilePosition refPos)
+        throws IOException {
+      Pair<Reader, FilePosition> content
+          = ConfigUtil.RESOURCE_RESOLVER.resolve(ref, base, refPos);
+      URI uri = base != null ? base.resolve(ref) : ref;
+      String text = readFully(content.a);
+      contentHashes.put(uri, hash(text));
+      return Pair.pair((Reader) new StringReader(text), content.b);
+    }
+
+    WhiteList whitelist(URI uri) {
+      whitelistsParsed.incrementAndGet();
+      try {
+        return ConfigUtil.loadWhiteListFromJson(uri, this, mq);
+      } catch (IOException ex) {
+        mq.addMessage(MessageType.IO_ERROR, new InputSource(uri));
+      } catch (ParseException ex) {
+        ex.toMessageQueue(mq);
+      }
+      failed = true;
+      // Return a Null instance if unable to load.
+      return new WhiteList() {
+          public Set<String> allowedItems() {
+            return Collections.<String>emptySet();
+          }
+          public Map<String, TypeDefinition> typeDefinitions() {
+            return Collections.<String, TypeDefinition>emptyMap();
+          }
+        };
+    }
+  }
+
+  private static final class Lru<T>
+      extends LinkedHashMap<List<URI>, Entry<T>> {
+    private static final long serialVersionUID = -2675014409563474473L;
+
+    Lru() { super(16, 0.75f, true); }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<List<URI>, Entry<T>> e) {
+      return size() > MAX_ENTRIES;
+    }
+  }
+
+  private static String readFully(Reader in) throws IOException {
+    try {
+      StringBuilder sb = new StringBuilder();
+      char[] buf = new char[4096];
+      for (int n; (n = in.read(buf)) > 0;) { sb.append(buf, 0, n); }
+      return sb.toString();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String hash(String content) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException(ex);
+    }
+    byte[] digest;
+    try {
+      digest = md.digest(content.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException ex) {
+      throw new RuntimeException(ex);
+    }
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+          .append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  private SchemaCache() {}
+}
@@ -0,0 +1,234 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.parser.AbstractParseTreeNode;
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.Visitor;
+import com.google.caja.parser.js.Expression;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.MessageQueue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the javascript that {@link HtmlCompiler} produced for a style
+ * attribute's value so that repeated values, e.g. {@code style="color: red"}
+ * on every row of a table, are validated and rewritten once.
+ * <p>
+ * Entries are keyed by the attribute's raw, still HTML-escaped, text and by
+ * the identity of everything else the output depends on: the CSS and HTML
+ * schemas, and the {@link PluginEnvironment} which rewrites URLs.
+ * On a hit, the cached expression is cloned, and it and the cached messages
+ * are moved to the position of the new attribute value.
+ * <p>
+ * The cache holds a bounded number of entries, evicting the least recently
+ * used.  It is not thread-safe.
+ *
+ * @author mikesamuel@gmail.com
+ */
+final class StyleAttribCache {
+  /** The default number of entries. */
+  static final int DEFAULT_MAX_ENTRIES = 256;
+
+  private final Map<Key, Entry> entries;
+  private int hits;
+
+  StyleAttribCache() { this(DEFAULT_MAX_ENTRIES); }
+
+  StyleAttribCache(final int maxEntries) {
+    if (maxEntries < 0) { throw new IllegalArgumentException(); }
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 3158624185938171406L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> e) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Looks up the output for a style attribute, moving it to valuePos.
+   * @param rawValue the attribute value's text as it appears in the source.
+   * @param valuePos the position of rawValue.
+   * @param mq receives the messages reported when the value was compiled.
+   * @return null if there is no entry.
+   */
+  Hit lookup(
+      CssSchema cssSchema, HtmlSchema htmlSchema, PluginEnvironment env,
+      String rawValue, FilePosition valuePos, MessageQueue mq) {
+    Entry e = entries.get(new Key(cssSchema, htmlSchema, env, rawValue));
+    if (e == null) { return null; }
+    ++hits;
+    PositionShift shift = new PositionShift(e.valuePos, valuePos);
+    for (Message msg : e.messages) {
+      mq.getMessages().add(shift.apply(msg));
+    }
+    if (e.output == null) { return new Hit(null); }
+    Expression output = (Expression) e.output.clone();
+    shift.apply(output);
+    return new Hit(output);
+  }
+
+  /**
+   * Records the output for a style attribute.
+   * @param output null if the value compiled to nothing.  Not retained, so
+   *     the caller may go on to modify it.
+   * @param messages the messages reported while compiling the value.
+   */
+  void store(
+      CssSchema cssSchema, HtmlSchema htmlSchema, PluginEnvironment env,
+      String rawValue, FilePosition valuePos, Expression output,
+      List<Message> messages) {
+    entries.put(
+        new Key(cssSchema, htmlSchema, env, rawValue),
+        new Entry(valuePos,
+                  output != null ? (Expression) output.clone() : null,
+                  new ArrayList<Message>(messages)));
+  }
+
+  /** The number of lookups that found an entry. */
+  int getHitCount() { return hits; }
+
+  /** The result of a successful {@link #lookup}. */
+  static final class Hit {
+    /**
+     * The value's javascript, positioned at the looked up value, or null if
+     * the value compiled to nothing.
+     */
+    final Expression output;
+
+    Hit(Expression output) { this.output = output; }
+  }
+
+  private static final class Key {
+    final CssSchema cssSchema;
+    final HtmlSchema htmlSchema;
+    final PluginEnvironment env;
+    final String rawValue;
+    final int hashCode;
+
+    Key(CssSchema cssSchema, HtmlSchema htmlSchema, PluginEnvironment env,
+        String rawValue) {
+      this.cssSchema = cssSchema;
+      this.htmlSchema = htmlSchema;
+      this.env = env;
+      this.rawValue = rawValue;
+      this.hashCode = rawValue.hashCode()
+          + 31 * (System.identityHashCode(cssSchema)
+                  + 31 * (System.identityHashCode(htmlSchema)
+                          + 31 * System.identityHashCode(env)));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) { return false; }
+      Key that = (Key) o;
+      return this.cssSchema == that.cssSchema
+          && this.htmlSchema == that.htmlSchema && this.env == that.env
+          && this.rawValue.equals(that.rawValue);
+    }
+
+    @Override
+    public int hashCode() { return hashCode; }
+  }
+
+  private static final class Entry {
+    final FilePosition valuePos;
+    final Expression output;
+    final List<Message> messages;
+
+    Entry(FilePosition valuePos, Expression output, List<Message> messages) {
+      this.valuePos = valuePos;
+      this.output = output;
+      this.messages = messages;
+    }
+  }
+
+  /**
+   * Maps positions within one occurrence of a value to the corresponding
+   * positions within another occurrence of the same text.
+   */
+  private static final class PositionShift {
+    final FilePosition from;
+    final FilePosition to;
+
+    PositionShift(FilePosition from, FilePosition to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    FilePosition apply(FilePosition p) {
+      if (p == null || !p.source().equals(from.source())
+          || p.startCharInFile() < from.startCharInFile()
+          || p.endCharInFile() > from.endCharInFile()) {
+        return p;
+      }
+      return FilePosition.instance(
+          to.source(),
+          shiftLine(p.startLineNo()),
+          p.startCharInFile() - from.startCharInFile() + to.startCharInFile(),
+          shiftCharInLine(p.startLineNo(), p.startCharInLine()),
+          shiftLine(p.endLineNo()),
+          p.endCharInFile() - from.startCharInFile() + to.startCharInFile(),
+          shiftCharInLine(p.endLineNo(), p.endCharInLine()));
+    }
+
+    private int shiftLine(int lineNo) {
+      return lineNo - from.startLineNo() + to.startLineNo();
+    }
+
+    /**
+     * Only the first line of the value is offset within its line.  Later
+     * lines start at the same column in both occurrences.
+     */
+    private int shiftCharInLine(int lineNo, int charInLine) {
+      return lineNo == from.startLineNo()
+          ? charInLine - from.startCharInLine() + to.startCharInLine()
+          : charInLine;
+    }
+
+    Message apply(Message msg) {
+      List<MessagePart> parts = msg.getMessageParts();
+      MessagePart[] shifted = new MessagePart[parts.size()];
+      for (int i = 0; i < shifted.length; ++i) {
+        MessagePart part = parts.get(i);
+        shifted[i] = part instanceof FilePosition
+            ? apply((FilePosition) part) : part;
+      }
+      return new Message(msg.getMessageType(), msg.getMessageLevel(), shifted);
+    }
+
+    void apply(ParseTreeNode node) {
+      node.acceptPreOrder(new Visitor() {
+        public boolean visit(AncestorChain<?> chain) {
+          ParseTreeNode n = chain.node;
+          FilePosition p = n.getFilePosition();
+          FilePosition q = apply(p);
+          if (q != p) { ((AbstractParseTreeNode) n).setFilePosition(q); }
+          return true;
+        }
+      }, null);
+    }
+  }
+}
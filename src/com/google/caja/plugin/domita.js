@@ -381,6 +381,9 @@ var attachDocumentStub = (function () {
       var parts = declarations[i].split(':');
       var property = trimCssSpaces(parts[0]).toLowerCase();
       var value = trimCssSpaces(parts.slice(1).join(":"));
+      // The members of css.properties are regular expressions, or table
+      // driven matchers if css-defs.js was generated by
+      // CssPropertyPatterns.MatcherBuilder.  Both have a test method.
       if (css.properties.hasOwnProperty(property)
           && css.properties[property].test(value + ' ')) {
         sanitizedDeclarations.push(property + ': ' + value);
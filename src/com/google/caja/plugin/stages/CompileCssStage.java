@@ -29,17 +29,32 @@ import java.util.ListIterator;
  * Compiles CSS style-sheets to JavaScript which outputs the same CSS, but with
  * rules only affecting nodes that are children of a class whose name contains
  * the gadget id.
+ * <p>
+ * If the gadget's {@link com.google.caja.plugin.PluginMeta#getIdClass id class}
+ * is known at cajole time, style-sheets without dynamic parts are instead
+ * rewritten in place and left as CSS jobs, which
+ * {@link com.google.caja.plugin.PluginCompiler#getStaticCss} combines.
  *
  * @author mikesamuel@gmail.com
  */
 public final class CompileCssStage implements Pipeline.Stage<Jobs> {
   public boolean apply(Jobs jobs) {
+    String idClass = jobs.getPluginMeta().getIdClass();
+    // Static CSS is loaded before the module emits any CSS, so to preserve
+    // the cascade, only style-sheets before the first that has to be emitted
+    // by JavaScript can be static.
+    boolean allStatic = idClass != null;
+    CssCompiler compiler = new CssCompiler();
     for (ListIterator<Job> it = jobs.getJobs().listIterator(); it.hasNext();) {
       Job job = it.next();
       if (job.getType() != Job.JobType.CSS) { continue; }
+      CssTree.StyleSheet ss = job.getRoot().cast(CssTree.StyleSheet.class).node;
+      if (allStatic && compiler.compileCssStatically(ss, idClass)) {
+        continue;
+      }
+      allStatic = false;
       it.remove();
-      Statement js = new CssCompiler().compileCss(
-          job.getRoot().cast(CssTree.StyleSheet.class).node);
+      Statement js = compiler.compileCss(ss);
       it.add(new Job(new AncestorChain<Statement>(new TranslatedCode(js))));
     }
     return jobs.hasNoFatalErrors();
@@ -0,0 +1,515 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin.stages;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.Keyword;
+import com.google.caja.parser.MutableParseTreeNode;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.Declaration;
+import com.google.caja.parser.js.Expression;
+import com.google.caja.parser.js.ExpressionStmt;
+import com.google.caja.parser.js.FunctionConstructor;
+import com.google.caja.parser.js.FunctionDeclaration;
+import com.google.caja.parser.js.Identifier;
+import com.google.caja.parser.js.MultiDeclaration;
+import com.google.caja.parser.js.ObjectConstructor;
+import com.google.caja.parser.js.Operation;
+import com.google.caja.parser.js.Operator;
+import com.google.caja.parser.js.Reference;
+import com.google.caja.parser.js.Statement;
+import com.google.caja.parser.js.StringLiteral;
+import com.google.caja.parser.js.WithStmt;
+import com.google.caja.parser.quasiliteral.QuasiBuilder;
+import com.google.caja.plugin.Job;
+import com.google.caja.plugin.Jobs;
+import com.google.caja.plugin.PluginMessageType;
+import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.util.Pair;
+import com.google.caja.util.Pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Shrinks cajoled modules by hoisting lookups that the rewriters repeat into
+ * variables declared at the top of the module function.
+ * <p>
+ * The rewriters emit fast paths like
+ * {@code o.p_canRead___ ? o.p : ___.readPub(o, 'p')} for every property
+ * access, so a module repeats the same property name strings and the same
+ * {@code ___} members many times.  This stage rewrites
+ * <pre>
+ * ___.loadModule({
+ *   'instantiate': function (___, IMPORTS___) {
+ *     ...
+ *     x0___ = ___.readPub(o, 'length');
+ *     ...
+ *     x1___ = ___.readPub(p, 'length');
+ *     ...
+ *   }, ...
+ * })
+ * </pre>
+ * to
+ * <pre>
+ * ___.loadModule({
+ *   'instantiate': function (___, IMPORTS___) {
+ *     var a = ___.readPub, b = 'length';
+ *     ...
+ *     x0___ = a(o, b);
+ *     ...
+ *     x0___ = a(p, b);
+ *     ...
+ *   }, ...
+ * })
+ * </pre>
+ * <p>
+ * A string literal or {@code ___} member is only pooled if that makes the
+ * minified output smaller.  Pool variables get names that appear nowhere in
+ * the module, so they can't mask or be masked by another variable.
+ * String literals that are object keys or expression statements are not
+ * pooled since the former can't be expressions and the latter may be
+ * directives.
+ * <p>
+ * Only the {@code ___} members in {@link #POOLABLE_MEMBERS} are pooled.  Each
+ * is a function in <tt>cajita.js</tt> that does not use {@code this}, so it
+ * works the same when called via a variable.  Members are not pooled in
+ * debug mode since <tt>cajita-debugmode.js</tt> replaces them when
+ * {@code ___.useDebugSymbols} runs at the top of the module.
+ * <p>
+ * This stage also collapses temporaries.  The rewriters declare a new
+ * temporary, {@code x<i>N</i>___} or {@code $caja$<i>N</i>}, at the top of
+ * the function for each expression that needs one, and always assign it
+ * before reading it in that expression.  So temporaries that are only used in
+ * different statements of the same function body can share a variable.
+ * <p>
+ * This stage is a no-op unless
+ * {@link com.google.caja.plugin.PluginMeta#isPoolRuntimeLookups} is set.
+ *
+ * @author mikesamuel@gmail.com
+ */
+public final class PoolRuntimeLookupsStage implements Pipeline.Stage<Jobs> {
+  /** {@code ___} members that can be called without {@code ___} as this. */
+  static final Set<String> POOLABLE_MEMBERS = new HashSet<String>(
+      Arrays.asList(
+          "args", "asFunc", "callPub", "canEnum", "construct", "ctor",
+          "deletePub", "frozenFunc", "func", "initializeMap", "inPub",
+          "primFreeze", "readImport", "readPub", "setPub", "setStatic",
+          "tameException", "typeOf"));
+
+  /** Names of the temporaries the rewriters declare. */
+  private static final Pattern TEMPORARY = Pattern.compile(
+      "x[0-9]+___|\\$caja\\$[0-9]+");
+
+  public boolean apply(Jobs jobs) {
+    if (!jobs.getPluginMeta().isPoolRuntimeLookups()) { return true; }
+    boolean poolMembers = !jobs.getPluginMeta().isDebugMode();
+    MessageContext mc = jobs.getMessageContext();
+    for (Job job : jobs.getJobsByType(Job.JobType.JAVASCRIPT)) {
+      // May not be a block if the cajita rewriter does not run due to errors.
+      if (!(job.getRoot().node instanceof Block)) { continue; }
+      Block js = job.getRoot().cast(Block.class).node;
+      FunctionConstructor module = getModuleFunction(js);
+      if (module == null) { continue; }
+      int sizeBefore = ShortenLocalNamesStage.minifiedSize(js, mc);
+      Pooler pooler = new Pooler(poolMembers);
+      if (!pooler.pool(module)) { continue; }
+      jobs.getMessageQueue().addMessage(
+          PluginMessageType.POOLED_RUNTIME_LOOKUPS, js.getFilePosition(),
+          MessagePart.Factory.valueOf(pooler.nPooled),
+          MessagePart.Factory.valueOf(pooler.nCollapsed),
+          MessagePart.Factory.valueOf(sizeBefore),
+          MessagePart.Factory.valueOf(
+              ShortenLocalNamesStage.minifiedSize(js, mc)));
+    }
+    return jobs.hasNoFatalErrors();
+  }
+
+  /**
+   * The {@code instantiate} function of the module envelope, or null if js
+   * is not a module envelope.
+   */
+  private static FunctionConstructor getModuleFunction(Block js) {
+    Map<String, ParseTreeNode> bindings
+        = new LinkedHashMap<String, ParseTreeNode>();
+    if (!QuasiBuilder.match("{ ___.loadModule({@keys*: @values*}); }",
+                            js, bindings)) {
+      return null;
+    }
+    List<? extends ParseTreeNode> keys = bindings.get("keys").children();
+    List<? extends ParseTreeNode> values = bindings.get("values").children();
+    for (int i = 0; i < keys.size(); ++i) {
+      if ("instantiate".equals(
+              ((StringLiteral) keys.get(i)).getUnquotedValue())
+          && QuasiBuilder.match(
+              "function (___, IMPORTS___) { @body* }", values.get(i))) {
+        return (FunctionConstructor) values.get(i);
+      }
+    }
+    return null;
+  }
+
+  private static final class Pooler {
+    final boolean poolMembers;
+    /** Every identifier in the module so pool variables don't collide. */
+    final Set<String> identifiers = new HashSet<String>();
+    /** Maps unquoted string values to the literals with that value. */
+    final Map<String, List<Pair<MutableParseTreeNode, StringLiteral>>> strings
+        = new LinkedHashMap<String,
+                            List<Pair<MutableParseTreeNode, StringLiteral>>>();
+    /** Maps {@code ___} member names to calls of that member. */
+    final Map<String, List<Operation>> memberCalls
+        = new LinkedHashMap<String, List<Operation>>();
+    /** Function bodies in which to collapse temporaries. */
+    final List<Block> bodies = new ArrayList<Block>();
+    /** True if {@code ___} is redeclared inside the module. */
+    boolean tcbMasked;
+    boolean unsafe;
+    int nPooled;
+    int nCollapsed;
+
+    Pooler(boolean poolMembers) { this.poolMembers = poolMembers; }
+
+    /** @return true if module was changed. */
+    boolean pool(FunctionConstructor module) {
+      bodies.add(module.getBody());
+      collect(module.getBody(), module);
+      if (unsafe) { return false; }
+      for (Block body : bodies) { nCollapsed += collapseTemporaries(body); }
+
+      // Give the shortest names to the values that occur most.
+      List<Candidate> candidates = new ArrayList<Candidate>();
+      for (Map.Entry<String, List<Pair<MutableParseTreeNode, StringLiteral>>>
+           e : strings.entrySet()) {
+        candidates.add(new Candidate(
+            StringLiteral.toQuotedValue(e.getKey()).length(), e.getKey(),
+            e.getValue().size()));
+      }
+      if (poolMembers && !tcbMasked) {
+        for (Map.Entry<String, List<Operation>> e : memberCalls.entrySet()) {
+          candidates.add(new Candidate(
+              "___.".length() + e.getKey().length(), e.getKey(),
+              -e.getValue().size()));
+        }
+      }
+      Collections.sort(candidates, new Comparator<Candidate>() {
+        public int compare(Candidate a, Candidate b) {
+          return b.totalLength() - a.totalLength();
+        }
+      });
+
+      List<Declaration> pool = new ArrayList<Declaration>();
+      int counter = 0;
+      for (Candidate c : candidates) {
+        String name;
+        int nameCounter = counter;
+        do {
+          name = ShortenLocalNamesStage.nameFor(nameCounter++);
+        } while (identifiers.contains(name)
+                 || Keyword.fromString(name) != null);
+        int n = Math.abs(c.count);
+        // var <name>=<value>,
+        int cost = name.length() + c.length + 2;
+        if (n * (c.length - name.length()) <= cost) { continue; }
+        counter = nameCounter;
+        Expression value;
+        if (c.count > 0) {
+          value = replaceStrings(c.value, name);
+        } else {
+          value = replaceMemberCalls(c.value, name);
+        }
+        pool.add(new Declaration(
+            FilePosition.UNKNOWN, new Identifier(FilePosition.UNKNOWN, name),
+            value));
+        ++nPooled;
+      }
+      if (!pool.isEmpty()) {
+        Block body = module.getBody();
+        Statement first = body.children().isEmpty()
+            ? null : body.children().get(0);
+        body.insertBefore(
+            pool.size() == 1
+            ? pool.get(0) : new MultiDeclaration(FilePosition.UNKNOWN, pool),
+            first);
+      }
+      return nPooled != 0 || nCollapsed != 0;
+    }
+
+    private void collect(ParseTreeNode node, ParseTreeNode parent) {
+      if (node instanceof Identifier) {
+        String name = ((Identifier) node).getName();
+        if (name != null) { identifiers.add(name); }
+      } else if (node instanceof WithStmt) {
+        unsafe = true;
+      } else if (node instanceof FunctionConstructor) {
+        bodies.add(((FunctionConstructor) node).getBody());
+      } else if (node instanceof Declaration) {
+        if ("___".equals(((Declaration) node).getIdentifierName())) {
+          tcbMasked = true;
+        }
+      } else if (node instanceof StringLiteral) {
+        if (!(parent instanceof ExpressionStmt || isObjectKey(node, parent))) {
+          String value = ((StringLiteral) node).getUnquotedValue();
+          List<Pair<MutableParseTreeNode, StringLiteral>> uses
+              = strings.get(value);
+          if (uses == null) {
+            strings.put(
+                value,
+                uses = new ArrayList<
+                    Pair<MutableParseTreeNode, StringLiteral>>());
+          }
+          uses.add(Pair.pair((MutableParseTreeNode) parent,
+                             (StringLiteral) node));
+        }
+      } else if (node instanceof Operation) {
+        String member = getTcbMemberCalled((Operation) node);
+        if (member != null) {
+          List<Operation> calls = memberCalls.get(member);
+          if (calls == null) {
+            memberCalls.put(member, calls = new ArrayList<Operation>());
+          }
+          calls.add((Operation) node);
+        }
+      }
+      for (ParseTreeNode child : node.children()) { collect(child, node); }
+    }
+
+    private Expression replaceStrings(String value, String name) {
+      StringLiteral lit = null;
+      for (Pair<MutableParseTreeNode, StringLiteral> use
+           : strings.get(value)) {
+        lit = use.b;
+        replaceIfChild(
+            use.a, use.b,
+            new Reference(new Identifier(use.b.getFilePosition(), name)));
+      }
+      return new StringLiteral(lit.getFilePosition(), lit.getValue());
+    }
+
+    private Expression replaceMemberCalls(String member, String name) {
+      Operation fn = null;
+      for (Operation call : memberCalls.get(member)) {
+        Expression callee = call.children().get(0);
+        if (!(callee instanceof Operation)) { continue; }  // Already replaced.
+        fn = (Operation) callee;
+        call.replaceChild(
+            new Reference(new Identifier(fn.getFilePosition(), name)), fn);
+      }
+      return (Expression) fn.clone();
+    }
+  }
+
+  /** A string literal or {@code ___} member that could be pooled. */
+  private static final class Candidate {
+    /** The minified length of the value. */
+    final int length;
+    final String value;
+    /** Positive for string literals, negative for {@code ___} members. */
+    final int count;
+
+    Candidate(int length, String value, int count) {
+      this.length = length;
+      this.value = value;
+      this.count = count;
+    }
+
+    int totalLength() { return length * Math.abs(count); }
+  }
+
+  /**
+   * Lets temporaries that are used in different statements of body share a
+   * variable.
+   * @return the number of temporaries removed.
+   */
+  private static int collapseTemporaries(Block body) {
+    // The start of scope declarations of temporaries.
+    Map<String, Declaration> temps = new LinkedHashMap<String, Declaration>();
+    for (Statement s : body.children()) {
+      if (s instanceof Declaration && !(s instanceof FunctionDeclaration)) {
+        Declaration d = (Declaration) s;
+        if (d.getInitializer() == null
+            && TEMPORARY.matcher(d.getIdentifierName()).matches()
+            && !temps.containsKey(d.getIdentifierName())) {
+          temps.put(d.getIdentifierName(), d);
+        }
+      }
+    }
+    if (temps.size() < 2) { return 0; }
+
+    TemporaryUses uses = new TemporaryUses(temps.keySet());
+    List<? extends Statement> stmts = body.children();
+    for (int i = 0, n = stmts.size(); i < n; ++i) {
+      Statement s = stmts.get(i);
+      if (s instanceof Declaration
+          && temps.get(((Declaration) s).getIdentifierName()) == s) {
+        continue;
+      }
+      uses.collect(s, null, i, null);
+    }
+
+    // Give the i-th temporary used in each statement the i-th shared name.
+    List<String> sharedNames = new ArrayList<String>();
+    Map<String, String> renames = new HashMap<String, String>();
+    for (List<String> tempsInStmt : uses.byStatement.values()) {
+      int k = 0;
+      for (String temp : tempsInStmt) {
+        if (uses.unsafe.contains(temp)) { continue; }
+        if (k == sharedNames.size()) { sharedNames.add(temp); }
+        String shared = sharedNames.get(k++);
+        if (!shared.equals(temp)) { renames.put(temp, shared); }
+      }
+    }
+    for (Map.Entry<String, String> e : renames.entrySet()) {
+      for (Reference ref : uses.refs.get(e.getKey())) {
+        if (ref.getIdentifierName().equals(e.getKey())) {
+          ref.replaceChild(
+              new Identifier(ref.getFilePosition(), e.getValue()),
+              ref.getIdentifier());
+        }
+      }
+      body.removeChild(temps.get(e.getKey()));
+    }
+    return renames.size();
+  }
+
+  /** The uses of temporaries in the statements of a function body. */
+  private static final class TemporaryUses {
+    final Set<String> temps;
+    /** Maps statement indices to the temporaries used in them in order. */
+    final Map<Integer, List<String>> byStatement
+        = new LinkedHashMap<Integer, List<String>>();
+    /** Maps temporaries to the index of the statement that uses them. */
+    final Map<String, Integer> statements = new HashMap<String, Integer>();
+    final Map<String, List<Reference>> refs
+        = new HashMap<String, List<Reference>>();
+    /**
+     * Temporaries that are used in more than one statement, in a closure, or
+     * are declared elsewhere.
+     */
+    final Set<String> unsafe = new HashSet<String>();
+
+    TemporaryUses(Set<String> temps) { this.temps = temps; }
+
+    /**
+     * @param masked names declared in the closures that contain node, which
+     *     mask the temporaries of the same name.  Null outside closures.
+     */
+    void collect(
+        ParseTreeNode node, ParseTreeNode parent, int stmt, Set<String> masked) {
+      if (node instanceof FunctionConstructor) {
+        // The rewriters declare a closure's temporaries at the top of its
+        // body, so they are often named the same as the enclosing function's.
+        FunctionConstructor fn = (FunctionConstructor) node;
+        masked = masked != null
+            ? new HashSet<String>(masked) : new HashSet<String>();
+        for (Declaration param : fn.getParams()) {
+          masked.add(param.getIdentifierName());
+        }
+        for (Statement s : fn.getBody().children()) {
+          if (s instanceof Declaration) {
+            masked.add(((Declaration) s).getIdentifierName());
+          }
+        }
+      } else if (node instanceof Declaration) {
+        String name = ((Declaration) node).getIdentifierName();
+        if (temps.contains(name) && (masked == null || !masked.contains(name))) {
+          unsafe.add(name);
+        }
+      } else if (node instanceof Reference && !isPropertyName(node, parent)) {
+        String name = ((Reference) node).getIdentifierName();
+        if (temps.contains(name)) {
+          if (masked != null) {
+            // Used in a closure.
+            if (!masked.contains(name)) { unsafe.add(name); }
+          } else {
+            Integer usedIn = statements.get(name);
+            if (usedIn == null) {
+              statements.put(name, stmt);
+              List<String> inStmt = byStatement.get(stmt);
+              if (inStmt == null) {
+                byStatement.put(stmt, inStmt = new ArrayList<String>());
+              }
+              inStmt.add(name);
+              refs.put(name, new ArrayList<Reference>());
+            } else if (usedIn != stmt) {
+              unsafe.add(name);
+            }
+            refs.get(name).add((Reference) node);
+          }
+        }
+      }
+      for (ParseTreeNode child : node.children()) {
+        collect(child, node, stmt, masked);
+      }
+    }
+  }
+
+  private static boolean isObjectKey(ParseTreeNode node, ParseTreeNode parent) {
+    if (!(parent instanceof ObjectConstructor)) { return false; }
+    List<? extends ParseTreeNode> children = parent.children();
+    for (int i = 0, n = children.size(); i < n; i += 2) {
+      if (children.get(i) == node) { return true; }
+    }
+    return false;
+  }
+
+  private static boolean isPropertyName(
+      ParseTreeNode node, ParseTreeNode parent) {
+    return parent instanceof Operation
+        && ((Operation) parent).getOperator() == Operator.MEMBER_ACCESS
+        && parent.children().get(1) == node;
+  }
+
+  /**
+   * The name of the {@code ___} member called if call is a call like
+   * {@code ___.readPub(...)} to a member in {@link #POOLABLE_MEMBERS}.
+   */
+  private static String getTcbMemberCalled(Operation call) {
+    if (call.getOperator() != Operator.FUNCTION_CALL) { return null; }
+    Expression callee = call.children().get(0);
+    if (!(callee instanceof Operation)) { return null; }
+    Operation member = (Operation) callee;
+    if (member.getOperator() != Operator.MEMBER_ACCESS) { return null; }
+    Expression obj = member.children().get(0);
+    if (!(obj instanceof Reference
+          && "___".equals(((Reference) obj).getIdentifierName()))) {
+      return null;
+    }
+    String name = ((Reference) member.children().get(1)).getIdentifierName();
+    return POOLABLE_MEMBERS.contains(name) ? name : null;
+  }
+
+  private static void replaceIfChild(
+      MutableParseTreeNode parent, ParseTreeNode child,
+      ParseTreeNode replacement) {
+    for (ParseTreeNode c : parent.children()) {
+      if (c == child) {
+        parent.replaceChild(replacement, child);
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,426 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin.stages;
+
+import com.google.caja.lexer.Keyword;
+import com.google.caja.parser.MutableParseTreeNode;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.CatchStmt;
+import com.google.caja.parser.js.Declaration;
+import com.google.caja.parser.js.FunctionConstructor;
+import com.google.caja.parser.js.FunctionDeclaration;
+import com.google.caja.parser.js.Identifier;
+import com.google.caja.parser.js.Operation;
+import com.google.caja.parser.js.Operator;
+import com.google.caja.parser.js.Reference;
+import com.google.caja.parser.js.WithStmt;
+import com.google.caja.plugin.Job;
+import com.google.caja.plugin.Jobs;
+import com.google.caja.plugin.PluginMessageType;
+import com.google.caja.render.JsMinimalPrinter;
+import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.RenderContext;
+import com.google.caja.util.Pair;
+import com.google.caja.util.Pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renames function local variables in cajoled code to the shortest names that
+ * do not change the meaning of the program.
+ * <p>
+ * Cajoled code keeps the names of the variables in the source, and the
+ * rewriters introduce long names for temporaries such as {@code x0___},
+ * {@code $caja$1}, and {@code moduleResult___}.  This stage renames every
+ * variable, parameter, function declaration, and exception declared inside a
+ * function, so that
+ * <pre>
+ * function (___, IMPORTS___) {
+ *   var moduleResult___ = ___.NO_RESULT;
+ *   var x0___;
+ *   ...
+ * }
+ * </pre>
+ * becomes
+ * <pre>
+ * function (___, IMPORTS___) {
+ *   var a = ___.NO_RESULT;
+ *   var b;
+ *   ...
+ * }
+ * </pre>
+ * <p>
+ * Only identifiers are renamed, so property names, including the
+ * {@code ___} suffixed properties the runtime reads and the keys of
+ * {@code IMPORTS___}, are untouched.  Global declarations, free variables, the
+ * {@code ___} and {@code IMPORTS___} parameters of the module function, and
+ * the names of function expressions, which some interpreters leak into the
+ * enclosing scope, keep their names, and no variable is renamed to any of
+ * those names.  Code that uses {@code with} or {@code eval} is left alone.
+ * <p>
+ * This does not use {@link com.google.caja.parser.quasiliteral.Scope} since
+ * that describes the scopes of the input as the rewriters see it, where
+ * synthetic functions are transparent and synthetic references are ignored.
+ * Instead it uses the ES3 scoping rules on the output.
+ * <p>
+ * This stage is a no-op unless
+ * {@link com.google.caja.plugin.PluginMeta#isShortenLocalNames} is set.
+ *
+ * @author mikesamuel@gmail.com
+ */
+public final class ShortenLocalNamesStage implements Pipeline.Stage<Jobs> {
+  public boolean apply(Jobs jobs) {
+    if (!jobs.getPluginMeta().isShortenLocalNames()) { return true; }
+    MessageContext mc = jobs.getMessageContext();
+    for (Job job : jobs.getJobsByType(Job.JobType.JAVASCRIPT)) {
+      // May not be a block if the cajita rewriter does not run due to errors.
+      if (!(job.getRoot().node instanceof Block)) { continue; }
+      Block js = job.getRoot().cast(Block.class).node;
+      int sizeBefore = minifiedSize(js, mc);
+      int nRenamed = shorten(js);
+      if (nRenamed <= 0) { continue; }
+      jobs.getMessageQueue().addMessage(
+          PluginMessageType.SHORTENED_LOCAL_NAMES, js.getFilePosition(),
+          MessagePart.Factory.valueOf(nRenamed),
+          MessagePart.Factory.valueOf(sizeBefore),
+          MessagePart.Factory.valueOf(minifiedSize(js, mc)));
+    }
+    return jobs.hasNoFatalErrors();
+  }
+
+  /**
+   * Renames local variables in the given tree in place.
+   * @return the number of variables renamed, or -1 if the tree uses constructs
+   *     that make renaming unsafe, in which case the tree is unchanged.
+   */
+  static int shorten(ParseTreeNode root) {
+    NameAnalysis analysis = new NameAnalysis();
+    analysis.visit(root, null, analysis.globalScope);
+    if (!analysis.resolve()) { return -1; }
+    return analysis.rename();
+  }
+
+  static int minifiedSize(ParseTreeNode node, MessageContext mc) {
+    StringBuilder sb = new StringBuilder();
+    JsMinimalPrinter pp = new JsMinimalPrinter(sb, null);
+    node.render(new RenderContext(mc, pp));
+    pp.noMoreTokens();
+    return sb.length();
+  }
+
+  /** Names that are never renamed, and that nothing is renamed to. */
+  private static final Set<String> PINNED_NAMES = new HashSet<String>();
+  static {
+    PINNED_NAMES.add("___");
+    PINNED_NAMES.add("IMPORTS___");
+    PINNED_NAMES.add("arguments");
+    PINNED_NAMES.add("eval");
+  }
+
+  /** A variable. */
+  private static final class Binding {
+    final String name;
+    /**
+     * False if the binding keeps its name.  A binding with the same name
+     * as a pinned binding in the same scope is the same variable so is
+     * also pinned.
+     */
+    boolean renamable;
+    /** Pairs of identifiers that name the binding and their parents. */
+    final List<Pair<MutableParseTreeNode, Identifier>> uses
+        = new ArrayList<Pair<MutableParseTreeNode, Identifier>>();
+    String newName;
+
+    Binding(String name, boolean renamable) {
+      this.name = name;
+      this.renamable = renamable;
+    }
+  }
+
+  /** A function body, catch block, or the global scope. */
+  private static final class LocalScope {
+    final LocalScope parent;
+    /** True for function bodies and the global scope. */
+    final boolean isFunction;
+    /** False for the global scope and catch blocks outside any function. */
+    final boolean renamable;
+    final Map<String, Binding> bindings = new LinkedHashMap<String, Binding>();
+    /**
+     * Bindings in enclosing scopes that are referenced from within this scope.
+     * These may not be masked by a binding in this scope.
+     */
+    final Set<Binding> through = new LinkedHashSet<Binding>();
+    final List<LocalScope> children = new ArrayList<LocalScope>();
+
+    LocalScope(LocalScope parent, boolean isFunction) {
+      this.parent = parent;
+      this.isFunction = isFunction;
+      this.renamable = parent != null
+          && (isFunction || parent.renamable);
+      if (parent != null) { parent.children.add(this); }
+    }
+
+    LocalScope functionScope() {
+      LocalScope s = this;
+      while (!s.isFunction) { s = s.parent; }
+      return s;
+    }
+
+    Binding declare(String name, boolean renamable) {
+      Binding b = bindings.get(name);
+      if (b == null) {
+        b = new Binding(name, this.renamable && renamable);
+        bindings.put(name, b);
+      } else if (!renamable) {
+        b.renamable = false;
+      }
+      return b;
+    }
+  }
+
+  private static final class NameAnalysis {
+    final LocalScope globalScope = new LocalScope(null, true);
+    /** Names that are never used as new names. */
+    final Set<String> reserved = new HashSet<String>();
+    /** References to resolve once all declarations have been seen. */
+    final List<Pair<LocalScope, Reference>> refs
+        = new ArrayList<Pair<LocalScope, Reference>>();
+    /**
+     * Maps references to what they resolve to, so that a reference that
+     * appears in more than one place in the tree is only renamed once.
+     */
+    final Map<Reference, Binding> resolved
+        = new IdentityHashMap<Reference, Binding>();
+    boolean unsafe;
+
+    void visit(ParseTreeNode node, ParseTreeNode parent, LocalScope scope) {
+      if (node instanceof FunctionDeclaration) {
+        FunctionDeclaration decl = (FunctionDeclaration) node;
+        Binding b = declareVar(scope, decl);
+        FunctionConstructor fn = decl.getInitializer();
+        visitFunction(fn, scope, fn.getIdentifierName() == null
+                      || !fn.getIdentifierName().equals(b.name) ? null : b);
+      } else if (node instanceof FunctionConstructor) {
+        visitFunction((FunctionConstructor) node, scope, null);
+      } else if (node instanceof CatchStmt) {
+        CatchStmt c = (CatchStmt) node;
+        LocalScope catchScope = new LocalScope(scope, false);
+        declare(catchScope, c.getException(),
+                c.getException().getIdentifier());
+        visit(c.getBody(), c, catchScope);
+      } else if (node instanceof Declaration) {
+        Declaration decl = (Declaration) node;
+        declareVar(scope, decl);
+        if (decl.getInitializer() != null) {
+          visit(decl.getInitializer(), decl, scope);
+        }
+      } else if (node instanceof Reference) {
+        // The right operand of '.' is a property name.
+        if (!(parent instanceof Operation
+              && ((Operation) parent).getOperator() == Operator.MEMBER_ACCESS
+              && parent.children().get(1) == node)) {
+          refs.add(Pair.pair(scope, (Reference) node));
+        }
+      } else {
+        if (node instanceof WithStmt) { unsafe = true; }
+        for (ParseTreeNode child : node.children()) {
+          visit(child, node, scope);
+        }
+      }
+    }
+
+    /**
+     * @param declared the binding of the function declaration whose value is
+     *     fn, if fn's name is that binding's name, or null.
+     */
+    private void visitFunction(
+        FunctionConstructor fn, LocalScope scope, Binding declared) {
+      LocalScope fnScope = new LocalScope(scope, true);
+      Identifier name = fn.getIdentifier();
+      if (declared != null) {
+        declared.uses.add(
+            Pair.<MutableParseTreeNode, Identifier>pair(fn, name));
+      } else if (name.getName() != null) {
+        // JScript defines the name of a function expression in the enclosing
+        // scope too, so neither rename it nor rename anything to it.
+        declare(fnScope, fn, name).renamable = false;
+        reserved.add(name.getName());
+      }
+      for (Declaration param : fn.getParams()) {
+        declare(fnScope, param, param.getIdentifier());
+      }
+      visit(fn.getBody(), fn, fnScope);
+    }
+
+    /** Declares a variable in the function that contains scope. */
+    private Binding declareVar(LocalScope scope, Declaration decl) {
+      String name = decl.getIdentifierName();
+      // catch (e) { var e = 0; } declares a variable in the function scope
+      // but assigns to the exception.
+      for (LocalScope s = scope; !s.isFunction; s = s.parent) {
+        if (s.bindings.containsKey(name)) { unsafe = true; }
+      }
+      Binding b = declare(scope.functionScope(), decl, decl.getIdentifier());
+      // The declaration names the function scope's binding from within any
+      // catch blocks, so their exceptions may not be renamed to mask it.
+      for (LocalScope s = scope; !s.isFunction; s = s.parent) {
+        s.through.add(b);
+      }
+      return b;
+    }
+
+    private Binding declare(
+        LocalScope scope, MutableParseTreeNode parent, Identifier ident) {
+      String name = ident.getName();
+      boolean renamable = !PINNED_NAMES.contains(name);
+      Binding b = scope.declare(name, renamable);
+      b.uses.add(Pair.<MutableParseTreeNode, Identifier>pair(parent, ident));
+      return b;
+    }
+
+    /**
+     * Resolves references to bindings and computes the names that can't be
+     * used.
+     * @return false if the tree can't be safely renamed.
+     */
+    boolean resolve() {
+      for (Pair<LocalScope, Reference> ref : refs) {
+        String name = ref.b.getIdentifierName();
+        LocalScope s = ref.a;
+        Binding b = null;
+        while (s != null && (b = s.bindings.get(name)) == null) {
+          s = s.parent;
+        }
+        if (b == null) {
+          // A free variable.
+          if ("eval".equals(name)) { unsafe = true; }
+          reserved.add(name);
+        } else {
+          for (LocalScope t = ref.a; t != s; t = t.parent) {
+            t.through.add(b);
+          }
+        }
+        if (resolved.containsKey(ref.b)) {
+          // Shared between places where it means different things.
+          if (resolved.get(ref.b) != b) { unsafe = true; }
+        } else {
+          resolved.put(ref.b, b);
+          if (b != null) {
+            b.uses.add(
+                Pair.<MutableParseTreeNode, Identifier>pair(
+                    ref.b, ref.b.getIdentifier()));
+          }
+        }
+      }
+      if (unsafe) { return false; }
+      reserveUnrenamable(globalScope);
+      return true;
+    }
+
+    private void reserveUnrenamable(LocalScope scope) {
+      for (Binding b : scope.bindings.values()) {
+        if (!b.renamable) { reserved.add(b.name); }
+      }
+      for (LocalScope child : scope.children) { reserveUnrenamable(child); }
+    }
+
+    int rename() {
+      int nRenamed = chooseNames(globalScope);
+      if (nRenamed != 0) { replaceIdentifiers(globalScope); }
+      return nRenamed;
+    }
+
+    /** Picks names for the bindings in scope and the scopes it contains. */
+    private int chooseNames(LocalScope scope) {
+      int nRenamed = 0;
+      if (scope.renamable) {
+        Set<String> used = new HashSet<String>();
+        for (Binding b : scope.through) { used.add(newName(b)); }
+        List<Binding> bindings = new ArrayList<Binding>(
+            scope.bindings.values());
+        // Give the shortest names to the most used bindings.
+        Collections.sort(bindings, new Comparator<Binding>() {
+          public int compare(Binding a, Binding b) {
+            return b.uses.size() - a.uses.size();
+          }
+        });
+        for (Binding b : bindings) {
+          if (!b.renamable) { used.add(b.name); }
+        }
+        int counter = 0;
+        for (Binding b : bindings) {
+          if (!b.renamable) { continue; }
+          String name;
+          do {
+            name = nameFor(counter++);
+          } while (used.contains(name) || reserved.contains(name)
+                   || Keyword.fromString(name) != null);
+          used.add(name);
+          b.newName = name;
+          ++nRenamed;
+        }
+      }
+      for (LocalScope child : scope.children) {
+        nRenamed += chooseNames(child);
+      }
+      return nRenamed;
+    }
+
+    private void replaceIdentifiers(LocalScope scope) {
+      for (Binding b : scope.bindings.values()) {
+        if (b.newName == null) { continue; }
+        for (Pair<MutableParseTreeNode, Identifier> use : b.uses) {
+          // A declaration may appear in more than one place in the tree.
+          if (use.a.children().get(0) != use.b) { continue; }
+          use.a.replaceChild(
+              new Identifier(use.b.getFilePosition(), b.newName), use.b);
+        }
+      }
+      for (LocalScope child : scope.children) { replaceIdentifiers(child); }
+    }
+  }
+
+  private static String newName(Binding b) {
+    return b.newName != null ? b.newName : b.name;
+  }
+
+  private static final String FIRST_CHARS
+      = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ$_";
+  private static final String REST_CHARS = FIRST_CHARS + "0123456789";
+
+  /** The i-th shortest identifier, which may be a keyword. */
+  static String nameFor(int i) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(FIRST_CHARS.charAt(i % FIRST_CHARS.length()));
+    i /= FIRST_CHARS.length();
+    while (i > 0) {
+      --i;
+      sb.append(REST_CHARS.charAt(i % REST_CHARS.length()));
+      i /= REST_CHARS.length();
+    }
+    return sb.toString();
+  }
+}
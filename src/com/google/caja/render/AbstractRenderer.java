@@ -14,6 +14,7 @@
 
 package com.google.caja.render;
 
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.util.Callback;
 
@@ -73,4 +74,8 @@ abstract class AbstractRenderer implements TokenConsumer {
       ioExceptionHandler.handle(ex);
     }
   }
+
+  public final void consume(CharSequence text, JsTokenType type) {
+    consume(text.toString());
+  }
 }
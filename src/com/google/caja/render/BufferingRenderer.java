@@ -16,26 +16,68 @@ package com.google.caja.render;
 
 import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.JsLexer;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.util.Callback;
+import com.google.caja.util.CompileBudget;
 import java.io.Flushable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 
 /**
  * An abstract renderer for JavaScript tokens that ensures that implementations
  * don't fall afoul of JavaScript's syntactic quirks.
+ * <p>
+ * Output is written as tokens are consumed.  Only a run of comments and
+ * whitespace is buffered, until the next token is seen, since whether
+ * comments may contain line-breaks depends on the tokens around them.
  *
  * @author mikesamuel@gmail.com
  */
 abstract class BufferingRenderer implements TokenConsumer {
-  private final List<Object> pending = new ArrayList<Object>();
   private final Appendable out;
   private final Callback<IOException> ioExceptionHandler;
+  /**
+   * Charged as tokens are consumed, before they are written.  Output within
+   * the limit will already have been written when the limit is exceeded, so
+   * callers that must fail cleanly, such as the cajoling service, hold the
+   * output back until rendering completes.
+   */
+  private final CompileBudget budget = CompileBudget.current();
   /** True if an IOException has been raised. */
   private boolean closed;
 
+  // State for emit.
+  private JsTokenAdjacencyChecker adjChecker = new JsTokenAdjacencyChecker();
+  /** The last non-space/comment token written. */
+  private String lastToken;
+  private boolean noOutputWritten = true;
+  /** The space or newline token to write before the next token, if any. */
+  private String pendingSpace;
+  /**
+   * Tokens emitted since the first comment that has not been written, none
+   * of which are anything but comments and whitespace.
+   */
+  private final List<String> pendingComments = new ArrayList<String>();
+
+  // State for the source map.
+  /** Receives a mapping for each token written, if not null. */
+  private SourceMapBuilder sourceMap;
+  /** The last position marked, or null if it is not known. */
+  private FilePosition currentMark;
+  /**
+   * The marks in effect when each token that is not a comment or whitespace
+   * was consumed, for such tokens that have not yet been written.
+   */
+  private final LinkedList<FilePosition> pendingMarks
+      = new LinkedList<FilePosition>();
+  /** The zero-indexed line in out at which the next char will be written. */
+  private int outLine;
+  /** The zero-indexed column in out at which the next char will be written. */
+  private int outColumn;
+
   /**
    * @param out receives the rendered text.
    * @param ioExceptionHandler receives exceptions thrown by out.
@@ -45,76 +87,34 @@ abstract class BufferingRenderer implements TokenConsumer {
     this.ioExceptionHandler = ioExceptionHandler;
   }
 
+  /**
+   * Causes a mapping from each token written to the position marked before
+   * it was consumed to be added to the given source map.
+   * Must be called before any tokens are consumed.
+   * @param sourceMap null to stop building a source map.
+   */
+  public final void setSourceMap(SourceMapBuilder sourceMap) {
+    this.sourceMap = sourceMap;
+  }
+
   /**
    * @throws NullPointerException if out raises an IOException
    *     and ioExceptionHandler is null.
    */
   public final void noMoreTokens() {
-    JsTokenAdjacencyChecker adjChecker = new JsTokenAdjacencyChecker();
-    try {
-      String lastToken = null;
-      boolean noOutputWritten = true;
-      List<String> outputTokens = splitTokens(pending);
-      pending.clear();
-      String pendingSpace = null;
-      for (int i = 0, nTokens = outputTokens.size(); i < nTokens; ++i) {
-        String token = outputTokens.get(i);
-        if (token.charAt(0) == '\n' || " ".equals(token)) {
-          pendingSpace = token;
-          continue;
-        }
-        if (TokenClassification.isComment(token)) {
-          // Make sure we don't get into a situation where we have to output
-          // a newline to end a line comment, but can't output a newline because
-          // it would break a restricted production.
-          // When we see a line comment, scan forward until the next non-comment
-          // token.  If the canBreakBetween check fails, then remove any
-          // line-breaks by rewriting the comment.
-          // We have to rewrite multi-line block comments, since ES3.1 says that
-          // a multi-line comment is replaced with a newline for the purposes
-          // of semicolon insertion.
-          String nextToken = null;
-          for (int j = i + 1; j < nTokens; ++j) {
-            switch (TokenClassification.classify(outputTokens.get(j))) {
-              case SPACE: case LINEBREAK: case COMMENT: continue;
-              default: break;
-            }
-            nextToken = outputTokens.get(j);
-            break;
-          }
-          if (!JsRenderUtil.canBreakBetween(lastToken, nextToken)) {
-            token = removeLinebreaksFromComment(token);
-            if (pendingSpace != null) { pendingSpace = " "; }
-          }
-        }
-        boolean needSpaceBefore = adjChecker.needSpaceBefore(token);
-        if (pendingSpace == null && needSpaceBefore) {
-          pendingSpace = " ";
-        }
-        if (pendingSpace != null) {
-          if (pendingSpace.charAt(0) == '\n') {
-            if (!JsRenderUtil.canBreakBetween(lastToken, token)) {
-              pendingSpace = " ";
-            } else if (noOutputWritten) {
-              pendingSpace = pendingSpace.substring(1);
-            }
-          }
-          out.append(pendingSpace);
-          pendingSpace = null;
-        }
-        out.append(token);
-        noOutputWritten = false;
-        if (!TokenClassification.isComment(token)) {
-          lastToken = token;
-        }
-      }
-      if (out instanceof Flushable) {
+    finishTokens();
+    writePendingComments(null);
+    // Any tokens received after this are rendered as a separate program.
+    adjChecker = new JsTokenAdjacencyChecker();
+    lastToken = null;
+    noOutputWritten = true;
+    pendingSpace = null;
+    pendingMarks.clear();
+    if (out instanceof Flushable && !closed) {
+      try {
         ((Flushable) out).flush();
-      }
-    } catch (IOException ex) {
-      if (!closed) {
-        closed = true;
-        ioExceptionHandler.handle(ex);
+      } catch (IOException ex) {
+        handle(ex);
       }
     }
   }
@@ -125,15 +125,199 @@ abstract class BufferingRenderer implements TokenConsumer {
    * are well-formed, do not contain code (e.g. conditional compilation code),
    * and do not violate any containment requirements, such as not containing the
    * string {@code </script>}.
+   *
+   * @throws NullPointerException if out raises an IOException
+   *     and ioExceptionHandler is null.
    */
   public final void consume(String text) {
     if ("".equals(text)) { return; }
-    pending.add(text);
+    budget.chargeOutput(text.length());
+    TokenClassification tClass = TokenClassification.classify(text);
+    if (sourceMap != null) { recordMark(tClass); }
+    processToken(text, tClass);
+  }
+
+  /**
+   * Like {@link #consume(String)} but uses the type instead of classifying
+   * the token's text.
+   */
+  public final void consume(CharSequence text, JsTokenType type) {
+    String s = text.toString();
+    if ("".equals(s)) { return; }
+    budget.chargeOutput(s.length());
+    // Comments are still classified by their text since that checks that
+    // they are well-formed.
+    TokenClassification tClass = type == JsTokenType.COMMENT
+        ? TokenClassification.classify(s) : TokenClassification.forType(type);
+    if (sourceMap != null) { recordMark(tClass); }
+    processToken(s, tClass);
   }
 
   public final void mark(FilePosition mark) {
     if (mark != null && !FilePosition.UNKNOWN.equals(mark.source())) {
-      pending.add(mark);
+      processMark(mark);
+      // Predefined positions have no line number to map to.
+      currentMark = mark.startLineNo() > 0 ? mark : null;
+    } else {
+      currentMark = null;
+    }
+  }
+
+  /**
+   * Implementations pass on every token that is not a comment or whitespace,
+   * and in the same order, so the mark for each such token can be looked up
+   * when it is written.
+   */
+  private void recordMark(TokenClassification tClass) {
+    switch (tClass) {
+      case SPACE: case LINEBREAK: case COMMENT: break;
+      default: pendingMarks.add(currentMark); break;
+    }
+  }
+
+  /**
+   * Receives tokens and calls {@link #emit} with output tokens consisting of
+   * non-whitespace tokens, space tokens ({@code " "}) and newline tokens
+   * ({@code '\n'} followed by any number of spaces).
+   * @param tClass the classification of text.
+   */
+  abstract void processToken(String text, TokenClassification tClass);
+
+  /**
+   * Receives a mark that applies to the tokens following it.
+   * Ignored by default.
+   */
+  void processMark(FilePosition mark) {}
+
+  /**
+   * Called when there are no more tokens so that implementations can emit
+   * any output tokens that they have not.
+   */
+  abstract void finishTokens();
+
+  /**
+   * Writes an output token.
+   * @param token a non-whitespace token, or a space or newline token as
+   *     described at {@link #processToken}.
+   */
+  final void emit(String token) {
+    emit(token, TokenClassification.classify(token));
+  }
+
+  /**
+   * Writes an output token whose classification is known.
+   * @param tClass the classification of token.
+   */
+  final void emit(String token, TokenClassification tClass) {
+    if (pendingComments.isEmpty()) {
+      if (tClass != TokenClassification.COMMENT) {
+        write(token, tClass, null);
+        return;
+      }
+    } else {
+      switch (tClass) {
+        case SPACE: case LINEBREAK: case COMMENT: break;
+        default:
+          writePendingComments(token);
+          write(token, tClass, null);
+          return;
+      }
+    }
+    pendingComments.add(token);
+  }
+
+  /**
+   * @param nextToken the first token after the pending comments that is not
+   *     a comment or whitespace, or null if none.
+   */
+  private void writePendingComments(String nextToken) {
+    for (int i = 0, n = pendingComments.size(); i < n; ++i) {
+      String token = pendingComments.get(i);
+      write(token, TokenClassification.classify(token), nextToken);
+    }
+    pendingComments.clear();
+  }
+
+  /**
+   * @param nextToken if token is a comment, the next token that is not a
+   *     comment or whitespace, or null if none.
+   */
+  private void write(
+      String token, TokenClassification tClass, String nextToken) {
+    if (closed) { return; }
+    if (token.charAt(0) == '\n' || " ".equals(token)) {
+      pendingSpace = token;
+      return;
+    }
+    if (tClass == TokenClassification.COMMENT) {
+      // Make sure we don't get into a situation where we have to output
+      // a newline to end a line comment, but can't output a newline because
+      // it would break a restricted production.
+      // When we see a line comment, look forward to the next non-comment
+      // token.  If the canBreakBetween check fails, then remove any
+      // line-breaks by rewriting the comment.
+      // We have to rewrite multi-line block comments, since ES3.1 says that
+      // a multi-line comment is replaced with a newline for the purposes
+      // of semicolon insertion.
+      if (!JsRenderUtil.canBreakBetween(lastToken, nextToken)) {
+        token = removeLinebreaksFromComment(token);
+        if (pendingSpace != null) { pendingSpace = " "; }
+      }
+    }
+    boolean needSpaceBefore = adjChecker.needSpaceBefore(token, tClass);
+    if (pendingSpace == null && needSpaceBefore) {
+      pendingSpace = " ";
+    }
+    try {
+      if (pendingSpace != null) {
+        if (pendingSpace.charAt(0) == '\n') {
+          if (!JsRenderUtil.canBreakBetween(lastToken, token)) {
+            pendingSpace = " ";
+          } else if (noOutputWritten) {
+            pendingSpace = pendingSpace.substring(1);
+          }
+        }
+        out.append(pendingSpace);
+        if (sourceMap != null) { advance(pendingSpace); }
+        pendingSpace = null;
+      }
+      if (sourceMap != null) {
+        if (tClass != TokenClassification.COMMENT) {
+          FilePosition mark = pendingMarks.poll();
+          if (mark != null) {
+            sourceMap.addMapping(outLine, outColumn, mark);
+          }
+        }
+        advance(token);
+      }
+      out.append(token);
+    } catch (IOException ex) {
+      handle(ex);
+      return;
+    }
+    noOutputWritten = false;
+    if (tClass != TokenClassification.COMMENT) {
+      lastToken = token;
+    }
+  }
+
+  /** Updates the output position past text. */
+  private void advance(String text) {
+    int lastNewline = text.lastIndexOf('\n');
+    if (lastNewline < 0) {
+      outColumn += text.length();
+    } else {
+      for (int i = lastNewline; i >= 0; i = text.lastIndexOf('\n', i - 1)) {
+        ++outLine;
+      }
+      outColumn = text.length() - (lastNewline + 1);
+    }
+  }
+
+  private void handle(IOException ex) {
+    if (!closed) {
+      closed = true;
+      ioExceptionHandler.handle(ex);
     }
   }
 
@@ -156,15 +340,4 @@ abstract class BufferingRenderer implements TokenConsumer {
     }
     return sb.toString();
   }
-
-  /**
-   * Generates a list of output tokens consisting of non-whitespace tokens,
-   * space tokens ({@code " "}) and newline tokens ({@code '\n'} followed by
-   * any number of spaces).
-   * @param tokens a heterogenous array containing {@code String} tokens and
-   *   {@code FilePosition} marks.
-   * @return the strings in tokens in order with newline and space tokens
-   *   inserted as appropriate.
-   */
-  abstract List<String> splitTokens(List<Object> tokens);
 }
@@ -19,83 +19,131 @@ import java.util.LinkedList;
 import java.util.List;
 
 /**
- * Wraps a list of tokens and provides operations that may replace
- * whitespace tokens in that list.
+ * Receives the tokens produced by a {@link Spacer}, replaces whitespace
+ * tokens with line-breaks and indentation, and passes them on to a renderer.
+ * <p>
+ * This works in two passes, {@link #breakLines} and {@link #indent}, each of
+ * which only looks at a small window of tokens, so tokens are written as
+ * soon as they can no longer change instead of once all tokens have been
+ * seen.
+ * <p>
+ * Below, the index of a token is its position in the stream of tokens
+ * received, or for the indent pass, its position in the stream of tokens
+ * received by that pass plus any newlines it has inserted.
  */
-class Indenter {
-  /** The token list.  Modified in place. */
-  final List<String> tokens;
+final class Indenter {
   /**
-   * Maps indices of brackets ("(", ")", etc.) in tokens to the corresponding
-   * open or close bracket.
-   * <p>
-   * For each token in tokens, the corresponding element in this list is
-   * -1 if token is not a bracket, or the index of the close/open bracket token
-   * that ends/starts the run of tokens started/opened by token.
-   * <p>
-   * For example, for the code {@code f(a[i])}, tokens is
-   * {@code ["f", "(", "a", "[", "i", "]", ")"]}, and
-   * {@code match[1] == 6 && match[6] == 1} as the outer parentheses match up,
-   * {@code match[3] == 5 && match[5] == 3} as the inner parentheses match up.
-   * and all the other elements in match are -1.
+   * The number of tokens past a space that breakLines examines to decide
+   * whether to break a line there.
    */
-  final int[] match;
+  private static final int LINE_BREAK_LOOKAHEAD = 6;
   /**
-   * For each token in tokens, true if the closest containing pair of brackets
-   * are parentheses.  If token is a bracket, then the corresponding element
-   * of parenthetical is true iff token is a parenthesis.
-   * <p>
-   * For example, for the code {@code f(a[i])}, tokens is
-   * {@code ["f", "(", "a", "[", "i", "]", ")"]}, and
-   * parenthetical is {@code [false, true, true, false, false, false, true]}
+   * Written tokens are removed from the indent pass's window in batches of
+   * at least this size.
+   */
+  private static final int COMPACTION_THRESHOLD = 256;
+
+  private final BufferingRenderer out;
+  private final int lineLengthLimit;
+
+  // State for breakLines.
+  /** Tokens that have not yet been examined by breakLines. */
+  private final List<Tok> unbroken = new ArrayList<Tok>();
+  /** The number of tokens received. */
+  private int nTokens;
+  /** The last token examined by breakLines. */
+  private Tok lastBroken;
+  /** The bracketed blocks open after the last token received. */
+  private final List<Bracket> openBrackets = new ArrayList<Bracket>();
+  /** True if the innermost open bracket is a parenthesis. */
+  private boolean isParenthetical;
+  /** The last token received that is not a comment or whitespace. */
+  private String lastSignificant;
+
+  // State for indent.
+  /**
+   * Tokens that have been examined by breakLines but not written.
+   * Those before written have been written.
    */
-  final boolean[] parenthetical;
+  private final List<String> unindented = new ArrayList<String>();
+  /** The index of the first token in unindented. */
+  private int unindentedBase;
+  /** The number of tokens in unindented that have been written. */
+  private int written;
+  /**
+   * The parenthetical flag of each token examined by breakLines, starting
+   * with the token at index parentheticalBase.
+   */
+  private final List<Boolean> parenthetical = new ArrayList<Boolean>();
+  private int parentheticalBase;
+  /** The number of tokens examined by breakLines. */
+  private int nBroken;
+  /** The index of the next token to indent. */
+  private int pos;
+  private int charsInLine;  // count of chars since last newline token
+  private LinkedList<Indent> indents = new LinkedList<Indent>();
+  // Information about the last place at which we can insert a breakpoint
+  private int lastBreakPt = -1;
+  private LinkedList<Indent> indentsAtLastBreakPt = null;
+  private int charsInLineAtLastBreakPt = -1;
+
+  /**
+   * @param out receives the tokens via {@link BufferingRenderer#emit}.
+   */
+  Indenter(BufferingRenderer out, int lineLengthLimit) {
+    this.out = out;
+    this.lineLengthLimit = lineLengthLimit;
+    indents.add(new Indent(0, false));
+  }
 
-  Indenter(List<String> tokens) {
-    this.tokens = tokens;
-    match = new int[tokens.size()];
-    parenthetical = new boolean[tokens.size()];
-    // Keep track of the bracket blocks still open at point i.
-    List<Integer> openBracketStack = new ArrayList<Integer>();
-    // Whether the top element of openBracketStack is an open parenthesis.
-    boolean isParenthetical = false;
-    // Walk forward over tokens maintaining the open bracket stack.
-    // When we see a close bracket, set the elements in match corresponding to
-    // both the open bracket and the close bracket.
-    for (int i = 0, n = tokens.size(); i < n; ++i) {
-      parenthetical[i] = isParenthetical;
-      String tok = tokens.get(i);
-      if (tok.length() == 1) {
-        switch (tok.charAt(0)) {
+  /** Receives the next token. */
+  void addToken(String tok) {
+    Tok t = new Tok(tok);
+    int i = nTokens++;
+    // Keep track of the bracket blocks open and whether the closest
+    // containing pair of brackets are parentheses.
+    t.parenthetical = isParenthetical;
+    if (tok.length() == 1) {
+      switch (tok.charAt(0)) {
         case '(':
-          openBracketStack.add(i);
-          parenthetical[i] = isParenthetical = true;
+          t.bracket = new Bracket(i, true, "do".equals(lastSignificant));
+          openBrackets.add(t.bracket);
+          t.parenthetical = isParenthetical = true;
           break;
         case '[': case '{':
-          openBracketStack.add(i);
+          t.bracket = new Bracket(i, false, "do".equals(lastSignificant));
+          openBrackets.add(t.bracket);
           isParenthetical = false;
           break;
         case '}': case ']': case ')':
-          int last = openBracketStack.size() - 1;
+          int last = openBrackets.size() - 1;
           if (last >= 0) {
-            int openIdx = openBracketStack.remove(last);
-            match[openIdx] = i;
-            match[i] = openIdx;
+            t.bracket = openBrackets.remove(last);
+            t.bracket.close = i;
           }
           // Check whether the new topmost bracket is a parenthesis.
-          isParenthetical = (
-              last >= 1
-              && "(".equals(tokens.get(openBracketStack.get(last - 1))));
-          break;
-        default:
-          match[i] = -1;
+          isParenthetical = last >= 1 && openBrackets.get(last - 1).isParen;
           break;
-        }
       }
     }
-    for (int unclosedBracketIdx : openBracketStack) {
-      match[unclosedBracketIdx] = tokens.size();
+    if (!(TokenClassification.isComment(tok)
+          || Character.isWhitespace(tok.charAt(0)))) {
+      lastSignificant = tok;
     }
+    unbroken.add(t);
+    breakLines(false);
+  }
+
+  /** Called when there are no more tokens to write any remaining. */
+  void finish() {
+    breakLines(true);
+    indent(true);
+    // The indent pass never looks at as many tokens past the end as it has
+    // inserted newlines.  Those are written unchanged.
+    for (int i = written, n = unindented.size(); i < n; ++i) {
+      out.emit(unindented.get(i));
+    }
+    unindented.clear();
   }
 
   /**
@@ -105,97 +153,104 @@ class Indenter {
    * This does not need to worry about inserting newlines into restricted
    * productions since the superclass will convert to spaces any newlines that
    * would appear in a restricted context.
+   *
+   * @param eof true if there are no more tokens, so all remaining tokens can
+   *     be examined.
    */
-  void breakLines() {
-    for (int i = 0, last = tokens.size() - 1; i <= last; ++i) {
-      String tok = tokens.get(i);
-      if (!" ".equals(tok)) { continue; }
-      String prev = i != 0 ? tokens.get(i - 1) : null;
-      String next = i != last ? tokens.get(i + 1) : null;
-      boolean isBreak;
-      if ("{".equals(prev)) {
-        // Break inside curly blocks that are long.
-        // But not things like foo({})
-        isBreak = match[i - 1] - i > 6;
-      } else if ("}".equals(next)) {
-        // Matches the above.
-        isBreak = i - match[i + 1] > 6;
-      } else if (";".equals(prev)) {
-        // parenthetical check distinguishes { for(;;) } from { foo(); }
-        isBreak = !parenthetical[i];
-      } else if ("}".equals(prev)) {
-        if ("else".equals(next) || "catch".equals(next)
-            || "finally".equals(next)) {
-          isBreak = false;
-        } else if ("while".equals(next)) {
-          // Distinguish { do {} while (1); } from { {} while (1) {} }
-          isBreak = true;
-          int open = match[i - 1];
-          if (open > 0) {
-            for (int j = open; --j >= 0;) {
-              String t = tokens.get(j);
-              if ("do".equals(t)) {
-                isBreak = false;
-                break;
-              }
-              if (!(TokenClassification.isComment(t)
-                    || Character.isWhitespace(t.charAt(0)))) {
-                break;
-              }
-            }
+  private void breakLines(boolean eof) {
+    while (!unbroken.isEmpty()
+           && (eof || unbroken.size() > LINE_BREAK_LOOKAHEAD)) {
+      int i = nBroken;
+      Tok t = unbroken.remove(0);
+      if (" ".equals(t.text)) {
+        Tok prevTok = lastBroken;
+        Tok nextTok = !unbroken.isEmpty() ? unbroken.get(0) : null;
+        String prev = prevTok != null ? prevTok.text : null;
+        String next = nextTok != null ? nextTok.text : null;
+        boolean isBreak;
+        if ("{".equals(prev)) {
+          // Break inside curly blocks that are long.
+          // But not things like foo({})
+          int close = prevTok.bracket.close;
+          if (close < 0) {  // Unclosed
+            close = eof ? nTokens : Integer.MAX_VALUE;
           }
-        } else {
-          isBreak = true;
-        }
-      } else if (prev != null && TokenClassification.isComment(prev)) {
-        isBreak = true;
-      } else {
-        isBreak = false;
-      }
-      if (isBreak) {
-        if (next != null && TokenClassification.isComment(next)
-            && i + 2 <= last) {
-          String next2 = tokens.get(i + 2);
-          if ("\n".equals(next2) || " ".equals(next2)) {
-            tokens.set(i + 2, "\n");
+          isBreak = close - i > LINE_BREAK_LOOKAHEAD;
+        } else if ("}".equals(next)) {
+          // Matches the above.
+          int open = nextTok.bracket != null ? nextTok.bracket.open : 0;
+          isBreak = i - open > LINE_BREAK_LOOKAHEAD;
+        } else if (";".equals(prev)) {
+          // parenthetical check distinguishes { for(;;) } from { foo(); }
+          isBreak = !t.parenthetical;
+        } else if ("}".equals(prev)) {
+          if ("else".equals(next) || "catch".equals(next)
+              || "finally".equals(next)) {
             isBreak = false;
+          } else if ("while".equals(next)) {
+            // Distinguish { do {} while (1); } from { {} while (1) {} }
+            isBreak = prevTok.bracket == null || !prevTok.bracket.afterDo;
+          } else {
+            isBreak = true;
           }
+        } else if (prev != null && TokenClassification.isComment(prev)) {
+          isBreak = true;
+        } else {
+          isBreak = false;
         }
         if (isBreak) {
-          tokens.set(i, "\n");
+          if (next != null && TokenClassification.isComment(next)
+              && unbroken.size() >= 2) {
+            Tok next2 = unbroken.get(1);
+            if ("\n".equals(next2.text) || " ".equals(next2.text)) {
+              next2.text = "\n";
+              isBreak = false;
+            }
+          }
+          if (isBreak) {
+            t.text = "\n";
+          }
         }
       }
+      lastBroken = t;
+      ++nBroken;
+      unindented.add(t.text);
+      parenthetical.add(t.parenthetical);
     }
+    indent(eof);
   }
 
   /**
-   * Called once all the line-breaks are present to introduce indentation by
-   * looking at the stack of open bracketed blocks.
-   * Turns newline tokens in tokens into newlines followed by runs of spaces.
+   * Introduces indentation by looking at the stack of open bracketed blocks
+   * once all the line-breaks are present, and writes the tokens before the
+   * last point at which a line might be broken.
+   * Turns newline tokens into newlines followed by runs of spaces.
+   *
+   * @param eof true if breakLines has examined all tokens.
    */
-  void indent(int lineLengthLimit) {
-    int charsInLine = 0;  // count of chars since last newline token
-    LinkedList<Indent> indents = new LinkedList<Indent>();
-
-    // Information about the last place at which we can insert a breakpoint
-    int lastBreakPt = -1;
-    LinkedList<Indent> indentsAtLastBreakPt = null;
-    int charsInLineAtLastBreakPt = -1;
+  private void indent(boolean eof) {
+    // The number of tokens examined by breakLines.  While that is not known,
+    // this only looks at tokens whose index is less than nBroken, which is a
+    // lower bound.
+    int n = eof ? nBroken : Integer.MAX_VALUE;
+    for (int i = pos; i < nBroken; i = ++pos) {
+      String tok = token(i);
+      if (!eof && i + 1 >= nBroken && tok.length() == 1
+          && "([\n".indexOf(tok.charAt(0)) >= 0) {
+        break;  // Need to look at the next token.
+      }
 
-    indents.add(new Indent(0, false));
-    for (int i = 0, n = tokens.size(); i < n; ++i) {
-      String tok = tokens.get(i);
       charsInLine += tok.length();
 
       // If the line is too long, break it.
       if (lastBreakPt >= 0 && charsInLine >= lineLengthLimit
           && !(" ".equals(tok) || "\n".equals(tok))) {
-        if (" ".equals(tokens.get(lastBreakPt))) {
-          tokens.set(lastBreakPt, "\n");
-          i = lastBreakPt - 1;
+        if (" ".equals(token(lastBreakPt))) {
+          setToken(lastBreakPt, "\n");
+          pos = lastBreakPt - 1;
         } else {
-          tokens.add(lastBreakPt + 1, "\n");
-          i = lastBreakPt;
+          unindented.add(lastBreakPt + 1 - unindentedBase, "\n");
+          pos = lastBreakPt;
         }
         lastBreakPt = -1;
         indents = indentsAtLastBreakPt;
@@ -216,11 +271,13 @@ class Indenter {
       switch (tok.charAt(0)) {
         case '(': case '[':
           int indentLevel = charsInLine;
-          if (i + 1 < n && "\n".equals(tokens.get(i + 1))
+          if (i + 1 < n && "\n".equals(token(i + 1))
               || indentLevel > lineLengthLimit / 2) {
             indentLevel = Math.min(indentLevel, indents.get(0).spaces + 4);
           }
-          indents.addFirst(new Indent(indentLevel, parenthetical[i]));
+          // The flag is looked up by the index of the token in the stream
+          // before any newlines were inserted, as the indent pass always has.
+          indents.addFirst(new Indent(indentLevel, isParenthetical(i)));
           break;
         case '{':
           indents.set(0, indents.get(0).withInStatement(false));
@@ -236,7 +293,7 @@ class Indenter {
         case ' ': break;
         case '\n':
           if (i + 1 < n) {
-            String nextToken = tokens.get(i + 1);
+            String nextToken = token(i + 1);
             if (!"\n".equals(nextToken)) {
               charsInLine = indents.get(0).getIndentLevel();
               if (nextToken.length() == 1) {
@@ -251,7 +308,7 @@ class Indenter {
                          || "default".equals(nextToken)) {
                 charsInLine = Math.max(charsInLine - 2, 0);
               }
-              tokens.set(i, makeIndent(charsInLine));
+              setToken(i, makeIndent(charsInLine));
             }
           }
           lastBreakPt = -1;
@@ -276,6 +333,42 @@ class Indenter {
           break;
       }
     }
+    writeIndented();
+  }
+
+  /**
+   * Writes the tokens that the indent pass will not change, i.e. those
+   * before both the next token to indent and the last break point.
+   */
+  private void writeIndented() {
+    int end = (lastBreakPt >= 0 ? lastBreakPt : pos) - unindentedBase;
+    for (int i = written; i < end; ++i) {
+      out.emit(unindented.get(i));
+    }
+    if (end > written) { written = end; }
+    if (written >= COMPACTION_THRESHOLD && written * 2 >= unindented.size()) {
+      unindented.subList(0, written).clear();
+      unindentedBase += written;
+      written = 0;
+    }
+    int nUnneeded = unindentedBase - parentheticalBase;
+    if (nUnneeded >= COMPACTION_THRESHOLD
+        && nUnneeded * 2 >= parenthetical.size()) {
+      parenthetical.subList(0, nUnneeded).clear();
+      parentheticalBase += nUnneeded;
+    }
+  }
+
+  private String token(int i) {
+    return unindented.get(i - unindentedBase);
+  }
+
+  private void setToken(int i, String tok) {
+    unindented.set(i - unindentedBase, tok);
+  }
+
+  private boolean isParenthetical(int i) {
+    return parenthetical.get(i - parentheticalBase);
   }
 
   private static String makeIndent(int nSpaces) {
@@ -288,4 +381,39 @@ class Indenter {
     sb.append("                ", 0, nSpaces);
     return sb.toString();
   }
+
+  /** A token that has not been examined by breakLines. */
+  private static final class Tok {
+    /** The token text which breakLines may change from a space to a newline. */
+    String text;
+    /**
+     * True if the closest containing pair of brackets are parentheses.
+     * If the token is a bracket, true iff it is a parenthesis.
+     */
+    boolean parenthetical;
+    /** The bracket pair started or ended by the token, if any. */
+    Bracket bracket;
+
+    Tok(String text) { this.text = text; }
+  }
+
+  /** A pair of matching brackets. */
+  private static final class Bracket {
+    /** Index of the open bracket. */
+    final int open;
+    final boolean isParen;
+    /**
+     * True if the last token before the open bracket that is not a comment
+     * or whitespace is {@code do}.
+     */
+    final boolean afterDo;
+    /** Index of the close bracket, or -1 if not yet seen. */
+    int close = -1;
+
+    Bracket(int open, boolean isParen, boolean afterDo) {
+      this.open = open;
+      this.isParen = isParen;
+      this.afterDo = afterDo;
+    }
+  }
 }
@@ -14,11 +14,8 @@
 
 package com.google.caja.render;
 
-import com.google.caja.lexer.FilePosition;
 import com.google.caja.util.Callback;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * A compact JavaScript renderer.
@@ -53,42 +50,36 @@ public final class JsMinimalPrinter extends BufferingRenderer {
   }
 
   @Override
-  List<String> splitTokens(List<Object> tokens) {
-    List<String> outputTokens = new ArrayList<String>();
-
-    for (Object tokenEl : tokens) {
-      if (tokenEl instanceof FilePosition) { continue; }
-      String text = (String) tokenEl;
-      TokenClassification tClass = TokenClassification.classify(text);
-      if (tClass == null) { continue; }
-      switch (tClass) {
-        case LINEBREAK:
-        case SPACE:
-        case COMMENT:
-          continue;
-        default: break;
-      }
+  void processToken(String text, TokenClassification tClass) {
+    switch (tClass) {
+      case LINEBREAK:
+      case SPACE:
+      case COMMENT:
+        return;
+      default: break;
+    }
 
-      // Write any whitespace before the token.
-      if (adjChecker.needSpaceBefore(text)) {
-        // Some security tools/proxies/firewalls break on really long javascript
-        // lines.
-        if (charInLine >= lineLengthLimit
-            && JsRenderUtil.canBreakBetween(lastToken, text)) {
-          charInLine = 0;
-          outputTokens.add("\n");
-        } else if (charInLine != 0) {
-          ++charInLine;
-          outputTokens.add(" ");
-        }
+    // Write any whitespace before the token.
+    if (adjChecker.needSpaceBefore(text, tClass)) {
+      // Some security tools/proxies/firewalls break on really long javascript
+      // lines.
+      if (charInLine >= lineLengthLimit
+          && JsRenderUtil.canBreakBetween(lastToken, text)) {
+        charInLine = 0;
+        emit("\n", TokenClassification.LINEBREAK);
+      } else if (charInLine != 0) {
+        ++charInLine;
+        emit(" ", TokenClassification.SPACE);
       }
+    }
 
-      // Actually write the token.
-      charInLine += text.length();
-      outputTokens.add(text);
+    // Actually write the token.
+    charInLine += text.length();
+    emit(text, tClass);
 
-      lastToken = text;
-    }
-    return outputTokens;
+    lastToken = text;
   }
+
+  @Override
+  void finishTokens() {}
 }
@@ -18,7 +18,6 @@ import com.google.caja.lexer.FilePosition;
 import com.google.caja.util.Callback;
 
 import java.io.IOException;
-import java.util.List;
 
 /**
  * A formatter that indents code for a C-style language with statement
@@ -29,6 +28,8 @@ import java.util.List;
  */
 public final class JsPrettyPrinter extends BufferingRenderer {
   private int lineLengthLimit = 80;
+  /** Receives tokens until noMoreTokens is called. */
+  private Spacer spacer;
 
   /**
    * @param out receives the rendered text.
@@ -46,20 +47,27 @@ public final class JsPrettyPrinter extends BufferingRenderer {
   public int getLineLengthLimit() { return this.lineLengthLimit; }
 
   @Override
-  List<String> splitTokens(List<Object> tokens) {
-    Spacer spacer = new Spacer();
-    for (Object lineEl : tokens) {
-      if (lineEl instanceof FilePosition) {
-        spacer.processMark((FilePosition) lineEl);
-      } else {
-        spacer.processToken((String) lineEl);
-      }
+  void processToken(String text, TokenClassification tClass) {
+    spacer().processToken(text, tClass);
+  }
+
+  @Override
+  void processMark(FilePosition mark) {
+    spacer().processMark(mark);
+  }
+
+  @Override
+  void finishTokens() {
+    if (spacer != null) {
+      spacer.finish();
+      spacer = null;
     }
-    List<String> outputTokens = spacer.getOutputTokens();
+  }
 
-    Indenter indenter = new Indenter(outputTokens);
-    indenter.breakLines();
-    indenter.indent(lineLengthLimit);
-    return outputTokens;
+  private Spacer spacer() {
+    if (spacer == null) {
+      spacer = new Spacer(new Indenter(this, lineLengthLimit));
+    }
+    return spacer;
   }
 }
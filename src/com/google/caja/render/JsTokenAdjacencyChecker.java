@@ -35,13 +35,12 @@ final class JsTokenAdjacencyChecker {
 
   /**
    * @param text a javascript token.
+   * @param tClass the classification of text.
    * @return true if a token has been passed to needSpaceBefore and a space is
    *     needed between text and the last token passed to this method to avoid
    *     lexical ambiguity.
    */
-  boolean needSpaceBefore(String text) {
-    TokenClassification tClass = TokenClassification.classify(text);
-
+  boolean needSpaceBefore(String text, TokenClassification tClass) {
     switch (tClass) {
       case LINEBREAK:
       case SPACE:
@@ -0,0 +1,311 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.render;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
+import com.google.caja.lexer.TokenConsumer;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.Statement;
+import com.google.caja.reporting.RenderContext;
+import com.google.caja.reporting.Renderable;
+import com.google.caja.util.Callback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Renders large parse trees using several threads.
+ * <p>
+ * The statements of blocks are split into chunks which are rendered
+ * concurrently, each into a recording of the {@link TokenConsumer} calls it
+ * makes.  The tree is then rendered as usual on the calling thread, except
+ * that each chunked statement is replaced by a replay of its recording, in
+ * order, as the enclosing {@link Block} reaches it.  The renderer receives
+ * exactly the tokens and marks it would have had the tree been rendered
+ * sequentially, so spacing, line-breaks, indentation, and any source map are
+ * decided by the renderer just as they would be, and the output is the same.
+ * <p>
+ * What runs concurrently is the walk of the tree and the production of
+ * tokens, e.g. the escaping of string literals.  The renderer itself is not
+ * thread-safe so still runs on one thread, but it starts writing as soon as
+ * the first chunk is recorded.  Only a few chunks per thread are recorded
+ * ahead of the replay, and each recording is dropped once replayed, so the
+ * recordings never hold much of the output.
+ *
+ * @author mikesamuel@gmail.com
+ */
+public final class ParallelRendering {
+  /** Statements smaller than this are not worth a task of their own. */
+  private static final int MIN_CHUNK_NODES = 256;
+  /** Chunks per thread, so that threads that finish early can help out. */
+  private static final int CHUNKS_PER_THREAD = 4;
+  /**
+   * Chunks per thread that may be rendered ahead of the one being replayed,
+   * which bounds the memory held by recordings.
+   */
+  private static final int CHUNKS_AHEAD_PER_THREAD = 2;
+
+  /**
+   * Renders node to {@code rc.getOut()}, producing the same tokens as
+   * {@code node.render(rc)}.  Does not call {@link TokenConsumer#noMoreTokens}.
+   *
+   * @param executor runs the chunks.
+   * @param nThreads the number of threads executor uses, to size chunks.
+   */
+  public static void render(
+      ParseTreeNode node, RenderContext rc, ExecutorService executor,
+      int nThreads) {
+    Map<ParseTreeNode, Integer> sizes
+        = new IdentityHashMap<ParseTreeNode, Integer>();
+    int total = size(node, sizes);
+    int chunkSize = Math.max(
+        MIN_CHUNK_NODES, total / (Math.max(1, nThreads) * CHUNKS_PER_THREAD));
+    if (nThreads <= 1 || total < 2 * chunkSize) {
+      node.render(rc);
+      return;
+    }
+
+    Schedule schedule = new Schedule(
+        rc, executor, CHUNKS_AHEAD_PER_THREAD * nThreads);
+    try {
+      new Chunker(sizes, chunkSize, schedule).chunk(node);
+      schedule.advance(0);
+      node.render(rc.withPrerendered(schedule.recordings));
+    } finally {
+      // Don't leave chunks running if rendering fails.
+      schedule.cancel();
+    }
+  }
+
+  /** The number of nodes in the tree rooted at node. */
+  private static int size(
+      ParseTreeNode node, Map<ParseTreeNode, Integer> sizes) {
+    int size = 1;
+    for (ParseTreeNode child : node.children()) { size += size(child, sizes); }
+    sizes.put(node, size);
+    return size;
+  }
+
+  /**
+   * Finds the largest statements in blocks that are no larger than the chunk
+   * size, and groups runs of them into chunks in the order they are rendered.
+   */
+  private static final class Chunker {
+    final Map<ParseTreeNode, Integer> sizes;
+    final int chunkSize;
+    final Schedule schedule;
+
+    Chunker(Map<ParseTreeNode, Integer> sizes, int chunkSize,
+            Schedule schedule) {
+      this.sizes = sizes;
+      this.chunkSize = chunkSize;
+      this.schedule = schedule;
+    }
+
+    void chunk(ParseTreeNode node) {
+      if (!(node instanceof Block)) {
+        for (ParseTreeNode child : node.children()) { chunk(child); }
+        return;
+      }
+      Chunk run = new Chunk();
+      int runSize = 0;
+      for (Statement stmt : ((Block) node).children()) {
+        int size = sizes.get(stmt);
+        if (size > chunkSize) {
+          run = schedule.add(run);
+          runSize = 0;
+          chunk(stmt);
+          continue;
+        }
+        // A statement that appears more than once is rendered as usual.
+        if (schedule.recordings.containsKey(stmt)) { continue; }
+        Recording r = new Recording(stmt, run, schedule);
+        schedule.recordings.put(stmt, r);
+        run.recordings.add(r);
+        runSize += size;
+        if (runSize >= chunkSize) {
+          run = schedule.add(run);
+          runSize = 0;
+        }
+      }
+      schedule.add(run);
+    }
+  }
+
+  /** A run of statements rendered by one task. */
+  private static final class Chunk {
+    /** The position of this chunk in the rendering order. */
+    int index;
+    final List<Recording> recordings = new ArrayList<Recording>();
+    /** Set once the task that records this has been submitted. */
+    Future<?> done;
+  }
+
+  /**
+   * Submits chunks as the replay reaches them, so that only a bounded number
+   * are recorded ahead of the replay.
+   */
+  private static final class Schedule {
+    final RenderContext rc;
+    final ExecutorService executor;
+    final int maxAhead;
+    /** The chunks in the order they are rendered. */
+    final List<Chunk> chunks = new ArrayList<Chunk>();
+    /** Recordings not yet replayed, by statement. */
+    final Map<Statement, Recording> recordings
+        = new IdentityHashMap<Statement, Recording>();
+    /** The number of chunks submitted, which are the first in chunks. */
+    int nSubmitted;
+
+    Schedule(RenderContext rc, ExecutorService executor, int maxAhead) {
+      this.rc = rc;
+      this.executor = executor;
+      this.maxAhead = maxAhead;
+    }
+
+    /**
+     * Adds run if it is not empty.
+     * @return an empty chunk to add to next.
+     */
+    Chunk add(Chunk run) {
+      if (run.recordings.isEmpty()) { return run; }
+      run.index = chunks.size();
+      chunks.add(run);
+      return new Chunk();
+    }
+
+    /**
+     * Submits the chunk at index, if it has not been, and the chunks after it
+     * that fit within maxAhead.
+     */
+    void advance(int index) {
+      int end = Math.min(chunks.size(), index + maxAhead);
+      while (nSubmitted < end) { submit(chunks.get(nSubmitted++)); }
+    }
+
+    private void submit(final Chunk run) {
+      run.done = executor.submit(new Callable<Void>() {
+        public Void call() {
+          for (Recording r : run.recordings) { r.record(rc); }
+          return null;
+        }
+      });
+    }
+
+    void cancel() {
+      for (int i = 0; i < nSubmitted; ++i) { chunks.get(i).done.cancel(true); }
+    }
+  }
+
+  /**
+   * The calls a statement makes to its token consumer, which can be replayed
+   * in its place.
+   */
+  private static final class Recording implements TokenConsumer, Renderable {
+    private static final Object MARK = new Object();
+    private static final Object UNTYPED = new Object();
+
+    final Statement stmt;
+    final Chunk chunk;
+    final Schedule schedule;
+    /**
+     * Pairs of an operation and its argument.  The operation is
+     * {@link #MARK}, {@link #UNTYPED}, or the {@link JsTokenType} of a typed
+     * token.  Null once replayed.
+     */
+    private List<Object> calls = new ArrayList<Object>();
+
+    Recording(Statement stmt, Chunk chunk, Schedule schedule) {
+      this.stmt = stmt;
+      this.chunk = chunk;
+      this.schedule = schedule;
+    }
+
+    /** Called on the executor. */
+    void record(RenderContext rc) {
+      stmt.render(new RenderContext(
+          rc.getMessageContext(), rc.isAsciiOnly(), rc.isParanoid(), this));
+    }
+
+    public void mark(FilePosition pos) {
+      calls.add(MARK);
+      calls.add(pos);
+    }
+
+    public void consume(String text) {
+      calls.add(UNTYPED);
+      calls.add(text);
+    }
+
+    public void consume(CharSequence text, JsTokenType type) {
+      calls.add(type);
+      calls.add(text.toString());
+    }
+
+    public void noMoreTokens() {
+      throw new IllegalStateException("Statements don't end the output");
+    }
+
+    /** Replays the recording to {@code rc.getOut()}, then discards it. */
+    public void render(RenderContext rc) {
+      schedule.advance(chunk.index);
+      try {
+        chunk.done.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while rendering", ex);
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+      }
+      List<Object> calls = this.calls;
+      this.calls = null;
+      schedule.recordings.remove(stmt);
+      TokenConsumer out = rc.getOut();
+      for (int i = 0, n = calls.size(); i < n; i += 2) {
+        Object op = calls.get(i);
+        Object arg = calls.get(i + 1);
+        if (op == MARK) {
+          out.mark((FilePosition) arg);
+        } else if (op == UNTYPED) {
+          out.consume((String) arg);
+        } else {
+          out.consume((String) arg, (JsTokenType) op);
+        }
+      }
+    }
+
+    public TokenConsumer makeRenderer(
+        Appendable out, Callback<IOException> handler) {
+      return stmt.makeRenderer(out, handler);
+    }
+  }
+
+  private ParallelRendering() {}
+}
@@ -16,6 +16,7 @@ package com.google.caja.render;
 
 import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.util.Join;
 import com.google.caja.util.Pair;
@@ -91,6 +92,20 @@ public abstract class SideBySideRenderer implements TokenConsumer {
 
   public void consume(String text) {
     if (TokenClassification.isComment(text)) { return; }
+    startToken();
+    renderer.consume(text);
+    lastPos = mark;
+  }
+
+  public void consume(CharSequence text, JsTokenType type) {
+    if (type == JsTokenType.COMMENT) { return; }
+    startToken();
+    renderer.consume(text, type);
+    lastPos = mark;
+  }
+
+  /** Starts a new chunk if the next token comes from a different line. */
+  private void startToken() {
     if (!(mark != null
           ? lastPos != null && mark.source().equals(lastPos.source())
           : lastPos == null)) {
@@ -101,9 +116,6 @@ public abstract class SideBySideRenderer implements TokenConsumer {
         emitLine();
       }
     }
-
-    renderer.consume(text);
-    lastPos = mark;
   }
 
   public void noMoreTokens() {
@@ -0,0 +1,160 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.render;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a version 3 source map that maps positions in rendered javascript
+ * back to the source positions marked on the tokens rendered.
+ * <p>
+ * A renderer that has been given a source map via
+ * {@link JsMinimalPrinter#setSourceMap} or {@link JsPrettyPrinter#setSourceMap}
+ * adds a mapping for each token it writes, so the map is built in the same
+ * pass as the rendered output.  Line and column numbers in the map are
+ * relative to the start of the text written by the renderer.
+ * <p>
+ * The format is described in the "Source Map Revision 3 Proposal".
+ * No names are recorded since the original names of renamed identifiers
+ * are not known at render time.
+ *
+ * @author mikesamuel@gmail.com
+ */
+public final class SourceMapBuilder {
+  private static final String BASE64_DIGITS
+      = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+  private static final String HEX_DIGITS = "0123456789abcdef";
+
+  private final List<InputSource> sources = new ArrayList<InputSource>();
+  private final Map<InputSource, Integer> sourceIndices
+      = new HashMap<InputSource, Integer>();
+  /** The VLQ encoded mappings field. */
+  private final StringBuilder mappings = new StringBuilder();
+
+  // The fields of the last segment, which the next is encoded relative to.
+  /** The zero-indexed output line of the last segment. */
+  private int outLine;
+  /** The output column of the last segment on outLine, or 0 if none. */
+  private int outColumn;
+  private int sourceIndex;
+  private int sourceLine;
+  private int sourceColumn;
+  /** False until a segment has been added to outLine. */
+  private boolean segmentInLine;
+
+  /**
+   * Maps the text starting at the given output position to the start of pos.
+   * Mappings must be added in the order of their output positions.
+   *
+   * @param line zero-indexed line in the rendered output.
+   * @param column zero-indexed column in the rendered output, in UTF-16 code
+   *     units.
+   */
+  void addMapping(int line, int column, FilePosition pos) {
+    Integer index = sourceIndices.get(pos.source());
+    if (index == null) {
+      index = sources.size();
+      sources.add(pos.source());
+      sourceIndices.put(pos.source(), index);
+    }
+    int srcLine = pos.startLineNo() - 1;
+    int srcColumn = pos.startCharInLine() - 1;
+    if (line < outLine || (line == outLine && column < outColumn)) {
+      throw new IllegalArgumentException("Mapping out of order");
+    }
+    if (line == outLine && segmentInLine && index == sourceIndex
+        && srcLine == sourceLine && srcColumn == sourceColumn) {
+      // The last segment already maps this text to the same place.
+      return;
+    }
+    if (line != outLine) {
+      for (int i = outLine; i < line; ++i) { mappings.append(';'); }
+      outLine = line;
+      outColumn = 0;
+      segmentInLine = false;
+    }
+    if (segmentInLine) { mappings.append(','); }
+    appendVlq(column - outColumn);
+    appendVlq(index - sourceIndex);
+    appendVlq(srcLine - sourceLine);
+    appendVlq(srcColumn - sourceColumn);
+    outColumn = column;
+    sourceIndex = index;
+    sourceLine = srcLine;
+    sourceColumn = srcColumn;
+    segmentInLine = true;
+  }
+
+  /** The sources mapped to in the order they appear in the map. */
+  public List<InputSource> getSources() {
+    return Collections.unmodifiableList(sources);
+  }
+
+  /**
+   * Writes the source map as JSON.
+   * @param file the name of the rendered file that the map describes, or null.
+   */
+  public void writeJson(String file, Appendable out) throws IOException {
+    out.append("{\"version\":3");
+    if (file != null) {
+      out.append(",\"file\":");
+      appendJsonString(file, out);
+    }
+    out.append(",\"sources\":[");
+    for (int i = 0, n = sources.size(); i < n; ++i) {
+      if (i != 0) { out.append(','); }
+      appendJsonString(sources.get(i).getUri().toString(), out);
+    }
+    out.append("],\"names\":[],\"mappings\":\"");
+    out.append(mappings);
+    out.append("\"}");
+  }
+
+  private void appendVlq(int n) {
+    // The sign is stored in the least significant bit.
+    int vlq = n < 0 ? ((-n) << 1) | 1 : n << 1;
+    do {
+      int digit = vlq & 0x1f;
+      vlq >>>= 5;
+      if (vlq != 0) { digit |= 0x20; }  // Continuation bit.
+      mappings.append(BASE64_DIGITS.charAt(digit));
+    } while (vlq != 0);
+  }
+
+  private static void appendJsonString(String s, Appendable out)
+      throws IOException {
+    out.append('"');
+    for (int i = 0, n = s.length(); i < n; ++i) {
+      char ch = s.charAt(i);
+      if (ch == '"' || ch == '\\') {
+        out.append('\\').append(ch);
+      } else if (ch < 0x20) {
+        out.append("\\u00").append(HEX_DIGITS.charAt(ch >>> 4))
+            .append(HEX_DIGITS.charAt(ch & 0xf));
+      } else {
+        out.append(ch);
+      }
+    }
+    out.append('"');
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.caja.render;
 
 import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.lexer.InputSource;
 import com.google.caja.util.Callback;
@@ -176,6 +177,11 @@ public abstract class SourceSnippetRenderer implements TokenConsumer {
     delegateRenderer.consume(text);
   }
 
+  public void consume(CharSequence text, JsTokenType type) {
+    if (type == JsTokenType.COMMENT) { return; }
+    delegateRenderer.consume(text, type);
+  }
+
   public void noMoreTokens() {
     delegateRenderer.noMoreTokens();
 
@@ -17,15 +17,13 @@ package com.google.caja.render;
 import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.Keyword;
 
-import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 /**
- * Accumulates tokens inserting whitespace tokens where appropriate for
- * aesthetic reasons.  These whitespace tokens may later be turned into
- * newlines by an {@link Indenter}.
+ * Passes tokens on to an {@link Indenter} inserting whitespace tokens where
+ * appropriate for aesthetic reasons.  These whitespace tokens may later be
+ * turned into newlines by the {@code Indenter}.
  *
  * @author mikesamuel@gmail.com
  */
@@ -41,15 +39,23 @@ class Spacer {
   /** The end line number of the last token seen. */
   private int lastLine = 1;
 
-  private final List<String> outputTokens = new ArrayList<String>();
+  /**
+   * The last token emitted.  It is held back from out since a following
+   * comment may turn it into a newline.
+   */
+  private String lastEmitted;
 
-  List<String> getOutputTokens() { return outputTokens; }
+  private final Indenter out;
+
+  Spacer(Indenter out) { this.out = out; }
 
   void processMark(FilePosition mark) { this.mark = mark; }
 
-  void processToken(String text) {
-    TokenClassification tClass = TokenClassification.classify(text);
-    if (tClass == null) { return; }
+  /**
+   * @param text a non-empty token.
+   * @param tClass the classification of text.
+   */
+  void processToken(String text, TokenClassification tClass) {
     switch (tClass) {
       case LINEBREAK:
         // Allow external code to force line-breaks.
@@ -207,24 +213,33 @@ class Spacer {
     return KEYWORDS.contains(s);
   }
 
+  /** Called when there are no more tokens to pass on any remaining. */
+  void finish() {
+    if (lastEmitted != null) {
+      out.addToken(lastEmitted);
+      lastEmitted = null;
+    }
+    out.finish();
+  }
+
   private void emit(String s) {
-    outputTokens.add(s);
+    if (lastEmitted != null) { out.addToken(lastEmitted); }
+    lastEmitted = s;
   }
 
   private void newline() {
-    if (outputTokens.isEmpty()) { return; }
-    int lastIdx = outputTokens.size() - 1;
-    String last = outputTokens.get(lastIdx);
-    if (" ".equals(last)) {
-      outputTokens.set(lastIdx, "\n");
-    } else if (!"\n".equals(last)) {
+    if (lastEmitted == null) { return; }
+    if (" ".equals(lastEmitted)) {
+      lastEmitted = "\n";
+    } else if (!"\n".equals(lastEmitted)) {
       emit("\n");
     }
   }
 
   private void space() {
-    if (outputTokens.isEmpty()) { return; }
-    String last = outputTokens.get(outputTokens.size() - 1);
-    if (!("\n".equals(last) || " ".equals(last))) { emit(" "); }
+    if (lastEmitted == null) { return; }
+    if (!("\n".equals(lastEmitted) || " ".equals(lastEmitted))) {
+      emit(" ");
+    }
   }
 }
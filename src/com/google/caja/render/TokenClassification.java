@@ -14,6 +14,8 @@
 
 package com.google.caja.render;
 
+import com.google.caja.lexer.JsTokenType;
+
 /**
  * Quickly classifies JS and CSS tokens so they can be rendered to an output
  * stream.
@@ -80,6 +82,20 @@ enum TokenClassification {
     return PUNCTUATION;
   }
 
+  /**
+   * The classification of a javascript token of the given type.
+   * This is the same as the {@link #classify classification} of its text.
+   */
+  static TokenClassification forType(JsTokenType type) {
+    switch (type) {
+      case COMMENT: return COMMENT;
+      case STRING: return STRING;
+      case REGEXP: return REGEX;
+      case PUNCTUATION: case LINE_CONTINUATION: return PUNCTUATION;
+      default: return OTHER;
+    }
+  }
+
   static boolean isNumber(String s) {
     int n = s.length();
     if (n == 0) { return false; }
@@ -36,6 +36,19 @@ public enum MessageType implements MessageTypeInt {
   DUPLICATE_FLAG(
       "duplicate command line argument %s", MessageLevel.FATAL_ERROR),
 
+  // resource limits, as enforced by com.google.caja.util.CompileBudget
+  INPUT_TOO_LARGE(
+      "%s: input is longer than the limit of %s characters",
+      MessageLevel.FATAL_ERROR),
+  NESTING_TOO_DEEP(
+      "%s: nested more deeply than the limit of %s", MessageLevel.FATAL_ERROR),
+  TOO_MANY_NODES(
+      "Compilation created more than the limit of %s parse tree nodes",
+      MessageLevel.FATAL_ERROR),
+  OUTPUT_TOO_LARGE(
+      "Output is longer than the limit of %s characters",
+      MessageLevel.FATAL_ERROR),
+
   // lexing messages
   UNTERMINATED_STRING_TOKEN("%s: Unclosed string", MessageLevel.FATAL_ERROR),
   UNTERMINATED_COMMENT_TOKEN(
@@ -16,6 +16,8 @@ package com.google.caja.reporting;
 
 import com.google.caja.lexer.TokenConsumer;
 
+import java.util.Map;
+
 /**
  * @see Renderable
  * @author mikesamuel@gmail.com
@@ -28,6 +30,11 @@ public class RenderContext {
   private final boolean asciiOnly;
   private final MessageContext msgContext;
   private final TokenConsumer out;
+  /**
+   * Output already rendered for some nodes, keyed by identity, or null.
+   * @see #withPrerendered
+   */
+  private final Map<?, ? extends Renderable> prerendered;
 
   public RenderContext(MessageContext msgContext, TokenConsumer out) {
     this(msgContext, true, false, out);
@@ -36,11 +43,37 @@ public class RenderContext {
   public RenderContext(
       MessageContext msgContext, boolean asciiOnly, boolean paranoid,
       TokenConsumer out) {
+    this(msgContext, asciiOnly, paranoid, out, null);
+  }
+
+  private RenderContext(
+      MessageContext msgContext, boolean asciiOnly, boolean paranoid,
+      TokenConsumer out, Map<?, ? extends Renderable> prerendered) {
     if (null == msgContext || null == out) { throw new NullPointerException(); }
     this.msgContext = msgContext;
     this.paranoid = paranoid;
     this.asciiOnly = asciiOnly;
     this.out = out;
+    this.prerendered = prerendered;
+  }
+
+  /**
+   * A context like this one, but in which the statements of a block that are
+   * keys in prerendered are rendered by their values instead.
+   * @param prerendered an identity map from statements to renderables which
+   *     write the same tokens as the statements would.
+   * @see com.google.caja.render.ParallelRendering
+   */
+  public final RenderContext withPrerendered(
+      Map<?, ? extends Renderable> prerendered) {
+    return new RenderContext(msgContext, asciiOnly, paranoid, out, prerendered);
+  }
+
+  /**
+   * The renderable to use in place of node, or null to render node itself.
+   */
+  public final Renderable getPrerendered(Object node) {
+    return prerendered != null ? prerendered.get(node) : null;
   }
 
   /**
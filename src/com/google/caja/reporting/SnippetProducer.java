@@ -16,8 +16,10 @@ package com.google.caja.reporting;
 
 import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.LineIndex;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -29,6 +31,9 @@ import java.util.Map;
  *     file:16 var foo = bar() + baz
  *                       ^^^
  * </pre>
+ * <p>
+ * Each source is scanned for line breaks once, the first time a snippet is
+ * taken from it, so producing many snippets from a large file is cheap.
  *
  * @author mikesamuel@gmail.com
  */
@@ -38,6 +43,9 @@ public class SnippetProducer {
   private final Map<InputSource, ? extends CharSequence> originalSource;
   protected final MessageContext mc;
   protected final int maxWidth;
+  /** Line indices of the sources that snippets have been taken from. */
+  private final Map<InputSource, LineIndex> lineIndices
+      = new HashMap<InputSource, LineIndex>();
 
   public SnippetProducer(
       Map<InputSource, ? extends CharSequence> originalSource,
@@ -79,11 +87,16 @@ public class SnippetProducer {
     InputSource src = pos.source();
     CharSequence sourceCode = originalSource.get(src);
     if (sourceCode == null) { return; }  // Can't write.
+    LineIndex lines = lineIndices.get(src);
+    if (lines == null || lines.getText() != sourceCode) {
+      lines = new LineIndex(sourceCode);
+      lineIndices.put(src, lines);
+    }
 
     // Pick a representative line from pos.
     int lineNo = pos.startLineNo();
     int start = pos.startCharInLine() - 1;
-    CharSequence line = fetchLine(sourceCode, lineNo);
+    CharSequence line = lines.getLine(lineNo);
 
     if (line != null
         && (line.length() == 0 || isLinebreak(line.charAt(0)))
@@ -91,7 +104,7 @@ public class SnippetProducer {
       // If the start of the pos is a newline, advance to the next.
       ++lineNo;
       start = 0;
-      line = fetchLine(sourceCode, lineNo);
+      line = lines.getLine(lineNo);
     }
     if (line == null) { return; }
 
@@ -170,37 +183,6 @@ public class SnippetProducer {
     if (count > 0) { out.append(pattern, 0, count); }
   }
 
-
-  // The scheme below does not take into account different languages'
-  // different definitions of newline, but it does use the same scheme as
-  // CharProducer's language agnostic line counting scheme which agrees
-  // with source code editors.
-  // CharProducer does not bump the lineNo counter on codepoints 0x2028,2029.
-  private static CharSequence fetchLine(CharSequence seq, int lineNo) {
-    int pos = 0;
-    for (int i = lineNo; --i >= 1;) {
-      pos = posPastNextLinebreak(seq, pos);
-    }
-    int start = pos;
-    int end = posPastNextLinebreak(seq, pos);
-    if (start < end) {
-      return seq.subSequence(start, end);
-    }
-    return null;
-  }
-
-  private static int posPastNextLinebreak(CharSequence seq, int pos) {
-    int len = seq.length();
-    for (;pos < len; ++pos) {
-      char ch = seq.charAt(pos);
-      if (ch == '\n') { return pos + 1; }
-      if (ch == '\r') {
-        return pos + ((pos + 1 < len && '\n' == seq.charAt(pos + 1)) ? 2 : 1);
-      }
-    }
-    return len;
-  }
-
   private static boolean isLinebreak(char ch) {
     return ch == '\r' || ch == '\n';
   }
@@ -16,18 +16,35 @@ package com.google.caja.tools;
 
 import com.google.caja.plugin.BuildServiceImplementation;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 
 /**
  * An ANT task that operates on a set of files to produce a single output file
  * via a {@link BuildService}.
+ * <p>
+ * By default, an output is rebuilt when any input or dependee is newer than
+ * it.  If the optional {@code manifestDir} attribute is given, the task
+ * instead keeps a manifest per output in that directory recording the content
+ * hashes of what it was built from, and rebuilds an output only when the
+ * content of an input or dependee, the cajoler, or the output's options have
+ * changed, regardless of timestamps.
+ * <p>
+ * Independent outputs are built in parallel, and all tasks in one JVM share a
+ * build service so that the cajoler's setup is only paid for once.
  *
  * @see <a href="http://ant.apache.org/manual/tutorial-writing-tasks.html">ANT
  *     Task Tutorial</a>
@@ -43,6 +60,11 @@ public abstract class AbstractCajaAntTask extends Task {
   private final List<Depend> depends = new ArrayList<Depend>();
   /** Outputs to generate. */
   private final List<Output> outputs = new ArrayList<Output>();
+  /** Directory of build manifests, or null to compare timestamps. */
+  private File manifestDir;
+
+  /** Shared by tasks in the same JVM so that the cajoler stays warm. */
+  private static BuildService sharedBuildService;
 
   /** Called to actually execute a job by invoking the BuildService. */
   protected abstract boolean run(BuildService buildService, PrintWriter logger,
@@ -70,11 +92,19 @@ public abstract class AbstractCajaAntTask extends Task {
       }
 
       BuildService buildService = getBuildService();
+      BuildManifest manifest = null;
+      if (manifestDir != null) {
+        try {
+          manifest = new BuildManifest(
+              manifestDir, buildService.getClass(), inputs, dependees);
+        } catch (IOException ex) {
+          throw new BuildException(ex);
+        }
+      }
       PrintWriter logger = getLogger();
       try {
-        for (Output output : outputs) {
-          output.build(inputs, dependees, youngest, buildService, logger);
-        }
+        buildOutputs(inputs, dependees, youngest, manifest, buildService,
+                     logger);
       } finally {
         logger.flush();
       }
@@ -84,6 +114,66 @@ public abstract class AbstractCajaAntTask extends Task {
     }
   }
 
+  /**
+   * Builds outputs in parallel.  Each output logs to its own buffer, and the
+   * buffers are written to logger in order so that logs don't interleave.
+   */
+  private void buildOutputs(
+      final List<File> inputs, final List<File> dependees, final long youngest,
+      final BuildManifest manifest, final BuildService buildService,
+      PrintWriter logger)
+      throws BuildException {
+    int nThreads = Math.min(outputs.size(), getMaxThreads());
+    if (nThreads <= 1) {
+      for (Output output : outputs) {
+        output.build(
+            inputs, dependees, youngest, manifest, buildService, logger);
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    try {
+      List<Future<Void>> builds = new ArrayList<Future<Void>>();
+      List<StringWriter> logs = new ArrayList<StringWriter>();
+      for (final Output output : outputs) {
+        final StringWriter log = new StringWriter();
+        logs.add(log);
+        builds.add(executor.submit(new Callable<Void>() {
+          public Void call() throws BuildException {
+            output.build(inputs, dependees, youngest, manifest, buildService,
+                         new PrintWriter(log, true));
+            return null;
+          }
+        }));
+      }
+      BuildException failure = null;
+      for (int i = 0, n = builds.size(); i < n; ++i) {
+        try {
+          builds.get(i).get();
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (failure == null) {
+            failure = cause instanceof BuildException
+                ? (BuildException) cause : new BuildException(cause);
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new BuildException(ex);
+        } finally {
+          logger.print(logs.get(i).toString());
+          logger.flush();
+        }
+      }
+      if (failure != null) { throw failure; }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /** The most outputs to build at once. */
+  int getMaxThreads() { return Runtime.getRuntime().availableProcessors(); }
+
   /**
    * Wrap {@link Task#log(String)} in a PrintWriter so BuildService doesn't have
    * to know about ANT.
@@ -109,7 +199,17 @@ public abstract class AbstractCajaAntTask extends Task {
   }
 
   BuildService getBuildService() throws BuildException {
-    return new BuildServiceImplementation();
+    synchronized (AbstractCajaAntTask.class) {
+      if (sharedBuildService == null) {
+        sharedBuildService = new BuildServiceImplementation();
+      }
+      return sharedBuildService;
+    }
+  }
+
+  /** Invoked reflectively by ANT when {@code manifestDir} is seen. */
+  public void setManifestDir(File manifestDir) {
+    this.manifestDir = manifestDir;
   }
 
   /** Invoked reflectively whenever {@code <include>} is seen. */
@@ -154,14 +254,25 @@ public abstract class AbstractCajaAntTask extends Task {
       }
     }
 
-    /** Builds output, throwing a BuildException if build fails. */
+    /**
+     * Builds output, throwing a BuildException if build fails.
+     * @param manifest null to decide whether to build by comparing timestamps.
+     */
     void build(List<File> inputs, List<File> dependees, long youngest,
-               BuildService buildService, PrintWriter logger)
+               BuildManifest manifest, BuildService buildService,
+               PrintWriter logger)
         throws BuildException {
-      long outputModified = output.lastModified();
-      boolean modified  // -> the output file is older than any inputs.
-          = (outputModified == 0L    // 0L -> !output.exists()
-              || outputModified < youngest);
+      Map<String, Object> options = getOptions();
+      boolean modified;
+      if (manifest != null) {
+        // -> the output was built from different content or has changed.
+        modified = !manifest.isUpToDate(output, options);
+      } else {
+        long outputModified = output.lastModified();
+        modified  // -> the output file is older than any inputs.
+            = (outputModified == 0L    // 0L -> !output.exists()
+               || outputModified < youngest);
+      }
 
       if (modified) {
         // Make sure the output directory exists.
@@ -172,11 +283,19 @@ public abstract class AbstractCajaAntTask extends Task {
         }
 
         logger.println("building " + inputs.size() + " files to " + output);
-        Map<String, Object> options = getOptions();
+        if (manifest != null) { manifest.forget(output); }
         if (!run(buildService, logger, dependees, inputs, output, options)) {
           if (output.exists()) { output.delete(); }
           throw new BuildException("Failed to build " + output);
         }
+        if (manifest != null) {
+          try {
+            manifest.recordBuild(output, options);
+          } catch (IOException ex) {
+            // The output is fine, but will be rebuilt next time.
+            logger.println("Failed to write manifest for " + output);
+          }
+        }
       }
     }
 
@@ -0,0 +1,318 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.tools;
+
+import com.google.caja.reporting.BuildInfo;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Records what an output was built from, so that a later build can tell
+ * whether the output is up to date by comparing content instead of
+ * timestamps.
+ * <p>
+ * There is one manifest file per output.  It holds the content hashes of the
+ * inputs and dependees, the version of the cajoler, the options, and the hash
+ * of the output itself so that outputs modified or deleted by something else
+ * are rebuilt.
+ *
+ * @author mikesamuel@gmail.com
+ */
+final class BuildManifest {
+  private final File manifestDir;
+  /** The part of the description that is shared by all outputs. */
+  private final Properties common = new Properties();
+
+  /**
+   * @param manifestDir the directory to store manifests in.
+   * @param cajoler the class of the build service, used to fingerprint the
+   *     cajoler.
+   */
+  BuildManifest(File manifestDir, Class<?> cajoler, List<File> inputs,
+                List<File> dependees)
+      throws IOException {
+    this.manifestDir = manifestDir;
+    common.setProperty("cajoler", cajolerVersion(cajoler));
+    for (int i = 0, n = inputs.size(); i < n; ++i) {
+      common.setProperty("input." + i, describeFile(inputs.get(i)));
+    }
+    for (int i = 0, n = dependees.size(); i < n; ++i) {
+      common.setProperty("depend." + i, describeFile(dependees.get(i)));
+    }
+  }
+
+  /**
+   * True if output was built by a previous {@link #recordBuild} from the same
+   * inputs, dependees, cajoler and options, and has not changed since.
+   */
+  boolean isUpToDate(File output, Map<String, Object> options) {
+    File manifest = getManifestFile(output);
+    if (!manifest.isFile()) { return false; }
+    try {
+      Properties recorded = new Properties();
+      InputStream in = new FileInputStream(manifest);
+      try {
+        recorded.load(in);
+      } finally {
+        in.close();
+      }
+      return recorded.equals(describe(output, options));
+    } catch (IOException ex) {
+      // An output or source map has gone missing, or the manifest is corrupt.
+      return false;
+    }
+  }
+
+  /** Records that output was just built successfully. */
+  void recordBuild(File output, Map<String, Object> options)
+      throws IOException {
+    Properties description = describe(output, options);
+    if (!manifestDir.exists()) { manifestDir.mkdirs(); }
+    OutputStream out = new FileOutputStream(getManifestFile(output));
+    try {
+      description.store(out, "Inputs to " + output);
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Forgets any previous build of output, e.g. because a build failed. */
+  void forget(File output) {
+    File manifest = getManifestFile(output);
+    if (manifest.exists()) { manifest.delete(); }
+  }
+
+  private Properties describe(File output, Map<String, Object> options)
+      throws IOException {
+    Properties description = new Properties();
+    description.putAll(common);
+    for (Map.Entry<String, Object> option : options.entrySet()) {
+      Object value = option.getValue();
+      if (value instanceof File) {
+        // Files named by options, such as source maps, are generated along
+        // with the output, so must still exist unchanged.
+        description.setProperty(
+            "option." + option.getKey(), describeFile((File) value));
+      } else {
+        description.setProperty(
+            "option." + option.getKey(), String.valueOf(value));
+      }
+    }
+    description.setProperty("output", describeFile(output));
+    return description;
+  }
+
+  File getManifestFile(File output) {
+    String path;
+    try {
+      path = output.getCanonicalPath();
+    } catch (IOException ex) {
+      path = output.getAbsolutePath();
+    }
+    // Outputs in different directories can have the same name.
+    return new File(
+        manifestDir,
+        output.getName() + "-" + hash(utf8(path)).substring(0, 8)
+        + ".manifest");
+  }
+
+  private static String describeFile(File f) throws IOException {
+    return f.getCanonicalPath() + " " + hash(f);
+  }
+
+  /** The hex SHA-1 hash of a file's content. */
+  static String hash(File f) throws IOException {
+    MessageDigest md = sha1();
+    digest(f, md);
+    return hex(md.digest());
+  }
+
+  private static String hash(byte[] bytes) {
+    return hex(sha1().digest(bytes));
+  }
+
+  private static void digest(File f, MessageDigest md) throws IOException {
+    InputStream in = new FileInputStream(f);
+    try {
+      byte[] buf = new byte[8192];
+      for (int n; (n = in.read(buf)) > 0;) { md.update(buf, 0, n); }
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Fingerprints of cajoler class directories and jars, by location. */
+  private static final Map<File, Fingerprint> FINGERPRINTS
+      = Collections.synchronizedMap(new HashMap<File, Fingerprint>());
+
+  /**
+   * The build version of the cajoler, and a hash of the classes and resources
+   * it was loaded from, so that changes to the cajoler rebuild everything even
+   * when the version control revision has not changed.
+   */
+  static String cajolerVersion(Class<?> cajoler) throws IOException {
+    String version = BuildInfo.getInstance().getBuildVersion();
+    File root = classRoot(cajoler);
+    if (root == null) { return version; }
+    Fingerprint fp = FINGERPRINTS.get(root);
+    if (fp == null || !fp.isCurrent()) {
+      fp = new Fingerprint(root);
+      FINGERPRINTS.put(root, fp);
+    }
+    return version + " " + fp.hash;
+  }
+
+  /**
+   * The directory or jar that a class was loaded from, or null if it was not
+   * loaded from a file.
+   */
+  private static File classRoot(Class<?> cls) {
+    String className = cls.getName();
+    URL url = cls.getResource(
+        className.substring(className.lastIndexOf('.') + 1) + ".class");
+    if (url == null) { return null; }
+    try {
+      if ("jar".equals(url.getProtocol())) {
+        String path = url.getPath();  // file:/path/to.jar!/com/...
+        url = new URL(path.substring(0, path.indexOf("!/")));
+      }
+      if (!"file".equals(url.getProtocol())) { return null; }
+      File f = new File(new URI(url.toString()));
+      if (f.isFile() && f.getName().endsWith(".class")) {
+        // Walk up out of the package directories.
+        for (int i = className.split("\\.").length; --i >= 0;) {
+          f = f.getParentFile();
+        }
+      }
+      return f;
+    } catch (IOException ex) {
+      return null;
+    } catch (URISyntaxException ex) {
+      return null;
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * A hash of the files that affect the cajoler's output.  Rehashing is
+   * skipped while no file has been added, removed, or touched.
+   */
+  private static final class Fingerprint {
+    final File root;
+    final List<File> files;
+    final long stamp;
+    final String hash;
+
+    Fingerprint(File root) throws IOException {
+      this.root = root;
+      this.files = listFiles(root);
+      this.stamp = stamp(files);
+      MessageDigest md = sha1();
+      String rootPath = root.getPath();
+      for (File f : files) {
+        md.update(utf8(f.getPath().substring(rootPath.length())));
+        digest(f, md);
+      }
+      this.hash = hex(md.digest());
+    }
+
+    boolean isCurrent() {
+      List<File> current = listFiles(root);
+      return current.equals(files) && stamp(current) == stamp;
+    }
+
+    private static long stamp(List<File> files) {
+      long stamp = 0;
+      for (File f : files) {
+        stamp = stamp * 31 + f.lastModified();
+        stamp = stamp * 31 + f.length();
+      }
+      return stamp;
+    }
+
+    /** The files under root that the cajoler may load, in a stable order. */
+    private static List<File> listFiles(File root) {
+      List<File> files = new ArrayList<File>();
+      if (root.isFile()) {
+        files.add(root);
+      } else {
+        listFiles(root, files);
+      }
+      return files;
+    }
+
+    private static void listFiles(File dir, List<File> out) {
+      File[] children = dir.listFiles();
+      if (children == null) { return; }
+      Arrays.sort(children);
+      for (File child : children) {
+        String name = child.getName();
+        if (child.isDirectory()) {
+          listFiles(child, out);
+        } else if (name.endsWith(".class") || name.endsWith(".json")
+                   || name.endsWith(".snapshot")
+                   // buildInfo.properties holds a timestamp that changes on
+                   // every build.  Its version is included separately.
+                   || (name.endsWith(".properties")
+                       && !"buildInfo.properties".equals(name))) {
+          out.add(child);
+        }
+      }
+    }
+  }
+
+  private static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append("0123456789abcdef".charAt((b >> 4) & 0xf))
+          .append("0123456789abcdef".charAt(b & 0xf));
+    }
+    return sb.toString();
+  }
+}
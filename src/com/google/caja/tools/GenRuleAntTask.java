@@ -61,5 +61,15 @@ public class GenRuleAntTask extends AbstractCajaAntTask {
   }
 
   @Override
-  Output makeOutput() { return new Output() {}; }
+  Output makeOutput() {
+    return new Output() {
+      @Override
+      public Map<String, Object> getOptions() {
+        Map<String, Object> options = super.getOptions();
+        // So that build manifests notice when a different class is used.
+        options.put("class", clazz != null ? clazz.getName() : null);
+        return options;
+      }
+    };
+  }
 }
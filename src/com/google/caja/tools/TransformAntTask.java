@@ -47,6 +47,14 @@ import org.apache.tools.ant.BuildException;
  * "pretty" is the default and uses the
  * {@link com.google.caja.render.JsPrettyPrinter}.
  * "minify" to use {@link com.google.caja.render.JsMinimalPrinter}.
+ * <p>
+ * The optional {@code sourceMap} attribute names a file to which a source map
+ * of the output is written.
+ * <p>
+ * The optional {@code shortenLocalNames} attribute, if true, renames local
+ * variables in the output to short names, and the optional
+ * {@code poolRuntimeLookups} attribute, if true, pools repeated strings and
+ * runtime functions in the output into variables.
  *
  * @author mikesamuel@gmail.com
  */
@@ -68,6 +76,9 @@ public class TransformAntTask extends AbstractCajaAntTask {
     private boolean debug;
     private String language;
     private String renderer = "pretty";
+    private File sourceMap;
+    private boolean shortenLocalNames;
+    private boolean poolRuntimeLookups;
 
     @Override
     public Map<String, Object> getOptions() {
@@ -75,6 +86,9 @@ public class TransformAntTask extends AbstractCajaAntTask {
       options.put("debug", debug);
       options.put("language", language);
       options.put("renderer", renderer);
+      if (sourceMap != null) { options.put("sourceMap", sourceMap); }
+      options.put("shortenLocalNames", shortenLocalNames);
+      options.put("poolRuntimeLookups", poolRuntimeLookups);
       return options;
     }
 
@@ -82,5 +96,12 @@ public class TransformAntTask extends AbstractCajaAntTask {
     public void setDebug(boolean debug) { this.debug = debug; }
     public void setLanguage(String language) { this.language = language; }
     public void setRenderer(String renderer) { this.renderer = renderer; }
+    public void setSourceMap(File sourceMap) { this.sourceMap = sourceMap; }
+    public void setShortenLocalNames(boolean shortenLocalNames) {
+      this.shortenLocalNames = shortenLocalNames;
+    }
+    public void setPoolRuntimeLookups(boolean poolRuntimeLookups) {
+      this.poolRuntimeLookups = poolRuntimeLookups;
+    }
   }
 }
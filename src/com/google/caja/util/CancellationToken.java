@@ -0,0 +1,105 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.util;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Allows long running work, such as parsing or rewriting a large input, to be
+ * abandoned cooperatively.
+ * <p>
+ * A token is {@link #install installed} on the thread doing the work, and
+ * the parser, rewriter, and CSS validator {@link #checkCancelled check} it
+ * at node boundaries.  Another thread, typically one enforcing a deadline,
+ * {@link #cancel cancels} it.  Checking is a single volatile read so it is
+ * cheap enough to do per node.
+ *
+ * @author mikesamuel@gmail.com
+ */
+public final class CancellationToken {
+  /** A token that is never cancelled. */
+  public static final CancellationToken NONE = new CancellationToken();
+
+  private static final ThreadLocal<CancellationToken> CURRENT
+      = new ThreadLocal<CancellationToken>() {
+        @Override
+        protected CancellationToken initialValue() { return NONE; }
+      };
+
+  private volatile boolean cancelled;
+  /**
+   * The time in millis since the epoch by which the work should be done, or
+   * {@link Long#MAX_VALUE} if there is no deadline.
+   */
+  private final long deadline;
+
+  /** A token with no deadline, that is only cancelled explicitly. */
+  public CancellationToken() { this(Long.MAX_VALUE); }
+
+  /**
+   * @param deadline the time in millis since the epoch by which the work
+   *     should be done.  The token is not cancelled automatically at the
+   *     deadline, but blocking operations such as fetches can use
+   *     {@link #remainingMillis} to bound their timeouts.
+   */
+  public CancellationToken(long deadline) { this.deadline = deadline; }
+
+  /**
+   * The token installed on the current thread, or {@link #NONE}.
+   */
+  public static CancellationToken current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Makes token the {@link #current} token for this thread.
+   * @param token null to uninstall.
+   * @return the previously installed token, so that callers can restore it.
+   */
+  public static CancellationToken install(CancellationToken token) {
+    CancellationToken old = CURRENT.get();
+    if (token != null && token != NONE) {
+      CURRENT.set(token);
+    } else {
+      CURRENT.remove();
+    }
+    return old;
+  }
+
+  /** Causes subsequent calls to {@link #checkCancelled} to fail. */
+  public void cancel() {
+    if (this == NONE) { throw new UnsupportedOperationException(); }
+    cancelled = true;
+  }
+
+  public boolean isCancelled() { return cancelled; }
+
+  /**
+   * The number of millis left before the deadline, zero if it has passed or
+   * this token was cancelled, or {@link Long#MAX_VALUE} if there is none.
+   */
+  public long remainingMillis() {
+    if (cancelled) { return 0; }
+    if (deadline == Long.MAX_VALUE) { return Long.MAX_VALUE; }
+    return Math.max(0, deadline - System.currentTimeMillis());
+  }
+
+  /**
+   * @throws CancellationException if this token has been cancelled.
+   */
+  public void checkCancelled() throws CancellationException {
+    if (cancelled) { throw new CancellationException(); }
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.util;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.MessageType;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the work done compiling one input so that pathological inputs fail
+ * fast instead of exhausting the stack, the heap, or the client's patience.
+ * <p>
+ * A budget limits the length of the input, the nesting depth of the parse
+ * tree, the number of parse tree nodes created, including those synthesized
+ * by the rewriter, and the length of the rendered output.  Like a
+ * {@link CancellationToken}, a budget is {@link #install installed} on the
+ * thread doing the work, and the parser, rewriter, and renderers charge
+ * against it.  Each charge is a counter update and a comparison.  Nodes
+ * built by one-time setup, such as the rewriter's parsed patterns, are built
+ * under {@link #UNLIMITED} so that they are not charged to whichever
+ * compilation happens to trigger the setup.
+ * <p>
+ * A budget accumulates charges, so use a {@link #fresh} copy per compilation.
+ * Budgets are not thread-safe.
+ *
+ * @author mikesamuel@gmail.com
+ */
+public final class CompileBudget {
+  /** A budget that is never exceeded. */
+  public static final CompileBudget UNLIMITED = new CompileBudget(
+      Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+      Integer.MAX_VALUE);
+
+  private static final ThreadLocal<CompileBudget> CURRENT
+      = new ThreadLocal<CompileBudget>() {
+        @Override
+        protected CompileBudget initialValue() { return UNLIMITED; }
+      };
+  /**
+   * The number of threads with a limited budget installed, so that node
+   * charges can skip the thread-local lookup while there are none.
+   */
+  private static final AtomicInteger INSTALLED_LIMITED = new AtomicInteger();
+
+  private final int maxInputChars;
+  private final int maxDepth;
+  private final int maxNodes;
+  private final int maxOutputChars;
+  /** False for {@link #UNLIMITED} which is shared, so must not be charged. */
+  private final boolean limited;
+  private int depth;
+  private int nodes;
+  private long outputChars;
+
+  /**
+   * @param maxInputChars the maximum length of any one input.
+   * @param maxDepth the maximum nesting depth of the parse tree.
+   * @param maxNodes the maximum number of parse tree nodes created.
+   * @param maxOutputChars the maximum number of characters rendered.
+   */
+  public CompileBudget(
+      int maxInputChars, int maxDepth, int maxNodes, int maxOutputChars) {
+    if (maxInputChars < 0 || maxDepth < 0 || maxNodes < 0
+        || maxOutputChars < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.maxInputChars = maxInputChars;
+    this.maxDepth = maxDepth;
+    this.maxNodes = maxNodes;
+    this.maxOutputChars = maxOutputChars;
+    this.limited = maxInputChars != Integer.MAX_VALUE
+        || maxDepth != Integer.MAX_VALUE || maxNodes != Integer.MAX_VALUE
+        || maxOutputChars != Integer.MAX_VALUE;
+  }
+
+  /**
+   * The budget installed on the current thread, or {@link #UNLIMITED}.
+   */
+  public static CompileBudget current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Makes budget the {@link #current} budget for this thread.
+   * @param budget null to uninstall.
+   * @return the previously installed budget, so that callers can restore it.
+   */
+  public static CompileBudget install(CompileBudget budget) {
+    CompileBudget old = CURRENT.get();
+    boolean nowLimited = budget != null && budget.limited;
+    if (nowLimited != old.limited) {
+      INSTALLED_LIMITED.addAndGet(nowLimited ? 1 : -1);
+    }
+    if (budget != null && budget != UNLIMITED) {
+      CURRENT.set(budget);
+    } else {
+      CURRENT.remove();
+    }
+    return old;
+  }
+
+  /** A budget with the same limits as this one and nothing yet charged. */
+  public CompileBudget fresh() {
+    return limited
+        ? new CompileBudget(maxInputChars, maxDepth, maxNodes, maxOutputChars)
+        : this;
+  }
+
+  public int getMaxInputChars() { return maxInputChars; }
+  public int getMaxDepth() { return maxDepth; }
+  public int getMaxNodes() { return maxNodes; }
+  public int getMaxOutputChars() { return maxOutputChars; }
+
+  /** The number of parse tree nodes charged so far. */
+  public int getNodeCount() { return nodes; }
+  /** The number of output characters charged so far. */
+  public long getOutputCharCount() { return outputChars; }
+
+  /**
+   * Checks the length of an input, as known from its size or from the
+   * position of the last token read.
+   * @param pos the position at which the check is made.
+   */
+  public void checkInput(FilePosition pos, int inputChars)
+      throws Exceeded {
+    if (inputChars > maxInputChars) {
+      throw new Exceeded(new Message(
+          MessageType.INPUT_TOO_LARGE, pos,
+          MessagePart.Factory.valueOf(maxInputChars)));
+    }
+  }
+
+  /**
+   * Called on entering a nested construct.  Must be paired with
+   * {@link #exitNested}.
+   * @param pos the position of the nested construct.
+   */
+  public void enterNested(FilePosition pos) throws Exceeded {
+    if (!limited) { return; }
+    if (++depth > maxDepth) {
+      --depth;
+      throw new Exceeded(new Message(
+          MessageType.NESTING_TOO_DEEP, pos,
+          MessagePart.Factory.valueOf(maxDepth)));
+    }
+  }
+
+  public void exitNested() {
+    if (!limited) { return; }
+    --depth;
+  }
+
+  /**
+   * Charges a parse tree node to the {@link #current} budget.  This is called
+   * for every node created, so avoids the thread-local lookup while no
+   * thread has a limited budget installed.
+   */
+  public static void chargeNodeToCurrent() throws Exceeded {
+    if (INSTALLED_LIMITED.get() != 0) { CURRENT.get().chargeNode(); }
+  }
+
+  /** Called once for each parse tree node created. */
+  public void chargeNode() throws Exceeded {
+    if (!limited) { return; }
+    if (++nodes > maxNodes) {
+      throw new Exceeded(new Message(
+          MessageType.TOO_MANY_NODES, MessagePart.Factory.valueOf(maxNodes)));
+    }
+  }
+
+  /** Called with the length of each chunk of output rendered. */
+  public void chargeOutput(int nChars) throws Exceeded {
+    if (!limited) { return; }
+    if ((outputChars += nChars) > maxOutputChars) {
+      throw new Exceeded(new Message(
+          MessageType.OUTPUT_TOO_LARGE,
+          MessagePart.Factory.valueOf(maxOutputChars)));
+    }
+  }
+
+  /**
+   * Thrown when a budget is exceeded.  This is unchecked so that it can
+   * propagate out of deep recursion in the parser and rewriter without
+   * being caught and recovered from along the way.
+   */
+  public static final class Exceeded extends RuntimeException {
+    private static final long serialVersionUID = -4126503153846542812L;
+    private final Message msg;
+
+    public Exceeded(Message msg) {
+      super(msg.format(new MessageContext()));
+      this.msg = msg;
+    }
+
+    public Message getCajaMessage() { return msg; }
+  }
+}
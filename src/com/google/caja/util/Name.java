@@ -17,6 +17,8 @@ package com.google.caja.util;
 import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.MessagePart;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A case insensitive identifier such as an element or identifier name that can
@@ -27,18 +29,51 @@ import java.io.IOException;
  * that it's obvious what kind of case-sensitivity conventions are required for
  * the label.
  *
+ * <p>
+ * Names of elements and attributes defined by an HTML schema are
+ * {@link #internHtml interned} so that {@link #html} can return the same
+ * instance for them without lowercasing or allocating, and so that
+ * comparing them usually succeeds on identity.
+ *
  * @author mikesamuel@gmail.com
  */
 public final class Name implements Comparable<Name>, MessagePart {
   private final String canonicalForm;
+  private final int hashCode;
+
+  /**
+   * Interned HTML names by canonical form.  Only names from schemas are added,
+   * so this does not grow with the names that appear in untrusted content.
+   */
+  private static final ConcurrentMap<String, Name> HTML_NAMES
+      = new ConcurrentHashMap<String, Name>();
 
   private Name(String canonicalForm) {
     this.canonicalForm = canonicalForm;
+    this.hashCode = canonicalForm.hashCode();
   }
 
   /** The name of a case-insensitive HTML element or attribute. */
   public static Name html(String htmlName) {
-    return new Name(Strings.toLowerCase(htmlName));
+    Name name = HTML_NAMES.get(htmlName);
+    if (name != null) { return name; }
+    String canonicalForm = Strings.toLowerCase(htmlName);
+    if (canonicalForm != htmlName) {
+      name = HTML_NAMES.get(canonicalForm);
+      if (name != null) { return name; }
+    }
+    return new Name(canonicalForm);
+  }
+
+  /**
+   * Like {@link #html}, but future calls to {@link #html} with the same
+   * canonical form will return the same instance.
+   * This should only be used for names from a schema, not from content.
+   */
+  public static Name internHtml(String htmlName) {
+    Name name = html(htmlName);
+    Name interned = HTML_NAMES.putIfAbsent(name.canonicalForm, name);
+    return interned != null ? interned : name;
   }
 
   /** The name of a case-sensitive XML element or attribute. */
@@ -57,13 +92,16 @@ public final class Name implements Comparable<Name>, MessagePart {
 
   @Override
   public boolean equals(Object o) {
+    if (this == o) { return true; }
     if (o.getClass() != Name.class) { return false; }
-    return canonicalForm.equals(((Name) o).canonicalForm);
+    Name that = (Name) o;
+    return hashCode == that.hashCode
+        && canonicalForm.equals(that.canonicalForm);
   }
 
   @Override
   public int hashCode() {
-    return canonicalForm.hashCode();
+    return hashCode;
   }
 
   @Override
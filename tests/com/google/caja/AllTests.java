@@ -26,6 +26,7 @@ import com.google.caja.lexer.CharProducerTest;
 import com.google.caja.lexer.CssLexerTest;
 import com.google.caja.lexer.HtmlLexerTest;
 import com.google.caja.lexer.JsLexerTest;
+import com.google.caja.lexer.LineIndexTest;
 import com.google.caja.lexer.LookaheadCharProducerTest;
 import com.google.caja.lexer.PunctuationTrieTest;
 import com.google.caja.lexer.escaping.EscapingTest;
@@ -35,6 +36,8 @@ import com.google.caja.opensocial.applet.ExpressionLanguageStageTest;
 import com.google.caja.opensocial.applet.TestBedTest;
 import com.google.caja.opensocial.service.CajolingServiceTest;
 import com.google.caja.opensocial.service.ContentTypeCheckTest;
+import com.google.caja.opensocial.service.FetchCacheTest;
+import com.google.caja.opensocial.service.WorkerPoolTest;
 import com.google.caja.parser.ParseTreeNodeTest;
 import com.google.caja.parser.ParserBaseTest;
 import com.google.caja.parser.css.CssParserTest;
@@ -62,22 +65,30 @@ import com.google.caja.plugin.HtmlCompiledPluginTest;
 import com.google.caja.plugin.HtmlCompilerTest;
 import com.google.caja.plugin.HtmlSanitizerTest;
 import com.google.caja.plugin.JsHtmlSanitizerTest;
+import com.google.caja.plugin.SchemaCacheTest;
 import com.google.caja.plugin.stages.DebuggingSymbolsStageTest;
 import com.google.caja.plugin.stages.InlineCssImportsStageTest;
 import com.google.caja.plugin.stages.OpenTemplateStageTest;
+import com.google.caja.plugin.stages.PoolRuntimeLookupsStageTest;
 import com.google.caja.plugin.stages.RewriteHtmlStageTest;
+import com.google.caja.plugin.stages.ShortenLocalNamesStageTest;
 import com.google.caja.render.JsLinePreservingPrinterTest;
 import com.google.caja.render.JsMinimalPrinterTest;
 import com.google.caja.render.JsPrettyPrinterTest;
+import com.google.caja.render.ParallelRenderingTest;
 import com.google.caja.render.SideBySideRendererTest;
+import com.google.caja.render.SourceMapBuilderTest;
 import com.google.caja.render.SourceSnippetRendererTest;
 import com.google.caja.render.TokenClassificationTest;
 import com.google.caja.reporting.AbstractMessageQueueTest;
 import com.google.caja.reporting.BuildInfoTest;
 import com.google.caja.reporting.HtmlSnippetProducerTest;
 import com.google.caja.reporting.SnippetProducerTest;
+import com.google.caja.tools.AbstractCajaAntTaskTest;
+import com.google.caja.tools.BuildManifestTest;
 import com.google.caja.util.AbbreviatorTest;
 import com.google.caja.util.CapturingReaderTest;
+import com.google.caja.util.CompileBudgetTest;
 import com.google.caja.util.JoinTest;
 import com.google.caja.util.SparseBitSetTest;
 import com.google.caja.util.StringsTest;
@@ -99,12 +110,15 @@ public class AllTests {
     Class<? extends TestCase>[] testClasses = new Class[] {
           AbstractMessageQueueTest.class,
           AbbreviatorTest.class,
+          AbstractCajaAntTaskTest.class,
           BuildInfoTest.class,
+          BuildManifestTest.class,
           CajitaRewriterTest.class,
           CajitaTest.class,
           CajolingServiceTest.class,
           CapturingReaderTest.class,
           CharProducerTest.class,
+          CompileBudgetTest.class,
           ConfigUtilTest.class,
           ContentTypeCheckTest.class,
           CssCompilerTest.class,
@@ -123,6 +137,7 @@ public class AllTests {
           DomProcessingEventsTest.class,
           EscapingTest.class,
           EventStoreTest.class,
+          FetchCacheTest.class,
           ExpressionLanguageStageTest.class,
           ExpressionSanitizerTest.class,
           FuzzedParserTest.class,
@@ -144,27 +159,34 @@ public class AllTests {
           JsMinimalPrinterTest.class,
           JsPrettyPrinterTest.class,
           LayoutTest.class,
+          LineIndexTest.class,
           LookaheadCharProducerTest.class,
           MatchTest.class,
           NumberLiteralTest.class,
           OpenTemplateStageTest.class,
+          ParallelRenderingTest.class,
           ParseTreeNodeTest.class,
           ParserBaseTest.class,
           ParserTest.class,
+          PoolRuntimeLookupsStageTest.class,
           PunctuationTrieTest.class,
           QuasiBuilderTest.class,
           RRuleTest.class,
           RewriteHtmlStageTest.class,
           RewriterTest.class,
+          SchemaCacheTest.class,
           ScopeTest.class,
+          ShortenLocalNamesStageTest.class,
           SideBySideRendererTest.class,
           SnippetProducerTest.class,
+          SourceMapBuilderTest.class,
           SourceSnippetRendererTest.class,
           SparseBitSetTest.class,
           StringLiteralTest.class,
           StringsTest.class,
           TestBedTest.class,
           TokenClassificationTest.class,
+          WorkerPoolTest.class,
     };
     Pattern testFilter = Pattern.compile(System.getProperty("test.filter", ""));
     for (Class<? extends TestCase> testClass : testClasses) {
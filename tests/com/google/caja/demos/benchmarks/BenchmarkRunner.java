@@ -16,7 +16,9 @@ package com.google.caja.demos.benchmarks;
 
 import com.google.caja.parser.AncestorChain;
 import com.google.caja.plugin.PluginCompiler;
+import com.google.caja.plugin.PluginMessageType;
 import com.google.caja.plugin.PluginMeta;
+import com.google.caja.reporting.Message;
 import com.google.caja.util.CajaTestCase;
 import com.google.caja.util.RhinoTestBed;
 import com.google.caja.reporting.TestBuildInfo;
@@ -41,7 +43,8 @@ public class BenchmarkRunner extends CajaTestCase {
    */
   private void runBenchmark(String filename) throws Exception {
     double scoreUncajoled = runUncajoled(filename);
-    double scoreCajoled = runCajoled(filename);
+    double scoreCajoled = runCajoled(filename, false);
+    double scorePooled = runCajoled(filename, true);
     System.out.println(
         "VarZ:benchmark." + getName() + ".speed.uncajoled.nodebug.rhino.cold=" + scoreUncajoled);
     System.out.println(
@@ -49,6 +52,13 @@ public class BenchmarkRunner extends CajaTestCase {
     System.out.println(
         "VarZ:benchmark." + getName() + ".speeddiff.valija.nodebug.rhino.cold="
         + (scoreCajoled / scoreUncajoled));
+    System.out.println(
+        "VarZ:benchmark." + getName() + ".speed.valija-pooled.nodebug.rhino.cold="
+        + scorePooled);
+    System.out.println(
+        "VarZ:benchmark." + getName()
+        + ".speeddiff.valija-pooled.nodebug.rhino.cold="
+        + (scorePooled / scoreUncajoled));
   }
 
   // Like run.js but outputs the result differently.
@@ -76,15 +86,30 @@ public class BenchmarkRunner extends CajaTestCase {
     return score.doubleValue();
   }
 
-  private double runCajoled(String filename) throws Exception {
+  /**
+   * @param pool whether to run the {@link
+   *     com.google.caja.plugin.stages.PoolRuntimeLookupsStage}, which also
+   *     reports the size of the cajoled output before and after.
+   */
+  private double runCajoled(String filename, boolean pool) throws Exception {
     PluginMeta meta = new PluginMeta();
     meta.setValijaMode(true);
+    meta.setPoolRuntimeLookups(pool);
     PluginCompiler pc = new PluginCompiler(new TestBuildInfo(), meta, mq);
     pc.addInput(AncestorChain.instance(js(fromResource("base.js"))));
     pc.addInput(AncestorChain.instance(js(fromResource(filename))));
     pc.addInput(AncestorChain.instance(js(fromString(RUN_SCRIPT))));
     assertTrue(pc.run());
     String cajoledJs = render(pc.getJavascript());
+    if (pool) {
+      System.out.println(
+          "VarZ:benchmark." + getName() + ".size.valija.nodebug.rhino.cold="
+          + minifiedSizeReported(true));
+      System.out.println(
+          "VarZ:benchmark." + getName()
+          + ".size.valija-pooled.nodebug.rhino.cold="
+          + minifiedSizeReported(false));
+    }
     Number score = (Number) RhinoTestBed.runJs(
         new RhinoTestBed.Input(getClass(), "../../cajita.js"),
         new RhinoTestBed.Input(
@@ -112,4 +137,18 @@ public class BenchmarkRunner extends CajaTestCase {
             "score"));
     return score.doubleValue();
   }
+
+  /**
+   * The minified size of the cajoled output reported by the last
+   * {@link PluginMessageType#POOLED_RUNTIME_LOOKUPS} message.
+   */
+  private String minifiedSizeReported(boolean before) {
+    String size = null;
+    for (Message msg : mq.getMessages()) {
+      if (msg.getMessageType() == PluginMessageType.POOLED_RUNTIME_LOOKUPS) {
+        size = msg.getMessageParts().get(before ? 3 : 4).toString();
+      }
+    }
+    return size;
+  }
 }
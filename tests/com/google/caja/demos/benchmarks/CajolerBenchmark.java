@@ -0,0 +1,416 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.demos.benchmarks;
+
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.CssLexer;
+import com.google.caja.lexer.CssTokenType;
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.HtmlLexer;
+import com.google.caja.lexer.HtmlTokenType;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.JsLexer;
+import com.google.caja.lexer.JsTokenQueue;
+import com.google.caja.lexer.ParseException;
+import com.google.caja.lexer.Token;
+import com.google.caja.lexer.TokenConsumer;
+import com.google.caja.lexer.TokenQueue;
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.css.CssParser;
+import com.google.caja.parser.css.CssTree;
+import com.google.caja.parser.html.DomParser;
+import com.google.caja.parser.html.DomTree;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.Parser;
+import com.google.caja.parser.quasiliteral.CajitaRewriter;
+import com.google.caja.parser.quasiliteral.DefaultValijaRewriter;
+import com.google.caja.plugin.CssValidator;
+import com.google.caja.plugin.HtmlSanitizer;
+import com.google.caja.plugin.PluginCompiler;
+import com.google.caja.plugin.PluginEnvironment;
+import com.google.caja.plugin.PluginMeta;
+import com.google.caja.render.JsMinimalPrinter;
+import com.google.caja.render.JsPrettyPrinter;
+import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.RenderContext;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Criterion;
+import com.google.caja.util.TestUtil;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times the cajoler's own hot paths, as opposed to {@link BenchmarkRunner}
+ * which times cajoled code, over the calendar and lolcat-search demos.
+ * <p>
+ * Each benchmark is run repeatedly for a warmup period so that the JIT can
+ * settle, and then for a timed period, after which the throughput and, on
+ * JVMs that can count the bytes allocated by a thread, the allocation per
+ * operation and allocation rate are reported in the same format as
+ * {@link BenchmarkRunner}:<pre>
+ * VarZ:benchmark.cajoler.&lt;benchmark&gt;.opsPerSecond=...
+ * VarZ:benchmark.cajoler.&lt;benchmark&gt;.bytesPerOp=...
+ * VarZ:benchmark.cajoler.&lt;benchmark&gt;.allocMegabytesPerSecond=...
+ * </pre>
+ * Operations that modify their input work on a clone made inside the timed
+ * loop, so the cost of cloning is included in their results.
+ *
+ * @author mikesamuel@gmail.com
+ */
+public class CajolerBenchmark extends CajaTestCase {
+  /**
+   * The calendar demo's sources, copied here by the cajoler-benchmarks
+   * target.
+   */
+  private static final String[] CALENDAR_JS = {
+    "calendar/util.js", "calendar/bitset.js", "calendar/uformat.js",
+    "calendar/time-cajita.js", "calendar/weekday-cajita.js",
+    "calendar/timezone-cajita.js", "calendar/time_util-cajita.js",
+    "calendar/hcalendar.js", "calendar/generators-cajita.js",
+    "calendar/instanceGenerators-cajita.js", "calendar/conditions-cajita.js",
+    "calendar/predicates-cajita.js", "calendar/filters-cajita.js",
+    "calendar/rrule-cajita.js", "calendar/event.js", "calendar/chip.js",
+    "calendar/calendar.js", "calendar/event_store.js", "calendar/axis.js",
+    "calendar/layout_policy.js", "calendar/layout.js", "calendar/overlap.js",
+    "calendar/widget.js", "calendar/widget-html.js", "calendar/main.js",
+  };
+  private static final String CALENDAR_CSS = "calendar/widget.css";
+  /** The lolcat-search demo's gadgets, and the files they load. */
+  private static final String[] LOLCAT_HTML = {
+    "lolcat-search/kittens.html", "lolcat-search/searchbox.html",
+  };
+  private static final String[] LOLCAT_RESOURCES = {
+    "lolcat-search/katTranzlator.js", "lolcat-search/kittens.js",
+    "lolcat-search/searchbox.css", "lolcat-search/searchbox.js",
+  };
+
+  private static final long WARMUP_NANOS = 2000L * 1000 * 1000;
+  private static final long TIMED_NANOS = 5000L * 1000 * 1000;
+
+  /** Fixture content by resource path. */
+  private final Map<String, String> fixtures
+      = new LinkedHashMap<String, String>();
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    List<String> paths = new ArrayList<String>();
+    for (String[] group : new String[][] {
+           CALENDAR_JS, { CALENDAR_CSS }, LOLCAT_HTML, LOLCAT_RESOURCES }) {
+      for (String path : group) { paths.add(path); }
+    }
+    for (String path : paths) {
+      fixtures.put(path, TestUtil.readResource(getClass(), path));
+    }
+  }
+
+  public void testJsLexer() throws Exception {
+    measure("jsLexer", new Op() {
+      Object run() throws ParseException {
+        int nTokens = 0;
+        for (String path : CALENDAR_JS) {
+          JsLexer lexer = new JsLexer(producer(path));
+          while (lexer.hasNext()) {
+            lexer.next();
+            ++nTokens;
+          }
+        }
+        return nTokens;
+      }
+    });
+  }
+
+  public void testParser() throws Exception {
+    measure("parser", new Op() {
+      Object run() throws ParseException {
+        return parseCalendar(new SimpleMessageQueue());
+      }
+    });
+  }
+
+  public void testCajitaRewriter() throws Exception {
+    final List<Block> programs = new ArrayList<Block>();
+    for (String path : CALENDAR_JS) {
+      if (path.endsWith("-cajita.js")) {
+        programs.add(parseJs(path, new SimpleMessageQueue()));
+      }
+    }
+    measure("cajitaRewriter", new Op() {
+      Object run() {
+        MessageQueue mq = new SimpleMessageQueue();
+        CajitaRewriter rw = new CajitaRewriter(new TestBuildInfo(), false);
+        List<ParseTreeNode> out = new ArrayList<ParseTreeNode>();
+        for (Block program : programs) {
+          out.add(rw.expand(program.clone(), mq));
+        }
+        return out;
+      }
+    });
+  }
+
+  public void testValijaRewriter() throws Exception {
+    final List<Block> programs = parseCalendar(new SimpleMessageQueue());
+    measure("valijaRewriter", new Op() {
+      Object run() {
+        MessageQueue mq = new SimpleMessageQueue();
+        DefaultValijaRewriter rw = new DefaultValijaRewriter(false);
+        List<ParseTreeNode> out = new ArrayList<ParseTreeNode>();
+        for (Block program : programs) {
+          out.add(rw.expand(program.clone(), mq));
+        }
+        return out;
+      }
+    });
+  }
+
+  public void testCssValidator() throws Exception {
+    final List<CssTree.StyleSheet> sheets
+        = new ArrayList<CssTree.StyleSheet>();
+    for (String path : new String[] {
+           CALENDAR_CSS, "lolcat-search/searchbox.css" }) {
+      sheets.add(parseCss(path));
+    }
+    final CssValidator v = new CssValidator(
+        CssSchema.getDefaultCss21Schema(mq), HtmlSchema.getDefault(mq),
+        new SimpleMessageQueue())
+        .withInvalidNodeMessageLevel(MessageLevel.WARNING);
+    measure("cssValidator", new Op() {
+      Object run() {
+        List<CssTree.StyleSheet> out = new ArrayList<CssTree.StyleSheet>();
+        for (CssTree.StyleSheet sheet : sheets) {
+          CssTree.StyleSheet clone = (CssTree.StyleSheet) sheet.clone();
+          v.validateCss(AncestorChain.instance(clone));
+          out.add(clone);
+        }
+        return out;
+      }
+    });
+  }
+
+  public void testHtmlSanitizer() throws Exception {
+    final List<DomTree> gadgets = new ArrayList<DomTree>();
+    for (String path : LOLCAT_HTML) { gadgets.add(parseHtml(path, mq)); }
+    final HtmlSchema schema = HtmlSchema.getDefault(mq);
+    measure("htmlSanitizer", new Op() {
+      Object run() {
+        HtmlSanitizer s = new HtmlSanitizer(schema, new SimpleMessageQueue());
+        List<DomTree> out = new ArrayList<DomTree>();
+        for (DomTree gadget : gadgets) {
+          DomTree clone = gadget.clone();
+          s.sanitize(AncestorChain.instance(clone));
+          out.add(clone);
+        }
+        return out;
+      }
+    });
+  }
+
+  public void testJsMinimalPrinter() throws Exception {
+    final List<Block> programs = parseCalendar(new SimpleMessageQueue());
+    measure("jsMinimalPrinter", new Op() {
+      Object run() {
+        StringBuilder sb = new StringBuilder();
+        for (Block program : programs) {
+          TokenConsumer tc = new JsMinimalPrinter(sb, null);
+          program.render(new RenderContext(new MessageContext(), tc));
+          tc.noMoreTokens();
+        }
+        return sb;
+      }
+    });
+  }
+
+  public void testJsPrettyPrinter() throws Exception {
+    final List<Block> programs = parseCalendar(new SimpleMessageQueue());
+    measure("jsPrettyPrinter", new Op() {
+      Object run() {
+        StringBuilder sb = new StringBuilder();
+        for (Block program : programs) {
+          TokenConsumer tc = new JsPrettyPrinter(sb, null);
+          program.render(new RenderContext(new MessageContext(), tc));
+          tc.noMoreTokens();
+        }
+        return sb;
+      }
+    });
+  }
+
+  /** Cajoles the calendar demo as done by the calendar target. */
+  public void testPluginCompilerCalendar() throws Exception {
+    measure("pluginCompiler.calendar", new Op() {
+      Object run() throws ParseException {
+        MessageQueue mq = new SimpleMessageQueue();
+        PluginMeta meta = new PluginMeta();
+        meta.setValijaMode(true);
+        PluginCompiler pc = new PluginCompiler(new TestBuildInfo(), meta, mq);
+        pc.addInput(AncestorChain.instance(parseCss(CALENDAR_CSS)));
+        for (Block program : parseCalendar(mq)) {
+          pc.addInput(AncestorChain.instance(program));
+        }
+        assertTrue(pc.run());
+        return pc.getJavascript();
+      }
+    });
+  }
+
+  /** Cajoles the lolcat-search gadgets as done by the lolcat-search target. */
+  public void testPluginCompilerLolcat() throws Exception {
+    final PluginEnvironment env = new PluginEnvironment() {
+      public CharProducer loadExternalResource(
+          ExternalReference ref, String mimeType) {
+        String path = resourcePath(ref);
+        return fixtures.containsKey(path) ? producer(path) : null;
+      }
+      public String rewriteUri(ExternalReference ref, String mimeType) {
+        return ref.getUri().toString();
+      }
+    };
+    measure("pluginCompiler.lolcat", new Op() {
+      Object run() throws ParseException {
+        List<Block> out = new ArrayList<Block>();
+        for (String path : LOLCAT_HTML) {
+          MessageQueue mq = new SimpleMessageQueue();
+          PluginCompiler pc = new PluginCompiler(
+              new TestBuildInfo(), new PluginMeta(env), mq);
+          pc.addInput(AncestorChain.instance(parseHtml(path, mq)));
+          assertTrue(path, pc.run());
+          out.add(pc.getJavascript());
+        }
+        return out;
+      }
+    });
+  }
+
+  /** An operation to time. */
+  private static abstract class Op {
+    /**
+     * Performs the operation once.
+     * @return the result, which is kept live so that the JIT cannot elide
+     *     the work.
+     */
+    abstract Object run() throws Exception;
+  }
+
+  private void measure(String name, Op op) throws Exception {
+    long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+    do { assertNotNull(op.run()); } while (System.nanoTime() < warmupEnd);
+
+    long bytes0 = allocatedBytes();
+    long t0 = System.nanoTime();
+    long elapsed;
+    int nOps = 0;
+    Object result;
+    do {
+      result = op.run();
+      ++nOps;
+    } while ((elapsed = System.nanoTime() - t0) < TIMED_NANOS);
+    long bytes1 = allocatedBytes();
+    assertNotNull(result);
+
+    String prefix = "VarZ:benchmark.cajoler." + name;
+    System.out.println(prefix + ".opsPerSecond=" + (nOps * 1e9 / elapsed));
+    if (bytes0 >= 0 && bytes1 >= 0) {
+      System.out.println(prefix + ".bytesPerOp=" + ((bytes1 - bytes0) / nOps));
+      System.out.println(
+          prefix + ".allocMegabytesPerSecond="
+          + ((bytes1 - bytes0) * 1e9 / elapsed / (1 << 20)));
+    }
+  }
+
+  /**
+   * The number of bytes allocated so far by the current thread, or -1 if the
+   * JVM does not track that.  The method is only available on some JVMs, so
+   * is looked up reflectively.
+   */
+  private static long allocatedBytes() {
+    try {
+      Class<?> sunBean = Class.forName("com.sun.management.ThreadMXBean");
+      Object bean = ManagementFactory.getThreadMXBean();
+      if (!sunBean.isInstance(bean)) { return -1; }
+      Method m = sunBean.getMethod("getThreadAllocatedBytes", long.class);
+      return ((Number) m.invoke(bean, Thread.currentThread().getId()))
+          .longValue();
+    } catch (Exception ex) {
+      return -1;
+    }
+  }
+
+  private CharProducer producer(String path) {
+    return CharProducer.Factory.create(
+        new StringReader(fixtures.get(path)),
+        new InputSource(URI.create("test:///" + path)));
+  }
+
+  /** Maps a reference from a lolcat-search gadget to a fixture path. */
+  private static String resourcePath(ExternalReference ref) {
+    String path = ref.getUri().getPath();
+    if (path == null) { return null; }
+    return "lolcat-search/" + path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  private Block parseJs(String path, MessageQueue mq) throws ParseException {
+    CharProducer cp = producer(path);
+    JsTokenQueue tq = new JsTokenQueue(
+        new JsLexer(cp), cp.getCurrentPosition().source());
+    Block program = new Parser(tq, mq).parse();
+    tq.expectEmpty();
+    return program;
+  }
+
+  private List<Block> parseCalendar(MessageQueue mq) throws ParseException {
+    List<Block> programs = new ArrayList<Block>();
+    for (String path : CALENDAR_JS) { programs.add(parseJs(path, mq)); }
+    return programs;
+  }
+
+  private CssTree.StyleSheet parseCss(String path) throws ParseException {
+    CharProducer cp = producer(path);
+    TokenQueue<CssTokenType> tq = new TokenQueue<CssTokenType>(
+        new CssLexer(cp), cp.getCurrentPosition().source(),
+        new Criterion<Token<CssTokenType>>() {
+          public boolean accept(Token<CssTokenType> t) {
+            return CssTokenType.SPACE != t.type
+                && CssTokenType.COMMENT != t.type;
+          }
+        });
+    CssTree.StyleSheet ss = new CssParser(tq).parseStyleSheet();
+    tq.expectEmpty();
+    return ss;
+  }
+
+  private DomTree parseHtml(String path, MessageQueue mq)
+      throws ParseException {
+    CharProducer cp = producer(path);
+    HtmlLexer lexer = new HtmlLexer(cp);
+    lexer.setTreatedAsXml(false);
+    TokenQueue<HtmlTokenType> tq = new TokenQueue<HtmlTokenType>(
+        lexer, cp.getCurrentPosition().source());
+    return new DomParser(tq, false, mq).parseFragment();
+  }
+}
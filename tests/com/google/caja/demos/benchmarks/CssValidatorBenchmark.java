@@ -0,0 +1,114 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.demos.benchmarks;
+
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.Visitor;
+import com.google.caja.parser.css.CssTree;
+import com.google.caja.plugin.CssValidator;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CajaTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times {@link CssValidator} over a corpus of real-world stylesheets, and over
+ * shorthand properties like {@code font} and {@code background} which have
+ * the most ambiguous signatures.
+ * Reports results in the same format as {@link BenchmarkRunner}.
+ *
+ * @author mikesamuel@gmail.com
+ */
+public class CssValidatorBenchmark extends CajaTestCase {
+  /**
+   * Stylesheets from elsewhere in the tree, copied here by the benchmarks
+   * target.
+   */
+  private static final String[] CORPUS = {
+    "css/benchmarker.css", "css/default.css", "css/documentStyle.css",
+    "css/dom.css", "css/prettify.css",
+    "css/searchbox.css", "css/spring-graph.css", "css/test.css",
+    "css/testsuite.css", "css/widget.css",
+  };
+
+  private static final String SHORTHANDS = (
+      "p { font: italic small-caps bold 12px/1.5 Georgia, 'Times New Roman',"
+      + " Times, serif }\n"
+      + "p { font: 100% Arial, Helvetica, Verdana, sans-serif }\n"
+      + "p { font: inherit }\n"
+      + "p { background: #fff url(bg.png) no-repeat fixed left top }\n"
+      + "p { background: transparent repeat-x 50% 50% }\n"
+      + "p { border: 1px solid #ccc }\n"
+      + "p { border-color: red green blue black }\n"
+      + "p { margin: 0 auto 1em -2px }\n"
+      + "p { list-style: square inside url(dot.gif) }\n"
+      + "p { outline: thin dotted invert }\n");
+
+  private static final int WARMUP_RUNS = 20;
+  private static final int TIMED_RUNS = 100;
+
+  public void testCorpus() throws Exception {
+    List<CssTree.StyleSheet> sheets = new ArrayList<CssTree.StyleSheet>();
+    for (String resource : CORPUS) {
+      sheets.add(css(fromResource(resource)));
+    }
+    report("corpus", sheets);
+  }
+
+  public void testShorthands() throws Exception {
+    List<CssTree.StyleSheet> sheets = new ArrayList<CssTree.StyleSheet>();
+    for (int i = 0; i < 20; ++i) { sheets.add(css(fromString(SHORTHANDS))); }
+    report("shorthands", sheets);
+  }
+
+  private void report(String name, List<CssTree.StyleSheet> sheets) {
+    CssValidator v = new CssValidator(
+        CssSchema.getDefaultCss21Schema(mq), HtmlSchema.getDefault(mq),
+        new SimpleMessageQueue())
+        .withInvalidNodeMessageLevel(MessageLevel.WARNING);
+    for (int i = 0; i < WARMUP_RUNS; ++i) { validateAll(v, sheets); }
+    long t0 = System.nanoTime();
+    int nDecls = 0;
+    for (int i = 0; i < TIMED_RUNS; ++i) { nDecls = validateAll(v, sheets); }
+    double micros = (System.nanoTime() - t0) / 1e3 / TIMED_RUNS / nDecls;
+    System.out.println(
+        "VarZ:benchmark.cssValidator." + name + ".microsPerDeclaration="
+        + micros);
+  }
+
+  private static int validateAll(
+      final CssValidator v, List<CssTree.StyleSheet> sheets) {
+    final int[] nDecls = new int[1];
+    for (CssTree.StyleSheet sheet : sheets) {
+      sheet.acceptPreOrder(new Visitor() {
+        public boolean visit(AncestorChain<?> chain) {
+          ParseTreeNode n = chain.node;
+          if (n instanceof CssTree.Declaration) {
+            v.validateCss(chain.cast(CssTree.Declaration.class));
+            ++nDecls[0];
+            return false;
+          }
+          return true;
+        }
+      }, null);
+    }
+    return nDecls[0];
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.demos.benchmarks;
+
+import com.google.caja.lang.css.CssPropertyPatterns;
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.parser.js.ArrayConstructor;
+import com.google.caja.parser.js.Expression;
+import com.google.caja.parser.js.StringLiteral;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.RhinoTestBed;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times the client side validation of style attribute values in Rhino, as
+ * done by domita's {@code sanitizeStyleAttrValue}, using the regular
+ * expressions and the table driven matchers generated by
+ * {@link CssPropertyPatterns}.
+ * Reports results in the same format as {@link BenchmarkRunner}.
+ *
+ * @author mikesamuel@gmail.com
+ */
+public class StyleSanitizationBenchmark extends CajaTestCase {
+  private static final String[] TYPICAL = {
+    "color: red", "display: none", "margin: 0 auto 1em -2px",
+    "padding: 10px 5px", "font-weight: bold; text-decoration: underline",
+    "background-image: url(\"bg.png\")", "width: 50%; height: 100px",
+    "font-family: \"Times New Roman\" , serif", "border-color: red green",
+    "visibility: hidden; z-index: 2", "opacity: 0.5", "bogus: bogus",
+  };
+
+  /** Values that cause regular expressions to backtrack. */
+  private static final String[] CRAFTED = {
+    "font-family: " + repeat("\"a-a-a-a-a-a-a-a-a\" , ", 40) + "\"a-a-a-a-",
+    "font-family: \"" + repeat("aa-", 200) + "-\"",
+    "margin: " + repeat("0 ", 200),
+    "border-color: " + repeat("-0.0000000000000001", 20) + "x",
+  };
+
+  private static final int WARMUP_RUNS = 5;
+  private static final int TIMED_RUNS = 20;
+
+  public void testTypical() throws Exception {
+    report("typical", TYPICAL, 50);
+  }
+
+  public void testCrafted() throws Exception {
+    report("crafted", CRAFTED, 1);
+  }
+
+  private void report(String name, String[] styles, int copies)
+      throws Exception {
+    CssSchema schema = CssSchema.getDefaultCss21Schema(mq);
+    List<Expression> values = new ArrayList<Expression>();
+    for (int i = 0; i < copies; ++i) {
+      for (String style : styles) {
+        values.add(StringLiteral.valueOf(FilePosition.UNKNOWN, style));
+      }
+    }
+    String valuesJs = render(new ArrayConstructor(FilePosition.UNKNOWN, values));
+    double regexMicros = time(schema, false, valuesJs);
+    double matcherMicros = time(schema, true, valuesJs);
+    System.out.println(
+        "VarZ:benchmark.styleSanitization." + name
+        + ".regex.microsPerAttribute=" + regexMicros);
+    System.out.println(
+        "VarZ:benchmark.styleSanitization." + name
+        + ".matcher.microsPerAttribute=" + matcherMicros);
+    System.out.println(
+        "VarZ:benchmark.styleSanitization." + name + ".speeddiff="
+        + (matcherMicros / regexMicros));
+  }
+
+  private double time(CssSchema schema, boolean useMatchers, String valuesJs)
+      throws Exception {
+    StringBuilder cssDefs = new StringBuilder();
+    CssPropertyPatterns.generatePatterns(schema, useMatchers, cssDefs);
+    Number micros = (Number) RhinoTestBed.runJs(
+        new RhinoTestBed.Input(cssDefs.toString(), "css-defs"),
+        new RhinoTestBed.Input(
+            ""
+            + "var values = " + valuesJs + ";\n"
+            // Like sanitizeStyleAttrValue in domita.js.
+            + "function sanitize(styleAttrValue) {\n"
+            + "  var sanitizedDeclarations = [];\n"
+            + "  var declarations = styleAttrValue.split(/;/g);\n"
+            + "  for (var i = 0; i < declarations.length; i++) {\n"
+            + "    var parts = declarations[i].split(':');\n"
+            + "    var property = parts[0].replace(/^\\s+|\\s+$/g, '')\n"
+            + "        .toLowerCase();\n"
+            + "    var value = parts.slice(1).join(':')\n"
+            + "        .replace(/^\\s+|\\s+$/g, '');\n"
+            + "    if (css.properties.hasOwnProperty(property)\n"
+            + "        && css.properties[property].test(value + ' ')) {\n"
+            + "      sanitizedDeclarations.push(property + ': ' + value);\n"
+            + "    }\n"
+            + "  }\n"
+            + "  return sanitizedDeclarations.join(' ; ');\n"
+            + "}\n"
+            + "function run(n) {\n"
+            + "  for (var k = 0; k < n; ++k) {\n"
+            + "    for (var j = 0; j < values.length; ++j) {\n"
+            + "      sanitize(values[j]);\n"
+            + "    }\n"
+            + "  }\n"
+            + "}\n"
+            + "run(" + WARMUP_RUNS + ");\n"
+            + "var t0 = new Date().getTime();\n"
+            + "run(" + TIMED_RUNS + ");\n"
+            + "(new Date().getTime() - t0) * 1000\n"
+            + "    / (" + TIMED_RUNS + " * values.length);",
+            getName()));
+    return micros.doubleValue();
+  }
+
+  private static String repeat(String s, int n) {
+    StringBuilder sb = new StringBuilder(s.length() * n);
+    for (int i = 0; i < n; ++i) { sb.append(s); }
+    return sb.toString();
+  }
+}
@@ -125,6 +125,74 @@ public class CssPropertyPatternsTest extends CajaTestCase {
     assertDoesNotMatch(leftSignature, ".in", "-px", "em");
   }
 
+  public void testBuiltinAlternativesGrouped() throws Exception {
+    assertMatches("<length> <length>?", "0", "1px", "0 1px", "-1em 0");
+    assertDoesNotMatch("<length> <length>?", "0 bogus", "bogus 1px", "0px)");
+  }
+
+  public void testMatcherTable() throws Exception {
+    assertMatcherTable("zoicks", "[[0,{'zoicks':1},1],[1]]");
+    assertMatcherTable("[ foo | bar ]", "[[0,{'bar':1,'foo':1},1],[1]]");
+    assertMatcherTable("foo*", "[[1,{'foo':1},0]]");
+    assertMatcherTable("foo bar?", "[[0,{'foo':1},1],[1,{'bar':1},2],[1]]");
+    assertMatcherTable(
+        "<length> | auto", "[[0,{'auto':1},1,'length',1],[1]]");
+    // Fail if cannot handle any member of a concatenation
+    assertMatcherTable("[ a b [ c || d ] ]", null);
+  }
+
+  public void testMatcherTokens() throws Exception {
+    String sig = "[ <family-name> | <uri> ]+";
+    assertMatches(
+        sig, "\"Times New Roman\"", "url(\"a b.gif\")",
+        "\"Arial\"  url(\"foo.gif\")");
+    assertDoesNotMatch(
+        sig, "\"Times New Roman", "\"Times\"\"Roman\"", "url(\"a\")x");
+  }
+
+  /**
+   * The matchers and regular expressions for every property in the default
+   * schema should accept the same values.
+   */
+  public void testMatchersAgreeWithPatterns() throws Exception {
+    CssSchema schema = CssSchema.getDefaultCss21Schema(mq);
+    CssPropertyPatterns pp = new CssPropertyPatterns(schema);
+    String[] values = {
+      "", "inherit", "none", "auto", "0", "-0", "+1", "1.5", ".5", "5.",
+      "1.0", "0.707", "01", "12px", "-12.5PX", "1in", "10%", "-10%", "3em 4em",
+      "1px 2px 3px 4px", "1px 2px 3px 4px 5px", "45deg", "-2rad", "1grad",
+      "1s", "200ms", "3kHz", "2", "-3", "#fff", "#ABCDEF", "#ffff", "red",
+      "blue", "transparent", "bold", "italic small-caps bold 12px", "normal",
+      "\"Helvetica\"", "\"Arial Bold\" , sans-serif", "\"a\"", "serif",
+      "url(\"foo.gif\")", "URL(\"foo.gif\")", "url(foo.gif)",
+      "url(\"foo.gif\") no-repeat", "solid 1px red", "thin dotted invert",
+      "square inside", "left top", "50% 50%", "baseline", "x", "none none",
+    };
+    StringBuilder js = new StringBuilder();
+    js.append("var values = ").append(render(toArrayList(values))).append(";");
+    js.append("var m = (").append(CssPropertyPatterns.MATCHER_MAKER)
+        .append(");");
+    for (CssSchema.CssPropertyInfo prop : schema.getCssProperties()) {
+      String pattern = pp.cssPropertyToPattern(prop.sig);
+      if (pattern == null) { continue; }
+      ArrayConstructor table = pp.cssPropertyToMatcherTable(prop.sig);
+      assertNotNull(prop.name.getCanonicalForm(), table);
+      js.append("(function (name, pattern, matcher) {")
+          .append("  for (var i = values.length; --i >= 0;) {")
+          .append("    if (pattern.test(values[i] + ' ')")
+          .append("        !== matcher.test(values[i] + ' ')) {")
+          .append("      throw new Error(name + ': ' + values[i]);")
+          .append("    }")
+          .append("  }")
+          .append("})(")
+          .append(render(StringLiteral.valueOf(
+              FilePosition.UNKNOWN, prop.name.getCanonicalForm())))
+          .append(", ").append(pattern)
+          .append(", m(").append(render(table)).append("));");
+    }
+    RhinoTestBed.runJs(new RhinoTestBed.Input(js.toString(), getName()));
+  }
+
   public void testPropertyNameToDom2Property() {
     assertEquals(
         "color",
@@ -143,17 +211,29 @@ public class CssPropertyPatternsTest extends CajaTestCase {
     assertEquals(actual, golden, actual);
   }
 
+  private void assertMatcherTable(String sig, String golden) {
+    CssPropertyPatterns pp = new CssPropertyPatterns(
+        CssSchema.getDefaultCss21Schema(mq));
+    ArrayConstructor table = pp.cssPropertyToMatcherTable(
+        parseSignature(sig));
+    assertEquals(golden, table != null ? minify(table) : null);
+  }
+
   private void assertMatches(String sig, String... candidates)
       throws Exception {
     RhinoTestBed.runJs(
         new RhinoTestBed.Input(
             ""
             + "var pattern = " + toPattern(sig) + ";"
+            + "var matcher = " + toMatcher(sig) + ";"
             + "var candidates = " + render(toArrayList(candidates)) + ";"
             + "for (var i = candidates.length; --i >= 0;) {"
             + "  if (!pattern.test(candidates[i] + ' ')) {"
             + "    throw new Error(candidates[i]);"
             + "  }"
+            + "  if (!matcher.test(candidates[i] + ' ')) {"
+            + "    throw new Error('matcher: ' + candidates[i]);"
+            + "  }"
             + "}",
             getName()));
   }
@@ -164,11 +244,15 @@ public class CssPropertyPatternsTest extends CajaTestCase {
         new RhinoTestBed.Input(
             ""
             + "var pattern = " + toPattern(sig) + ";"
+            + "var matcher = " + toMatcher(sig) + ";"
             + "var candidates = " + render(toArrayList(candidates)) + ";"
             + "for (var i = candidates.length; --i >= 0;) {"
             + "  if (pattern.test(candidates[i] + ' ')) {"
             + "    throw new Error(candidates[i]);"
             + "  }"
+            + "  if (matcher.test(candidates[i] + ' ')) {"
+            + "    throw new Error('matcher: ' + candidates[i]);"
+            + "  }"
             + "}",
             getName()));
 }
@@ -179,6 +263,13 @@ public class CssPropertyPatternsTest extends CajaTestCase {
     return pp.cssPropertyToPattern(parseSignature(sig));
   }
 
+  private String toMatcher(String sig) {
+    CssPropertyPatterns pp = new CssPropertyPatterns(
+        CssSchema.getDefaultCss21Schema(mq));
+    return "(" + CssPropertyPatterns.MATCHER_MAKER + ")("
+        + render(pp.cssPropertyToMatcherTable(parseSignature(sig))) + ")";
+  }
+
   private ArrayConstructor toArrayList(String... values) {
     List<StringLiteral> literals = new ArrayList<StringLiteral>();
     for (String value : values) {
@@ -14,12 +14,18 @@
 
 package com.google.caja.lang.css;
 
+import com.google.caja.config.ConfigUtil;
 import com.google.caja.reporting.EchoingMessageQueue;
 import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.util.MoreAsserts;
 import com.google.caja.util.Name;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.URI;
 
 import java.util.Arrays;
 
@@ -106,4 +112,49 @@ public class CssSchemaTest extends TestCase {
     MoreAsserts.assertListsEqual(
         Arrays.asList("marginBottom"), marginBottomInfo.dom2properties);
   }
+
+  public void testSnapshot() throws Exception {
+    SimpleMessageQueue mq = new SimpleMessageQueue();
+    CssSchema fromJson = new CssSchema(
+        ConfigUtil.loadWhiteListFromJson(
+            URI.create(
+                "resource:///com/google/caja/lang/css/css-extensions.json"),
+            ConfigUtil.RESOURCE_RESOLVER, mq),
+        ConfigUtil.loadWhiteListFromJson(
+            URI.create(
+                "resource:///com/google/caja/lang/css/css-extensions-fns.json"),
+            ConfigUtil.RESOURCE_RESOLVER, mq));
+    byte[] snapshot = snapshot(fromJson);
+    CssSchema fromSnapshot = CssSchema.readSnapshot(
+        new ByteArrayInputStream(snapshot));
+    // Everything written is read back.
+    assertTrue(Arrays.equals(snapshot, snapshot(fromSnapshot)));
+
+    CssSchema.CssPropertyInfo floatInfo
+        = fromSnapshot.getCssProperty(Name.css("float"));
+    assertEquals("none", floatInfo.defaultValue);
+    assertEquals(
+        fromJson.getCssProperty(Name.css("float")).sig.toString(),
+        floatInfo.sig.toString());
+    assertTrue(floatInfo.appliesTo.accept("div"));
+    assertTrue(floatInfo.mediaGroups.accept("visual"));
+    assertFalse(floatInfo.mediaGroups.accept("aural"));
+    assertTrue(fromSnapshot.isKeyword(Name.css("sans-serif")));
+    assertTrue(fromSnapshot.isFunctionAllowed(Name.css("rgba")));
+    assertFalse(fromSnapshot.isPropertyAllowed(Name.css("content")));
+    assertNotNull(fromSnapshot.getSymbol(Name.css("color")));
+
+    try {
+      CssSchema.readSnapshot(new ByteArrayInputStream(new byte[8]));
+      fail();
+    } catch (IOException ex) {
+      // pass
+    }
+  }
+
+  private static byte[] snapshot(CssSchema schema) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    schema.writeSnapshot(out);
+    return out.toByteArray();
+  }
 }
@@ -18,6 +18,11 @@ import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.util.Name;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 
 /**
@@ -110,6 +115,58 @@ public class HtmlSchemaTest extends TestCase {
                 .accept("bogus"));
   }
 
+  public void testAttributeInfo() throws Exception {
+    // Wildcard definitions are merged into element specific ones.
+    HtmlSchema.AttributeInfo info = schema.lookupAttributeInfo(
+        id("a"), id("title"));
+    assertTrue(info.isAllowed());
+    assertEquals(HTML.Attribute.Type.NONE, info.getAttribute().getType());
+    info = schema.lookupAttributeInfo(id("a"), id("href"));
+    assertTrue(info.isAllowed());
+    assertEquals(HTML.Attribute.Type.URI, info.getAttribute().getType());
+    // Elements with no attributes of their own get the wildcard ones.
+    info = schema.lookupAttributeInfo(id("bogus"), id("title"));
+    assertTrue(info.isAllowed());
+    assertNull(schema.lookupAttributeInfo(id("bogus"), id("href"))
+               .getAttribute());
+    // Nothing is known about unknown attributes.
+    info = schema.lookupAttributeInfo(id("a"), id("bogus"));
+    assertNull(info.getAttribute());
+    assertFalse(info.isAllowed());
+    assertTrue(info.getCriteria().accept("anything"));
+  }
+
+  public void testNamesInterned() throws Exception {
+    assertSame(Name.html("div"), Name.html("div"));
+    assertSame(Name.html("div"), Name.html("DIV"));
+    assertSame(Name.html("onclick"), Name.internHtml("onClick"));
+    // Names not in any schema are not interned.
+    assertNotSame(Name.html("bogus-name"), Name.html("bogus-name"));
+    assertEquals(Name.html("bogus-name"), Name.html("BOGUS-name"));
+  }
+
+  public void testSnapshot() throws Exception {
+    byte[] snapshot = snapshot(schema);
+    schema = HtmlSchema.readSnapshot(new ByteArrayInputStream(snapshot));
+    assertTrue(Arrays.equals(snapshot, snapshot(schema)));
+    // The schema read from the snapshot behaves like the original.
+    testSchema();
+    testAttributeTypes();
+    testAttributeMimeTypes();
+    testAttributeCriteria();
+    assertTrue(schema.isElementAllowed(id("div")));
+    assertTrue(schema.isAttributeAllowed(id("div"), id("title")));
+    assertTrue(schema.lookupElement(id("br")).isEmpty());
+    assertTrue(schema.getAttributeCriteria(id("a"), id("target")).toString()
+               .startsWith("[Value in "));
+  }
+
+  private static byte[] snapshot(HtmlSchema schema) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    schema.writeSnapshot(out);
+    return out.toByteArray();
+  }
+
   private static Name id(String name) {
     return Name.html(name);
   }
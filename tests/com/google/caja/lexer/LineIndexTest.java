@@ -0,0 +1,87 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lexer;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel@gmail.com
+ */
+public class LineIndexTest extends TestCase {
+  public void testEmpty() {
+    LineIndex idx = new LineIndex("");
+    assertEquals(1, idx.getLineCount());
+    assertNull(idx.getLine(1));
+    assertEquals(1, idx.getLineNo(0));
+    assertEquals(1, idx.getCharInLine(0));
+  }
+
+  public void testLineBreaks() {
+    // Same line breaks as CharProducer.  Not broken at U+2028.
+    String text = "a\nbc\r\nd\re\u2028f\n\ng";
+    LineIndex idx = new LineIndex(text);
+    assertEquals(6, idx.getLineCount());
+    assertEquals("a\n", idx.getLine(1).toString());
+    assertEquals("bc\r\n", idx.getLine(2).toString());
+    assertEquals("d\r", idx.getLine(3).toString());
+    assertEquals("e\u2028f\n", idx.getLine(4).toString());
+    assertEquals("\n", idx.getLine(5).toString());
+    assertEquals("g", idx.getLine(6).toString());
+    assertNull(idx.getLine(0));
+    assertNull(idx.getLine(7));
+    assertEquals(text.indexOf('g'), idx.getLineStart(6));
+    assertEquals(text.length(), idx.getLineEnd(6));
+  }
+
+  public void testTrailingLineBreak() {
+    LineIndex idx = new LineIndex("foo\r\n");
+    assertEquals(2, idx.getLineCount());
+    assertEquals("foo\r\n", idx.getLine(1).toString());
+    assertNull(idx.getLine(2));
+  }
+
+  public void testOffsets() {
+    String text = "ab\ncd\r\n\ref";
+    LineIndex idx = new LineIndex(text);
+    int[] lineNos =     { 1, 1, 1, 2, 2, 2, 2, 3, 4, 4, 4 };
+    int[] charInLine =  { 1, 2, 3, 1, 2, 3, 4, 1, 1, 2, 3 };
+    for (int i = 0; i <= text.length(); ++i) {
+      assertEquals("" + i, lineNos[i], idx.getLineNo(i));
+      assertEquals("" + i, charInLine[i], idx.getCharInLine(i));
+    }
+    try {
+      idx.getLineNo(text.length() + 1);
+      fail();
+    } catch (IndexOutOfBoundsException ex) {
+      // pass
+    }
+  }
+
+  public void testManyLines() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i <= 1000; ++i) {
+      sb.append("line ").append(i).append('\n');
+    }
+    LineIndex idx = new LineIndex(sb);
+    assertEquals(1001, idx.getLineCount());
+    for (int i = 1; i <= 1000; ++i) {
+      String line = "line " + i + "\n";
+      assertEquals(line, idx.getLine(i).toString());
+      int start = sb.indexOf(line);
+      assertEquals(start, idx.getLineStart(i));
+      assertEquals(i, idx.getLineNo(start + line.length() - 1));
+    }
+  }
+}
@@ -160,6 +160,26 @@ public class DefaultGadgetRewriterTest extends CajaTestCase {
     }
   }
 
+  public void testStaticStyles() throws Exception {
+    URI gadgetUri = URI.create("http://unittest.google.com/foo/bar/");
+    CharProducer cp = fromString(
+        "<style>p { color: purple }</style><p>Hello</p>",
+        new InputSource(gadgetUri));
+    StringBuilder sb = new StringBuilder();
+    rewriter.setIdClass("g123___");
+    try {
+      rewriter.rewriteContent(gadgetUri, cp, uriCallback, sb);
+    } finally {
+      rewriter.setIdClass(null);
+    }
+    checkMessages(MessageLevel.WARNING);
+    String rewritten = sb.toString();
+    assertTrue(rewritten, rewritten.startsWith(
+        "<style type=\"text/css\">.g123___ p {\n  color: purple\n}</style>"
+        + "<script type=\"text/javascript\">"));
+    assertFalse(rewritten, rewritten.contains("emitCss___"));
+  }
+
   private void assertRewritePasses(String file, MessageLevel failLevel)
       throws Exception {
     URI gadgetUri = TestUtil.getResource(getClass(), file);
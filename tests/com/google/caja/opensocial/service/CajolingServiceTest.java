@@ -14,19 +14,26 @@
 
 package com.google.caja.opensocial.service;
 
+import com.google.caja.util.CompileBudget;
 import com.google.caja.util.Strings;
 import com.google.caja.reporting.TestBuildInfo;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.net.URI;
+import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -37,6 +44,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
@@ -45,8 +54,15 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import com.sun.web.core.Context;
+import com.sun.web.server.HttpServer;
+
 import junit.framework.TestCase;
 
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
 /**
  * Tests the running the cajoler as a webservice
  *
@@ -99,16 +115,111 @@ public class CajolingServiceTest extends TestCase {
   }
 
   private Object request(String queryString) throws Exception {
-    TestHttpServletRequest req = new TestHttpServletRequest(queryString);
+    return request("/proxy", queryString);
+  }
+
+  private Object request(String path, String queryString) throws Exception {
+    return requestWithEncoding(path, queryString, null).getOutputObject();
+  }
+
+  private TestHttpServletResponse requestWithEncoding(
+      String path, String queryString, String acceptEncoding)
+      throws Exception {
+    TestHttpServletRequest req = new TestHttpServletRequest(path, queryString);
+    if (acceptEncoding != null) {
+      req.setHeader("Accept-Encoding", acceptEncoding);
+    }
     TestHttpServletResponse resp = new TestHttpServletResponse();
     service.doGet(req, resp);
-    return resp.getOutputObject();
+    return resp;
   }
 
   public void testSimpleJs() throws Exception {
     registerUri("http://foo/bar.js", "var x = y;", "text/javascript");
     assertEquals(
-        "{\n  var y = ___.readImport(IMPORTS___, 'y');\n  var x = y;\n}",
+        "{var y=___.readImport(IMPORTS___,'y');var x=y;}",
+        request("?url=http://foo/bar.js&mime-type=text/javascript"));
+  }
+
+  public void testJsWithErrorsRejectedBeforeOutput() throws Exception {
+    registerUri("http://foo/bar.js", "var x__ = 1;", "text/javascript");
+    assertEquals(
+        "ERROR",
+        request("?url=http://foo/bar.js&mime-type=text/javascript"));
+  }
+
+  public void testJsOverBudgetRejectedBeforeOutput() throws Exception {
+    service.setCompileBudget(new CompileBudget(1000, 1000, 1000, 20));
+    registerUri("http://foo/bar.js", "var x = y;", "text/javascript");
+    assertEquals(
+        "ERROR",
+        request("?url=http://foo/bar.js&mime-type=text/javascript"));
+    service.setCompileBudget(new CompileBudget(1000, 1000, 1000, 1000));
+    assertEquals(
+        "{var y=___.readImport(IMPORTS___,'y');var x=y;}",
+        request("?url=http://foo/bar.js&mime-type=text/javascript"));
+  }
+
+  public void testJsOverOutputLimitRejectedAfterPartialOutput()
+      throws Exception {
+    // Enough output that much of it is rendered before the limit is hit.
+    StringBuilder js = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      js.append("var x").append(i).append(" = y;\n");
+    }
+    registerUri("http://foo/bar.js", js.toString(), "text/javascript");
+    service.setCompileBudget(
+        new CompileBudget(1 << 20, 1000, 1 << 20, 15000));
+    TestHttpServletResponse resp = requestWithEncoding(
+        "/proxy", "?url=http://foo/bar.js&mime-type=text/javascript", null);
+    assertEquals(HttpServletResponse.SC_FORBIDDEN, resp.getStatus());
+    assertEquals("ERROR", resp.getOutputObject());
+
+    service.setCompileBudget(
+        new CompileBudget(1 << 20, 1000, 1 << 20, 1 << 20));
+    resp = requestWithEncoding(
+        "/proxy", "?url=http://foo/bar.js&mime-type=text/javascript", null);
+    assertEquals(HttpServletResponse.SC_OK, resp.getStatus());
+    String output = (String) resp.getOutputObject();
+    assertTrue(output.endsWith("var x1999=y;}"));
+    assertEquals(
+        String.valueOf(output.length()), resp.getHeader("Content-Length"));
+  }
+
+  public void testDefaultConfigurationStreams() throws Exception {
+    registerUri("http://foo/bar.js", "var x = y;", "text/javascript");
+    String query = "?url=http://foo/bar.js&mime-type=text/javascript";
+    String golden = "{var y=___.readImport(IMPORTS___,'y');var x=y;}";
+    // Streamed output is not held to learn its length.
+    TestHttpServletResponse resp = requestWithEncoding("/proxy", query, null);
+    assertEquals(golden, resp.getOutputObject());
+    assertNull(resp.getHeader("Content-Length"));
+    // But it is cached.
+    resp = requestWithEncoding("/proxy", query, null);
+    assertEquals(golden, resp.getOutputObject());
+    assertEquals(
+        String.valueOf(golden.length()), resp.getHeader("Content-Length"));
+  }
+
+  public void testHeldOutputCached() throws Exception {
+    service.setCompileBudget(new CompileBudget(1000, 1000, 1000, 1000));
+    registerUri("http://foo/bar.js", "var x = y;", "text/javascript");
+    String query = "?url=http://foo/bar.js&mime-type=text/javascript";
+    String golden = "{var y=___.readImport(IMPORTS___,'y');var x=y;}";
+    assertEquals(golden, request(query));
+    // Compressed output is only given a length when served from the cache.
+    TestHttpServletResponse resp = requestWithEncoding("/proxy", query, "gzip");
+    assertEquals(golden, gunzip(resp.getOutputBytes()));
+    assertEquals(
+        String.valueOf(resp.getOutputBytes().length),
+        resp.getHeader("Content-Length"));
+  }
+
+  public void testJsInputOverBudgetRejected() throws Exception {
+    service.setCompileBudget(new CompileBudget(5, 1000, 1000, 1000));
+    registerUri("http://foo/bar.js", "var x = y;", "text/javascript");
+    assertEquals(
+        "ERROR",
         request("?url=http://foo/bar.js&mime-type=text/javascript"));
   }
 
@@ -125,8 +236,7 @@ public class CajolingServiceTest extends TestCase {
         "http://foo/bar.js", "f();", "application/x-javascript");
     assertEquals(
         request("?url=http://foo/bar.js&mime-type=text/javascript"),
-        "{\n  var f = ___.readImport(IMPORTS___, 'f');\n"
-        + "  f.CALL___();\n}");
+        "{var f=___.readImport(IMPORTS___,'f');f.CALL___();}");
   }
 
   public void testImage() throws Exception {
@@ -143,6 +253,236 @@ public class CajolingServiceTest extends TestCase {
     assertEquals("ERROR", request("?url=http://foo/bar.gif&mime-type=image/*"));
   }
 
+  public void testBatch() throws Exception {
+    registerUri("http://foo/a.js", "var x = y;", "text/javascript");
+    registerUri("http://foo/b.js", "var x__ = 1;", "text/javascript");
+    JSONObject result = (JSONObject) JSONValue.parse((String) request(
+        "/batch",
+        "?url=http://foo/a.js&url=http://foo/b.js&url=http://foo/c.js"
+        + "&module=f()&mime-type=text/javascript"));
+    JSONArray modules = (JSONArray) result.get("modules");
+    assertEquals(4, modules.size());
+
+    JSONObject a = (JSONObject) modules.get(0);
+    assertEquals("http://foo/a.js", a.get("url"));
+    assertEquals("text/javascript", a.get("contentType"));
+    assertEquals(
+        "{var y=___.readImport(IMPORTS___,'y');var x=y;}", a.get("output"));
+
+    // Failures are reported per module.
+    JSONObject b = (JSONObject) modules.get(1);
+    assertNull(b.get("output"));
+    String bMessages = String.valueOf(b.get("messages"));
+    assertTrue(bMessages, bMessages.contains("x__"));
+    JSONObject c = (JSONObject) modules.get(2);
+    assertNull(c.get("output"));
+    assertEquals(1, ((JSONArray) c.get("messages")).size());
+
+    JSONObject inline = (JSONObject) modules.get(3);
+    assertEquals(
+        "{var f=___.readImport(IMPORTS___,'f');f.CALL___();}",
+        inline.get("output"));
+  }
+
+  public void testBatchBundle() throws Exception {
+    registerUri("http://foo/a.js", "var x = y;", "text/javascript");
+    registerUri("http://foo/b.js", "var x__ = 1;", "text/javascript");
+    assertEquals(
+        "{var y=___.readImport(IMPORTS___,'y');var x=y;}\n"
+        + "{var f=___.readImport(IMPORTS___,'f');f.CALL___();}\n",
+        request("/batch",
+                "?url=http://foo/a.js&module=f()&mime-type=text/javascript"
+                + "&format=bundle"));
+    // A bundle with a bad module fails as a whole.
+    assertEquals(
+        "ERROR",
+        request("/batch",
+                "?url=http://foo/a.js&url=http://foo/b.js"
+                + "&mime-type=text/javascript&format=bundle"));
+  }
+
+  public void testEmptyBatchRejected() throws Exception {
+    assertEquals("ERROR", request("/batch", "?mime-type=text/javascript"));
+  }
+
+  public void testNegotiateEncoding() throws Exception {
+    assertNull(CajolingService.negotiateEncoding(null));
+    assertNull(CajolingService.negotiateEncoding(""));
+    assertNull(CajolingService.negotiateEncoding("identity"));
+    assertNull(CajolingService.negotiateEncoding("br, compress"));
+    assertEquals("gzip", CajolingService.negotiateEncoding("gzip"));
+    assertEquals("gzip", CajolingService.negotiateEncoding("x-gzip"));
+    assertEquals("gzip", CajolingService.negotiateEncoding("deflate, GZIP"));
+    assertEquals("gzip", CajolingService.negotiateEncoding("*"));
+    assertEquals("deflate", CajolingService.negotiateEncoding("deflate"));
+    assertEquals(
+        "deflate", CajolingService.negotiateEncoding("gzip;q=0.5, deflate"));
+    assertEquals(
+        "deflate", CajolingService.negotiateEncoding("gzip;q=0, *;q=0.1"));
+    assertNull(CajolingService.negotiateEncoding("gzip;q=0, deflate;q=0"));
+  }
+
+  public void testCompressedJs() throws Exception {
+    registerUri("http://foo/bar.js", "var x = y;", "text/javascript");
+    String query = "?url=http://foo/bar.js&mime-type=text/javascript";
+    String golden = "{var y=___.readImport(IMPORTS___,'y');var x=y;}";
+    for (int i = 0; i < 2; ++i) {  // First cajoled, then from the cache.
+      TestHttpServletResponse resp = requestWithEncoding(
+          "/proxy", query, "gzip, deflate");
+      assertEquals("gzip", resp.getHeader("Content-Encoding"));
+      assertEquals("Accept-Encoding", resp.getHeader("Vary"));
+      assertEquals(golden, gunzip(resp.getOutputBytes()));
+
+      resp = requestWithEncoding("/proxy", query, "deflate");
+      assertEquals("deflate", resp.getHeader("Content-Encoding"));
+      assertEquals(golden, inflate(resp.getOutputBytes()));
+
+      resp = requestWithEncoding("/proxy", query, null);
+      assertNull(resp.getHeader("Content-Encoding"));
+      assertEquals("Accept-Encoding", resp.getHeader("Vary"));
+      assertEquals(golden, resp.getOutputObject());
+    }
+    // Cached responses have a known length.
+    TestHttpServletResponse resp = requestWithEncoding("/proxy", query, "gzip");
+    assertEquals(
+        String.valueOf(resp.getOutputBytes().length),
+        resp.getHeader("Content-Length"));
+  }
+
+  public void testChangedContentNotServedFromCache() throws Exception {
+    String query = "?url=http://foo/bar.js&mime-type=text/javascript";
+    registerUri("http://foo/bar.js", "var x = y;", "text/javascript");
+    assertEquals(
+        "{var y=___.readImport(IMPORTS___,'y');var x=y;}",
+        gunzip(requestWithEncoding("/proxy", query, "gzip").getOutputBytes()));
+    registerUri("http://foo/bar.js", "f();", "text/javascript");
+    assertEquals(
+        "{var f=___.readImport(IMPORTS___,'f');f.CALL___();}",
+        gunzip(requestWithEncoding("/proxy", query, "gzip").getOutputBytes()));
+  }
+
+  public void testImageNotCompressed() throws Exception {
+    byte[] byteData = { (byte) 0x47, (byte) 0x49, (byte) 0x46,
+                        (byte) 0x39, (byte) 0x38, (byte) 0x61 };
+    registerUri("http://foo/bar.gif", byteData, "image/gif", null);
+    TestHttpServletResponse resp = requestWithEncoding(
+        "/proxy", "?url=http://foo/bar.gif&mime-type=image/*", "gzip");
+    assertNull(resp.getHeader("Content-Encoding"));
+    assertTrue(Arrays.equals(byteData, resp.getOutputBytes()));
+  }
+
+  public void testCompressedBatch() throws Exception {
+    TestHttpServletResponse resp = requestWithEncoding(
+        "/batch", "?module=f()&format=bundle", "gzip");
+    assertEquals("gzip", resp.getHeader("Content-Encoding"));
+    assertEquals(
+        String.valueOf(resp.getOutputBytes().length),
+        resp.getHeader("Content-Length"));
+    assertEquals(
+        "{var f=___.readImport(IMPORTS___,'f');f.CALL___();}\n",
+        gunzip(resp.getOutputBytes()));
+  }
+
+  /**
+   * Serves the cajoled content of {@link #serverContent} for any URL.
+   * Public so that the servlet container can instantiate it.
+   */
+  public static class FixedContentService extends CajolingService {
+    public FixedContentService() { super(new TestBuildInfo()); }
+    @Override
+    protected CajolingService.FetchedData fetch(URI uri) throws IOException {
+      CajolingService.FetchedData data = serverContent;
+      if (data == null) { throw new IOException(uri.toString()); }
+      return data;
+    }
+  }
+  static volatile CajolingService.FetchedData serverContent;
+
+  public void testCompressedResponsesFromServer() throws Exception {
+    StringBuilder src = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      src.append("var v").append(i).append(" = o.p").append(i).append(";\n");
+    }
+    serverContent = new CajolingService.FetchedData(
+        src.toString().getBytes("UTF-8"), "text/javascript", "UTF-8");
+
+    // Run the service in the same container as CajolingServiceMain.
+    ServerSocket probe = new ServerSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    HttpServer server = new HttpServer(
+        port, InetAddress.getByName("127.0.0.1"), null);
+    Context context = server.getContext("default");
+    context.setDocumentBase(new URL("http://localhost/"));
+    server.start();
+    try {
+      context.getContainer().addServlet("default", FixedContentService.class);
+      URL url = new URL(
+          "http://127.0.0.1:" + port
+          + "/proxy?url=http://foo/bar.js&mime-type=text/javascript");
+      String golden = null;
+      for (int i = 0; i < 2; ++i) {  // First cajoled, then from the cache.
+        for (String acceptEncoding
+             : new String[] { null, "gzip", "deflate", "deflate, gzip" }) {
+          HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+          if (acceptEncoding != null) {
+            conn.setRequestProperty("Accept-Encoding", acceptEncoding);
+          }
+          assertEquals(200, conn.getResponseCode());
+          assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+          byte[] body = readAll(conn.getInputStream());
+          if (i == 1) {
+            assertEquals(body.length, conn.getContentLength());
+          }
+          String encoding = conn.getContentEncoding();
+          String output;
+          if (acceptEncoding == null) {
+            assertNull(encoding);
+            output = new String(body, "UTF-8");
+            golden = output;
+            assertTrue(output, output.contains("readImport"));
+          } else if ("deflate".equals(acceptEncoding)) {
+            assertEquals("deflate", encoding);
+            output = inflate(body);
+          } else {
+            assertEquals("gzip", encoding);
+            output = gunzip(body);
+          }
+          assertEquals(acceptEncoding, golden, output);
+          if (encoding != null) {
+            assertTrue(body.length < golden.length() / 2);
+          }
+        }
+      }
+    } finally {
+      server.stop();
+      serverContent = null;
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte[] buf = new byte[4096];
+      for (int n; (n = in.read(buf)) > 0;) { out.write(buf, 0, n); }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static String gunzip(byte[] bytes) throws IOException {
+    return new String(
+        readAll(new GZIPInputStream(new ByteArrayInputStream(bytes))),
+        "UTF-8");
+  }
+
+  private static String inflate(byte[] bytes) throws IOException {
+    return new String(
+        readAll(new InflaterInputStream(new ByteArrayInputStream(bytes))),
+        "UTF-8");
+  }
+
   public void testHtml() throws Exception {
     String moduleEnvelope = (
         "<Module><ModulePrefs /><Content type=\"html\">"
@@ -177,10 +517,14 @@ public class CajolingServiceTest extends TestCase {
 }
 
 final class TestHttpServletRequest implements HttpServletRequest {
+  private final String requestUri;
   private final String queryString;
   private final Hashtable<String, List<String>> params
       = new Hashtable<String, List<String>>();
-  TestHttpServletRequest(String queryString) {
+  private final Hashtable<String, String> headers
+      = new Hashtable<String, String>();
+  TestHttpServletRequest(String requestUri, String queryString) {
+    this.requestUri = requestUri;
     this.queryString = queryString;
     for (String pair : queryString.split("[?&]")) {
       int eq = pair.indexOf('=');
@@ -197,8 +541,11 @@ final class TestHttpServletRequest implements HttpServletRequest {
   public long getDateHeader(String a) {
     throw new UnsupportedOperationException();
   }
-  public String getHeader(String a) {
-    throw new UnsupportedOperationException();
+  public String getHeader(String name) {
+    return headers.get(Strings.toLowerCase(name));
+  }
+  void setHeader(String name, String value) {
+    headers.put(Strings.toLowerCase(name), value);
   }
   public Enumeration<String> getHeaderNames() {
     throw new UnsupportedOperationException();
@@ -213,7 +560,7 @@ final class TestHttpServletRequest implements HttpServletRequest {
   }
   public String getQueryString() { return queryString; }
   public String getRemoteUser() { throw new UnsupportedOperationException(); }
-  public String getRequestURI() { return "/proxy"; }
+  public String getRequestURI() { return requestUri; }
   public String getRequestedSessionId() {
     throw new UnsupportedOperationException();
   }
@@ -363,6 +710,12 @@ final class TestHttpServletResponse implements HttpServletResponse {
   public void setContentType(String arg0) {
     setHeader("Content-type", arg0);
   }
+  public String getHeader(String name) {
+    return headers.get(Strings.toLowerCase(name));
+  }
+  public byte[] getOutputBytes() {
+    return ((ByteArrayOutputStream) output).toByteArray();
+  }
   public Object getOutputObject() {
     if (output == null) { return null; }
     if (output instanceof ByteArrayOutputStream) {
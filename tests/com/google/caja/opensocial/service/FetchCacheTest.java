@@ -0,0 +1,448 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.opensocial.service;
+
+import com.google.caja.util.CancellationToken;
+import com.google.caja.util.Strings;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link FetchCache} against a local HTTP stand-in server.
+ *
+ * @author jasvir@gmail.com (Jasvir Nagra)
+ */
+public class FetchCacheTest extends TestCase {
+  private StandInServer server;
+  private long now;
+  private FetchCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = new StandInServer();
+    server.start();
+    now = 1000000L;
+    cache = new FetchCache(16, 0, 1 << 18) {
+      @Override
+      protected long currentTimeMillis() { return now; }
+    };
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.close();
+    super.tearDown();
+  }
+
+  public void testFreshResponseServedFromCache() throws Exception {
+    server.respond("/a.js", "f();", "Cache-Control: max-age=60");
+    assertEquals("f();", fetch("/a.js"));
+    now += 30000;
+    assertEquals("f();", fetch("/a.js"));
+    assertEquals(1, server.requestCount());
+    now += 31000;
+    assertEquals("f();", fetch("/a.js"));
+    assertEquals(2, server.requestCount());
+  }
+
+  public void testExpiresHeader() throws Exception {
+    server.respond(
+        "/a.js", "f();",
+        "Date: Mon, 01 Dec 2008 00:00:00 GMT",
+        "Expires: Mon, 01 Dec 2008 00:01:00 GMT");
+    fetch("/a.js");
+    now += 59000;
+    fetch("/a.js");
+    assertEquals(1, server.requestCount());
+    now += 2000;
+    fetch("/a.js");
+    assertEquals(2, server.requestCount());
+  }
+
+  public void testRevalidatesWithETag() throws Exception {
+    server.respond("/a.js", "f();", "Cache-Control: max-age=0", "ETag: \"v1\"");
+    assertEquals("f();", fetch("/a.js"));
+    now += 1000;
+    assertEquals("f();", fetch("/a.js"));
+    assertEquals(2, server.requestCount());
+    assertEquals("\"v1\"", server.lastRequestHeader("if-none-match"));
+    assertEquals(1, server.notModifiedCount());
+  }
+
+  public void testRevalidatesWithLastModified() throws Exception {
+    server.respond(
+        "/a.js", "f();", "Cache-Control: no-cache",
+        "Last-Modified: Mon, 01 Dec 2008 00:00:00 GMT");
+    assertEquals("f();", fetch("/a.js"));
+    assertEquals("f();", fetch("/a.js"));
+    assertEquals(2, server.requestCount());
+    assertEquals(
+        "Mon, 01 Dec 2008 00:00:00 GMT",
+        server.lastRequestHeader("if-modified-since"));
+    assertEquals(1, server.notModifiedCount());
+  }
+
+  public void testChangedContentReplacesEntry() throws Exception {
+    server.respond("/a.js", "f();", "Cache-Control: max-age=0", "ETag: \"v1\"");
+    assertEquals("f();", fetch("/a.js"));
+    server.respond("/a.js", "g();", "Cache-Control: max-age=0", "ETag: \"v2\"");
+    assertEquals("g();", fetch("/a.js"));
+    assertEquals(0, server.notModifiedCount());
+  }
+
+  public void testNoStoreNotCached() throws Exception {
+    server.respond("/a.js", "f();", "Cache-Control: no-store", "ETag: \"v1\"");
+    fetch("/a.js");
+    fetch("/a.js");
+    assertEquals(2, server.requestCount());
+    assertEquals(null, server.lastRequestHeader("if-none-match"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testConcurrentFetchesShareOneRequest() throws Exception {
+    server.respond("/a.js", "f();", "Cache-Control: max-age=60");
+    server.block();
+    final List<String> results
+        = Collections.synchronizedList(new ArrayList<String>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; ++i) {
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          try {
+            results.add(fetch("/a.js"));
+          } catch (IOException ex) {
+            results.add(ex.toString());
+          }
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    assertTrue(server.awaitRequest());
+    // Give the other threads a chance to pile up behind the first.
+    Thread.sleep(100);
+    server.unblock();
+    for (Thread t : threads) { t.join(); }
+    assertEquals(8, results.size());
+    for (String result : results) { assertEquals("f();", result); }
+    assertEquals(1, server.requestCount());
+  }
+
+  public void testStaleWhileRevalidate() throws Exception {
+    server.respond(
+        "/a.js", "f();", "Cache-Control: max-age=1, stale-while-revalidate=60",
+        "ETag: \"v1\"");
+    assertEquals("f();", fetch("/a.js"));
+    server.respond(
+        "/a.js", "g();", "Cache-Control: max-age=1, stale-while-revalidate=60",
+        "ETag: \"v2\"");
+    now += 2000;
+    server.block();
+    // Served stale without waiting on the blocked revalidation.
+    assertEquals("f();", fetch("/a.js"));
+    assertTrue(server.awaitRequest());
+    server.unblock();
+    for (int tries = 0; tries < 100 && "f();".equals(fetch("/a.js")); ++tries) {
+      Thread.sleep(20);
+    }
+    assertEquals("g();", fetch("/a.js"));
+    assertEquals(2, server.requestCount());
+  }
+
+  public void testRevalidationsRunOnBoundedThreads() throws Exception {
+    int n = FetchCache.REVALIDATION_THREADS + 4;
+    for (int i = 0; i < n; ++i) {
+      server.respond(
+          "/" + i + ".js", "f();",
+          "Cache-Control: max-age=1, stale-while-revalidate=60");
+      fetch("/" + i + ".js");
+    }
+    now += 2000;
+    // Other tests' caches may still have idle threads.
+    int idle = revalidatorThreads();
+    server.block();
+    for (int i = 0; i < n; ++i) {
+      // Each stale hit, however often, queues at most one revalidation.
+      for (int j = 0; j < 4; ++j) {
+        assertEquals("f();", fetch("/" + i + ".js"));
+      }
+    }
+    assertTrue(server.awaitRequest());
+    assertTrue(
+        revalidatorThreads() - idle <= FetchCache.REVALIDATION_THREADS);
+    server.unblock();
+    for (int tries = 0; tries < 250 && server.requestCount() < 2 * n;
+         ++tries) {
+      Thread.sleep(20);
+    }
+    Thread.sleep(100);
+    assertEquals(2 * n, server.requestCount());
+  }
+
+  private static int revalidatorThreads() {
+    int count = 0;
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getName().startsWith("fetch revalidator")
+          || t.getName().startsWith("revalidate")) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  public void testStaleWindowEnds() throws Exception {
+    server.respond(
+        "/a.js", "f();", "Cache-Control: max-age=1, stale-while-revalidate=5");
+    fetch("/a.js");
+    server.respond("/a.js", "g();");
+    now += 10000;
+    assertEquals("g();", fetch("/a.js"));
+  }
+
+  public void testSlowOriginTimesOutAtDeadline() throws Exception {
+    server.respond("/a.js", "f();");
+    server.block();
+    long start = System.currentTimeMillis();
+    CancellationToken old = CancellationToken.install(
+        new CancellationToken(start + 200));
+    try {
+      fetch("/a.js");
+      fail("Expected timeout");
+    } catch (IOException ex) {
+      // pass
+    } finally {
+      CancellationToken.install(old);
+      server.unblock();
+    }
+    // Well before the server would give up on the blocked request.
+    assertTrue(System.currentTimeMillis() - start < 4000);
+  }
+
+  public void testDeadlinePassed() throws Exception {
+    server.respond("/a.js", "f();");
+    CancellationToken token = new CancellationToken();
+    token.cancel();
+    CancellationToken old = CancellationToken.install(token);
+    try {
+      fetch("/a.js");
+      fail("Expected failure");
+    } catch (IOException ex) {
+      // pass
+    } finally {
+      CancellationToken.install(old);
+    }
+    assertEquals(0, server.requestCount());
+  }
+
+  public void testMissingContent() throws Exception {
+    try {
+      fetch("/missing.js");
+      fail();
+    } catch (IOException ex) {
+      // pass
+    }
+  }
+
+  private String fetch(String path) throws IOException {
+    CajolingService.FetchedData data = cache.fetch(server.uri(path));
+    return new String(data.content, "UTF-8");
+  }
+
+  /**
+   * A minimal HTTP/1.0 server that serves canned responses, and answers
+   * conditional requests with {@code 304 Not Modified} when the validators
+   * match.
+   */
+  private static final class StandInServer implements Runnable {
+    private final ServerSocket socket;
+    private final Map<String, Response> responses
+        = new HashMap<String, Response>();
+    private int requestCount;
+    private int notModifiedCount;
+    private Map<String, String> lastRequestHeaders
+        = new HashMap<String, String>();
+    private CountDownLatch requested;
+    /** Released by unblock. */
+    private CountDownLatch release;
+    /** The latch the next request waits on, if any. */
+    private CountDownLatch blocked;
+
+    StandInServer() throws IOException {
+      socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    void start() {
+      Thread t = new Thread(this, "stand-in server");
+      t.setDaemon(true);
+      t.start();
+    }
+
+    URI uri(String path) {
+      return URI.create("http://127.0.0.1:" + socket.getLocalPort() + path);
+    }
+
+    synchronized void respond(String path, String body, String... headers) {
+      responses.put(path, new Response(body, headers));
+    }
+
+    synchronized int requestCount() { return requestCount; }
+
+    synchronized int notModifiedCount() { return notModifiedCount; }
+
+    synchronized String lastRequestHeader(String name) {
+      return lastRequestHeaders.get(name);
+    }
+
+    /** Makes the next request wait until {@link #unblock}. */
+    synchronized void block() {
+      requested = new CountDownLatch(1);
+      release = blocked = new CountDownLatch(1);
+    }
+
+    synchronized void unblock() { release.countDown(); }
+
+    boolean awaitRequest() throws InterruptedException {
+      CountDownLatch latch;
+      synchronized (this) { latch = requested; }
+      return latch.await(5, TimeUnit.SECONDS);
+    }
+
+    void close() throws IOException { socket.close(); }
+
+    public void run() {
+      while (true) {
+        Socket s;
+        try {
+          s = socket.accept();
+        } catch (SocketException ex) {
+          return;  // closed
+        } catch (IOException ex) {
+          ex.printStackTrace();
+          return;
+        }
+        try {
+          try {
+            handle(s);
+          } finally {
+            s.close();
+          }
+        } catch (IOException ex) {
+          ex.printStackTrace();
+        } catch (InterruptedException ex) {
+          return;
+        }
+      }
+    }
+
+    private void handle(Socket s) throws IOException, InterruptedException {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(s.getInputStream(), "UTF-8"));
+      String requestLine = in.readLine();
+      if (requestLine == null) { return; }
+      String path = requestLine.split(" ")[1];
+      Map<String, String> headers = new HashMap<String, String>();
+      for (String line; (line = in.readLine()) != null && !"".equals(line);) {
+        int colon = line.indexOf(':');
+        headers.put(
+            Strings.toLowerCase(line.substring(0, colon).trim()),
+            line.substring(colon + 1).trim());
+      }
+
+      CountDownLatch wait;
+      Response r;
+      synchronized (this) {
+        ++requestCount;
+        lastRequestHeaders = headers;
+        r = responses.get(path);
+        wait = blocked;
+        blocked = null;
+        if (requested != null) { requested.countDown(); }
+      }
+      if (wait != null) { wait.await(5, TimeUnit.SECONDS); }
+
+      StringBuilder sb = new StringBuilder();
+      byte[] body = new byte[0];
+      if (r == null) {
+        sb.append("HTTP/1.0 404 Not Found\r\n");
+      } else if (r.matches(headers)) {
+        synchronized (this) { ++notModifiedCount; }
+        sb.append("HTTP/1.0 304 Not Modified\r\n");
+        r.appendHeaders(sb);
+      } else {
+        body = r.body.getBytes("UTF-8");
+        sb.append("HTTP/1.0 200 OK\r\n")
+            .append("Content-Type: text/javascript\r\n")
+            .append("Content-Length: ").append(body.length).append("\r\n");
+        r.appendHeaders(sb);
+      }
+      sb.append("\r\n");
+      OutputStream out = s.getOutputStream();
+      out.write(sb.toString().getBytes("UTF-8"));
+      out.write(body);
+      out.flush();
+    }
+  }
+
+  private static final class Response {
+    final String body;
+    final String[] headers;
+
+    Response(String body, String[] headers) {
+      this.body = body;
+      this.headers = headers;
+    }
+
+    String header(String name) {
+      for (String header : headers) {
+        int colon = header.indexOf(':');
+        if (Strings.equalsIgnoreCase(name, header.substring(0, colon))) {
+          return header.substring(colon + 1).trim();
+        }
+      }
+      return null;
+    }
+
+    boolean matches(Map<String, String> requestHeaders) {
+      String etag = header("ETag");
+      String ifNoneMatch = requestHeaders.get("if-none-match");
+      if (ifNoneMatch != null) { return ifNoneMatch.equals(etag); }
+      String lastModified = header("Last-Modified");
+      String ifModifiedSince = requestHeaders.get("if-modified-since");
+      return ifModifiedSince != null && ifModifiedSince.equals(lastModified);
+    }
+
+    void appendHeaders(StringBuilder sb) {
+      for (String header : headers) { sb.append(header).append("\r\n"); }
+    }
+  }
+}
@@ -0,0 +1,183 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.opensocial.service;
+
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.JsLexer;
+import com.google.caja.lexer.JsTokenQueue;
+import com.google.caja.parser.js.Parser;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CancellationToken;
+
+import java.io.StringReader;
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+/**
+ * @author jasvir@gmail.com (Jasvir Nagra)
+ */
+public class WorkerPoolTest extends TestCase {
+  public void testRunsTask() throws Exception {
+    WorkerPool pool = new WorkerPool(2, 0, 5000, false);
+    try {
+      assertEquals("done", pool.run(new Callable<String>() {
+        public String call() { return "done"; }
+      }));
+      assertEquals(1, pool.getAcceptedCount());
+      assertEquals(1, pool.getCompletedCount());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testRejectsWhenQueueFull() throws Exception {
+    final WorkerPool pool = new WorkerPool(1, 0, 5000, false);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        try {
+          pool.run(new Callable<Void>() {
+            public Void call() throws InterruptedException {
+              started.countDown();
+              release.await(5, TimeUnit.SECONDS);
+              return null;
+            }
+          });
+        } catch (Exception ex) {
+          ex.printStackTrace();
+        }
+      }
+    });
+    t.start();
+    try {
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      try {
+        pool.run(new Callable<Void>() {
+          public Void call() { return null; }
+        });
+        fail("Expected rejection");
+      } catch (RejectedExecutionException ex) {
+        // pass
+      }
+      assertEquals(1, pool.getRejectedCount());
+    } finally {
+      release.countDown();
+      t.join();
+    }
+    try {
+      // There is room again.
+      pool.run(new Callable<Void>() {
+        public Void call() { return null; }
+      });
+      assertEquals(2, pool.getAcceptedCount());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testDeadlineCancelsParse() throws Exception {
+    WorkerPool pool = new WorkerPool(1, 0, 50, false);
+    try {
+      pool.run(new Callable<Void>() {
+        public Void call() throws Exception {
+          // Loop until the deadline cancels the token.
+          while (true) {
+            parse("var x = [1, 2, 3].map(function (y) { return y * y; });");
+          }
+        }
+      });
+      fail("Expected timeout");
+    } catch (TimeoutException ex) {
+      // pass
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(1, pool.getTimedOutCount());
+    assertEquals(0, pool.getCompletedCount());
+  }
+
+  public void testStuckTaskAbandoned() throws Exception {
+    WorkerPool pool = new WorkerPool(1, 0, 50, false);
+    final CountDownLatch release = new CountDownLatch(1);
+    long start = System.currentTimeMillis();
+    try {
+      pool.run(new Callable<Void>() {
+        public Void call() {
+          // Never checks the token, and ignores interrupts.
+          while (release.getCount() != 0) {
+            try {
+              release.await();
+            } catch (InterruptedException ex) {
+              // keep waiting
+            }
+          }
+          return null;
+        }
+      });
+      fail("Expected timeout");
+    } catch (TimeoutException ex) {
+      // pass
+    } finally {
+      release.countDown();
+      pool.shutdown();
+    }
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(1, pool.getTimedOutCount());
+  }
+
+  public void testRemainingMillis() throws Exception {
+    assertEquals(Long.MAX_VALUE, CancellationToken.NONE.remainingMillis());
+    CancellationToken token = new CancellationToken(
+        System.currentTimeMillis() + 60000);
+    long remaining = token.remainingMillis();
+    assertTrue("" + remaining, remaining > 50000 && remaining <= 60000);
+    token.cancel();
+    assertEquals(0, token.remainingMillis());
+    assertEquals(0, new CancellationToken(0).remainingMillis());
+  }
+
+  public void testParserChecksToken() throws Exception {
+    CancellationToken token = new CancellationToken();
+    token.cancel();
+    CancellationToken old = CancellationToken.install(token);
+    try {
+      parse("f();");
+      fail("Expected cancellation");
+    } catch (CancellationException ex) {
+      // pass
+    } finally {
+      CancellationToken.install(old);
+    }
+    assertSame(CancellationToken.NONE, CancellationToken.current());
+    parse("f();");
+  }
+
+  private static void parse(String js) throws Exception {
+    InputSource is = new InputSource(URI.create("test:///test.js"));
+    JsTokenQueue tq = new JsTokenQueue(
+        new JsLexer(CharProducer.Factory.create(new StringReader(js), is)),
+        is);
+    new Parser(tq, new SimpleMessageQueue()).parse();
+  }
+}
@@ -2098,6 +2098,87 @@ public class DomParserTest extends CajaTestCase {
     DomTree clone = tree.clone();
     MoreAsserts.assertListsEqual(
         expectedOutputHtml, Arrays.asList(render(clone, asXml).split("\n")));
+
+    if (fragment && !asXml) {
+      // The fast path must produce the same tree as html5lib.
+      assertSameAsHtml5(Join.join("\n", htmlInput));
+    }
+  }
+
+  /**
+   * Checks that well formed fragments are parsed without html5lib, and that
+   * the result is the same as if they had been.
+   */
+  public void testBalancedFragments() throws Exception {
+    String[] inputs = {
+        "<b>Hello</b>",
+        "  \n<p>Hello, <i>World</i>!</p>\n<p>Bye\r\nnow</p>",
+        "<div id=\"foo\" class=\"bar\"><span title=x>a&amp;b</span></div>",
+        "<ul><li>One</li><li>Two <a href=\"#\">link</a></li></ul>",
+        "<dl><dt>Term</dt><dd>Definition<br>more</dd></dl>",
+        "<h1>Title</h1><p>Text<img src=foo.gif>text</p><hr>",
+        "<b><b><b>x</b></b></b>",
+        "<div>a<!-- comment -->b</div>",
+        };
+    for (String input : inputs) {
+      assertTrue(input, assertSameAsHtml5(input));
+    }
+  }
+
+  /**
+   * Checks that malformed fragments fall back to html5lib.
+   */
+  public void testUnbalancedFragments() throws Exception {
+    String[] inputs = {
+        "",
+        "Hello <b>World</b>",
+        "<b>Hello",
+        "<b><i>Hello</b></i>",
+        "<p>One<p>Two",
+        "<p><div>Hello</div></p>",
+        "<ul><li>One<li>Two</ul>",
+        "<a href=#foo>one <a href=#bar>two</a></a>",
+        "<b><b><b><b>x</b></b></b></b>",
+        "<h1><h2>Title</h2></h1>",
+        "<table><tr><td>Cell</td></tr></table>",
+        "<div>Hello</div>World</span>",
+        "<script>foo()</script>",
+        "<div>x</div><title>Foo</title>",
+        };
+    for (String input : inputs) {
+      assertFalse(input, assertSameAsHtml5(input));
+    }
+  }
+
+  /**
+   * Parses input as an HTML fragment with and without html5lib, and checks
+   * that the trees and messages are the same.
+   * @return true if the fast path was used.
+   */
+  private boolean assertSameAsHtml5(String input) throws ParseException {
+    BalancedHtmlElementStack balanced = new BalancedHtmlElementStack(mq);
+    List<String> balancedResult = parseFragmentWith(input, balanced);
+    List<String> html5Result = parseFragmentWith(
+        input, OpenElementStack.Factory.createHtml5ElementStack(mq));
+    MoreAsserts.assertListsEqual(html5Result, balancedResult);
+    return balanced.isFastPath();
+  }
+
+  private List<String> parseFragmentWith(
+      String input, OpenElementStack elementStack)
+      throws ParseException {
+    List<Message> messages = mq.getMessages();
+    int nMessages = messages.size();
+    DomTree tree = new DomParser(tokenizeTestInput(input, false), false, mq)
+        .parseFragment(elementStack);
+    List<String> result = new ArrayList<String>();
+    formatWithLinePositions(tree, mc, 0, new IdentityHashMap<DomTree, Void>(),
+                            result);
+    for (Message message : messages.subList(nMessages, messages.size())) {
+      result.add(message.getMessageLevel().name() + " " + message.format(mc));
+    }
+    messages.subList(nMessages, messages.size()).clear();
+    return result;
   }
 
   private String render(DomTree t, boolean asXml) {
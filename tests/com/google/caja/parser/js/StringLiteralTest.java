@@ -14,6 +14,14 @@
 
 package com.google.caja.parser.js;
 
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
+import com.google.caja.lexer.TokenConsumer;
+import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.RenderContext;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import junit.framework.TestCase;
 
@@ -78,6 +86,38 @@ public class StringLiteralTest extends TestCase {
     assertEquals("'\\\"foo\\\\\\\"'", StringLiteral.toQuotedValue("\"foo\\\""));
   }
 
+  public void testRenderedTokenCached() {
+    StringLiteral lit = StringLiteral.valueOf(
+        FilePosition.UNKNOWN, "caf\u00e9</script>");
+    List<CharSequence> tokens = new ArrayList<CharSequence>();
+    MessageContext mc = new MessageContext();
+    RenderContext ascii = new RenderContext(mc, true, false, collect(tokens));
+    RenderContext paranoid = new RenderContext(
+        mc, false, true, collect(tokens));
+    lit.render(ascii);
+    lit.render(ascii);
+    lit.render(paranoid);
+    lit.render(paranoid);
+    lit.render(ascii);
+    assertEquals("'caf\\xe9</script>'", tokens.get(0).toString());
+    assertSame(tokens.get(0), tokens.get(1));
+    assertEquals("'caf\u00e9\\x3c/script\\x3e'", tokens.get(2).toString());
+    assertSame(tokens.get(2), tokens.get(3));
+    // Re-rendered once the flags change back.
+    assertEquals(tokens.get(0), tokens.get(4));
+  }
+
+  private static TokenConsumer collect(final List<CharSequence> tokens) {
+    return new TokenConsumer() {
+      public void mark(FilePosition pos) {}
+      public void consume(String text) { tokens.add(text); }
+      public void consume(CharSequence text, JsTokenType type) {
+        tokens.add(text);
+      }
+      public void noMoreTokens() {}
+    };
+  }
+
   /**
    * For random tests we choose a seed by using a system property so that
    * failing random tests can be repeated.
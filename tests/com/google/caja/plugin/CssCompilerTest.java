@@ -15,10 +15,12 @@
 package com.google.caja.plugin;
 
 import com.google.caja.lexer.ParseException;
+import com.google.caja.parser.css.CssTree;
 import com.google.caja.parser.js.Statement;
 import com.google.caja.render.JsPrettyPrinter;
 import com.google.caja.reporting.RenderContext;
 import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.RhinoTestBed;
 
 public class CssCompilerTest extends CajaTestCase {
   public void testSimpleRule() {
@@ -76,6 +78,45 @@ public class CssCompilerTest extends CajaTestCase {
         "[ '.', ' div * {\\n  margin: 0;\\n}' ]");
   }
 
+  public void testStaticCss() throws Exception {
+    assertStaticCss(
+        "p {color:purple}",
+        ".g123___ p {\n  color: purple\n}");
+    assertStaticCss(
+        "p#foo #baz{color:blue}",
+        ".g123___ p#foo-g123___ #baz-g123___ {\n  color: blue\n}");
+    assertStaticCss(
+        "body.ie6 p {color:blue}",
+        "body.ie6 .g123___ p {\n  color: blue\n}");
+  }
+
+  public void testStaticCssAgreesWithJs() throws Exception {
+    String input = "a, #b > c { color: blue }  body.ie6 d { margin: 0 }";
+    String js = stripBoilerPlate(
+        render(new CssCompiler().compileCss(css(fromString(input))), 160));
+    CssTree.StyleSheet ss = css(fromString(input));
+    assertTrue(new CssCompiler().compileCssStatically(ss, "g123___"));
+    assertEquals(
+        (String) RhinoTestBed.runJs(
+            new RhinoTestBed.Input(js + ".join('g123___')", getName())),
+        render(ss));
+  }
+
+  public void testSubstitutionsNotStatic() throws Exception {
+    CssTree.StyleSheet ss = css(
+        fromString("#foo { left: ${x * 4}px }"), true);
+    String before = render(ss);
+    assertFalse(new CssCompiler().compileCssStatically(ss, "g123___"));
+    assertEquals(before, render(ss));
+  }
+
+  private void assertStaticCss(String input, String golden)
+      throws ParseException {
+    CssTree.StyleSheet ss = css(fromString(input));
+    assertTrue(new CssCompiler().compileCssStatically(ss, "g123___"));
+    assertEquals(golden, render(ss));
+  }
+
   private void assertCompiledCss(String input, String golden) {
     try {
       Statement s = new CssCompiler().compileCss(css(fromString(input)));
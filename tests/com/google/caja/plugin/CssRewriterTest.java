@@ -113,6 +113,10 @@ public class CssRewriterTest extends CajaTestCase {
     runTest("a#_c {_color: blue; margin:0;}", "");
     runTest(".c__ {_color: blue; margin:0;}", "");
     runTest("#c__ {_color: blue; margin:0;}", "");
+    // A rule set that loses all its selectors is removed even when it follows
+    // another that was removed.
+    runTest(".a__ { color: blue }\n@media print { .b__ { color: red } }",
+            "@media print {\n}");
   }
 
   public void testPseudosWhitelisted() throws Exception {
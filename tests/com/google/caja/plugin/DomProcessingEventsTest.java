@@ -175,4 +175,65 @@ public class DomProcessingEventsTest extends CajaTestCase {
         + "}",
         minify(block));
   }
+
+  public void testQuirkyElementsCollapsedByAncestors() throws Exception {
+    FilePosition unk = FilePosition.UNKNOWN;
+    DomProcessingEvents dpe = new DomProcessingEvents();
+    dpe.begin(unk, Name.html("div"));
+    dpe.finishAttrs(false);
+    for (String el : new String[] { "table", "tbody", "tr", "td" }) {
+      dpe.begin(unk, Name.html(el));
+      dpe.finishAttrs(false);
+    }
+    dpe.pcdata(unk, "x");
+    for (String el : new String[] { "td", "tr", "tbody", "table" }) {
+      dpe.end(unk, Name.html(el));
+    }
+    dpe.end(unk, Name.html("div"));
+
+    // The innerHTML of a tbody can't be set on IE, but a div's can.
+    assertEquals(
+        "{IMPORTS___.htmlEmitter___.b('div').f(false)"
+        + ".ih('<table><tbody><tr><td>x</td></tr></tbody></table>')"
+        + ".e('div');}",
+        toJs(dpe));
+  }
+
+  public void testDeeplyNestedStaticMarkup() throws Exception {
+    FilePosition unk = FilePosition.UNKNOWN;
+    Expression x = jsExpr(fromString("x"));
+    int n = 5000;
+    DomProcessingEvents dpe = new DomProcessingEvents();
+    dpe.begin(unk, Name.html("p"));
+    dpe.finishAttrs(false);
+    dpe.begin(unk, Name.html("div"));
+    dpe.attr(Name.html("id"), x);  // defeat optimization of p
+    dpe.finishAttrs(false);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < n; ++i) {
+      dpe.begin(unk, Name.html("b"));
+      dpe.finishAttrs(false);
+      expected.append("<b>");
+    }
+    dpe.pcdata(unk, "x");
+    expected.append("x");
+    for (int i = 0; i < n; ++i) {
+      dpe.end(unk, Name.html("b"));
+      expected.append("</b>");
+    }
+    dpe.end(unk, Name.html("div"));
+    dpe.end(unk, Name.html("p"));
+
+    assertEquals(
+        "{IMPORTS___.htmlEmitter___.b('p').f(false)"
+        + ".b('div').a('id',x).f(false).ih('" + expected + "').e('div').e('p');}",
+        toJs(dpe));
+  }
+
+  private String toJs(DomProcessingEvents dpe) {
+    Block block = new Block();
+    dpe.toJavascript(block);
+    TestUtil.removePseudoNodes(block);
+    return minify(block);
+  }
 }
@@ -21,6 +21,7 @@ import com.google.caja.lexer.ExternalReference;
 import com.google.caja.parser.ParseTreeNodes;
 import com.google.caja.parser.js.Block;
 import com.google.caja.parser.js.Statement;
+import com.google.caja.reporting.Message;
 import com.google.caja.util.CajaTestCase;
 import com.google.caja.util.TestUtil;
 
@@ -144,6 +145,32 @@ public class HtmlCompilerTest extends CajaTestCase {
         "<style type=text/css>/* Noone here */</style>Hello, World!");
   }
 
+  public void testRepeatedStyleRewriting() throws Exception {
+    assertOutput(
+        "IMPORTS___.htmlEmitter___.b('div')"
+        + ".a('style', 'color: red').f(false).e('div').pc('\\n')"
+        + ".b('p').a('style', 'color: red').f(false).e('p')"
+        + ".b('p').a('style', 'color: red').f(false).e('p');",
+
+        "<div style=\"color: red; bogus: 1\"></div>\n"
+        + "<p style=\"color: red; bogus: 1\"></p>"
+        + "<p style=\"color: red; bogus: 1\"></p>");
+    // Each occurrence is reported at its own position, though only the first
+    // was validated.
+    StringBuilder positions = new StringBuilder();
+    for (Message msg : mq.getMessages()) {
+      if (msg.getMessageType() == PluginMessageType.UNKNOWN_CSS_PROPERTY) {
+        msg.getMessageParts().get(0).format(mc, positions);
+        positions.append('\n');
+      }
+    }
+    assertEquals(
+        "testRepeatedStyleRewriting:1+25 - 30\n"
+        + "testRepeatedStyleRewriting:2+23 - 28\n"
+        + "testRepeatedStyleRewriting:2+59 - 64\n",
+        positions.toString());
+  }
+
   public void testEmptyScriptRewriting() throws Exception {
     assertOutput(
         "IMPORTS___.htmlEmitter___.b('div').f(false)"
@@ -0,0 +1,99 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.reporting.MessageType;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Name;
+
+import java.net.URI;
+
+/**
+ * @author mikesamuel@gmail.com
+ */
+public class SchemaCacheTest extends CajaTestCase {
+  private static final URI CSS21 = URI.create(
+      "resource:///com/google/caja/lang/css/css21.json");
+  private static final URI CSS21_FNS = URI.create(
+      "resource:///com/google/caja/lang/css/css21-fns.json");
+  private static final URI HTML4_ELEMENTS = URI.create(
+      "resource:///com/google/caja/lang/html/html4-elements.json");
+  private static final URI HTML4_ATTRIBUTES = URI.create(
+      "resource:///com/google/caja/lang/html/html4-attributes.json");
+
+  @Override
+  protected void tearDown() throws Exception {
+    SchemaCache.clear();
+    super.tearDown();
+  }
+
+  public void testCssSchemaReused() throws Exception {
+    CssSchema schema = SchemaCache.getCssSchema(CSS21, CSS21_FNS, mq);
+    assertNotNull(schema.getCssProperty(Name.css("color")));
+    assertSame(schema, SchemaCache.getCssSchema(CSS21, CSS21_FNS, mq));
+    SchemaCache.clear();
+    assertNotSame(schema, SchemaCache.getCssSchema(CSS21, CSS21_FNS, mq));
+  }
+
+  public void testHtmlSchemaReused() throws Exception {
+    HtmlSchema schema = SchemaCache.getHtmlSchema(
+        HTML4_ELEMENTS, HTML4_ATTRIBUTES, mq);
+    assertTrue(schema.isElementAllowed(Name.html("div")));
+    assertSame(
+        schema,
+        SchemaCache.getHtmlSchema(HTML4_ELEMENTS, HTML4_ATTRIBUTES, mq));
+    // Keyed by all the whitelists.
+    assertNotSame(
+        schema,
+        SchemaCache.getHtmlSchema(HTML4_ELEMENTS, URI.create(
+            "resource:///com/google/caja/lang/html/"
+            + "html4-attributes-extensions.json"),
+            mq));
+  }
+
+  public void testConfigDefaultsReadFromSnapshots() throws Exception {
+    Config config = new Config(getClass(), System.err, "");
+    assertTrue(config.processArguments(
+        new String[] { "-i", "file:///foo.js" }));
+    int nParsed = SchemaCache.getWhitelistsParsed();
+    CssSchema css = config.getCssSchema(mq);
+    HtmlSchema html = config.getHtmlSchema(mq);
+    assertEquals(nParsed, SchemaCache.getWhitelistsParsed());
+    assertNotNull(css.getCssProperty(Name.css("color")));
+    assertTrue(html.isElementAllowed(Name.html("div")));
+    // Custom whitelists are still parsed.
+    SchemaCache.getHtmlSchema(HTML4_ELEMENTS, URI.create(
+        "resource:///com/google/caja/lang/html/"
+        + "html4-attributes-extensions.json"),
+        mq);
+    assertTrue(SchemaCache.getWhitelistsParsed() > nParsed);
+  }
+
+  public void testFailuresNotCached() throws Exception {
+    URI missing = URI.create("resource:///com/google/caja/lang/css/bogus.json");
+    SimpleMessageQueue mq1 = new SimpleMessageQueue();
+    CssSchema schema1 = SchemaCache.getCssSchema(missing, CSS21_FNS, mq1);
+    SimpleMessageQueue mq2 = new SimpleMessageQueue();
+    CssSchema schema2 = SchemaCache.getCssSchema(missing, CSS21_FNS, mq2);
+    assertNotSame(schema1, schema2);
+    assertEquals(MessageType.IO_ERROR,
+                 mq1.getMessages().get(0).getMessageType());
+    assertEquals(MessageType.IO_ERROR,
+                 mq2.getMessages().get(0).getMessageType());
+  }
+}
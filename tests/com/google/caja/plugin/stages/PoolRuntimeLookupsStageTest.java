@@ -0,0 +1,234 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin.stages;
+
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.js.Block;
+import com.google.caja.plugin.Job;
+import com.google.caja.plugin.Jobs;
+import com.google.caja.plugin.PluginMessageType;
+import com.google.caja.plugin.PluginMeta;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Pipeline;
+import com.google.caja.util.RhinoTestBed;
+
+import java.util.List;
+
+/**
+ * @author mikesamuel@gmail.com
+ */
+public class PoolRuntimeLookupsStageTest extends CajaTestCase {
+  public void testPooling() throws Exception {
+    assertPooled(
+        module(
+            "var moduleResult___ = ___.NO_RESULT;",
+            "moduleResult___ = [",
+            "    ___.readPub(a, 'length'), ___.readPub(b, 'length'),",
+            "    ___.readPub(c, 'length'), ___.readPub(d, 'length'),",
+            "    ___.readPub(e, 'length'), ___.readPub(f, 'length')];",
+            "return moduleResult___;"),
+        module(
+            "var g = ___.readPub, h = 'length';",
+            "var moduleResult___ = ___.NO_RESULT;",
+            "moduleResult___ = [",
+            "    g(a, h), g(b, h), g(c, h), g(d, h), g(e, h), g(f, h)];",
+            "return moduleResult___;"),
+        false);
+  }
+
+  public void testOnlyPooledIfSmaller() throws Exception {
+    String input = module(
+        "___.readPub(a, 'x');",
+        "___.useDebugSymbols('foo', 'foo', 'foo', 'foo', 'foo', 'foo');",
+        "___.useDebugSymbols('foo', 'foo', 'foo', 'foo', 'foo', 'foo');");
+    assertPooled(
+        input,
+        module(
+            "var b = 'foo';",
+            "___.readPub(a, 'x');",
+            "___.useDebugSymbols(b, b, b, b, b, b);",
+            "___.useDebugSymbols(b, b, b, b, b, b);"),
+        false);
+  }
+
+  public void testKeysAndDirectivesNotPooled() throws Exception {
+    assertPooled(
+        module(
+            "'longDirective';",
+            "f({ longKey: 'longKey' }, { longKey: 'longKey' },",
+            "  { longKey: 'longKey' }, { longKey: 'longKey' });",
+            "'longDirective';"),
+        module(
+            "var a = 'longKey';",
+            "'longDirective';",
+            "f({ longKey: a }, { longKey: a }, { longKey: a }, { longKey: a });",
+            "'longDirective';"),
+        false);
+  }
+
+  public void testMembersNotPooledInDebugMode() throws Exception {
+    String input = module(
+        "___.readPub(a, 0); ___.readPub(a, 1); ___.readPub(a, 2);",
+        "___.readPub(a, 3); ___.readPub(a, 4); ___.readPub(a, 5);");
+    assertPooled(
+        input,
+        module(
+            "var b = ___.readPub;",
+            "b(a, 0); b(a, 1); b(a, 2); b(a, 3); b(a, 4); b(a, 5);"),
+        false);
+    assertPooled(input, input, true);
+  }
+
+  public void testMaskedTcbNotPooled() throws Exception {
+    String input = module(
+        "___.readPub(a, 0); ___.readPub(a, 1); ___.readPub(a, 2);",
+        "___.readPub(a, 3); ___.readPub(a, 4); ___.readPub(a, 5);",
+        "(function (___) { return ___.readPub(a, 6); });");
+    assertPooled(input, input, false);
+  }
+
+  public void testCollapseTemporaries() throws Exception {
+    assertPooled(
+        module(
+            "function f() {",
+            "  var x0___;",
+            "  var x1___;",
+            "  return x0___ = a, x1___ = b, x0___.c + x1___.c;",
+            "}",
+            "var x0___;",
+            "var x1___;",
+            "var x2___;",
+            "var x3___;",
+            "var x4___;",
+            "x0___ = a, x0___.b;",
+            "x1___ = c, x2___ = d, x1___.e + x2___.f;",
+            // x3___ is used in a closure, and x4___ in two statements.
+            "x4___ = function () { return x3___; };",
+            "x4___();"),
+        module(
+            "function f() {",
+            "  var x0___;",
+            "  var x1___;",
+            "  return x0___ = a, x1___ = b, x0___.c + x1___.c;",
+            "}",
+            "var x0___;",
+            "var x2___;",
+            "var x3___;",
+            "var x4___;",
+            "x0___ = a, x0___.b;",
+            "x0___ = c, x2___ = d, x0___.e + x2___.f;",
+            "x4___ = function () { return x3___; };",
+            "x4___();"),
+        false);
+  }
+
+  public void testDisabled() throws Exception {
+    String input = module(
+        "___.readPub(a, 0); ___.readPub(a, 1); ___.readPub(a, 2);",
+        "___.readPub(a, 3); ___.readPub(a, 4); ___.readPub(a, 5);");
+    Block js = js(fromString(input));
+    Jobs jobs = new Jobs(mc, mq, new PluginMeta());
+    jobs.getJobs().add(new Job(AncestorChain.instance(js)));
+    assertTrue(new PoolRuntimeLookupsStage().apply(jobs));
+    assertEquals(minify(js(fromString(input))), minify(js));
+  }
+
+  public void testCajoledOutput() throws Exception {
+    assertConsistent(
+        ""
+        + "(function () {\n"
+        + "  var o = { a: [1, 2, 3], b: 'xyz' };\n"
+        + "  function sum(arr) {\n"
+        + "    var t = 0;\n"
+        + "    for (var i = 0; i < arr.length; ++i) { t += arr[i]; }\n"
+        + "    return t;\n"
+        + "  }\n"
+        + "  var r = sum(o.a) + o.a.length + o.b.length;\n"
+        + "  o.a[0]++;\n"
+        + "  o.a[1]--;\n"
+        + "  o.c = o.a.length;\n"
+        + "  return [r, o.a, o.c, sum(o.a)].join(',');\n"
+        + "})()");
+  }
+
+  private static String module(String... lines) {
+    StringBuilder sb = new StringBuilder(
+        "___.loadModule({ 'instantiate': function (___, IMPORTS___) {\n");
+    for (String line : lines) { sb.append(line).append('\n'); }
+    return sb.append("} });").toString();
+  }
+
+  private void assertPooled(String input, String golden, boolean debugMode)
+      throws Exception {
+    Block js = js(fromString(input));
+    PluginMeta meta = new PluginMeta();
+    meta.setPoolRuntimeLookups(true);
+    meta.setDebugMode(debugMode);
+    Jobs jobs = new Jobs(mc, mq, meta);
+    jobs.getJobs().add(new Job(AncestorChain.instance(js)));
+    assertTrue(new PoolRuntimeLookupsStage().apply(jobs));
+    assertEquals(minify(js(fromString(golden))), minify(js));
+  }
+
+  private void assertConsistent(String js) throws Exception {
+    Object golden = RhinoTestBed.runJs(
+        new RhinoTestBed.Input(getClass(), "/com/google/caja/cajita.js"),
+        new RhinoTestBed.Input(js, getName()));
+
+    Block block = js(fromString("result(" + js + ");"));
+    PluginMeta meta = new PluginMeta();
+    meta.setPoolRuntimeLookups(true);
+    Jobs jobs = new Jobs(mc, mq, meta);
+    jobs.getJobs().add(new Job(AncestorChain.instance(block)));
+
+    Pipeline<Jobs> pipeline = new Pipeline<Jobs>();
+    pipeline.getStages().add(new ConsolidateCodeStage());
+    pipeline.getStages().add(new ValidateJavascriptStage(new TestBuildInfo()));
+    pipeline.getStages().add(new PoolRuntimeLookupsStage());
+    assertTrue(pipeline.apply(jobs));
+
+    String cajoled = render(
+        jobs.getJobs().get(0).getRoot().cast(Block.class).node);
+    assertFalse(cajoled, cajoled.contains("___.readPub("));
+
+    Message summary = null;
+    for (Message msg : mq.getMessages()) {
+      if (msg.getMessageType() == PluginMessageType.POOLED_RUNTIME_LOOKUPS) {
+        summary = msg;
+      }
+    }
+    assertNotNull(summary);
+    List<MessagePart> parts = summary.getMessageParts();
+    int before = Integer.parseInt(parts.get(3).toString());
+    int after = Integer.parseInt(parts.get(4).toString());
+    assertTrue(before + " -> " + after, after < before);
+
+    Object actual = RhinoTestBed.runJs(
+        new RhinoTestBed.Input(getClass(), "../console-stubs.js"),
+        new RhinoTestBed.Input(getClass(), "/com/google/caja/cajita.js"),
+        new RhinoTestBed.Input(
+            ""
+            + "var output = '<no-output>';"
+            + "___.getNewModuleHandler().getImports().result = "
+            + "    ___.frozenFunc(function (x) { output = x; });"
+            + cajoled + ";"
+            + "output",
+            getName()));
+    assertEquals(cajoled, golden, actual);
+  }
+}
@@ -0,0 +1,297 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin.stages;
+
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.js.Block;
+import com.google.caja.plugin.Job;
+import com.google.caja.plugin.Jobs;
+import com.google.caja.plugin.PluginMessageType;
+import com.google.caja.plugin.PluginMeta;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Pipeline;
+import com.google.caja.util.RhinoTestBed;
+
+import java.util.List;
+
+/**
+ * @author mikesamuel@gmail.com
+ */
+public class ShortenLocalNamesStageTest extends CajaTestCase {
+  public void testLocals() throws Exception {
+    assertShortened(
+        ""
+        + "function f(longName, other) {\n"
+        + "  var tmp___ = longName + other;\n"
+        + "  return tmp___ * tmp___;\n"
+        + "}",
+        ""
+        + "function f(b, c) {\n"
+        + "  var a = b + c;\n"
+        + "  return a * a;\n"
+        + "}");
+  }
+
+  public void testGlobalsAndFreeNamesKept() throws Exception {
+    assertShortened(
+        ""
+        + "var g = 1;\n"
+        + "(function (x, y) {\n"
+        + "  return function () { return x + a + g; };\n"
+        + "});",
+        ""
+        + "var g = 1;\n"
+        + "(function (b, c) {\n"
+        + "  return function () { return b + a + g; };\n"
+        + "});");
+  }
+
+  public void testOuterVariablesNotMasked() throws Exception {
+    assertShortened(
+        ""
+        + "(function () {\n"
+        + "  var outer = 1, unused = 2;\n"
+        + "  return function (inner) { return outer + inner; };\n"
+        + "});",
+        ""
+        + "(function () {\n"
+        + "  var a = 1, b = 2;\n"
+        + "  return function (b) { return a + b; };\n"
+        + "});");
+  }
+
+  public void testPropertyNamesKept() throws Exception {
+    assertShortened(
+        ""
+        + "(function (obj) {\n"
+        + "  var key = obj.key;\n"
+        + "  return { key: key, obj: obj.x_canRead___ };\n"
+        + "});",
+        ""
+        + "(function (a) {\n"
+        + "  var b = a.key;\n"
+        + "  return { 'key': b, 'obj': a.x_canRead___ };\n"
+        + "});");
+  }
+
+  public void testModuleParametersKept() throws Exception {
+    assertShortened(
+        ""
+        + "(function (___, IMPORTS___) {\n"
+        + "  var moduleResult___ = ___.NO_RESULT;\n"
+        + "  var x0___;\n"
+        + "  moduleResult___ = (x0___ = IMPORTS___.foo, x0___.bar);\n"
+        + "  return moduleResult___;\n"
+        + "});",
+        ""
+        + "(function (___, IMPORTS___) {\n"
+        + "  var a = ___.NO_RESULT;\n"
+        + "  var b;\n"
+        + "  a = (b = IMPORTS___.foo, b.bar);\n"
+        + "  return a;\n"
+        + "});");
+  }
+
+  public void testCatch() throws Exception {
+    assertShortened(
+        ""
+        + "(function (ex___) {\n"
+        + "  try {\n"
+        + "   throw ex___;\n"
+        + "  } catch (ex) {\n"
+        + "   return [ex, ex___];\n"
+        + "  }\n"
+        + "});",
+        ""
+        + "(function (a) {\n"
+        + "  try {\n"
+        + "    throw a;\n"
+        + "  } catch (b) {\n"
+        + "    return [ b, a ];\n"
+        + "  }\n"
+        + "});");
+    // A var declared in a catch block belongs to the function, so the
+    // exception must not take its name.
+    assertShortened(
+        ""
+        + "(function () {\n"
+        + "  try {\n"
+        + "    g();\n"
+        + "  } catch (e) {\n"
+        + "    var x = 1;\n"
+        + "    function h() {}\n"
+        + "  }\n"
+        + "  return [x, h];\n"
+        + "});",
+        ""
+        + "(function () {\n"
+        + "  try {\n"
+        + "    g();\n"
+        + "  } catch (c) {\n"
+        + "    var b = 1;\n"
+        + "    function a() {}\n"
+        + "  }\n"
+        + "  return [ b, a ];\n"
+        + "});");
+  }
+
+  public void testFunctionNames() throws Exception {
+    assertShortened(
+        ""
+        + "(function () {\n"
+        + "  function declared() { return declared; }\n"
+        + "  return function expr() { return [declared, expr]; };\n"
+        + "});",
+        ""
+        + "(function () {\n"
+        + "  function a() { return a; }\n"
+        + "  return function expr() { return [ a, expr ]; };\n"
+        + "});");
+  }
+
+  public void testKeywordsSkipped() throws Exception {
+    StringBuilder src = new StringBuilder("(function () { var v0");
+    // Enough variables to reach "do" and "if".
+    for (int i = 1; i < 54 * 40; ++i) { src.append(", v").append(i); }
+    src.append("; });");
+    Block js = js(fromString(src.toString()));
+    ShortenLocalNamesStage.shorten(js);
+    String out = render(js);
+    assertFalse(out, out.matches("(?s).*\\b(?:do|if|in)\\b.*"));
+    assertTrue(out, out.matches("(?s).*\\bdn\\b.*"));
+  }
+
+  public void testWithAndEvalPreventRenaming() throws Exception {
+    assertUnchanged(
+        ""
+        + "(function (obj) {\n"
+        + "  var local = 1;\n"
+        + "  with (obj) { return local; }\n"
+        + "});");
+    assertUnchanged(
+        ""
+        + "(function (src) {\n"
+        + "  var local = 1;\n"
+        + "  return eval(src);\n"
+        + "});");
+    assertUnchanged(
+        ""
+        + "(function () {\n"
+        + "  try {\n"
+        + "    throw 0;\n"
+        + "  } catch (e) {\n"
+        + "    var e = 1;\n"
+        + "  }\n"
+        + "  return e;\n"
+        + "});");
+  }
+
+  public void testDisabled() throws Exception {
+    Block js = js(fromString("(function (longName) { return longName; });"));
+    PluginMeta meta = new PluginMeta();
+    Jobs jobs = new Jobs(mc, mq, meta);
+    jobs.getJobs().add(new Job(AncestorChain.instance(js)));
+    assertTrue(new ShortenLocalNamesStage().apply(jobs));
+    assertEquals(
+        "{(function(longName){return longName;});}", minify(js));
+  }
+
+  public void testCajoledOutput() throws Exception {
+    assertConsistent(
+        ""
+        + "(function () {\n"
+        + "  var total = 0;\n"
+        + "  function add(nums) {\n"
+        + "   for (var i = 0; i < nums.length; ++i) { total += nums[i]; }\n"
+        + "  }\n"
+        + "  add([1, 2, 3]);\n"
+        + "  var o = { total: total, f: function (x) { return x * 2; } };\n"
+        + "  try {\n"
+        + "   o.missing.method();\n"
+        + "  } catch (ex) {\n"
+        + "   o.total += o.f(total);\n"
+        + "  }\n"
+        + "  return o.total + ',' + o.f(o.total);\n"
+        + "})()");
+  }
+
+  private void assertShortened(String input, String golden) throws Exception {
+    Block js = js(fromString(input));
+    PluginMeta meta = new PluginMeta();
+    meta.setShortenLocalNames(true);
+    Jobs jobs = new Jobs(mc, mq, meta);
+    jobs.getJobs().add(new Job(AncestorChain.instance(js)));
+    assertTrue(new ShortenLocalNamesStage().apply(jobs));
+    assertEquals(minify(js(fromString(golden))), minify(js));
+  }
+
+  private void assertUnchanged(String input) throws Exception {
+    Block js = js(fromString(input));
+    String golden = render(js);
+    assertEquals(-1, ShortenLocalNamesStage.shorten(js));
+    assertEquals(golden, render(js));
+  }
+
+  private void assertConsistent(String js) throws Exception {
+    Object golden = RhinoTestBed.runJs(
+        new RhinoTestBed.Input(getClass(), "/com/google/caja/cajita.js"),
+        new RhinoTestBed.Input(js, getName()));
+
+    Block block = js(fromString("result(" + js + ");"));
+    PluginMeta meta = new PluginMeta();
+    meta.setShortenLocalNames(true);
+    Jobs jobs = new Jobs(mc, mq, meta);
+    jobs.getJobs().add(new Job(AncestorChain.instance(block)));
+
+    Pipeline<Jobs> pipeline = new Pipeline<Jobs>();
+    pipeline.getStages().add(new ConsolidateCodeStage());
+    pipeline.getStages().add(new ValidateJavascriptStage(new TestBuildInfo()));
+    pipeline.getStages().add(new ShortenLocalNamesStage());
+    assertTrue(pipeline.apply(jobs));
+
+    String cajoled = render(
+        jobs.getJobs().get(0).getRoot().cast(Block.class).node);
+    assertFalse(cajoled, cajoled.contains("moduleResult___"));
+    assertFalse(cajoled, cajoled.contains("x0___"));
+
+    Message summary = null;
+    for (Message msg : mq.getMessages()) {
+      if (msg.getMessageType() == PluginMessageType.SHORTENED_LOCAL_NAMES) {
+        summary = msg;
+      }
+    }
+    assertNotNull(summary);
+    List<MessagePart> parts = summary.getMessageParts();
+    int before = Integer.parseInt(parts.get(2).toString());
+    int after = Integer.parseInt(parts.get(3).toString());
+    assertTrue(before + " -> " + after, after < before);
+
+    Object actual = RhinoTestBed.runJs(
+        new RhinoTestBed.Input(getClass(), "../console-stubs.js"),
+        new RhinoTestBed.Input(getClass(), "/com/google/caja/cajita.js"),
+        new RhinoTestBed.Input(
+            ""
+            + "var output = '<no-output>';"
+            + "___.getNewModuleHandler().getImports().result = "
+            + "    ___.frozenFunc(function (x) { output = x; });"
+            + cajoled + ";"
+            + "output",
+            getName()));
+    assertEquals(cajoled, golden, actual);
+  }
+}
@@ -21,12 +21,14 @@ import com.google.caja.lexer.JsTokenType;
 import com.google.caja.lexer.Keyword;
 import com.google.caja.lexer.ParseException;
 import com.google.caja.lexer.Token;
+import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.lexer.escaping.Escaping;
 import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.js.IntegerLiteral;
 import com.google.caja.parser.js.Operation;
 import com.google.caja.parser.js.Operator;
 import com.google.caja.parser.js.Parser;
+import com.google.caja.parser.js.RegexpLiteral;
 import com.google.caja.parser.js.StringLiteral;
 import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.RenderContext;
@@ -224,6 +226,55 @@ public class JsMinimalPrinterTest extends CajaTestCase {
         out.toString());
   }
 
+  public void testOutputStreamed() throws Exception {
+    StringBuilder out = new StringBuilder();
+    JsMinimalPrinter pp = new JsMinimalPrinter(out, null);
+    for (int i = 0; i < 1000; ++i) {
+      for (String token : new String[] { "var", "x", "=", "1", ";" }) {
+        pp.consume(token);
+      }
+      // Everything is written as it's consumed.
+      assertEquals(8 * (i + 1), out.length());
+    }
+    pp.noMoreTokens();
+    assertEquals(8 * 1000, out.length());
+  }
+
+  public void testTypedTokens() throws Exception {
+    assertTypedSameAsUntyped(
+        "var x = /re/g.test('s' + 1.5e3) ? -1 : a.b /* c */ / 2;  // d\n"
+        + "if (typeof x in y) { do { x-- } while (!x) } else return .5 .x");
+  }
+
+  public void testTypesPassedByNodesMatchLexer() throws Exception {
+    List<ParseTreeNode> nodes = new ArrayList<ParseTreeNode>();
+    nodes.add(js(fromString(
+        "var x = /re/g.test('s' + 1.5e3) ? -1 : a.b / 2;"
+        + "for (var k in o) { if (!(k instanceof C)) { delete o[k]; } }"
+        + "function f() { return typeof this === 'undefined'; }")));
+    // Rendered as a call to the constructor of another regexp.
+    nodes.add(new RegexpLiteral(FilePosition.UNKNOWN, "/foo/x"));
+    for (ParseTreeNode node : nodes) {
+      final List<Token<JsTokenType>> typed
+          = new ArrayList<Token<JsTokenType>>();
+      node.render(new RenderContext(new MessageContext(), new TokenConsumer() {
+        public void mark(FilePosition pos) {}
+        public void consume(String text) {}
+        public void consume(CharSequence text, JsTokenType type) {
+          typed.add(Token.instance(
+              text.toString(), type, FilePosition.UNKNOWN));
+        }
+        public void noMoreTokens() {}
+      }));
+      assertFalse(typed.isEmpty());
+      for (Token<JsTokenType> t : typed) {
+        JsLexer lex = new JsLexer(fromString(t.text));
+        assertEquals(t.text, lex.next().type, t.type);
+        assertFalse(t.text, lex.hasNext());
+      }
+    }
+  }
+
   private static final JsTokenType[] TYPES = JsTokenType.values();
   private static final String[] PUNCTUATORS;
   static {
@@ -366,4 +417,28 @@ public class JsMinimalPrinterTest extends CajaTestCase {
     pp.noMoreTokens();
     assertEquals(golden, out.toString());
   }
+
+  /**
+   * Checks that passing each token's type gives the same output as leaving
+   * the renderer to classify the token.
+   */
+  private void assertTypedSameAsUntyped(String input) throws Exception {
+    StringBuilder untypedOut = new StringBuilder();
+    StringBuilder typedOut = new StringBuilder();
+    JsMinimalPrinter untyped = new JsMinimalPrinter(untypedOut, null);
+    JsMinimalPrinter typed = new JsMinimalPrinter(typedOut, null);
+
+    JsLexer lex = new JsLexer(fromString(input));
+    while (lex.hasNext()) {
+      Token<JsTokenType> t = lex.next();
+      untyped.mark(t.pos);
+      untyped.consume(t.text);
+      typed.mark(t.pos);
+      typed.consume(t.text, t.type);
+    }
+    untyped.noMoreTokens();
+    typed.noMoreTokens();
+
+    assertEquals(untypedOut.toString(), typedOut.toString());
+  }
 }
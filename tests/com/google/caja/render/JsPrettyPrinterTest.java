@@ -270,6 +270,43 @@ public class JsPrettyPrinterTest extends CajaTestCase {
     assertTokens("return /**/ 4;", "return", "//", "4", ";");
   }
 
+  public void testOutputStreamed() throws Exception {
+    StringBuilder out = new StringBuilder();
+    JsPrettyPrinter pp = new JsPrettyPrinter(out, null);
+    StringBuilder golden = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) {
+      for (String token : new String[] { "foo", "(", "x", ")", ";" }) {
+        pp.consume(token);
+      }
+      if (i != 0) { golden.append('\n'); }
+      golden.append("foo(x);");
+      // Only a few tokens are held back.
+      assertTrue(golden.length() - out.length() < 40);
+    }
+    pp.noMoreTokens();
+    assertEquals(golden.toString(), out.toString());
+  }
+
+  public void testCommentsHeldUntilNextToken() throws Exception {
+    StringBuilder out = new StringBuilder();
+    JsPrettyPrinter pp = new JsPrettyPrinter(out, null);
+    for (String token : new String[] { "x", ";", "return", "// foo" }) {
+      pp.consume(token);
+    }
+    // Whether the comment can end with a newline depends on the next token.
+    assertFalse(out.toString().contains("foo"));
+    pp.consume("4");
+    pp.consume(";");
+    pp.noMoreTokens();
+    assertEquals("x;\nreturn /* foo*/ 4;", out.toString());
+  }
+
+  public void testTypedTokens() throws Exception {
+    assertTypedSameAsUntyped(
+        "var x = /re/g.test('s' + 1.5e3) ? -1 : a.b /* c */ / 2;  // d\n"
+        + "if (typeof x in y) { do { x-- } while (!x) } else return .5 .x");
+  }
+
   private static final JsTokenType[] TYPES = JsTokenType.values();
   private static final Operator[] OPERATORS = Operator.values();
   private static final Keyword[] KEYWORDS = Keyword.values();
@@ -425,4 +462,28 @@ public class JsPrettyPrinterTest extends CajaTestCase {
     pp.noMoreTokens();
     assertEquals(golden, out.toString());
   }
+
+  /**
+   * Checks that passing each token's type gives the same output as leaving
+   * the renderer to classify the token.
+   */
+  private void assertTypedSameAsUntyped(String input) throws Exception {
+    StringBuilder untypedOut = new StringBuilder();
+    StringBuilder typedOut = new StringBuilder();
+    JsPrettyPrinter untyped = new JsPrettyPrinter(untypedOut, null);
+    JsPrettyPrinter typed = new JsPrettyPrinter(typedOut, null);
+
+    JsLexer lex = new JsLexer(fromString(input));
+    while (lex.hasNext()) {
+      Token<JsTokenType> t = lex.next();
+      untyped.mark(t.pos);
+      untyped.consume(t.text);
+      typed.mark(t.pos);
+      typed.consume(t.text, t.type);
+    }
+    untyped.noMoreTokens();
+    typed.noMoreTokens();
+
+    assertEquals(untypedOut.toString(), typedOut.toString());
+  }
 }
@@ -0,0 +1,218 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.render;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.JsTokenType;
+import com.google.caja.lexer.TokenConsumer;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.Statement;
+import com.google.caja.reporting.RenderContext;
+import com.google.caja.util.CajaTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mikesamuel@gmail.com
+ */
+public class ParallelRenderingTest extends CajaTestCase {
+  private static final String[] CORPUS = {
+    "/com/google/caja/demos/calendar/hcalendar_test.js",
+    "/com/google/caja/demos/calendar/rrule_test.js",
+    "/com/google/caja/demos/calendar/time_test.js",
+  };
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    executor = null;
+    super.tearDown();
+  }
+
+  public void testPrettyPrinter() throws Exception {
+    for (String resource : CORPUS) {
+      Block program = js(fromResource(resource));
+      assertEquals(
+          resource, renderPretty(program, 1), renderPretty(program, 4));
+    }
+  }
+
+  public void testMinimalPrinter() throws Exception {
+    for (String resource : CORPUS) {
+      Block program = js(fromResource(resource));
+      assertEquals(
+          resource, renderMinimal(program, 1), renderMinimal(program, 4));
+    }
+  }
+
+  public void testSameTokensAndMarks() throws Exception {
+    for (String resource : CORPUS) {
+      Block program = js(fromResource(resource));
+      assertEquals(resource, record(program, 1), record(program, 4));
+    }
+  }
+
+  public void testSmallTreesRenderedSequentially() throws Exception {
+    Block program = js(fromString("var x = 1; function f() { return x; }"));
+    List<String> calls = new ArrayList<String>();
+    ParallelRendering.render(
+        program, new RenderContext(mc, new ThreadChecker(calls)),
+        executor, 4);
+    assertFalse(calls.isEmpty());
+    assertFalse(calls.contains("wrong thread"));
+  }
+
+  public void testFailuresPropagate() throws Exception {
+    Block program = js(fromResource(CORPUS[1]));
+    TokenConsumer failing = new TokenConsumer() {
+      int n;
+      public void mark(FilePosition pos) {}
+      public void consume(String text) {
+        if (++n == 1000) { throw new IllegalStateException("Full"); }
+      }
+      public void consume(CharSequence text, JsTokenType type) {
+        consume(text.toString());
+      }
+      public void noMoreTokens() {}
+    };
+    try {
+      ParallelRendering.render(
+          program, new RenderContext(mc, failing), executor, 4);
+      fail("Rendered to a failing consumer");
+    } catch (IllegalStateException ex) {
+      assertEquals("Full", ex.getMessage());
+    }
+  }
+
+  public void testChunksRecordedAheadOfReplayAreBounded() throws Exception {
+    Block program = js(fromResource(CORPUS[1]));
+    final CountingExecutor counting = new CountingExecutor(executor);
+    final List<Integer> submitted = new ArrayList<Integer>();
+    TokenConsumer tc = new TokenConsumer() {
+      public void mark(FilePosition pos) {}
+      public void consume(String text) { submitted.add(counting.n.get()); }
+      public void consume(CharSequence text, JsTokenType type) {
+        consume(text.toString());
+      }
+      public void noMoreTokens() {}
+    };
+    ParallelRendering.render(program, new RenderContext(mc, tc), counting, 2);
+    // No more than two chunks per thread before the first is replayed.
+    assertTrue(submitted.get(0) <= 4);
+    assertTrue(submitted.get(submitted.size() - 1) > 4);
+  }
+
+  public void testStatementsThatAppearTwice() throws Exception {
+    Block program = js(fromResource(CORPUS[1]));
+    List<Statement> stmts = new ArrayList<Statement>(program.children());
+    for (Statement stmt : stmts) { program.appendChild(stmt); }
+    assertEquals(renderPretty(program, 1), renderPretty(program, 4));
+  }
+
+  private String renderPretty(Block program, int nThreads) throws Exception {
+    StringBuilder out = new StringBuilder();
+    SourceMapBuilder sm = new SourceMapBuilder();
+    JsPrettyPrinter pp = new JsPrettyPrinter(out, null);
+    pp.setSourceMap(sm);
+    ParallelRendering.render(
+        program, new RenderContext(mc, pp), executor, nThreads);
+    pp.noMoreTokens();
+    sm.writeJson("out.js", out.append("\n//"));
+    return out.toString();
+  }
+
+  private String renderMinimal(Block program, int nThreads) throws Exception {
+    StringBuilder out = new StringBuilder();
+    SourceMapBuilder sm = new SourceMapBuilder();
+    JsMinimalPrinter pp = new JsMinimalPrinter(out, null);
+    pp.setSourceMap(sm);
+    ParallelRendering.render(
+        program, new RenderContext(mc, pp), executor, nThreads);
+    pp.noMoreTokens();
+    sm.writeJson("out.js", out.append("\n//"));
+    return out.toString();
+  }
+
+  /** A transcript of the calls made to the token consumer. */
+  private String record(Block program, int nThreads) {
+    List<String> calls = new ArrayList<String>();
+    ParallelRendering.render(
+        program, new RenderContext(mc, new ThreadChecker(calls)),
+        executor, nThreads);
+    StringBuilder sb = new StringBuilder();
+    for (String call : calls) { sb.append(call).append('\n'); }
+    return sb.toString();
+  }
+
+  /** Counts the tasks submitted to an executor. */
+  private static final class CountingExecutor
+      extends AbstractExecutorService {
+    final ExecutorService executor;
+    final AtomicInteger n = new AtomicInteger();
+
+    CountingExecutor(ExecutorService executor) { this.executor = executor; }
+
+    public void execute(Runnable task) {
+      n.incrementAndGet();
+      executor.execute(task);
+    }
+
+    public void shutdown() { executor.shutdown(); }
+    public List<Runnable> shutdownNow() { return executor.shutdownNow(); }
+    public boolean isShutdown() { return executor.isShutdown(); }
+    public boolean isTerminated() { return executor.isTerminated(); }
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException {
+      return executor.awaitTermination(timeout, unit);
+    }
+  }
+
+  /**
+   * Records calls, and checks that they are all made on the thread that
+   * started rendering.
+   */
+  private static final class ThreadChecker implements TokenConsumer {
+    final List<String> calls;
+    final Thread thread = Thread.currentThread();
+
+    ThreadChecker(List<String> calls) { this.calls = calls; }
+
+    private void add(String call) {
+      if (Thread.currentThread() != thread) { calls.add("wrong thread"); }
+      calls.add(call);
+    }
+
+    public void mark(FilePosition pos) { add("mark " + pos); }
+    public void consume(String text) { add("consume " + text); }
+    public void consume(CharSequence text, JsTokenType type) {
+      add(type + " " + text);
+    }
+    public void noMoreTokens() { add("end"); }
+  }
+}
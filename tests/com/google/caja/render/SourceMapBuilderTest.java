@@ -0,0 +1,162 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.render;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.parser.js.Block;
+import com.google.caja.reporting.RenderContext;
+import com.google.caja.util.CajaTestCase;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author mikesamuel@gmail.com
+ */
+public class SourceMapBuilderTest extends CajaTestCase {
+  public void testMappings() throws Exception {
+    InputSource a = new InputSource(URI.create("file:///a.js"));
+    InputSource b = new InputSource(URI.create("file:///b.js"));
+    SourceMapBuilder sm = new SourceMapBuilder();
+    sm.addMapping(0, 0, FilePosition.instance(a, 1, 1, 1));
+    sm.addMapping(0, 4, FilePosition.instance(a, 1, 17, 17));
+    // Adds nothing since the previous segment maps to the same place.
+    sm.addMapping(0, 6, FilePosition.instance(a, 1, 17, 17));
+    sm.addMapping(2, 2, FilePosition.instance(b, 3, 40, 1));
+    StringBuilder json = new StringBuilder();
+    sm.writeJson("out.js", json);
+    assertEquals(
+        "{\"version\":3,\"file\":\"out.js\","
+        + "\"sources\":[\"file:///a.js\",\"file:///b.js\"],\"names\":[],"
+        + "\"mappings\":\"AAAA,IAAgB;;ECEhB\"}",
+        json.toString());
+  }
+
+  public void testMappingsOutOfOrder() throws Exception {
+    SourceMapBuilder sm = new SourceMapBuilder();
+    sm.addMapping(1, 4, FilePosition.instance(is, 1, 1, 1));
+    try {
+      sm.addMapping(1, 3, FilePosition.instance(is, 1, 1, 1));
+      fail("Mapping out of order accepted");
+    } catch (IllegalArgumentException ex) {
+      // pass
+    }
+  }
+
+  public void testMinimalPrinter() throws Exception {
+    StringBuilder out = new StringBuilder();
+    JsMinimalPrinter pp = new JsMinimalPrinter(out, null);
+    pp.setLineLengthLimit(20);
+    assertMappedWords(out, pp);
+  }
+
+  public void testPrettyPrinter() throws Exception {
+    StringBuilder out = new StringBuilder();
+    assertMappedWords(out, new JsPrettyPrinter(out, null));
+  }
+
+  /**
+   * Checks that each identifier or keyword in the output that starts a
+   * mapping maps to the same word in the source, and that every identifier
+   * starts a mapping.
+   */
+  private void assertMappedWords(StringBuilder out, BufferingRenderer r)
+      throws Exception {
+    String src = (
+        ""
+        + "var foo = 1;\n"
+        + "  // A comment\n"
+        + "function bar(x) {\n"
+        + "  if (x) { return foo + x; }\n"
+        + "  return /re/.test('baz') ? [x, foo] : { y: x };\n"
+        + "}\n"
+        + "bar(foo);");
+    Block program = js(fromString(src));
+    SourceMapBuilder sm = new SourceMapBuilder();
+    r.setSourceMap(sm);
+    program.render(new RenderContext(mc, r));
+    r.noMoreTokens();
+
+    String[] srcLines = src.split("\n");
+    String[] outLines = out.toString().split("\n");
+    int nIdentifiers = 0;
+    for (int[] segment : decode(sm)) {
+      String outWord = wordAt(outLines[segment[0]], segment[1]);
+      if (outWord == null) { continue; }
+      assertEquals(0, segment[2]);
+      assertEquals(
+          out.toString(),
+          outWord, wordAt(srcLines[segment[3]], segment[4]));
+      if (outWord.matches("foo|bar|x")) { ++nIdentifiers; }
+    }
+    // Each identifier marks its own position so starts a mapping.
+    Matcher m = Pattern.compile("\\b(?:foo|bar|x)\\b").matcher(out);
+    int nInOutput = 0;
+    while (m.find()) { ++nInOutput; }
+    assertEquals(11, nInOutput);
+    assertEquals(nInOutput, nIdentifiers);
+  }
+
+  private static String wordAt(String line, int column) {
+    int end = column;
+    while (end < line.length()
+           && Character.isLetterOrDigit(line.charAt(end))) {
+      ++end;
+    }
+    return end != column ? line.substring(column, end) : null;
+  }
+
+  /**
+   * Decodes a source map's mappings into arrays of output line, output column,
+   * source index, source line and source column.
+   */
+  private static List<int[]> decode(SourceMapBuilder sm) throws Exception {
+    StringBuilder json = new StringBuilder();
+    sm.writeJson(null, json);
+    String key = "\"mappings\":\"";
+    int start = json.indexOf(key) + key.length();
+    String mappings = json.substring(start, json.indexOf("\"", start));
+    String digits
+        = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    List<int[]> segments = new ArrayList<int[]>();
+    int[] fields = new int[5];
+    String[] lines = mappings.split(";", -1);
+    for (int line = 0; line < lines.length; ++line) {
+      fields[1] = 0;
+      if ("".equals(lines[line])) { continue; }
+      for (String segment : lines[line].split(",")) {
+        int pos = 0;
+        for (int i = 1; i < 5; ++i) {
+          int vlq = 0;
+          for (int shift = 0;; shift += 5) {
+            int digit = digits.indexOf(segment.charAt(pos++));
+            vlq |= (digit & 0x1f) << shift;
+            if ((digit & 0x20) == 0) { break; }
+          }
+          fields[i] += (vlq & 1) != 0 ? -(vlq >>> 1) : vlq >>> 1;
+        }
+        assertEquals(segment.length(), pos);
+        fields[0] = line;
+        segments.add(fields.clone());
+      }
+    }
+    return segments;
+  }
+}
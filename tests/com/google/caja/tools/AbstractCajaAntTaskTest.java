@@ -0,0 +1,212 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+
+/**
+ * @author mikesamuel@gmail.com
+ */
+public class AbstractCajaAntTaskTest extends TestCase {
+  private File dir;
+  private File manifestDir;
+  private File input;
+  /** Messages logged by tasks, in the order they reached ANT. */
+  private List<String> messages;
+  private Project project;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = File.createTempFile("AbstractCajaAntTaskTest", "");
+    dir.delete();
+    dir.mkdir();
+    manifestDir = new File(dir, "manifests");
+    input = BuildManifestTest.write(new File(dir, "in.js"), "var x = 1;");
+    messages = Collections.synchronizedList(new ArrayList<String>());
+    project = new Project();
+    project.addBuildListener(new BuildListener() {
+      public void messageLogged(BuildEvent e) {
+        for (String line : e.getMessage().split("\n")) {
+          if (line.startsWith("built ")) { messages.add(line); }
+        }
+      }
+      public void buildStarted(BuildEvent e) {}
+      public void buildFinished(BuildEvent e) {}
+      public void targetStarted(BuildEvent e) {}
+      public void targetFinished(BuildEvent e) {}
+      public void taskStarted(BuildEvent e) {}
+      public void taskFinished(BuildEvent e) {}
+    });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildManifestTest.delete(dir);
+    super.tearDown();
+  }
+
+  public void testParallelLogsInOutputOrder() throws Exception {
+    TestTask task = task("a", "b", "c", "d", "e", "f");
+    task.execute();
+    assertEquals(
+        "[built a, built b, built c, built d, built e, built f]",
+        messages.toString());
+    // Later outputs sleep less, so finish first.
+    assertTrue(task.built.toString(), !"a".equals(task.built.get(0)));
+  }
+
+  public void testFirstFailurePropagates() throws Exception {
+    TestTask task = task("a", "fail1", "b", "fail2", "c");
+    try {
+      task.execute();
+      fail("Built failing outputs");
+    } catch (BuildException ex) {
+      assertEquals(
+          "Failed to build " + new File(dir, "fail1"),
+          rootBuildException(ex).getMessage());
+    }
+    // fail2 fails before fail1, but is logged after it.
+    assertTrue(task.built.toString(),
+               task.built.indexOf("fail2") < task.built.indexOf("fail1"));
+    assertEquals(
+        "[built a, built fail1, built b, built fail2, built c]",
+        messages.toString());
+    assertFalse(new File(dir, "fail1").exists());
+    assertFalse(new File(dir, "fail2").exists());
+  }
+
+  public void testFailedBuildForgotten() throws Exception {
+    task("a", "b").execute();
+    BuildManifest manifest = new BuildManifest(
+        manifestDir, StubBuildService.class, Collections.singletonList(input),
+        Collections.<File>emptyList());
+    File b = new File(dir, "b");
+    assertTrue(manifest.getManifestFile(b).exists());
+
+    // An input change rebuilds both, and the failure of b leaves no record
+    // of its earlier build.
+    BuildManifestTest.write(input, "var x = 2;");
+    TestTask task = task("a", "b");
+    task.failing = "b";
+    try {
+      task.execute();
+      fail("Built failing output");
+    } catch (BuildException ex) {
+      // pass
+    }
+    assertEquals(2, task.built.size());
+    assertFalse(manifest.getManifestFile(b).exists());
+    assertFalse(b.exists());
+
+    // Only the failed output is retried.
+    task = task("a", "b");
+    task.execute();
+    assertEquals("[b]", task.built.toString());
+  }
+
+  private TestTask task(String... outputs) {
+    TestTask task = new TestTask(outputs.length);
+    task.setProject(project);
+    task.setManifestDir(manifestDir);
+    task.createInclude().setFile(input);
+    for (String output : outputs) {
+      task.createOutput().setFile(new File(dir, output));
+    }
+    return task;
+  }
+
+  private static BuildException rootBuildException(BuildException ex) {
+    while (ex.getCause() instanceof BuildException) {
+      ex = (BuildException) ex.getCause();
+    }
+    return ex;
+  }
+
+  /**
+   * Builds outputs by writing their names, with earlier outputs taking longer
+   * so that outputs finish out of order.
+   */
+  private static final class TestTask extends AbstractCajaAntTask {
+    final int nOutputs;
+    /** Names of outputs in the order that they finished building. */
+    final List<String> built
+        = Collections.synchronizedList(new ArrayList<String>());
+    /** Name of an output that fails in addition to those named "fail*". */
+    String failing;
+
+    TestTask(int nOutputs) { this.nOutputs = nOutputs; }
+
+    @Override
+    protected boolean run(BuildService buildService, PrintWriter logger,
+                          List<File> depends, List<File> inputs,
+                          File output, Map<String, Object> options) {
+      String name = output.getName();
+      int index = name.startsWith("fail")
+          ? -Integer.parseInt(name.substring(4)) : name.charAt(0) - 'a';
+      try {
+        Thread.sleep(50 * (nOutputs - Math.abs(index)));
+        BuildManifestTest.write(output, name);
+      } catch (InterruptedException ex) {
+        return false;
+      } catch (IOException ex) {
+        return false;
+      }
+      logger.println("built " + name);
+      built.add(name);
+      return !(name.startsWith("fail") || name.equals(failing));
+    }
+
+    @Override
+    int getMaxThreads() { return 4; }
+
+    @Override
+    BuildService getBuildService() { return new StubBuildService(); }
+
+    @Override
+    Output makeOutput() { return new Output() {}; }
+  }
+
+  private static final class StubBuildService implements BuildService {
+    public boolean cajole(PrintWriter logger, List<File> dependees,
+                          List<File> inputs, File output,
+                          Map<String, Object> options) {
+      throw new UnsupportedOperationException();
+    }
+    public boolean minify(PrintWriter logger, List<File> dependees,
+                          List<File> inputs, File output,
+                          Map<String, Object> options) {
+      throw new UnsupportedOperationException();
+    }
+    public boolean transfInnocent(PrintWriter logger, List<File> depends,
+                                  List<File> inputs, File output,
+                                  Map<String, Object> options) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
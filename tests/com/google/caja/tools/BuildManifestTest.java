@@ -0,0 +1,169 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * @author mikesamuel@gmail.com
+ */
+public class BuildManifestTest extends TestCase {
+  private File dir;
+  private File manifestDir;
+  private File input;
+  private File dependee;
+  private File output;
+  private File sourceMap;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = File.createTempFile("BuildManifestTest", "");
+    dir.delete();
+    dir.mkdir();
+    manifestDir = new File(dir, "manifests");
+    input = write(new File(dir, "in.js"), "var x = 1;");
+    dependee = write(new File(dir, "dep.js"), "var y = 2;");
+    output = write(new File(dir, "out.js"), "cajoled");
+    sourceMap = write(new File(dir, "out.js.map"), "{}");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(dir);
+    super.tearDown();
+  }
+
+  public void testUpToDateAfterBuild() throws Exception {
+    BuildManifest manifest = manifest();
+    assertFalse(manifest.isUpToDate(output, options("x")));
+    manifest.recordBuild(output, options("x"));
+    assertTrue(manifest.isUpToDate(output, options("x")));
+    // A later build compares against the recorded manifest.
+    assertTrue(manifest().isUpToDate(output, options("x")));
+  }
+
+  public void testTimestampsIgnored() throws Exception {
+    manifest().recordBuild(output, options("x"));
+    long later = output.lastModified() + 60000;
+    input.setLastModified(later);
+    dependee.setLastModified(later);
+    output.setLastModified(later - 120000);
+    assertTrue(manifest().isUpToDate(output, options("x")));
+  }
+
+  public void testInputChanged() throws Exception {
+    manifest().recordBuild(output, options("x"));
+    write(input, "var x = 2;");
+    assertFalse(manifest().isUpToDate(output, options("x")));
+  }
+
+  public void testDependeeChanged() throws Exception {
+    manifest().recordBuild(output, options("x"));
+    write(dependee, "var y = 3;");
+    assertFalse(manifest().isUpToDate(output, options("x")));
+  }
+
+  public void testOptionsChanged() throws Exception {
+    BuildManifest manifest = manifest();
+    manifest.recordBuild(output, options("x"));
+    assertFalse(manifest.isUpToDate(output, options("y")));
+    Map<String, Object> moreOptions = options("x");
+    moreOptions.put("debug", Boolean.TRUE);
+    assertFalse(manifest.isUpToDate(output, moreOptions));
+  }
+
+  public void testOutputChanged() throws Exception {
+    BuildManifest manifest = manifest();
+    manifest.recordBuild(output, options("x"));
+    write(output, "modified");
+    assertFalse(manifest.isUpToDate(output, options("x")));
+    manifest.recordBuild(output, options("x"));
+    output.delete();
+    assertFalse(manifest.isUpToDate(output, options("x")));
+  }
+
+  public void testSourceMapChanged() throws Exception {
+    BuildManifest manifest = manifest();
+    manifest.recordBuild(output, options("x"));
+    write(sourceMap, "{\"version\":3}");
+    assertFalse(manifest.isUpToDate(output, options("x")));
+    manifest.recordBuild(output, options("x"));
+    sourceMap.delete();
+    assertFalse(manifest.isUpToDate(output, options("x")));
+  }
+
+  public void testForget() throws Exception {
+    BuildManifest manifest = manifest();
+    manifest.recordBuild(output, options("x"));
+    assertTrue(manifest.getManifestFile(output).exists());
+    // As after a failed build, which may have left the output intact.
+    manifest.forget(output);
+    assertFalse(manifest.getManifestFile(output).exists());
+    assertFalse(manifest.isUpToDate(output, options("x")));
+    manifest.forget(output);
+  }
+
+  public void testOutputsWithTheSameName() throws Exception {
+    File other = new File(new File(dir, "sub"), output.getName());
+    other.getParentFile().mkdir();
+    write(other, "cajoled");
+    BuildManifest manifest = manifest();
+    assertFalse(manifest.getManifestFile(output).equals(
+        manifest.getManifestFile(other)));
+    manifest.recordBuild(output, options("x"));
+    assertFalse(manifest.isUpToDate(other, options("x")));
+  }
+
+  private BuildManifest manifest() throws IOException {
+    return new BuildManifest(
+        manifestDir, String.class, Arrays.asList(input),
+        Collections.singletonList(dependee));
+  }
+
+  private Map<String, Object> options(String language) {
+    Map<String, Object> options = new HashMap<String, Object>();
+    options.put("language", language);
+    options.put("sourceMap", sourceMap);
+    return options;
+  }
+
+  static File write(File f, String content) throws IOException {
+    OutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) { delete(child); }
+    }
+    f.delete();
+  }
+}
@@ -0,0 +1,166 @@
+// Copyright (C) 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.util;
+
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.Identifier;
+import com.google.caja.parser.quasiliteral.CajitaRewriter;
+import com.google.caja.parser.quasiliteral.QuasiBuilder;
+import com.google.caja.plugin.PluginCompiler;
+import com.google.caja.plugin.PluginMeta;
+import com.google.caja.reporting.MessageType;
+import com.google.caja.reporting.TestBuildInfo;
+
+/**
+ * @author mikesamuel@gmail.com
+ */
+public class CompileBudgetTest extends CajaTestCase {
+  private CompileBudget old;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (old != null) { CompileBudget.install(old); }
+    super.tearDown();
+  }
+
+  public void testUnlimitedByDefault() throws Exception {
+    assertSame(CompileBudget.UNLIMITED, CompileBudget.current());
+    js(fromString("f(((((x)))));"));
+  }
+
+  public void testInputTooLarge() throws Exception {
+    install(new CompileBudget(10, 100, 100, 100));
+    js(fromString("var x = 1;"));
+    try {
+      js(fromString("var xyzzy = 1;"));
+      fail();
+    } catch (CompileBudget.Exceeded ex) {
+      assertEquals(
+          MessageType.INPUT_TOO_LARGE, ex.getCajaMessage().getMessageType());
+    }
+  }
+
+  public void testInputCheckedBeforeLexing() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; ++i) { sb.append("var x = 1;\n"); }
+    install(new CompileBudget(100, 100, 100, 100));
+    CharProducer cp = fromString(sb.toString());
+    try {
+      cp.read();
+      fail();
+    } catch (CompileBudget.Exceeded ex) {
+      assertEquals(
+          MessageType.INPUT_TOO_LARGE, ex.getCajaMessage().getMessageType());
+    }
+  }
+
+  public void testNestingTooDeep() throws Exception {
+    CompileBudget budget = new CompileBudget(1 << 20, 100, 1 << 20, 1 << 20);
+    install(budget);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 10000; ++i) { sb.append('('); }
+    sb.append('x');
+    for (int i = 0; i < 10000; ++i) { sb.append(')'); }
+    try {
+      js(fromString(sb.toString()));
+      fail();
+    } catch (CompileBudget.Exceeded ex) {
+      assertEquals(
+          MessageType.NESTING_TOO_DEEP, ex.getCajaMessage().getMessageType());
+    }
+    // Depth is unwound on failure, so the budget can still parse.
+    js(fromString("f((((x))));"));
+  }
+
+  public void testTooManyNodes() throws Exception {
+    Block program = js(fromString("var x = a + b;"));
+    CompileBudget budget = new CompileBudget(100, 100, 20, 100);
+    install(budget);
+    try {
+      new CajitaRewriter(new TestBuildInfo(), false).expand(program, mq);
+      fail();
+    } catch (CompileBudget.Exceeded ex) {
+      assertEquals(
+          MessageType.TOO_MANY_NODES, ex.getCajaMessage().getMessageType());
+    }
+    assertEquals(21, budget.getNodeCount());
+  }
+
+  public void testOutputTooLarge() throws Exception {
+    Block program = js(fromString("var x = 1, y = 2;"));
+    install(new CompileBudget(100, 100, 100, 10));
+    try {
+      minify(program);
+      fail();
+    } catch (CompileBudget.Exceeded ex) {
+      assertEquals(
+          MessageType.OUTPUT_TOO_LARGE, ex.getCajaMessage().getMessageType());
+    }
+  }
+
+  public void testFresh() throws Exception {
+    CompileBudget budget = new CompileBudget(100, 100, 100, 100);
+    install(budget);
+    js(fromString("f();"));
+    assertTrue(budget.getNodeCount() > 0);
+    CompileBudget fresh = budget.fresh();
+    assertEquals(0, fresh.getNodeCount());
+    assertEquals(budget.getMaxNodes(), fresh.getMaxNodes());
+    assertSame(CompileBudget.UNLIMITED, CompileBudget.UNLIMITED.fresh());
+  }
+
+  public void testPluginCompilerChargesAFreshBudget() throws Exception {
+    PluginMeta meta = new PluginMeta();
+    CompileBudget budget = new CompileBudget(1000, 1000, 1000, 1000);
+    meta.setCompileBudget(budget);
+    // A budget that fits one compilation but not several together.
+    for (int i = 0; i < 3; ++i) {
+      PluginCompiler pc = new PluginCompiler(new TestBuildInfo(), meta, mq);
+      pc.addInput(AncestorChain.instance(
+          js(fromString("var x = a + b; f(x);"))));
+      assertTrue(pc.run());
+    }
+    assertEquals(0, budget.getNodeCount());
+  }
+
+  public void testPatternsNotCharged() throws Exception {
+    CompileBudget budget = new CompileBudget(100, 100, 100, 100);
+    install(budget);
+    // Parsing a pattern is one-time setup, whichever compilation triggers it.
+    QuasiBuilder.parseQuasiNode("@a + @b * @c.d(@e, @f)");
+    assertEquals(0, budget.getNodeCount());
+  }
+
+  public void testNodesChargedToInstalledBudget() throws Exception {
+    CompileBudget budget = new CompileBudget(100, 100, 100, 100);
+    install(budget);
+    new Identifier(FilePosition.UNKNOWN, "x");
+    assertEquals(1, budget.getNodeCount());
+    CompileBudget.install(CompileBudget.UNLIMITED);
+    new Identifier(FilePosition.UNKNOWN, "y");
+    assertEquals(1, budget.getNodeCount());
+    CompileBudget.install(budget);
+    new Identifier(FilePosition.UNKNOWN, "z");
+    assertEquals(2, budget.getNodeCount());
+  }
+
+  private void install(CompileBudget budget) {
+    CompileBudget prev = CompileBudget.install(budget);
+    if (old == null) { old = prev; }
+  }
+}